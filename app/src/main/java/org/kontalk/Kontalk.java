@@ -30,6 +30,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.SSLContextCache;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PRNGFixes;
 import org.kontalk.crypto.PersonalKey;
@@ -223,6 +224,7 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        SSLContextCache.invalidate();
     }
 
     private void ensureCachedPassphrase() {
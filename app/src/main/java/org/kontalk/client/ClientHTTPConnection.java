@@ -19,8 +19,8 @@
 package org.kontalk.client;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -47,26 +47,15 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
 import org.kontalk.util.MediaStorage;
-import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
 
 import android.content.Context;
@@ -90,7 +79,6 @@ public class ClientHTTPConnection {
     private final X509Certificate mCertificate;
 
     private HttpRequestBase currentRequest;
-    private HttpClient mConnection;
 
     public ClientHTTPConnection(Context context, PrivateKey privateKey, X509Certificate bridgeCert) {
         mContext = context;
@@ -106,10 +94,18 @@ public class ClientHTTPConnection {
     /**
      * A generic download request.
      * @param url URL to download
+     * @param part partial download to resume
      * @return the request object
      */
-    private HttpRequestBase prepareURLDownload(String url) throws IOException {
+    private HttpRequestBase prepareURLDownload(String url, ResumableDownload part) throws IOException {
         HttpGet req = new HttpGet(url);
+        String range = part.getRange();
+        if (range != null) {
+            req.addHeader("Range", range);
+            String validator = part.getValidator();
+            if (validator != null)
+                req.addHeader("If-Range", validator);
+        }
         return req;
     }
 
@@ -144,64 +140,64 @@ public class ClientHTTPConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", setupSSLSocketFactory(mContext,
-                        mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
-            return mConnection.execute(request);
+            return TransferClient.getClient(mContext, mPrivateKey, mCertificate)
+                .execute(request);
         }
         catch (ClientProtocolException e) {
             IOException ie = new IOException("client protocol error");
             ie.initCause(e);
             throw ie;
         }
-
     }
 
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     * Data is written to a partial file first: if the download is
+     * interrupted, calling this method again will resume it.
      */
     public void downloadAutofilename(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
         _download(url, defaultBase, timestamp, listener);
     }
 
     private void _download(String url, File defaultBase, Date timestamp, DownloadListener listener) throws IOException {
-        currentRequest = prepareURLDownload(url);
-        HttpResponse response = execute(currentRequest);
+        ResumableDownload part = new ResumableDownload(ResumableDownload
+            .getPartFile(defaultBase, url));
+        HttpRequestBase request = prepareURLDownload(url, part);
+        currentRequest = request;
+        HttpResponse response = execute(request);
+
+        try {
+            processResponse(url, defaultBase, timestamp, listener, part, response);
+        }
+        catch (IOException e) {
+            // release the connection back to the pool
+            request.abort();
+            throw e;
+        }
+    }
+
+    private void processResponse(String url, File defaultBase, Date timestamp,
+            DownloadListener listener, ResumableDownload part, HttpResponse response)
+            throws IOException {
 
         int code = response.getStatusLine().getStatusCode();
-        // HTTP/1.1 200 OK -- other codes should throw Exceptions
-        if (code == 200) {
+        // HTTP/1.1 200 OK or 206 Partial Content -- other codes should throw Exceptions
+        if (code == ResumableDownload.HTTP_OK || code == ResumableDownload.HTTP_PARTIAL_CONTENT) {
             HttpEntity _entity = response.getEntity();
             if (_entity != null) {
+                OutputStream out = part.begin(code,
+                    getHeaderValue(response, "Content-Range"),
+                    _entity.getContentLength(),
+                    getHeaderValue(response, "ETag"),
+                    getHeaderValue(response, "Last-Modified"),
+                    _entity.getContentType() != null ? _entity.getContentType().getValue() : null);
+
                 // use a more suitable filename, taking only the extension
-                Header contentType = _entity.getContentType();
+                String mime = part.getMime();
                 File destination = null;
-                if (contentType != null) {
-                    destination = CompositeMessage.getIncomingFile(contentType.getValue(),
+                if (mime != null) {
+                    destination = CompositeMessage.getIncomingFile(mime,
                         timestamp != null ? timestamp : new Date());
                 }
 
@@ -217,14 +213,30 @@ public class ClientHTTPConnection {
                 }
 
                 // we need to wrap the entity to monitor the download progress
-                ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity, url, destination, listener);
-                FileOutputStream out = new FileOutputStream(destination);
-                entity.writeTo(out);
-                out.close();
+                ProgressOutputStreamEntity entity = new ProgressOutputStreamEntity(_entity,
+                    url, destination, listener, part.getOffset());
+                try {
+                    entity.writeTo(out);
+                }
+                finally {
+                    out.close();
+                }
+
+                part.commit(destination);
+                listener.completed(url, mime, destination);
                 return;
             }
         }
 
+        else if (code == ResumableDownload.HTTP_RANGE_NOT_SATISFIABLE) {
+            // partial data is not valid anymore, start over next time
+            part.discard();
+            HttpEntity entity = response.getEntity();
+            if (entity != null)
+                entity.consumeContent();
+            throw new IOException("requested range not satisfiable");
+        }
+
         Log.d(TAG, "invalid response: " + code);
         HttpEntity entity = response.getEntity();
         if (entity != null) {
@@ -234,6 +246,11 @@ public class ClientHTTPConnection {
         listener.error(url, null, new IOException("invalid response: " + code));
     }
 
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return (header != null) ? header.getValue() : null;
+    }
+
     /**
      * Parse the Content-Disposition HTTP Header. The format of the header
      * is defined here: http://www.w3.org/Protocols/rfc2616/rfc2616-sec19.html
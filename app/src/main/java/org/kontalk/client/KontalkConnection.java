@@ -19,17 +19,8 @@
 package org.kontalk.client;
 
 import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.SASLAuthentication;
@@ -48,6 +39,7 @@ import android.util.Log;
 import org.kontalk.BuildConfig;
 import org.kontalk.Kontalk;
 import org.kontalk.authenticator.LegacyAuthentication;
+import org.kontalk.crypto.PersonalKey;
 
 
 public class KontalkConnection extends XMPPTCPConnection {
@@ -56,27 +48,31 @@ public class KontalkConnection extends XMPPTCPConnection {
     /** Packet reply timeout. */
     public static final int DEFAULT_PACKET_TIMEOUT = 15000;
 
+    /** Stream resumption time we ask the server for (in seconds). */
+    public static final int DEFAULT_RESUMPTION_TIME = 300;
+
     protected EndpointServer mServer;
 
     public KontalkConnection(String resource, EndpointServer server, boolean secure,
         boolean acceptAnyCertificate, KeyStore trustStore, String legacyAuthToken)
             throws XMPPException {
 
-        this(resource, server, secure, null, null, acceptAnyCertificate, trustStore, legacyAuthToken);
+        this(resource, server, secure, null, acceptAnyCertificate, trustStore, legacyAuthToken);
     }
 
     public KontalkConnection(String resource, EndpointServer server, boolean secure,
-            PrivateKey privateKey, X509Certificate bridgeCert,
-            boolean acceptAnyCertificate, KeyStore trustStore, String legacyAuthToken) throws XMPPException {
+            PersonalKey key, boolean acceptAnyCertificate, KeyStore trustStore,
+            String legacyAuthToken) throws XMPPException {
 
         super(buildConfiguration(resource, server, secure,
-            privateKey, bridgeCert, acceptAnyCertificate, trustStore, legacyAuthToken));
+            key, acceptAnyCertificate, trustStore, legacyAuthToken));
 
         mServer = server;
 
-        // enable SM without resumption
+        // enable SM with resumption
         setUseStreamManagement(true);
-        setUseStreamManagementResumption(false);
+        setUseStreamManagementResumption(true);
+        setPreferredResumptionTime(DEFAULT_RESUMPTION_TIME);
         // set custom ack predicate
         addRequestAckPredicate(AckPredicate.INSTANCE);
         // set custom packet reply timeout
@@ -84,7 +80,7 @@ public class KontalkConnection extends XMPPTCPConnection {
     }
 
     private static XMPPTCPConnectionConfiguration buildConfiguration(String resource,
-        EndpointServer server, boolean secure, PrivateKey privateKey, X509Certificate bridgeCert,
+        EndpointServer server, boolean secure, PersonalKey key,
         boolean acceptAnyCertificate, KeyStore trustStore, String legacyAuthToken) {
         XMPPTCPConnectionConfiguration.Builder builder =
             XMPPTCPConnectionConfiguration.builder();
@@ -111,71 +107,22 @@ public class KontalkConnection extends XMPPTCPConnection {
             .setDebuggerEnabled(BuildConfig.DEBUG);
 
         // setup SSL
-        setupSSL(builder, secure, privateKey, bridgeCert, acceptAnyCertificate, trustStore);
+        setupSSL(builder, secure, key, acceptAnyCertificate, trustStore);
 
         return builder.build();
     }
 
     private static void setupSSL(XMPPTCPConnectionConfiguration.Builder builder,
-        boolean direct, PrivateKey privateKey, X509Certificate bridgeCert,
-        boolean acceptAnyCertificate, KeyStore trustStore) {
+        boolean direct, PersonalKey key, boolean acceptAnyCertificate, KeyStore trustStore) {
         try {
-            SSLContext ctx = SSLContext.getInstance("TLS");
-
-            KeyManager[] km = null;
-            if (privateKey != null && bridgeCert != null) {
-                // in-memory keystore
-                KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keystore.load(null, null);
-                keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
-
-                // key managers
-                KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                kmFactory.init(keystore, null);
-
-                km = kmFactory.getKeyManagers();
-
-                // disable PLAIN mechanism if not upgrading from legacy
-                if (!LegacyAuthentication.isUpgrading()) {
-                    // blacklist PLAIN mechanism
-                    SASLAuthentication.blacklistSASLMechanism("PLAIN");
-                }
-            }
-
-            // trust managers
-            TrustManager[] tm;
-
-            if (acceptAnyCertificate) {
-                tm = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-                    }
-                };
-            }
-
-            else {
-                // builtin keystore
-                TrustManagerFactory tmFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmFactory.init(trustStore);
+            SSLContext ctx = SSLContextCache.getContext(key, acceptAnyCertificate, trustStore);
 
-                tm = tmFactory.getTrustManagers();
+            // disable PLAIN mechanism if not upgrading from legacy
+            if (key != null && !LegacyAuthentication.isUpgrading()) {
+                // blacklist PLAIN mechanism
+                SASLAuthentication.blacklistSASLMechanism("PLAIN");
             }
 
-            ctx.init(km, tm, null);
             builder.setCustomSSLContext(ctx);
             if (direct)
                 builder.setSocketFactory(ctx.getSocketFactory());
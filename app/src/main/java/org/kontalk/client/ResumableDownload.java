@@ -0,0 +1,231 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A download stored in a partial file that can be resumed with a HTTP
+ * range request. Validators needed for <code>If-Range</code> and the
+ * content type are kept in a small metadata file next to the partial file.
+ * @author Daniele Ricci
+ */
+public class ResumableDownload {
+
+    public static final int HTTP_OK = 200;
+    public static final int HTTP_PARTIAL_CONTENT = 206;
+    public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String PART_EXTENSION = ".part";
+    private static final String META_EXTENSION = ".meta";
+
+    private static final String META_VALIDATOR = "validator";
+    private static final String META_MIME = "mime";
+    private static final String META_LENGTH = "length";
+
+    /** Regex used to parse Content-Range headers. */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+        .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final File mPartFile;
+    private final File mMetaFile;
+    private final Properties mMeta = new Properties();
+
+    private long mOffset;
+
+    public ResumableDownload(File partFile) {
+        mPartFile = partFile;
+        mMetaFile = new File(partFile.getPath() + META_EXTENSION);
+        load();
+    }
+
+    /** Returns the partial file to use for the given URL. */
+    public static File getPartFile(File directory, String url) {
+        return new File(directory, "." + sha1(url) + PART_EXTENSION);
+    }
+
+    private void load() {
+        mOffset = 0;
+        if (mPartFile.isFile() && mMetaFile.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(mMetaFile);
+                mMeta.load(in);
+                mOffset = mPartFile.length();
+            }
+            catch (IOException e) {
+                mMeta.clear();
+            }
+            finally {
+                try {
+                    if (in != null)
+                        in.close();
+                }
+                catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        OutputStream out = new FileOutputStream(mMetaFile);
+        try {
+            mMeta.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Bytes already downloaded. */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /** Value for the <code>Range</code> header, or null for a full download. */
+    public String getRange() {
+        return (mOffset > 0) ? "bytes=" + mOffset + "-" : null;
+    }
+
+    /** Value for the <code>If-Range</code> header, or null if not known. */
+    public String getValidator() {
+        return (mOffset > 0) ? mMeta.getProperty(META_VALIDATOR) : null;
+    }
+
+    /** Content type of the download, as declared by the first response. */
+    public String getMime() {
+        return mMeta.getProperty(META_MIME);
+    }
+
+    /** Total length of the download, or -1 if not known. */
+    public long getLength() {
+        try {
+            return Long.parseLong(mMeta.getProperty(META_LENGTH, "-1"));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Prepares the partial file for writing the body of a response.
+     * A 206 response is appended to the data already downloaded, a 200
+     * response restarts the download from the beginning.
+     * @param statusCode HTTP status code
+     * @param contentRange <code>Content-Range</code> header value
+     * @param contentLength length of the response body, -1 if not known
+     * @param etag <code>ETag</code> header value
+     * @param lastModified <code>Last-Modified</code> header value
+     * @param mime <code>Content-Type</code> header value
+     * @return a stream for writing the response body
+     */
+    public OutputStream begin(int statusCode, String contentRange, long contentLength,
+            String etag, String lastModified, String mime) throws IOException {
+
+        boolean append;
+        if (statusCode == HTTP_PARTIAL_CONTENT) {
+            Matcher m = (contentRange != null) ?
+                CONTENT_RANGE_PATTERN.matcher(contentRange) : null;
+            if (m == null || !m.matches() || Long.parseLong(m.group(1)) != mOffset) {
+                discard();
+                throw new IOException("unexpected content range: " + contentRange);
+            }
+
+            String total = m.group(3);
+            if (!"*".equals(total))
+                mMeta.setProperty(META_LENGTH, total);
+            append = true;
+        }
+        else if (statusCode == HTTP_OK) {
+            // full content (resource changed or range not supported)
+            mOffset = 0;
+            mMeta.clear();
+            if (contentLength >= 0)
+                mMeta.setProperty(META_LENGTH, String.valueOf(contentLength));
+            append = false;
+        }
+        else {
+            throw new IOException("invalid response: " + statusCode);
+        }
+
+        // weak validators can't be used with If-Range
+        String validator = (etag != null && !etag.startsWith("W/")) ? etag : lastModified;
+        if (validator != null)
+            mMeta.setProperty(META_VALIDATOR, validator);
+        else
+            mMeta.remove(META_VALIDATOR);
+        if (mime != null)
+            mMeta.setProperty(META_MIME, mime);
+        save();
+
+        return new FileOutputStream(mPartFile, append);
+    }
+
+    /** Moves the completed download to its final destination. */
+    public void commit(File destination) throws IOException {
+        long length = getLength();
+        if (length >= 0 && mPartFile.length() != length)
+            throw new IOException("incomplete download: " + mPartFile.length() + "/" + length);
+
+        destination.delete();
+        if (!mPartFile.renameTo(destination))
+            throw new IOException("unable to rename " + mPartFile + " to " + destination);
+        mMetaFile.delete();
+        mMeta.clear();
+        mOffset = 0;
+    }
+
+    /** Deletes any partial data. */
+    public void discard() {
+        mPartFile.delete();
+        mMetaFile.delete();
+        mMeta.clear();
+        mOffset = 0;
+    }
+
+    private static String sha1(String text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(text.hashCode());
+        }
+        catch (IOException e) {
+            return Integer.toHexString(text.hashCode());
+        }
+    }
+
+}
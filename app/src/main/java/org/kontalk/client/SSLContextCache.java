@@ -0,0 +1,189 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.spongycastle.openpgp.PGPException;
+
+import org.kontalk.crypto.PersonalKey;
+
+
+/**
+ * Keeps the {@link SSLContext} used by XMPP connections, so key and trust
+ * managers are not built again on every reconnection. Reusing the same
+ * context also allows TLS sessions to be resumed.
+ * The context is built again when the bridge certificate, the trust store
+ * or the certificate policy change, or after {@link #invalidate()}.
+ * @author Daniele Ricci
+ */
+public class SSLContextCache {
+
+    /** Lifetime of cached TLS sessions (in seconds). */
+    private static final int SESSION_TIMEOUT = 3600;
+
+    private static SSLContext sContext;
+
+    /** Bridge certificate used by {@link #sContext}. */
+    private static X509Certificate sCertificate;
+    /** Trust store used by {@link #sContext}. */
+    private static KeyStore sTrustStore;
+    private static boolean sAcceptAnyCertificate;
+
+    private SSLContextCache() {
+    }
+
+    /**
+     * Returns the SSL context for the given credentials.
+     * @param key the personal key, null for anonymous connections
+     * @param trustStore trust store, ignored if acceptAnyCertificate is true
+     */
+    public static synchronized SSLContext getContext(PersonalKey key,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException, PGPException {
+
+        X509Certificate certificate = (key != null) ? key.getBridgeCertificate() : null;
+        SSLContext ctx = get(certificate, acceptAnyCertificate, trustStore);
+        if (ctx == null) {
+            // private key is converted only when really needed
+            PrivateKey privateKey = (certificate != null) ? key.getBridgePrivateKey() : null;
+            ctx = createContext(privateKey, certificate, acceptAnyCertificate, trustStore);
+            put(ctx, certificate, acceptAnyCertificate, trustStore);
+        }
+
+        return ctx;
+    }
+
+    /** Discards the cached context, e.g. after the personal key has changed. */
+    public static synchronized void invalidate() {
+        sContext = null;
+        sCertificate = null;
+        sTrustStore = null;
+    }
+
+    /** Returns the cached context if it was built with the given parameters. */
+    static synchronized SSLContext get(X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore) {
+
+        if (sContext == null || sAcceptAnyCertificate != acceptAnyCertificate)
+            return null;
+
+        // a loaded trust store is never modified, a new one is created instead
+        if (!acceptAnyCertificate && sTrustStore != trustStore)
+            return null;
+
+        if (certificate != null ? !certificate.equals(sCertificate) : sCertificate != null)
+            return null;
+
+        return sContext;
+    }
+
+    static synchronized void put(SSLContext ctx, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore) {
+        sContext = ctx;
+        sCertificate = certificate;
+        sAcceptAnyCertificate = acceptAnyCertificate;
+        sTrustStore = trustStore;
+    }
+
+    /** Builds a new SSL context. */
+    static SSLContext createContext(PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException {
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+
+        KeyManager[] km = null;
+        if (privateKey != null && certificate != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            try {
+                keystore.load(null, null);
+            }
+            catch (IOException e) {
+                KeyStoreException ke = new KeyStoreException("unable to create keystore");
+                ke.initCause(e);
+                throw ke;
+            }
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+                }
+            };
+        }
+
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+
+            tm = tmFactory.getTrustManagers();
+        }
+
+        ctx.init(km, tm, null);
+
+        // keep sessions for resumption on reconnection
+        ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+
+        return ctx;
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.kontalk.util.Preferences;
+
+
+/**
+ * The HTTP client shared by uploads and downloads.
+ * Connections are pooled and kept alive between transfers, and the SSL
+ * socket factory is built only once for every personal key, so TLS
+ * sessions can be resumed too. Services using the client must call
+ * {@link #acquire()} when they are created and {@link #release()} when
+ * they are destroyed: the pool is shut down when nobody is using it.
+ * @author Daniele Ricci
+ */
+public class TransferClient {
+    private static final String TAG = TransferClient.class.getSimpleName();
+
+    /** Maximum number of pooled connections. */
+    private static final int MAX_CONNECTIONS = 6;
+    /** Maximum number of pooled connections to the same host. */
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 3;
+    /** Idle connections older than this will be closed. */
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private static HttpClient sClient;
+    /** Key of the credentials used by {@link #sClient}. */
+    private static String sClientKey;
+
+    private static int sRefCount;
+
+    private TransferClient() {
+    }
+
+    /**
+     * Returns the shared client for the given credentials. The client is
+     * rebuilt if the credentials or the certificate policy change.
+     */
+    public static synchronized HttpClient getClient(Context context,
+            PrivateKey privateKey, X509Certificate certificate) throws IOException {
+
+        boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(context);
+        String key = getClientKey(certificate, acceptAnyCertificate);
+
+        if (sClient == null || !key.equals(sClientKey)) {
+            if (sClient != null) {
+                Log.d(TAG, "credentials changed, creating new client");
+                sClient.getConnectionManager().shutdown();
+            }
+
+            sClient = createClient(context, privateKey, certificate, acceptAnyCertificate);
+            sClientKey = key;
+        }
+
+        return sClient;
+    }
+
+    private static HttpClient createClient(Context context, PrivateKey privateKey,
+            X509Certificate certificate, boolean acceptAnyCertificate) throws IOException {
+
+        SchemeRegistry registry = new SchemeRegistry();
+        try {
+            registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", ClientHTTPConnection.setupSSLSocketFactory(context,
+                privateKey, certificate, acceptAnyCertificate), 443));
+        }
+        catch (Exception e) {
+            IOException ie = new IOException("unable to create keystore");
+            ie.initCause(e);
+            throw ie;
+        }
+
+        HttpParams params = new BasicHttpParams();
+        // handle redirects :)
+        params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
+        // HttpClient bug caused by Lighttpd
+        params.setBooleanParameter("http.protocol.expect-continue", false);
+        // connection pool
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+            new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+        // create connection manager
+        ClientConnectionManager connMgr = new ThreadSafeClientConnManager(params, registry);
+
+        return new DefaultHttpClient(connMgr, params);
+    }
+
+    /** Builds a key identifying the client credentials. */
+    private static String getClientKey(X509Certificate certificate, boolean acceptAnyCertificate)
+            throws IOException {
+        try {
+            // the bridge certificate is rebuilt from the personal key, use its public key
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(certificate.getPublicKey().getEncoded());
+            StringBuilder key = new StringBuilder(digest.length * 2 + 2);
+            for (byte b : digest)
+                key.append(String.format("%02x", b));
+            return key.append(acceptAnyCertificate ? ":a" : ":v").toString();
+        }
+        catch (Exception e) {
+            IOException ie = new IOException("unable to identify certificate");
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+
+    /** Declares that a service will use the shared client. */
+    public static synchronized void acquire() {
+        sRefCount++;
+    }
+
+    /**
+     * Declares that a service will not use the shared client anymore.
+     * The pool is shut down when the last user releases it.
+     */
+    public static synchronized void release() {
+        if (sRefCount > 0)
+            sRefCount--;
+
+        if (sClient != null) {
+            if (sRefCount == 0) {
+                sClient.getConnectionManager().shutdown();
+                sClient = null;
+                sClientKey = null;
+            }
+            else {
+                sClient.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+}
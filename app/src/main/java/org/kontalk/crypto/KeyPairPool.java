@@ -0,0 +1,306 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPBEEncryptedData;
+import org.spongycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.spongycastle.openpgp.operator.bc.BcPBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.bc.BcPBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+
+import org.kontalk.crypto.PGP.PGPDecryptedKeyPairRing;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Keeps a pre-generated key pair in private storage, so it can be handed out
+ * without waiting for key generation. The key pair is encrypted at rest with
+ * a random, single-use passphrase kept in a separate file: destroying the
+ * small passphrase file is enough to make the key pair unrecoverable, even if
+ * the flash storage keeps old copies of the overwritten blocks.
+ * @author Daniele Ricci
+ */
+public class KeyPairPool {
+
+    /** Pooled key pairs older than this are destroyed instead of used. */
+    public static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String KEY_FILE = "keypair.pool";
+    private static final String PASSPHRASE_FILE = "keypair.pass";
+
+    /** Passphrase entropy in bytes. */
+    private static final int PASSPHRASE_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final SecureRandom sSecureRandom = new SecureRandom();
+
+    /** A key pair taken from the pool. */
+    public static final class PooledKey {
+        public final PersonalKey key;
+        /** Time it took to generate the key pair, in milliseconds. */
+        public final long generationTime;
+        /** When the key pair was put in the pool. */
+        public final long timestamp;
+
+        PooledKey(PersonalKey key, long generationTime, long timestamp) {
+            this.key = key;
+            this.generationTime = generationTime;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final File mKeyFile;
+    private final File mPassphraseFile;
+
+    /**
+     * @param dir a private directory to store the pool into
+     */
+    public KeyPairPool(File dir) {
+        mKeyFile = new File(dir, KEY_FILE);
+        mPassphraseFile = new File(dir, PASSPHRASE_FILE);
+    }
+
+    /** Returns true if a key pair is pooled and not expired. */
+    public boolean isAvailable() {
+        return isAvailable(System.currentTimeMillis());
+    }
+
+    synchronized boolean isAvailable(long now) {
+        return mKeyFile.isFile() && mPassphraseFile.isFile() &&
+            now - mKeyFile.lastModified() < MAX_AGE;
+    }
+
+    /**
+     * Puts a key pair in the pool, destroying any key pair already pooled.
+     * @param generationTime time it took to generate the key pair, in milliseconds
+     */
+    public synchronized void put(PersonalKey key, long generationTime)
+            throws IOException, PGPException {
+        destroy();
+
+        byte[] random = new byte[PASSPHRASE_LENGTH];
+        sSecureRandom.nextBytes(random);
+        char[] passphrase = MessageUtils.bytesToHex(random).toCharArray();
+        Arrays.fill(random, (byte) 0);
+
+        boolean success = false;
+        try {
+            writePassphrase(passphrase);
+            writeKey(key.getKeyPair(), generationTime, passphrase);
+            success = true;
+        }
+        finally {
+            Arrays.fill(passphrase, '\0');
+            if (!success)
+                destroy();
+        }
+    }
+
+    /** Takes the pooled key pair, or returns null if the pool is empty. */
+    public PooledKey take() throws IOException, PGPException {
+        return take(System.currentTimeMillis());
+    }
+
+    /**
+     * Takes the pooled key pair. Pool files are destroyed in any case, so a
+     * key pair can be taken only once.
+     * @return the key pair, or null if the pool is empty or the key pair has expired
+     */
+    synchronized PooledKey take(long now) throws IOException, PGPException {
+        try {
+            if (!isAvailable(now))
+                return null;
+
+            long timestamp = mKeyFile.lastModified();
+            char[] passphrase = readPassphrase();
+            try {
+                return readKey(passphrase, timestamp);
+            }
+            finally {
+                Arrays.fill(passphrase, '\0');
+            }
+        }
+        finally {
+            destroy();
+        }
+    }
+
+    /** Securely deletes the pooled key pair, if any. */
+    public synchronized void destroy() throws IOException {
+        // passphrase first: without it the key file is useless
+        secureDelete(mPassphraseFile);
+        secureDelete(mKeyFile);
+    }
+
+    private void writePassphrase(char[] passphrase) throws IOException {
+        FileOutputStream out = new FileOutputStream(mPassphraseFile);
+        try {
+            byte[] data = new byte[passphrase.length];
+            for (int i = 0; i < passphrase.length; i++)
+                data[i] = (byte) passphrase[i];
+            out.write(data);
+            Arrays.fill(data, (byte) 0);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private char[] readPassphrase() throws IOException {
+        byte[] data = new byte[(int) mPassphraseFile.length()];
+        RandomAccessFile in = new RandomAccessFile(mPassphraseFile, "r");
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+
+        char[] passphrase = new char[data.length];
+        for (int i = 0; i < data.length; i++)
+            passphrase[i] = (char) data[i];
+        Arrays.fill(data, (byte) 0);
+        return passphrase;
+    }
+
+    private void writeKey(PGPDecryptedKeyPairRing pair, long generationTime, char[] passphrase)
+            throws IOException, PGPException {
+
+        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_256);
+        encryptor.setWithIntegrityPacket(true);
+        encryptor.setSecureRandom(sSecureRandom);
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+        encGen.addMethod(new BcPBEKeyEncryptionMethodGenerator(passphrase));
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mKeyFile));
+        try {
+            OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
+
+            // key pair data never touches the disk unencrypted
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(encryptedOut,
+                PGPLiteralData.BINARY, "", new Date(), new byte[BUFFER_SIZE]);
+
+            ObjectOutputStream os = new ObjectOutputStream(literalOut);
+            os.writeLong(generationTime);
+            PGP.serialize(pair, os);
+            os.flush();
+
+            literalGen.close();
+            encGen.close();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private PooledKey readKey(char[] passphrase, long timestamp)
+            throws IOException, PGPException {
+
+        BcKeyFingerprintCalculator fpr = new BcKeyFingerprintCalculator();
+        InputStream in = new BufferedInputStream(new FileInputStream(mKeyFile));
+        try {
+            PGPObjectFactory encFact = new PGPObjectFactory(in, fpr);
+            Object o = encFact.nextObject();
+            if (!(o instanceof PGPEncryptedDataList))
+                throw new PGPException("invalid pooled key data");
+
+            PGPPBEEncryptedData pbe = (PGPPBEEncryptedData) ((PGPEncryptedDataList) o).get(0);
+            InputStream clear = pbe.getDataStream(new BcPBEDataDecryptorFactory(passphrase,
+                new BcPGPDigestCalculatorProvider()));
+
+            PGPObjectFactory plainFact = new PGPObjectFactory(clear, fpr);
+            o = plainFact.nextObject();
+            if (!(o instanceof PGPLiteralData))
+                throw new PGPException("invalid pooled key data");
+
+            InputStream literalIn = ((PGPLiteralData) o).getInputStream();
+            ObjectInputStream is = new ObjectInputStream(literalIn);
+            long generationTime = is.readLong();
+            PGPDecryptedKeyPairRing pair;
+            try {
+                pair = PGP.unserialize(is);
+            }
+            catch (ClassNotFoundException e) {
+                throw new PGPException("invalid pooled key data", e);
+            }
+
+            // the integrity packet is checked only at the end of the stream
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (literalIn.read(buf) >= 0) {
+                // discard any trailing data
+            }
+            if (!pbe.isIntegrityProtected() || !pbe.verify())
+                throw new PGPException("pooled key integrity check failed");
+
+            return new PooledKey(PersonalKey.create(pair), generationTime, timestamp);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Overwrites a file with random data before deleting it. */
+    private static void secureDelete(File file) throws IOException {
+        if (!file.exists())
+            return;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rws");
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long length = raf.length();
+            for (long written = 0; written < length; written += buf.length) {
+                sSecureRandom.nextBytes(buf);
+                raf.write(buf, 0, (int) Math.min(buf.length, length - written));
+            }
+        }
+        finally {
+            raf.close();
+        }
+
+        if (!file.delete())
+            throw new IOException("unable to delete " + file);
+    }
+
+}
@@ -81,8 +81,27 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         new BcKeyFingerprintCalculator();
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Default buffer size. It should always be a power of 2. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    /** Minimum buffer size: the first partial packet must be at least 512 bytes long (RFC 4880). */
+    private static final int MIN_BUFFER_SIZE = 1 << 9;
+    /** Buffers used at the same time by a single encryption. */
+    private static final int BUFFERS_PER_OPERATION = 4;
+    /** Maximum number of crypto operations running at the same time (as in CryptoExecutor). */
+    private static final int MAX_OPERATIONS =
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Maximum number of idle buffers of each size kept in the pool. */
+    private static final int MAX_POOLED_BUFFERS = BUFFERS_PER_OPERATION * MAX_OPERATIONS;
+
+    /** Maximum buffer size used by all coder instances. */
+    private static int sBufferSize = DEFAULT_BUFFER_SIZE;
+    /** Pools of reusable buffers, indexed by the log2 of their size. */
+    private static final byte[][][] sBufferPool = new byte[Integer.SIZE][][];
+    /** Number of idle buffers in each pool. */
+    private static final int[] sPooledBuffers = new int[Integer.SIZE];
+
+    /** Shared random generator (SecureRandom is thread-safe). */
+    private static final SecureRandom sSecureRandom = new SecureRandom();
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -106,6 +125,76 @@ public class PGPCoder extends Coder {
         mSender = sender;
     }
 
+    /**
+     * Sets the buffer size used for stream processing and packet sizing.
+     * @param size buffer size, must be a power of 2 not smaller than 512
+     */
+    public static void setBufferSize(int size) {
+        if (size < MIN_BUFFER_SIZE || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("buffer size must be a power of 2 >= " + MIN_BUFFER_SIZE);
+
+        synchronized (sBufferPool) {
+            sBufferSize = size;
+            for (int i = 0; i < sBufferPool.length; i++) {
+                sBufferPool[i] = null;
+                sPooledBuffers[i] = 0;
+            }
+        }
+    }
+
+    public static int getBufferSize() {
+        synchronized (sBufferPool) {
+            return sBufferSize;
+        }
+    }
+
+    /**
+     * Returns a buffer big enough for the given amount of data, but not bigger
+     * than the buffer size. Buffer sizes are always a power of 2.
+     * @param length data length, or -1 if unknown
+     */
+    private static byte[] acquireBuffer(long length) {
+        synchronized (sBufferPool) {
+            int size = sBufferSize;
+            if (length >= 0 && length < size) {
+                int fit = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit((int) length));
+                if (fit < length)
+                    fit <<= 1;
+                size = Math.min(size, fit);
+            }
+
+            int index = Integer.numberOfTrailingZeros(size);
+            if (sPooledBuffers[index] > 0) {
+                byte[][] pool = sBufferPool[index];
+                byte[] buf = pool[--sPooledBuffers[index]];
+                pool[sPooledBuffers[index]] = null;
+                return buf;
+            }
+            return new byte[size];
+        }
+    }
+
+    private static void releaseBuffer(byte[] buf) {
+        synchronized (sBufferPool) {
+            // buffer size might have changed in the meantime
+            if (buf.length > sBufferSize)
+                return;
+
+            int index = Integer.numberOfTrailingZeros(buf.length);
+            if (sBufferPool[index] == null)
+                sBufferPool[index] = new byte[MAX_POOLED_BUFFERS][];
+            if (sPooledBuffers[index] < MAX_POOLED_BUFFERS)
+                sBufferPool[index][sPooledBuffers[index]++] = buf;
+        }
+    }
+
+    private static void releaseBuffers(byte[]... buffers) {
+        for (byte[] buf : buffers) {
+            if (buf != null)
+                releaseBuffer(buf);
+        }
+    }
+
     @Override
     public byte[] encryptText(CharSequence text) throws GeneralSecurityException {
         try {
@@ -158,63 +247,80 @@ public class PGPCoder extends Coder {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
+        encrypt(in, out, plainText.length);
+        in.close();
+        return out.toByteArray();
+    }
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+    /**
+     * Signs, compresses and encrypts the "in" stream to the "out" stream.
+     * @param length length of the input data, or -1 if unknown
+     */
+    private void encrypt(InputStream in, OutputStream out, long length)
+            throws PGPException, IOException, SignatureException {
 
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
-
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-        // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
-
-        sigGen.generateOnePassVersion(false)
-            .encode(compressedOut);
-
-        // Initialize literal data generator
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        OutputStream literalOut = literalGen.open(
-            compressedOut,
-            PGPLiteralData.BINARY,
-            "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+        byte[] encBuf = null, compBuf = null, literalBuf = null, buf = null;
+        try {
+            encBuf = acquireBuffer(length);
+            compBuf = acquireBuffer(length);
+            literalBuf = acquireBuffer(length);
+            buf = acquireBuffer(length);
 
-        in.close();
-        literalGen.close();
-        // Generate the signature, compress, encrypt and write to the "out" stream
-        sigGen.generate().encode(compressedOut);
-        compGen.close();
-        encGen.close();
+            // setup data encryptor & generator
+            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+            encryptor.setWithIntegrityPacket(true);
+            encryptor.setSecureRandom(sSecureRandom);
 
-        return out.toByteArray();
+            // add public key recipients
+            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+            for (PGPPublicKeyRing rcpt : mRecipients)
+                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+
+            OutputStream encryptedOut = encGen.open(out, encBuf);
+
+            // setup compressed data generator
+            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+            OutputStream compressedOut = compGen.open(encryptedOut, compBuf);
+
+            // setup signature generator
+            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
+                    (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
+                        .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
+            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
+
+            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
+            sigGen.setUnhashedSubpackets(spGen.generate());
+
+            sigGen.generateOnePassVersion(false)
+                .encode(compressedOut);
+
+            // Initialize literal data generator
+            // partial packets will be as big as the buffer
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(
+                compressedOut,
+                PGPLiteralData.BINARY,
+                "",
+                new Date(),
+                literalBuf);
+
+            // read the "in" stream, compress, encrypt and write to the "out" stream
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                literalOut.write(buf, 0, len);
+                sigGen.update(buf, 0, len);
+            }
+
+            literalGen.close();
+            // Generate the signature, compress, encrypt and write to the "out" stream
+            sigGen.generate().encode(compressedOut);
+            compGen.close();
+            encGen.close();
+        }
+        finally {
+            releaseBuffers(encBuf, compBuf, literalBuf, buf);
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -289,14 +395,18 @@ public class PGPCoder extends Coder {
                     InputStream unc = ld.getInputStream();
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-                    byte[] buf = new byte[4096];
-                    int num;
-
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                    byte[] buf = acquireBuffer(encrypted.length);
+                    try {
+                        int num;
+                        while ((num = unc.read(buf)) >= 0) {
+                            bout.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        releaseBuffer(buf);
                     }
 
                     if (verify) {
@@ -459,59 +569,7 @@ public class PGPCoder extends Coder {
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
         try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
-
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
-
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-            // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
-
-            sigGen.generateOnePassVersion(false)
-                .encode(compressedOut);
-
-            // Initialize literal data generator
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            OutputStream literalOut = literalGen.open(
-                compressedOut,
-                PGPLiteralData.BINARY,
-                "",
-                new Date(),
-                new byte[BUFFER_SIZE]);
-
-            // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = input.read(buf)) > 0) {
-                literalOut.write(buf, 0, len);
-                sigGen.update(buf, 0, len);
-            }
-
-            literalGen.close();
-            // Generate the signature, compress, encrypt and write to the "out" stream
-            sigGen.generate().encode(compressedOut);
-            compGen.close();
-            encGen.close();
+            encrypt(input, output, -1);
         }
         catch (PGPException e) {
             throw new GeneralSecurityException(e);
@@ -587,14 +645,18 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
-                    int num;
-
-                    while ((num = unc.read(buf)) >= 0) {
-                        output.write(buf, 0, num);
+                    byte[] buf = acquireBuffer(-1);
+                    try {
+                        int num;
+                        while ((num = unc.read(buf)) >= 0) {
+                            output.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        releaseBuffer(buf);
                     }
 
                     if (verify) {
@@ -90,6 +90,11 @@ public class PersonalKey implements Parcelable {
         // TODO mBridgeCert = X509Bridge.fromParcel(in);
     }
 
+    /** Returns the decrypted key pair (used by {@link KeyPairPool}). */
+    PGPDecryptedKeyPairRing getKeyPair() {
+        return mPair;
+    }
+
     public PGPKeyPair getEncryptKeyPair() {
         return mPair.encryptKey;
     }
@@ -403,6 +408,11 @@ public class PersonalKey implements Parcelable {
         }
     }
 
+    /** Creates a {@link PersonalKey} from a previously generated key pair. */
+    static PersonalKey create(PGPDecryptedKeyPairRing pair) {
+        return new PersonalKey(pair, null);
+    }
+
     /**
      * Revokes the whole key pair using the master (signing) key.
      * @param store true to store the key in this object
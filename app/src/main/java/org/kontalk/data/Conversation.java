@@ -244,7 +244,7 @@ public class Conversation {
                 public void run() {
                     MessagesProvider.markThreadAsRead(mContext, mThreadId);
 
-                    MessagingNotification.updateMessagesNotification(mContext.getApplicationContext(), false);
+                    MessagingNotification.threadRead(mContext, mRecipient);
                 }
             }).start();
         }
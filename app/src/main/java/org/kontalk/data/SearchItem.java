@@ -18,7 +18,6 @@
 
 package org.kontalk.data;
 
-import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
 
 import android.content.Context;
@@ -31,26 +30,24 @@ import android.database.Cursor;
  */
 public class SearchItem {
     public static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
+        Fulltext._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.SNIPPET,
+        Fulltext.PEER,
     };
 
     protected final long mId;
     protected final long mThreadId;
-    protected String mUserId;
+    protected final String mUserId;
     protected final String mText;
-    protected Contact mContact;
+    protected final Contact mContact;
 
-    private SearchItem(Context context, long id, long threadId, String text) {
+    private SearchItem(Context context, long id, long threadId, String userId, String text) {
         mId = id;
         mThreadId = threadId;
+        mUserId = userId;
         mText = text;
-        Conversation conv = Conversation.loadFromId(context, threadId);
-        if (conv != null) {
-            mUserId = conv.getRecipient();
-            mContact = conv.getContact();
-        }
+        mContact = (userId != null) ? Contact.findByUserId(context, userId) : null;
     }
 
     public long getMessageId() {
@@ -77,13 +74,37 @@ public class SearchItem {
         long id = cursor.getLong(0);
         long threadId = cursor.getLong(1);
         String text = cursor.getString(2);
-        return new SearchItem(context, id, threadId, text);
+        String userId = cursor.getString(3);
+        return new SearchItem(context, id, threadId, userId, text);
     }
 
-    public static Cursor query(Context context, String query) {
-        // TODO enhanced queries?
-        return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query + "*").build(),
-                SEARCH_PROJECTION, null, null, null);
+    /**
+     * Builds a full text search pattern matching all the words in the query
+     * as prefixes. Characters with a meaning in the query syntax are
+     * dropped, so any user input gives a valid pattern.
+     * @return the pattern, or null if the query has no words
+     */
+    public static String buildPattern(String query) {
+        if (query == null)
+            return null;
+
+        StringBuilder pattern = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        int length = query.length();
+        for (int i = 0; i <= length; i++) {
+            char c = (i < length) ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                // lower case avoids reserved words (AND, OR, NEAR)
+                word.append(Character.toLowerCase(c));
+            }
+            else if (word.length() > 0) {
+                if (pattern.length() > 0)
+                    pattern.append(' ');
+                pattern.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+
+        return (pattern.length() > 0) ? pattern.toString() : null;
     }
 }
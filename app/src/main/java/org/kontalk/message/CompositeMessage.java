@@ -386,6 +386,48 @@ public class CompositeMessage {
                 MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
     }
 
+    /** Loads the latest messages of a conversation. */
+    public static void startQuery(AsyncQueryHandler handler, int token, long threadId, int limit) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getPageUri(threadId, 0, 0, 0, limit),
+                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * Loads the messages of a conversation starting from the given one.
+     * @param beforeId load messages older than this one only (0 for up to the latest message)
+     */
+    public static void startQueryRange(AsyncQueryHandler handler, int token, long threadId,
+            long sinceId, long beforeId) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, null,
+                Conversations.getPageUri(threadId, beforeId, 0, sinceId, 0),
+                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
+    /** Loads the ids of the messages preceding the given one. */
+    public static void startQueryBefore(AsyncQueryHandler handler, int token, Object cookie,
+            long threadId, long beforeId, int limit) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, cookie,
+                Conversations.getPageUri(threadId, beforeId, 0, 0, limit),
+                new String[] { Messages._ID }, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
+    /** Loads the ids of the messages following the given one. */
+    public static void startQueryAfter(AsyncQueryHandler handler, int token, Object cookie,
+            long threadId, long afterId, int limit) {
+        // cancel previous operations
+        handler.cancelOperation(token);
+        handler.startQuery(token, cookie,
+                Conversations.getPageUri(threadId, 0, afterId, 0, limit),
+                new String[] { Messages._ID }, null, null, Messages.DEFAULT_SORT_ORDER);
+    }
+
     /** A sample text content from class name and mime type. */
     public static String getSampleTextContent(String mime) {
         Class<AttachmentComponent> klass = getSupportingComponent(mime);
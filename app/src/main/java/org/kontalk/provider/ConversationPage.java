@@ -0,0 +1,89 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+
+/**
+ * Builds the clauses selecting a page of a conversation. Pages use message
+ * ids as keys (see {@link MyMessages.Threads.Conversations} paging
+ * parameters) and are meant to be sorted by id.
+ * @author Daniele Ricci
+ */
+final class ConversationPage {
+
+    private ConversationPage() {
+    }
+
+    /**
+     * Builds the where clause for a page of a conversation. Parameters are
+     * the raw query parameters, null if not given.
+     * @param table the messages table
+     * @param limit maximum number of messages
+     * @param before only messages older than this one (exclusive)
+     * @param after only messages newer than this one (exclusive)
+     * @param since only messages starting from this one (inclusive)
+     */
+    static String buildWhere(String table, long threadId, String limit,
+            String before, String after, String since) {
+        StringBuilder where = new StringBuilder()
+            .append(Messages.THREAD_ID).append('=').append(threadId);
+
+        if (after != null) {
+            where.append(" AND ").append(Messages._ID).append('>')
+                .append(Long.parseLong(after));
+        }
+        else if (limit != null) {
+            // the latest messages before the given one
+            where.append(" AND ").append(Messages._ID).append(" IN (SELECT ")
+                .append(Messages._ID).append(" FROM ").append(table)
+                .append(" WHERE ").append(Messages.THREAD_ID).append('=').append(threadId);
+            if (before != null)
+                where.append(" AND ").append(Messages._ID).append('<')
+                    .append(Long.parseLong(before));
+            where.append(" ORDER BY ").append(Messages._ID).append(" DESC")
+                .append(" LIMIT ").append(Integer.parseInt(limit))
+                .append(')');
+        }
+        else if (before != null) {
+            // all messages before the given one
+            where.append(" AND ").append(Messages._ID).append('<')
+                .append(Long.parseLong(before));
+        }
+
+        if (since != null) {
+            where.append(" AND ").append(Messages._ID).append(">=")
+                .append(Long.parseLong(since));
+        }
+
+        return where.toString();
+    }
+
+    /**
+     * Returns the limit clause for a page of a conversation, null for no
+     * limit. Pages going forward can be limited directly, the others are
+     * limited by the where clause.
+     */
+    static String buildLimit(String limit, String after) {
+        return (after != null && limit != null) ?
+            String.valueOf(Integer.parseInt(limit)) : null;
+    }
+
+}
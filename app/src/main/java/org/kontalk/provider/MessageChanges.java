@@ -0,0 +1,73 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+
+/**
+ * Tells what a message update affects from the columns it changes, so the
+ * messages provider can skip work that is not needed (e.g. the full thread
+ * refresh and fulltext update for status changes).
+ * @author Daniele Ricci
+ */
+final class MessageChanges {
+
+    /** Thread summary, fulltext or thread membership might change. */
+    public static final int FULL = 0;
+    /** Only the thread status might change. */
+    public static final int THREAD_STATUS = 1;
+    /** Only the message itself changes. */
+    public static final int MESSAGE_ONLY = 2;
+
+    /** Columns used by the thread summary, the fulltext index or the thread order. */
+    private static final Set<String> sFullColumns = new HashSet<String>(Arrays.asList(
+        Messages._ID,
+        Messages.THREAD_ID,
+        Messages.PEER,
+        Messages.MESSAGE_ID,
+        Messages.DIRECTION,
+        Messages.TIMESTAMP,
+        Messages.BODY_CONTENT,
+        Messages.BODY_MIME,
+        Messages.ATTACHMENT_MIME,
+        Messages.ENCRYPTED
+    ));
+
+    private MessageChanges() {
+    }
+
+    /** Returns what an update of the given columns affects. */
+    public static int of(Iterable<String> columns) {
+        int change = MESSAGE_ONLY;
+        for (String column : columns) {
+            if (sFullColumns.contains(column))
+                return FULL;
+            if (Messages.STATUS.equals(column))
+                change = THREAD_STATUS;
+        }
+        return change;
+    }
+
+}
@@ -20,7 +20,11 @@ package org.kontalk.provider;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.kontalk.BuildConfig;
 import org.kontalk.client.EndpointServer;
@@ -36,14 +40,18 @@ import org.kontalk.service.ServerListUpdater;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -74,15 +82,28 @@ public class MessagesProvider extends ContentProvider {
     private static final int CONVERSATIONS_ALL_ID = 8;
     private static final int FULLTEXT_ID = 9;
     private static final int REQUESTS = 10;
+    private static final int FULLTEXT_SEARCH = 11;
 
     private DatabaseHelper dbHelper;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
-
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 8;
+    private static HashMap<String, String> searchProjectionMap;
+
+    /** True while a batch of operations is being applied in a single transaction. */
+    private boolean mBatchMode;
+    /** Change notifications collected during a batch. */
+    private final Set<Uri> mBatchNotifications = new LinkedHashSet<Uri>();
+    /** Threads touched by messages inserted during a batch (peer: thread id). */
+    private final Map<String, Long> mBatchThreads = new HashMap<String, Long>();
+    /** Latest message values of threads touched during a batch (peer: values). */
+    private final Map<String, ContentValues> mBatchThreadValues = new HashMap<String, ContentValues>();
+    /** Threads touched by messages updated during a batch. */
+    private final Set<Long> mBatchUpdatedThreads = new HashSet<Long>();
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final int DATABASE_VERSION = 9;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -128,7 +149,7 @@ public class MessagesProvider extends ContentProvider {
             ")";
 
         /** This table will contain all the messages .*/
-        private static final String SCHEMA_MESSAGES =
+        static final String SCHEMA_MESSAGES =
             "CREATE TABLE " + TABLE_MESSAGES + " " + _SCHEMA_MESSAGES;
 
         private static final String _SCHEMA_THREADS = "(" +
@@ -152,7 +173,7 @@ public class MessagesProvider extends ContentProvider {
             ")";
 
         /** This table will contain the latest message from each conversation. */
-        private static final String SCHEMA_THREADS =
+        static final String SCHEMA_THREADS =
             "CREATE TABLE " + TABLE_THREADS + " " + _SCHEMA_THREADS;
 
         /** This table will contain every text message to speed-up full text searches. */
@@ -170,43 +191,32 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND unread <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET unread = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND unread <> 0) WHERE _id = old.thread_id";
-
-        /** Updates the thread new count. */
-        private static final String UPDATE_NEW_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = new.thread_id";
-        private static final String UPDATE_NEW_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET \"new\" = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id " +
-            "AND \"new\" <> 0) WHERE _id = old.thread_id";
+        /** Messages by thread, also used for finding the latest message. */
+        private static final String SCHEMA_MESSAGES_THREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS thread_message ON " + TABLE_MESSAGES +
+            " (thread_id, timestamp)";
+
+        /** Messages by status (e.g. for pending messages lookup). */
+        private static final String SCHEMA_MESSAGES_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS status_message ON " + TABLE_MESSAGES +
+            " (direction, status)";
+
+        /**
+         * Thread counters are updated incrementally by the triggers:
+         * +1 for the new row, -1 for the old row.
+         */
+        private static final String INCREMENT_COUNTERS_NEW =
+            "UPDATE " + TABLE_THREADS + " SET count = count + 1, " +
+            "unread = unread + (new.unread <> 0), " +
+            "\"new\" = \"new\" + (new.\"new\" <> 0) " +
+            "WHERE _id = new.thread_id";
+        private static final String DECREMENT_COUNTERS_OLD =
+            "UPDATE " + TABLE_THREADS + " SET count = count - 1, " +
+            "unread = unread - (old.unread <> 0), " +
+            "\"new\" = \"new\" - (old.\"new\" <> 0) " +
+            "WHERE _id = old.thread_id";
 
         /** Updates the thread status reflected by the latest message. */
-        /*
-        private static final String UPDATE_STATUS_OLD =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = old.thread_id";
-        */
         private static final String UPDATE_STATUS_NEW =
             "UPDATE " + TABLE_THREADS + " SET status = (" +
             "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
@@ -216,33 +226,42 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            INCREMENT_COUNTERS_NEW + ";" +
+            UPDATE_STATUS_NEW      + ";" +
             "END";
 
         /** This trigger will update the threads table counters on UPDATE. */
         private static final String TRIGGER_THREADS_UPDATE_COUNT =
-            "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON " + TABLE_MESSAGES +
+            "CREATE TRIGGER update_thread_on_update AFTER UPDATE OF thread_id, unread, \"new\" ON " + TABLE_MESSAGES +
+            " WHEN old.thread_id <> new.thread_id OR " +
+            "(old.unread <> 0) <> (new.unread <> 0) OR " +
+            "(old.\"new\" <> 0) <> (new.\"new\" <> 0)" +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
-            UPDATE_NEW_COUNT_NEW      + ";" +
-            UPDATE_STATUS_NEW         + ";" +
+            DECREMENT_COUNTERS_OLD + ";" +
+            INCREMENT_COUNTERS_NEW + ";" +
             "END";
 
+        /** This trigger will update the thread status on UPDATE. */
+        private static final String TRIGGER_THREADS_UPDATE_STATUS =
+            "CREATE TRIGGER update_thread_status_on_update AFTER UPDATE OF thread_id, status, timestamp ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            UPDATE_STATUS_NEW + ";" +
+            "END";
 
         /** This trigger will update the threads table counters on DELETE. */
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
-            UPDATE_NEW_COUNT_OLD      + ";" +
-            // do not call this here -- UPDATE_STATUS_OLD         + ";" +
+            DECREMENT_COUNTERS_OLD + ";" +
             "END";
 
+        /** Recalculates all thread counters. */
+        private static final String REBUILD_THREADS_COUNTERS =
+            "UPDATE " + TABLE_THREADS + " SET " +
+            "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+            "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+            "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
         private static final String[] SCHEMA_UPGRADE_V4 = {
             // create temporary messages tables without msg_id UNIQUE constraint
             "CREATE TABLE " + TABLE_MESSAGES + "_new " + _SCHEMA_MESSAGES,
@@ -279,6 +298,37 @@ public class MessagesProvider extends ContentProvider {
             TRIGGER_THREADS_DELETE_COUNT
         };
 
+        static final String[] SCHEMA_UPGRADE_V8 = {
+            // replace triggers with the incremental versions
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+            // new indexes
+            SCHEMA_MESSAGES_THREAD_IDX,
+            SCHEMA_MESSAGES_STATUS_IDX,
+            // counters might have been wrong: rebuild them once
+            REBUILD_THREADS_COUNTERS,
+        };
+
+        /** Schema of a new database. */
+        static final String[] SCHEMA_CREATE = {
+            SCHEMA_MESSAGES,
+            SCHEMA_THREADS,
+            SCHEMA_FULLTEXT,
+            SCHEMA_MESSAGES_INDEX,
+            SCHEMA_MESSAGES_TIMESTAMP_IDX,
+            SCHEMA_MESSAGES_THREAD_IDX,
+            SCHEMA_MESSAGES_STATUS_IDX,
+            TRIGGER_THREADS_INSERT_COUNT,
+            TRIGGER_THREADS_UPDATE_COUNT,
+            TRIGGER_THREADS_UPDATE_STATUS,
+            TRIGGER_THREADS_DELETE_COUNT,
+        };
+
         private Context mContext;
 
         protected DatabaseHelper(Context context) {
@@ -288,14 +338,8 @@ public class MessagesProvider extends ContentProvider {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL(SCHEMA_MESSAGES);
-            db.execSQL(SCHEMA_THREADS);
-            db.execSQL(SCHEMA_FULLTEXT);
-            db.execSQL(SCHEMA_MESSAGES_INDEX);
-            db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
-            db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
-            db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
-            db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
+            for (String sql : SCHEMA_CREATE)
+                db.execSQL(sql);
         }
 
         @Override
@@ -323,6 +367,11 @@ public class MessagesProvider extends ContentProvider {
                     }
                 }
             }
+
+            if (oldVersion < 9) {
+                for (String sql : SCHEMA_UPGRADE_V8)
+                    db.execSQL(sql);
+            }
         }
     }
 
@@ -336,6 +385,7 @@ public class MessagesProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String limit = null;
 
         switch (sUriMatcher.match(uri)) {
             case MESSAGES:
@@ -375,7 +425,10 @@ public class MessagesProvider extends ContentProvider {
             case CONVERSATIONS_ID:
                 qb.setTables(TABLE_MESSAGES);
                 qb.setProjectionMap(messagesProjectionMap);
-                qb.appendWhere(Messages.THREAD_ID + "=" + uri.getPathSegments().get(1));
+                qb.appendWhere(buildConversationWhere(uri));
+                limit = ConversationPage.buildLimit(
+                    uri.getQueryParameter(Conversations.QUERY_LIMIT),
+                    uri.getQueryParameter(Conversations.QUERY_AFTER));
                 break;
 
             case FULLTEXT_ID:
@@ -385,17 +438,57 @@ public class MessagesProvider extends ContentProvider {
                 selectionArgs = new String[] { uri.getQueryParameter("pattern") };
                 break;
 
+            case FULLTEXT_SEARCH:
+                // thread metadata is joined in so results can be shown as they are
+                qb.setTables(TABLE_FULLTEXT + " JOIN " + TABLE_THREADS + " ON " +
+                    TABLE_FULLTEXT + "." + Fulltext.THREAD_ID + "=" + TABLE_THREADS + "." + Threads._ID);
+                qb.setProjectionMap(searchProjectionMap);
+                qb.appendWhere(TABLE_FULLTEXT + " MATCH ?");
+                selectionArgs = new String[] { uri.getQueryParameter(Fulltext.QUERY_PATTERN) };
+                if (sortOrder == null)
+                    sortOrder = TABLE_FULLTEXT + "." + Fulltext._ID + " DESC";
+                limit = buildSearchLimit(uri);
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        // paging parameters are not relevant to observers
+        c.setNotificationUri(getContext().getContentResolver(),
+            uri.buildUpon().clearQuery().build());
         return c;
     }
 
+    /** Builds the limit clause for a search query, null for no limit. */
+    private String buildSearchLimit(Uri uri) {
+        String limit = uri.getQueryParameter(Fulltext.QUERY_LIMIT);
+        if (limit == null)
+            return null;
+
+        String offset = uri.getQueryParameter(Fulltext.QUERY_OFFSET);
+        return (offset != null) ?
+            Integer.parseInt(offset) + "," + Integer.parseInt(limit) :
+            String.valueOf(Integer.parseInt(limit));
+    }
+
+    /**
+     * Builds the where clause for a conversation query. Conversations can be
+     * loaded in pages using message ids as keys (see {@link Conversations}
+     * paging parameters).
+     */
+    private String buildConversationWhere(Uri uri) {
+        return ConversationPage.buildWhere(TABLE_MESSAGES,
+            Long.parseLong(uri.getPathSegments().get(1)),
+            uri.getQueryParameter(Conversations.QUERY_LIMIT),
+            uri.getQueryParameter(Conversations.QUERY_BEFORE),
+            uri.getQueryParameter(Conversations.QUERY_AFTER),
+            uri.getQueryParameter(Conversations.QUERY_SINCE));
+    }
+
     @Override
     public synchronized Uri insert(Uri uri, ContentValues initialValues) {
         // only messages and requests virtual table can be inserted
@@ -423,7 +516,19 @@ public class MessagesProvider extends ContentProvider {
             }
 
             // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
+            long threadId;
+            // in a batch an existing thread is updated only after the message was stored
+            boolean batchMessage = mBatchMode && draft == null && match == MESSAGES;
+            boolean threadCreated = false;
+            if (batchMessage) {
+                threadId = findBatchThread(db, values.getAsString(CommonColumns.PEER));
+                if (threadId < 0) {
+                    threadId = updateThreads(db, values, notifications, false);
+                    threadCreated = true;
+                }
+            }
+            else
+                threadId = updateThreads(db, values, notifications, match == REQUESTS);
 
             if (draft != null || match == REQUESTS) {
                 // notify thread change
@@ -446,7 +551,16 @@ public class MessagesProvider extends ContentProvider {
             values.put(Messages.THREAD_ID, threadId);
 
             // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+            long rowId;
+            try {
+                rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+            }
+            catch (SQLiteConstraintException e) {
+                // the batch will go on without this message, don't leave an empty thread
+                if (threadCreated)
+                    db.delete(TABLE_THREADS, Threads._ID + " = " + threadId, null);
+                throw e;
+            }
 
             /*
              * this will be useful one day perhaps :)
@@ -485,6 +599,9 @@ public class MessagesProvider extends ContentProvider {
             */
 
             if (rowId > 0) {
+                if (batchMessage)
+                    updateThreadsBatch(db, values, threadCreated, notifications);
+
                 // update fulltext table
                 byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
                 Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
@@ -508,12 +625,160 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
+            notifyChanges(notifications);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        // only messages can be inserted in bulk
+        if (sUriMatcher.match(uri) != MESSAGES)
+            return super.bulkInsert(uri, values);
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(values.length);
+        for (ContentValues v : values)
+            ops.add(ContentProviderOperation.newInsert(uri).withValues(v).build());
+
+        try {
+            int count = 0;
+            for (ContentProviderResult result : applyBatch(ops)) {
+                if (result.uri != null)
+                    count++;
+            }
+            return count;
+        }
+        catch (OperationApplicationException e) {
+            throw new SQLException("bulk insert failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies all the given operations in a single transaction.
+     * Threads metadata are updated once per thread and change notifications
+     * are coalesced and sent after the transaction ended. Message inserts
+     * with the {@link Messages#IGNORE_DUPLICATES} parameter failing because
+     * of a constraint violation are skipped and reported with a zero count
+     * result; any other failure aborts the whole batch.
+     */
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean success = false;
+        List<Uri> notifications = new ArrayList<Uri>();
+
+        try {
+            beginTransaction(db);
+            mBatchMode = true;
+
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = operations.get(i).apply(this, results, i);
+                }
+                catch (SQLiteConstraintException e) {
+                    if (!isIgnoreDuplicates(operations.get(i)))
+                        throw e;
+                    // duplicated message, skip it
+                    results[i] = new ContentProviderResult(0);
+                }
+            }
+
+            flushBatchThreads(db, notifications);
+
+            mBatchMode = false;
+            success = setTransactionSuccessful(db);
+            return results;
+        }
+        finally {
+            mBatchMode = false;
+            mBatchThreads.clear();
+            mBatchThreadValues.clear();
+            mBatchUpdatedThreads.clear();
+            endTransaction(db, success);
+
+            notifications.addAll(mBatchNotifications);
+            mBatchNotifications.clear();
+            if (success)
+                notifyChanges(notifications);
+        }
+    }
+
+    /** Returns true if the given operation is a message insert skipping duplicates. */
+    private static boolean isIgnoreDuplicates(ContentProviderOperation op) {
+        Uri uri = op.getUri();
+        return sUriMatcher.match(uri) == MESSAGES &&
+            Boolean.parseBoolean(uri.getQueryParameter(Messages.IGNORE_DUPLICATES));
+    }
+
+    /** Sends change notifications, or queues them if a batch is in progress. */
+    private void notifyChanges(List<Uri> notifications) {
+        if (mBatchMode) {
+            for (Uri nuri : notifications) {
+                // single message changes are coalesced into one
+                if (sUriMatcher.match(nuri) == MESSAGES_ID)
+                    nuri = Messages.CONTENT_URI;
+                mBatchNotifications.add(nuri);
+            }
+        }
+        else {
             ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
+            // avoid notifying the same uri twice
+            for (Uri nuri : new LinkedHashSet<Uri>(notifications))
                 cr.notifyChange(nuri, null);
         }
     }
 
+    /**
+     * Returns the id of the thread a message inserted during a batch belongs
+     * to, or -1 if the thread doesn't exist yet.
+     */
+    private long findBatchThread(SQLiteDatabase db, String peer) {
+        Long threadId = mBatchThreads.get(peer);
+        if (threadId != null)
+            return threadId;
+
+        Cursor c = db.query(TABLE_THREADS, new String[] { Threads._ID },
+            Threads.PEER + " = ?", new String[] { peer }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Batch version of {@link #updateThreads}, called after the message has
+     * been stored. The thread is updated with the first message only; the
+     * latest message values are kept for {@link #flushBatchThreads}.
+     * @param created true if the thread was just created with this message
+     */
+    private void updateThreadsBatch(SQLiteDatabase db, ContentValues values, boolean created, List<Uri> notifications) {
+        String peer = values.getAsString(CommonColumns.PEER);
+        if (!mBatchThreads.containsKey(peer)) {
+            mBatchThreads.put(peer, values.getAsLong(Messages.THREAD_ID));
+            if (!created)
+                updateThreads(db, values, notifications, false);
+        }
+        else {
+            mBatchThreadValues.put(peer, new ContentValues(values));
+        }
+    }
+
+    /** Updates threads touched during a batch with their latest message. */
+    private void flushBatchThreads(SQLiteDatabase db, List<Uri> notifications) {
+        for (ContentValues latest : mBatchThreadValues.values())
+            updateThreads(db, latest, notifications, false);
+        for (long threadId : mBatchUpdatedThreads)
+            updateThreadInfo(db, threadId, notifications);
+
+        mBatchThreads.clear();
+        mBatchThreadValues.clear();
+        mBatchUpdatedThreads.clear();
+    }
+
     private boolean isRequestPending(SQLiteDatabase db, String peer) {
         Cursor c = null;
         try {
@@ -712,6 +977,16 @@ public class MessagesProvider extends ContentProvider {
         try {
             beginTransaction(db);
 
+            // status changes and the like don't need the full thread update
+            if (table.equals(TABLE_MESSAGES)) {
+                int change = MessageChanges.of(getColumns(values));
+                if (change != MessageChanges.FULL) {
+                    int rows = updateMessagesOnly(db, uri, values, where, args, change, notifications);
+                    success = setTransactionSuccessful(db);
+                    return rows;
+                }
+            }
+
             // retrieve old data for notifying.
             // This was done because of the update call could make the old where
             // condition not working any more.
@@ -767,9 +1042,11 @@ public class MessagesProvider extends ContentProvider {
                         Cursor c = db.query(TABLE_MESSAGES, projection,
                                 whereBuilder.toString(), msgIdList, null, null, null);
 
+                        Set<Long> threads = mBatchMode ? mBatchUpdatedThreads : new HashSet<Long>();
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
-                            updateThreadInfo(db, threadId, notifications);
+                            // thread info will be updated once per thread
+                            threads.add(threadId);
 
                             // update fulltext if necessary
                             if (doUpdateFulltext) {
@@ -781,6 +1058,12 @@ public class MessagesProvider extends ContentProvider {
                         }
 
                         c.close();
+
+                        // in batch mode threads are updated at the end of the batch
+                        if (!mBatchMode) {
+                            for (long threadId : threads)
+                                updateThreadInfo(db, threadId, notifications);
+                        }
                     }
                 }
 
@@ -803,10 +1086,50 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
+        }
+    }
+
+    private static List<String> getColumns(ContentValues values) {
+        List<String> columns = new ArrayList<String>(values.size());
+        for (Map.Entry<String, Object> e : values.valueSet())
+            columns.add(e.getKey());
+        return columns;
+    }
+
+    /**
+     * Updates messages when neither the thread summary nor the fulltext index
+     * are affected (see {@link MessageChanges}). The thread status is left
+     * to the database triggers.
+     */
+    private int updateMessagesOnly(SQLiteDatabase db, Uri uri, ContentValues values,
+            String where, String[] args, int change, List<Uri> notifications) {
+
+        // threads of the matching messages, the update could make the where
+        // condition not working any more
+        Cursor c = db.query(TABLE_MESSAGES, new String[] { Messages.THREAD_ID },
+            where, args, null, null, null);
+        long[] threadIds = new long[c.getCount()];
+        int i = 0;
+        while (c.moveToNext())
+            threadIds[i++] = c.getLong(0);
+        c.close();
+
+        int rows = db.update(TABLE_MESSAGES, values, where, args);
+
+        // notify change only if rows are actually affected
+        if (rows > 0) {
+            notifications.add(uri);
+
+            for (long threadId : threadIds) {
+                if (change == MessageChanges.THREAD_STATUS)
+                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+
+                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+            }
         }
+
+        return rows;
     }
 
     private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content) {
@@ -925,6 +1248,10 @@ public class MessagesProvider extends ContentProvider {
             // let's begin this big transaction :S
             beginTransaction(db);
 
+            // thread data cached by the current batch might be deleted
+            if (mBatchMode)
+                flushBatchThreads(db, notifications);
+
             long threadId = -1;
             if (table.equals(TABLE_MESSAGES)) {
                 // retrieve the thread id for later use by updateThreadInfo(), and
@@ -976,9 +1303,7 @@ public class MessagesProvider extends ContentProvider {
         }
         finally {
             endTransaction(db, success);
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+            notifyChanges(notifications);
         }
 
         return rows;
@@ -1074,6 +1399,10 @@ public class MessagesProvider extends ContentProvider {
 
     @TargetApi(11)
     private void beginTransaction(SQLiteDatabase db) {
+        // batch operations run inside a single transaction
+        if (mBatchMode)
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.beginTransactionNonExclusive();
         else
@@ -1082,12 +1411,18 @@ public class MessagesProvider extends ContentProvider {
     }
 
     private boolean setTransactionSuccessful(SQLiteDatabase db) {
+        if (mBatchMode)
+            return true;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.setTransactionSuccessful();
         return true;
     }
 
     private void endTransaction(SQLiteDatabase db, boolean success) {
+        if (mBatchMode)
+            return;
+
         if (android.os.Build.VERSION.SDK_INT >= 11)
             db.endTransaction();
         else
@@ -1255,6 +1590,7 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, "conversations", CONVERSATIONS_ALL_ID);
         sUriMatcher.addURI(AUTHORITY, "conversations/#", CONVERSATIONS_ID);
         sUriMatcher.addURI(AUTHORITY, TABLE_FULLTEXT, FULLTEXT_ID);
+        sUriMatcher.addURI(AUTHORITY, TABLE_FULLTEXT + "/search", FULLTEXT_SEARCH);
         sUriMatcher.addURI(AUTHORITY, "requests", REQUESTS);
 
         messagesProjectionMap = new HashMap<String, String>();
@@ -1306,5 +1642,17 @@ public class MessagesProvider extends ContentProvider {
         fulltextProjectionMap = new HashMap<String, String>();
         fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
         fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+
+        searchProjectionMap = new HashMap<String, String>();
+        searchProjectionMap.put(Fulltext._ID, TABLE_FULLTEXT + "." + Fulltext._ID +
+            " AS " + Messages._ID);
+        searchProjectionMap.put(Fulltext.THREAD_ID, TABLE_FULLTEXT + "." + Fulltext.THREAD_ID +
+            " AS " + Fulltext.THREAD_ID);
+        searchProjectionMap.put(Fulltext.CONTENT, TABLE_FULLTEXT + "." + Fulltext.CONTENT +
+            " AS " + Fulltext.CONTENT);
+        searchProjectionMap.put(Fulltext.SNIPPET, "snippet(" + TABLE_FULLTEXT +
+            ", '', '', '\u2026', -1, " + Fulltext.SNIPPET_TOKENS + ") AS " + Fulltext.SNIPPET);
+        searchProjectionMap.put(Fulltext.PEER, TABLE_THREADS + "." + Threads.PEER +
+            " AS " + Fulltext.PEER);
     }
 }
@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -46,6 +47,12 @@ public final class MyMessages {
         public static final Uri CONTENT_URI = Uri.parse("content://"
                 + MessagesProvider.AUTHORITY + "/messages");
 
+        /**
+         * Uri parameter for insert: in a batch, a message already stored is
+         * skipped with a zero count result instead of failing the batch.
+         */
+        public static final String IGNORE_DUPLICATES = "ignoreDuplicates";
+
         public static final int DIRECTION_IN = 0;
         public static final int DIRECTION_OUT = 1;
 
@@ -85,6 +92,35 @@ public final class MyMessages {
             public static final String _ID = "rowid";
             public static final String THREAD_ID = "thread_id";
             public static final String CONTENT = "content";
+
+            /** Search results with thread metadata. */
+            public static final Uri SEARCH_URI = Uri.parse("content://"
+                    + MessagesProvider.AUTHORITY + "/fulltext/search");
+
+            /** Peer of the thread (search results only). */
+            public static final String PEER = "peer";
+            /** Matching text around the search terms (search results only). */
+            public static final String SNIPPET = "snippet";
+            /** Approximate number of words in a snippet. */
+            public static final int SNIPPET_TOKENS = 12;
+
+            /** Full text search pattern. */
+            public static final String QUERY_PATTERN = "pattern";
+            /** Maximum number of results to load. */
+            public static final String QUERY_LIMIT = "limit";
+            /** Number of results to skip. */
+            public static final String QUERY_OFFSET = "offset";
+
+            /** Builds a paged search {@link Uri}. Use 0 for unused parameters. */
+            public static Uri getSearchUri(String pattern, int offset, int limit) {
+                Uri.Builder b = SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PATTERN, pattern);
+                if (offset > 0)
+                    b.appendQueryParameter(QUERY_OFFSET, String.valueOf(offset));
+                if (limit > 0)
+                    b.appendQueryParameter(QUERY_LIMIT, String.valueOf(limit));
+                return b.build();
+            }
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -136,6 +172,29 @@ public final class MyMessages {
         public static final class Conversations implements BaseColumns {
             public static final Uri CONTENT_URI = Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/conversations");
+
+            /** Maximum number of messages to load. */
+            public static final String QUERY_LIMIT = "limit";
+            /** Load the latest messages older than the given message id (all of them without a limit). */
+            public static final String QUERY_BEFORE = "before";
+            /** Load the first messages newer than the given message id. */
+            public static final String QUERY_AFTER = "after";
+            /** Load all messages starting from the given message id. */
+            public static final String QUERY_SINCE = "since";
+
+            /** Builds a paged conversation {@link Uri}. Use 0 for unused keys. */
+            public static Uri getPageUri(long threadId, long before, long after, long since, int limit) {
+                Uri.Builder b = ContentUris.withAppendedId(CONTENT_URI, threadId).buildUpon();
+                if (before > 0)
+                    b.appendQueryParameter(QUERY_BEFORE, String.valueOf(before));
+                if (after > 0)
+                    b.appendQueryParameter(QUERY_AFTER, String.valueOf(after));
+                if (since > 0)
+                    b.appendQueryParameter(QUERY_SINCE, String.valueOf(since));
+                if (limit > 0)
+                    b.appendQueryParameter(QUERY_LIMIT, String.valueOf(limit));
+                return b.build();
+            }
         }
 
         /** Request represents a presence subscription request. */
@@ -0,0 +1,188 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.support.v4.util.LruCache;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PersonalKey;
+
+
+/**
+ * Process-wide cache of parsed public keyrings and ready-to-use coders.
+ * Entries are looked up by JID and carry the fingerprint of the key they
+ * were built from, so a store of the very same key doesn't evict them.
+ * @author Daniele Ricci
+ */
+public class PublicKeyCache {
+    private static final int MAX_ENTRIES = 50;
+
+    private static final PublicKeyCache sInstance = new PublicKeyCache(MAX_ENTRIES);
+
+    /** A cached keyring with the coders built on top of it. */
+    private static final class Entry {
+        final String fingerprint;
+        final PGPPublicKeyRing ring;
+
+        /* Coders are valid only for the server and key they were created with. */
+        EndpointServer server;
+        PersonalKey key;
+        Coder encryptCoder;
+        Coder decryptCoder;
+
+        Entry(String fingerprint, PGPPublicKeyRing ring) {
+            this.fingerprint = fingerprint;
+            this.ring = ring;
+        }
+
+        boolean isCoderValid(EndpointServer server, PersonalKey key) {
+            return this.key == key && this.server != null && this.server.equals(server);
+        }
+
+        void setCoderOwner(EndpointServer server, PersonalKey key) {
+            if (!isCoderValid(server, key)) {
+                this.server = server;
+                this.key = key;
+                this.encryptCoder = null;
+                this.decryptCoder = null;
+            }
+        }
+    }
+
+    private final LruCache<String, Entry> mCache;
+
+    private long mHits;
+    private long mMisses;
+
+    PublicKeyCache(int maxEntries) {
+        mCache = new LruCache<String, Entry>(maxEntries);
+    }
+
+    public static PublicKeyCache getInstance() {
+        return sInstance;
+    }
+
+    private static String cacheKey(String jid, boolean trusted) {
+        return (trusted ? "t:" : "u:") + jid;
+    }
+
+    /** Returns the cached keyring for the given user, or null. */
+    public synchronized PGPPublicKeyRing getPublicKey(String jid, boolean trusted) {
+        Entry e = mCache.get(cacheKey(jid, trusted));
+        if (e != null) {
+            mHits++;
+            return e.ring;
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    /** Stores a freshly parsed keyring. */
+    public synchronized void putPublicKey(String jid, boolean trusted, String fingerprint, PGPPublicKeyRing ring) {
+        String key = cacheKey(jid, trusted);
+        Entry old = mCache.get(key);
+        // keep the coders if the key is the same
+        if (old == null || fingerprint == null || !fingerprint.equals(old.fingerprint))
+            mCache.put(key, new Entry(fingerprint, ring));
+    }
+
+    /** Returns a cached coder for encrypting to a single recipient, or null. */
+    public synchronized Coder getEncryptCoder(EndpointServer server, PersonalKey key, String recipient) {
+        Entry e = mCache.get(cacheKey(recipient, true));
+        if (e != null && e.encryptCoder != null && e.isCoderValid(server, key)) {
+            mHits++;
+            return e.encryptCoder;
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    /** Returns a cached coder for decrypting data from the given sender, or null. */
+    public synchronized Coder getDecryptCoder(EndpointServer server, PersonalKey key, String sender) {
+        Entry e = mCache.get(cacheKey(sender, true));
+        if (e != null && e.decryptCoder != null && e.isCoderValid(server, key)) {
+            mHits++;
+            return e.decryptCoder;
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    /** Builds and caches an encryption coder for a single recipient. */
+    public synchronized Coder putEncryptCoder(EndpointServer server, PersonalKey key, String recipient, PGPPublicKeyRing ring) {
+        Coder coder = new PGPCoder(server, key, new PGPPublicKeyRing[] { ring });
+        Entry e = mCache.get(cacheKey(recipient, true));
+        if (e != null && e.ring == ring) {
+            e.setCoderOwner(server, key);
+            e.encryptCoder = coder;
+        }
+        return coder;
+    }
+
+    /** Builds and caches a decryption coder for the given sender. */
+    public synchronized Coder putDecryptCoder(EndpointServer server, PersonalKey key, String sender, PGPPublicKeyRing ring) {
+        Coder coder = new PGPCoder(server, key, ring);
+        Entry e = mCache.get(cacheKey(sender, true));
+        if (e != null && e.ring == ring) {
+            e.setCoderOwner(server, key);
+            e.decryptCoder = coder;
+        }
+        return coder;
+    }
+
+    /** Evicts all cached data for the given user. */
+    public synchronized void invalidate(String jid) {
+        mCache.remove(cacheKey(jid, true));
+        mCache.remove(cacheKey(jid, false));
+    }
+
+    /** Evicts cached data for the given user if its key doesn't match the fingerprint. */
+    public synchronized void invalidate(String jid, String fingerprint) {
+        invalidate(jid, fingerprint, true);
+        invalidate(jid, fingerprint, false);
+    }
+
+    private void invalidate(String jid, String fingerprint, boolean trusted) {
+        String key = cacheKey(jid, trusted);
+        Entry e = mCache.get(key);
+        if (e != null && (fingerprint == null || !fingerprint.equals(e.fingerprint)))
+            mCache.remove(key);
+    }
+
+    /** Evicts everything. */
+    public synchronized void invalidate() {
+        mCache.evictAll();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+}
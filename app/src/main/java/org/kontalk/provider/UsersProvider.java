@@ -385,6 +385,7 @@ public class UsersProvider extends ContentProvider {
                 db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
                 // time to invalidate contacts cache
                 Contact.invalidate();
+                PublicKeyCache.getInstance().invalidate();
                 success = setTransactionSuccessful(db);
             }
             catch (SQLException e) {
@@ -667,6 +668,11 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        // public key might have changed
+        String jid = values.getAsString(Users.JID);
+        if (!offline && jid != null && values.containsKey(Users.PUBLIC_KEY))
+            PublicKeyCache.getInstance().invalidate(jid, values.getAsString(Users.FINGERPRINT));
+
         if (id >= 0)
             return ContentUris.withAppendedId(Users.CONTENT_URI, id);
         return null;
@@ -723,6 +729,21 @@ public class UsersProvider extends ContentProvider {
 
     /** Returns a {@link Coder} instance for encrypting data. */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        PublicKeyCache cache = PublicKeyCache.getInstance();
+
+        // single recipient coders are cached
+        if (recipients.length == 1) {
+            Coder coder = cache.getEncryptCoder(server, key, recipients[0]);
+            if (coder == null) {
+                PGPPublicKeyRing ring = getPublicKey(context, recipients[0], true);
+                if (ring == null)
+                    throw new IllegalArgumentException("public key not found for user " + recipients[0]);
+
+                coder = cache.putEncryptCoder(server, key, recipients[0], ring);
+            }
+            return coder;
+        }
+
         // get recipients public keys from users database
         PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
@@ -738,26 +759,45 @@ public class UsersProvider extends ContentProvider {
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
-        PGPPublicKeyRing senderKey = getPublicKey(context, sender, true);
-        return new PGPCoder(server, key, senderKey);
+        PublicKeyCache cache = PublicKeyCache.getInstance();
+        Coder coder = cache.getDecryptCoder(server, key, sender);
+        if (coder == null) {
+            PGPPublicKeyRing senderKey = getPublicKey(context, sender, true);
+            if (senderKey != null)
+                coder = cache.putDecryptCoder(server, key, sender, senderKey);
+            else
+                coder = new PGPCoder(server, key, senderKey);
+        }
+        return coder;
     }
 
     /** Retrieves the trusted public key for a user. */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, boolean trusted) {
+        PublicKeyCache cache = PublicKeyCache.getInstance();
+        PGPPublicKeyRing ring = cache.getPublicKey(jid, trusted);
+        if (ring != null)
+            return ring;
+
         byte[] keydata = null;
+        String fingerprint = null;
         ContentResolver res = context.getContentResolver();
         Cursor c = res.query(Users.CONTENT_URI.buildUpon()
-            .appendPath(jid).build(), new String[] { trusted ?
-                Keys.TRUSTED_PUBLIC_KEY : Users.PUBLIC_KEY },
+            .appendPath(jid).build(), trusted ?
+                new String[] { Keys.TRUSTED_PUBLIC_KEY, Keys.TRUSTED_FINGERPRINT } :
+                new String[] { Users.PUBLIC_KEY, Users.FINGERPRINT },
             null, null, null);
 
-        if (c.moveToFirst())
+        if (c.moveToFirst()) {
             keydata = c.getBlob(0);
+            fingerprint = c.getString(1);
+        }
 
         c.close();
 
         try {
-            return PGP.readPublicKeyring(keydata);
+            ring = PGP.readPublicKeyring(keydata);
+            cache.putPublicKey(jid, trusted, fingerprint, ring);
+            return ring;
         }
         catch (Exception e) {
             // ignored
@@ -799,6 +839,7 @@ public class UsersProvider extends ContentProvider {
         values.put(Users.PUBLIC_KEY, keydata);
         context.getContentResolver().update(Users.CONTENT_URI,
             values, Users.JID + "=?", new String[]{jid});
+        PublicKeyCache.getInstance().invalidate(jid, fingerprint);
     }
 
     /** Marks the given user fingerprint as trusted. */
@@ -808,6 +849,7 @@ public class UsersProvider extends ContentProvider {
         context.getContentResolver().insert(Keys.CONTENT_URI.buildUpon()
             .appendQueryParameter(Keys.TRUST, "true")
             .build(), values);
+        PublicKeyCache.getInstance().invalidate(jid);
     }
 
     /** Trusts a user public key if trusted fingerprint matches the given key. */
@@ -819,6 +861,7 @@ public class UsersProvider extends ContentProvider {
         context.getContentResolver().update(Keys.CONTENT_URI,
             values, Keys.JID + "=? AND " + Keys.FINGERPRINT + "=?",
             new String[] { jid, fingerprint });
+        PublicKeyCache.getInstance().invalidate(jid);
     }
 
     public static void setBlockStatus(Context context, String jid, boolean blocked) {
@@ -26,25 +26,33 @@ package org.kontalk.service;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -52,6 +60,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.TransferClient;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.DecryptException;
 import org.kontalk.crypto.PersonalKey;
@@ -74,14 +83,27 @@ import static org.kontalk.ui.MessagingNotification.NOTIFICATION_UPDATE_DELAY;
 
 /**
  * The attachment download service.
- * TODO implement multiple downloads in queue or in parallel
+ * Downloads are run in parallel by a small pool of threads, with a limit on
+ * concurrent downloads from the same host. Interrupted downloads are resumed.
  * @author Daniele Ricci
  */
-public class DownloadService extends IntentService implements DownloadListener {
+public class DownloadService extends Service {
     private static final String TAG = MessageCenterService.TAG;
 
-    /** A map to avoid duplicate downloads. */
-    private static final Map<String, Long> sQueue = new LinkedHashMap<String, Long>();
+    /** Maximum number of parallel downloads. */
+    public static final int MAX_DOWNLOADS = 3;
+    /** Maximum number of parallel downloads from the same host. */
+    public static final int MAX_DOWNLOADS_PER_HOST = 2;
+    /** Attempts for each download; interrupted downloads are resumed. */
+    private static final int MAX_ATTEMPTS = 3;
+    /** Base delay between attempts. */
+    private static final long RETRY_DELAY = 2000;
+
+    /**
+     * A map to avoid duplicate downloads.
+     * Accessed only from the main thread.
+     */
+    private static final Map<String, DownloadTask> sQueue = new LinkedHashMap<String, DownloadTask>();
 
     public static final String ACTION_DOWNLOAD_URL = "org.kontalk.action.DOWNLOAD_URL";
     public static final String ACTION_DOWNLOAD_ABORT = "org.kontalk.action.DOWNLOAD_ABORT";
@@ -89,61 +111,60 @@ public class DownloadService extends IntentService implements DownloadListener {
     private ProgressNotificationBuilder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
-    // data about the download currently being processed
     private Notification mCurrentNotification;
-    private long mTotalBytes;
     /** Step timer for notification updates. */
     private StepTimer mUpdateTimer = new StepTimer(NOTIFICATION_UPDATE_DELAY);
 
-    private long mMessageId;
-    private String mPeer;
-    private boolean mEncrypted;
-
-    private ClientHTTPConnection mDownloadClient;
-    private boolean mCanceled;
-
-    public DownloadService() {
-        super(DownloadService.class.getSimpleName());
-    }
-
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null)
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-        if (ACTION_DOWNLOAD_ABORT.equals(intent.getAction())) {
-            final Uri uri = intent.getData();
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    onDownloadAbort(uri);
-                }
-            }).start();
+    private ExecutorService mExecutor;
+    private Handler mHandler;
+
+    /** Downloads waiting for a free slot. */
+    private final List<DownloadTask> mPending = new LinkedList<DownloadTask>();
+    /** Running downloads. Modified only on the main thread. */
+    private final List<DownloadTask> mRunning = new CopyOnWriteArrayList<DownloadTask>();
+    /** Running downloads by host. */
+    private final Map<String, Integer> mRunningByHost = new HashMap<String, Integer>();
+
+    /** A single download. */
+    private final class DownloadTask implements Runnable, DownloadListener {
+        final String url;
+        final String host;
+        final long messageId;
+        final String peer;
+        final boolean encrypted;
+        final Date timestamp;
+
+        volatile long totalBytes;
+        volatile long bytes;
+        volatile boolean canceled;
+        private volatile ClientHTTPConnection client;
+
+        DownloadTask(Uri uri, Bundle args) {
+            url = uri.toString();
+            host = uri.getHost();
+            messageId = args.getLong(CompositeMessage.MSG_ID, 0);
+            peer = args.getString(CompositeMessage.MSG_SENDER);
+            encrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
+
+            long ts = args.getLong(CompositeMessage.MSG_TIMESTAMP);
+            timestamp = (ts > 0) ? new Date(ts) : null;
         }
 
-        return super.onStartCommand(intent, flags, startId);
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        String action = intent.getAction();
-
-        if (ACTION_DOWNLOAD_URL.equals(action)) {
-            onDownloadURL(intent.getData(), intent.getExtras());
+        @Override
+        public void run() {
+            try {
+                download();
+            }
+            finally {
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        finished(DownloadTask.this);
+                    }
+                });
+            }
         }
-    }
-
-    private void onDownloadURL(Uri uri, Bundle args) {
-        String url = uri.toString();
-
-        // check if download has already been queued
-        if (sQueue.get(url) != null) return;
-
-        // notify user about download immediately
-        startForeground(0);
-        mCanceled = false;
 
-        if (mDownloadClient == null) {
+        private void download() {
             PersonalKey key;
             PrivateKey privateKey;
             try {
@@ -156,62 +177,182 @@ public class DownloadService extends IntentService implements DownloadListener {
                 return;
             }
 
-            mDownloadClient = new ClientHTTPConnection(this,
+            client = new ClientHTTPConnection(DownloadService.this,
                 privateKey, key.getBridgeCertificate());
-        }
 
-        try {
-            // check if external storage is available
-            if (!MediaStorage.isExternalStorageAvailable()) {
-                errorNotification(getString(R.string.notify_ticker_external_storage),
-                    getString(R.string.notify_text_external_storage));
-                return;
+            try {
+                // check if external storage is available
+                if (!MediaStorage.isExternalStorageAvailable()) {
+                    errorNotification(getString(R.string.notify_ticker_external_storage),
+                        getString(R.string.notify_text_external_storage));
+                    return;
+                }
+
+                // make sure storage directory is present
+                MediaStorage.MEDIA_ROOT.mkdirs();
+
+                for (int attempt = 1; !canceled; attempt++) {
+                    try {
+                        // download content
+                        client.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, timestamp, this);
+                        break;
+                    }
+                    catch (IOException e) {
+                        if (canceled || attempt >= MAX_ATTEMPTS)
+                            throw e;
+
+                        Log.w(TAG, "download interrupted, resuming (" + e + ")");
+                        Thread.sleep(RETRY_DELAY * attempt);
+                    }
+                }
             }
+            catch (Exception e) {
+                error(url, null, e);
+            }
+        }
 
-            // make sure storage directory is present
-            MediaStorage.MEDIA_ROOT.mkdirs();
+        void abort() {
+            canceled = true;
+            ClientHTTPConnection conn = client;
+            if (conn != null)
+                conn.abort();
+        }
 
-            mMessageId = args.getLong(CompositeMessage.MSG_ID, 0);
-            mPeer = args.getString(CompositeMessage.MSG_SENDER);
-            mEncrypted = args.getBoolean(CompositeMessage.MSG_ENCRYPTED, false);
-            sQueue.put(url, mMessageId);
+        @Override
+        public void start(String url, File destination, long length) {
+            totalBytes = length;
+            updateProgress(true);
+        }
 
-            Date date = null;
-            long timestamp = args.getLong(CompositeMessage.MSG_TIMESTAMP);
-            if (timestamp > 0)
-                date = new Date(timestamp);
+        @Override
+        public void progress(String url, File destination, long bytes) {
+            this.bytes = bytes;
+            updateProgress(bytes >= totalBytes);
+        }
 
-            // download content
-            mDownloadClient.downloadAutofilename(url, MediaStorage.MEDIA_ROOT, date, this);
+        @Override
+        public void completed(String url, String mime, File destination) {
+            downloadCompleted(this, mime, destination);
         }
-        catch (Exception e) {
-            error(url, null, e);
+
+        @Override
+        public void error(String url, File destination, Throwable exc) {
+            Log.e(TAG, "download error", exc);
+            if (!canceled)
+                errorNotification(getString(R.string.notify_ticker_download_error),
+                    getString(R.string.notify_text_download_error));
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mHandler = new Handler();
+        mExecutor = Executors.newFixedThreadPool(MAX_DOWNLOADS);
+        TransferClient.acquire();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (DownloadTask task : mRunning)
+            task.abort();
+        for (DownloadTask task : mPending)
+            sQueue.remove(task.url);
+        mPending.clear();
+        mExecutor.shutdown();
+        TransferClient.release();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = (intent != null) ? intent.getAction() : null;
+
+        if (ACTION_DOWNLOAD_URL.equals(action)) {
+            onDownloadURL(intent.getData(), intent.getExtras());
         }
-        finally {
-            sQueue.remove(url);
-            mMessageId = 0;
-            mPeer = null;
+        else if (ACTION_DOWNLOAD_ABORT.equals(action)) {
+            onDownloadAbort(intent.getData());
         }
+
+        if (mRunning.size() == 0 && mPending.size() == 0)
+            stopSelf(startId);
+
+        return START_NOT_STICKY;
+    }
+
+    private void onDownloadURL(Uri uri, Bundle args) {
+        String url = uri.toString();
+
+        // check if download has already been queued
+        if (sQueue.get(url) != null) return;
+
+        DownloadTask task = new DownloadTask(uri, args);
+        sQueue.put(url, task);
+        mPending.add(task);
+
+        // notify user about download immediately
+        if (mCurrentNotification == null)
+            startForeground();
+
+        schedule();
     }
 
     private void onDownloadAbort(Uri uri) {
         String url = uri.toString();
-        Long msgId = sQueue.get(url);
-        if (msgId != null) {
-            // interrupt worker if running
-            if (msgId == mMessageId) {
-                mDownloadClient.abort();
-                mCanceled = true;
-            }
+        DownloadTask task = sQueue.get(url);
+        if (task != null) {
             // remove from queue - will never be processed
-            else
+            if (mPending.remove(task))
                 sQueue.remove(url);
+            // interrupt worker if running
+            else
+                task.abort();
         }
     }
 
-    public void startForeground(long totalBytes) {
+    /** Starts pending downloads while there are free slots. */
+    private void schedule() {
+        Iterator<DownloadTask> iter = mPending.iterator();
+        while (iter.hasNext() && mRunning.size() < MAX_DOWNLOADS) {
+            DownloadTask task = iter.next();
+            Integer count = mRunningByHost.get(task.host);
+            if (count == null || count < MAX_DOWNLOADS_PER_HOST) {
+                iter.remove();
+                mRunning.add(task);
+                mRunningByHost.put(task.host, (count != null) ? count + 1 : 1);
+                mExecutor.execute(task);
+            }
+        }
+    }
+
+    /** Called on the main thread when a download task has finished. */
+    private void finished(DownloadTask task) {
+        sQueue.remove(task.url);
+        mRunning.remove(task);
+
+        Integer count = mRunningByHost.get(task.host);
+        if (count != null && count > 1)
+            mRunningByHost.put(task.host, count - 1);
+        else
+            mRunningByHost.remove(task.host);
+
+        schedule();
+
+        if (mRunning.size() == 0) {
+            stopForeground();
+            stopSelf();
+        }
+    }
+
+    private void startForeground() {
         Log.d(TAG, "starting foreground progress notification");
-        mTotalBytes = totalBytes;
 
         Intent ni = new Intent(getApplicationContext(), ConversationList.class);
         // FIXME this intent should actually open the ComposeMessage activity
@@ -226,53 +367,70 @@ public class DownloadService extends IntentService implements DownloadListener {
                 pi);
         }
 
-        // if we don't know the content length yet, start an interminate progress
-        foregroundNotification(totalBytes > 0 ? 0 : -1);
+        // we don't know the content length yet, start an interminate progress
+        mUpdateTimer.reset();
+        foregroundNotification(-1, R.string.downloading_attachment);
         startForeground(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
-    private void foregroundNotification(int progress) {
+    private synchronized void foregroundNotification(int progress, int text) {
         mCurrentNotification = mNotificationBuilder
             .progress(progress,
                 R.string.attachment_download,
-                R.string.downloading_attachment)
+                text)
             .build();
     }
 
-    public void stopForeground() {
+    private void stopForeground() {
         stopForeground(true);
         mCurrentNotification = null;
-        mTotalBytes = 0;
     }
 
-    @Override
-    public void start(String url, File destination, long length) {
-        mUpdateTimer.reset();
-        startForeground(length);
+    /** Updates the progress notification with the sum of all running downloads. */
+    private synchronized void updateProgress(boolean force) {
+        if (mCurrentNotification == null || !(force || mUpdateTimer.isStep()))
+            return;
+
+        long total = 0;
+        long bytes = 0;
+        for (DownloadTask task : mRunning) {
+            if (task.totalBytes <= 0) {
+                // unknown length
+                total = 0;
+                break;
+            }
+            total += task.totalBytes;
+            bytes += task.bytes;
+        }
+
+        foregroundNotification(total > 0 ? (int) ((100 * bytes) / total) : -1,
+            R.string.downloading_attachment);
+        // send the updates to the notification manager
+        mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
     }
 
-    @Override
-    public void completed(String url, String mime, File destination) {
+    /** Called from the download threads. */
+    private void downloadCompleted(DownloadTask task, String mime, File destination) {
         Uri uri = Uri.fromFile(destination);
 
         ContentValues values = null;
 
         // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+        if (task.encrypted) {
+            synchronized (this) {
+                if (mCurrentNotification != null) {
+                    foregroundNotification(-1, R.string.decrypting_attachment);
+                    // send the updates to the notification manager
+                    mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
+                }
+            }
 
             InputStream in = null;
             OutputStream out = null;
             try {
                 EndpointServer server = Preferences.getEndpointServer(this);
                 PersonalKey key = ((Kontalk) getApplicationContext()).getPersonalKey();
-                Coder coder = UsersProvider.getDecryptCoder(this, server, key, mPeer);
+                Coder coder = UsersProvider.getDecryptCoder(this, server, key, task.peer);
                 if (coder != null) {
                     in = new FileInputStream(destination);
 
@@ -321,16 +479,13 @@ public class DownloadService extends IntentService implements DownloadListener {
             values = new ContentValues(1);
         values.put(Messages.ATTACHMENT_LOCAL_URI, uri.toString());
         getContentResolver().update(ContentUris
-            .withAppendedId(Messages.CONTENT_URI, mMessageId), values, null, null);
+            .withAppendedId(Messages.CONTENT_URI, task.messageId), values, null, null);
 
         // update media store
         MediaStorage.scanFile(this, destination, mime);
 
-        // stop foreground
-        stopForeground();
-
         // notify only if conversation is not open
-        if (!mPeer.equals(MessagingNotification.getPaused())) {
+        if (!task.peer.equals(MessagingNotification.getPaused())) {
 
             // detect mime type if not available
             if (mime == null)
@@ -357,15 +512,6 @@ public class DownloadService extends IntentService implements DownloadListener {
         }
     }
 
-    @Override
-    public void error(String url, File destination, Throwable exc) {
-        Log.e(TAG, "download error", exc);
-        stopForeground();
-        if (!mCanceled)
-            errorNotification(getString(R.string.notify_ticker_download_error),
-                getString(R.string.notify_text_download_error));
-    }
-
     private void errorNotification(String ticker, String text) {
         // create intent for download error notification
         Intent i = new Intent(this, ConversationList.class);
@@ -386,16 +532,6 @@ public class DownloadService extends IntentService implements DownloadListener {
         mNotificationManager.notify(NOTIFICATION_ID_DOWNLOAD_ERROR, builder.build());
     }
 
-    @Override
-    public void progress(String url, File destination, long bytes) {
-        if (mCurrentNotification != null && (bytes >= mTotalBytes || mUpdateTimer.isStep())) {
-            int progress = (int) ((100 * bytes) / mTotalBytes);
-            foregroundNotification(progress);
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-        }
-    }
-
     public static boolean isQueued(String url) {
         return sQueue.containsKey(url);
     }
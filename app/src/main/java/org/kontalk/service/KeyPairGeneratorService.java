@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 
 import org.kontalk.R;
+import org.kontalk.crypto.KeyPairPool;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.ui.ConversationList;
 
@@ -36,13 +37,20 @@ import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 
-/** Generates a key pair in the background. */
+/**
+ * Generates a key pair in the background. Key pairs can also be generated in
+ * advance (e.g. while the device is charging and idle) and kept in a
+ * {@link KeyPairPool}, so that {@link #ACTION_GENERATE} can hand them out
+ * immediately.
+ */
 public class KeyPairGeneratorService extends Service {
+    private static final String TAG = KeyPairGeneratorService.class.getSimpleName();
 
     /**
      * Broadcasted when key pair generation has finished.
@@ -55,36 +63,82 @@ public class KeyPairGeneratorService extends Service {
      * generator thread has started.
      */
     public static final String ACTION_STARTED = "org.kontalk.keypair.STARTED";
+    /**
+     * Send this intent to generate a key pair and keep it for a later
+     * {@link #ACTION_GENERATE}. Nothing is broadcasted.
+     */
+    public static final String ACTION_PREGENERATE = "org.kontalk.keypair.PREGENERATE";
 
     public static final String EXTRA_KEY = "org.kontalk.keypair.KEY";
     public static final String EXTRA_FOREGROUND = "org.kontalk.keypair.FOREGROUND";
+    /** Time it took to generate the broadcasted key pair, in milliseconds. */
+    public static final String EXTRA_GENERATION_TIME = "org.kontalk.keypair.GENERATION_TIME";
+
+    private static final String POOL_DIR = "keypool";
 
     private GeneratorThread mThread;
     private volatile PersonalKey mKey;
+    private long mGenerationTime;
+
+    /** True if someone is waiting for a key pair. */
+    private boolean mRequested;
+    private int mLastStartId;
+
+    private KeyPairPool mPool;
 
     private LocalBroadcastManager lbm;
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mPool = getPool(this);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (lbm == null)
             lbm = LocalBroadcastManager.getInstance(getApplicationContext());
 
         String action = intent.getAction();
-        if (ACTION_GENERATE.equals(action)) {
-            // start the keypair generator
-            if (mThread == null) {
-                if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
-                    startForeground();
+        synchronized (this) {
+            mLastStartId = startId;
 
-                mThread = new GeneratorThread(this);
-                mThread.start();
+            if (ACTION_GENERATE.equals(action)) {
+                boolean alreadyRequested = mRequested;
+                mRequested = true;
 
-                broadcastStarted();
-            }
-            else {
-                if (mKey != null) {
+                // start the keypair generator
+                if (mThread == null) {
+                    if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
+                        startForeground();
+
+                    mThread = new GeneratorThread(this);
+                    mThread.start();
+
+                    broadcastStarted();
+                }
+                else if (mKey != null) {
                     broadcastKey();
                 }
+                else if (!alreadyRequested) {
+                    // pre-generation in progress, it will broadcast its key pair
+                    if (intent.getBooleanExtra(EXTRA_FOREGROUND, false))
+                        startForeground();
+
+                    broadcastStarted();
+                }
+            }
+
+            else if (ACTION_PREGENERATE.equals(action)) {
+                if (mThread == null && !mPool.isAvailable()) {
+                    mThread = new GeneratorThread(this);
+                    mThread.start();
+                }
+                else if (mThread == null) {
+                    stopSelf(startId);
+                }
+
+                return START_NOT_STICKY;
             }
         }
 
@@ -121,6 +175,7 @@ public class KeyPairGeneratorService extends Service {
     private void broadcastKey() {
         Intent i = new Intent(ACTION_GENERATE);
         i.putExtra(EXTRA_KEY, mKey);
+        i.putExtra(EXTRA_GENERATION_TIME, mGenerationTime);
         lbm.sendBroadcast(i);
     }
 
@@ -129,9 +184,65 @@ public class KeyPairGeneratorService extends Service {
         lbm.sendBroadcast(i);
     }
 
-    private void keypairGenerated(PersonalKey key) {
-        mKey = key;
-        broadcastKey();
+    private synchronized boolean isRequested() {
+        return mRequested;
+    }
+
+    /** Takes a pre-generated key pair from the pool, if any. */
+    private KeyPairPool.PooledKey takePooledKey() {
+        try {
+            return mPool.take();
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to use pre-generated key pair", e);
+            return null;
+        }
+    }
+
+    private synchronized void keypairGenerated(PersonalKey key, long generationTime) {
+        if (mRequested) {
+            mKey = key;
+            mGenerationTime = generationTime;
+            broadcastKey();
+        }
+        else {
+            // nobody asked for it yet, keep it for later
+            try {
+                mPool.put(key, generationTime);
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to store pre-generated key pair", e);
+            }
+            pregenerationDone();
+        }
+    }
+
+    private synchronized void keypairFailed() {
+        if (!mRequested)
+            pregenerationDone();
+    }
+
+    private void pregenerationDone() {
+        mThread = null;
+        // a newer start request will keep us alive
+        stopSelf(mLastStartId);
+    }
+
+    private static KeyPairPool getPool(Context context) {
+        return new KeyPairPool(context.getDir(POOL_DIR, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Starts generating a key pair in advance if no key pair is available
+     * already. Meant to be called as soon as registration starts or while
+     * the device is charging and idle.
+     */
+    public static void pregenerate(Context context) {
+        if (!getPool(context).isAvailable()) {
+            Intent i = new Intent(context, KeyPairGeneratorService.class);
+            i.setAction(ACTION_PREGENERATE);
+            context.startService(i);
+        }
     }
 
     private static final class GeneratorThread extends Thread {
@@ -148,16 +259,36 @@ public class KeyPairGeneratorService extends Service {
 
             KeyPairGeneratorService service = s.get();
             if (service != null) {
-                try {
-                    PersonalKey key = PersonalKey.create();
-                    Log.v("KeyPair", "key pair generated: " + key);
-                    service.keypairGenerated(key);
+                PersonalKey key = null;
+                long generationTime = 0;
+
+                if (service.isRequested()) {
+                    KeyPairPool.PooledKey pooled = service.takePooledKey();
+                    if (pooled != null) {
+                        key = pooled.key;
+                        generationTime = pooled.generationTime;
+                        Log.v(TAG, "using pre-generated key pair: " + key);
+                    }
                 }
-                catch (IOException e) {
-                    Log.v("KeyPair", "keypair generation failed", e);
-                    // TODO notify user
+
+                if (key == null) {
+                    try {
+                        long start = SystemClock.elapsedRealtime();
+                        key = PersonalKey.create();
+                        generationTime = SystemClock.elapsedRealtime() - start;
+                        Log.v(TAG, "key pair generated in " + generationTime + " ms: " + key);
+                    }
+                    catch (IOException e) {
+                        Log.v(TAG, "keypair generation failed", e);
+                        // TODO notify user
+                    }
                 }
 
+                if (key != null)
+                    service.keypairGenerated(key, generationTime);
+                else
+                    service.keypairFailed();
+
                 service.stopForeground();
             }
         }
@@ -19,15 +19,19 @@
 package org.kontalk.service;
 
 import org.kontalk.Kontalk;
+import org.kontalk.service.NetworkStateTracker.NetworkState;
 import org.kontalk.service.msgcenter.AdaptiveServerPingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -39,87 +43,107 @@ import android.util.Log;
 public class NetworkStateReceiver extends BroadcastReceiver {
     private static final String TAG = Kontalk.TAG;
 
-    private static final int ACTION_START = 1;
-    private static final int ACTION_STOP = 2;
-    private static final int ACTION_TEST = 3;
+    /** Time the network state must be stable before acting upon it. */
+    private static final long DEBOUNCE_WINDOW = 3000;
+
+    private static final NetworkStateTracker sTracker =
+        new NetworkStateTracker(DEBOUNCE_WINDOW);
+
+    private static Handler sHandler;
+    private static Context sContext;
+
+    private static final Runnable sSettleAction = new Runnable() {
+        public void run() {
+            settle(sContext);
+        }
+    };
 
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
-        int serviceAction = 0;
+        if (!ConnectivityManager.ACTION_BACKGROUND_DATA_SETTING_CHANGED.equals(action) &&
+                !ConnectivityManager.CONNECTIVITY_ACTION.equals(action))
+            return;
+
+        NetworkState state = getNetworkState(context);
+        if (state == null) {
+            Log.v(TAG, "suspending network traffic");
+            return;
+        }
 
+        Log.v(TAG, "network state changed: " + state);
+
+        // broadcasts are always delivered on the main thread
+        if (sHandler == null)
+            sHandler = new Handler();
+        sContext = context.getApplicationContext();
+
+        long deadline = sTracker.update(state, SystemClock.uptimeMillis());
+        sHandler.removeCallbacks(sSettleAction);
+        sHandler.postAtTime(sSettleAction, deadline);
+    }
+
+    /** Returns the current network state, or null if the network is suspended. */
+    private static NetworkState getNetworkState(Context context) {
         final ConnectivityManager cm = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
 
-        // background data setting has changed
-        if (ConnectivityManager.ACTION_BACKGROUND_DATA_SETTING_CHANGED.equals(action)) {
-
-            // if background data gets deactivated, just stop the service now
-            if (!cm.getBackgroundDataSetting()) {
-                Log.w(TAG, "background data disabled!");
-                serviceAction = ACTION_STOP;
-            }
-            else {
-                Log.w(TAG, "background data enabled!");
-                // start message center
-                serviceAction = ACTION_START;
-                // notify ping manager that connection type has changed
-                AdaptiveServerPingManager.onConnected();
-            }
+        // TODO handle FAILOVER_CONNECTION
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null)
+            return NetworkState.DISCONNECTED;
+
+        switch (info.getState()) {
+            case CONNECTED:
+                // if background data is disabled the message center must stop
+                if (!cm.getBackgroundDataSetting()) {
+                    Log.w(TAG, "background data disabled!");
+                    return NetworkState.DISCONNECTED;
+                }
+                return new NetworkState(true, info.getType(), info.getSubtype(),
+                    SystemUtils.getCurrentNetworkId(context));
+            case SUSPENDED:
+                return null;
+            default:
+                return NetworkState.DISCONNECTED;
         }
+    }
 
-        // connectivity status has changed
-        else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
-            // TODO handle FAILOVER_CONNECTION
-
-            final NetworkInfo info = cm.getActiveNetworkInfo();
-            if (info != null) {
-                Log.w(TAG, "network state changed!");
+    /** Acts upon the network state once it has settled. */
+    private static void settle(Context context) {
+        int serviceAction = sTracker.settle(SystemClock.uptimeMillis());
 
-                if (info.getType() == ConnectivityManager.TYPE_MOBILE &&
-                        !shouldReconnect(context)) {
-                    Log.w(TAG, "throttling on mobile network");
-                    return;
-                }
+        if (sTracker.isNetworkChanged()) {
+            // notify ping manager that connection type has changed
+            AdaptiveServerPingManager.onConnected();
+        }
 
-                switch (info.getState()) {
-                    case CONNECTED:
-                        // test connection or reconnect
-                        serviceAction = ACTION_TEST;
-                        // notify ping manager that connection type has changed
-                        AdaptiveServerPingManager.onConnected();
-                        break;
-                    case SUSPENDED:
-                        Log.v(TAG, "suspending network traffic");
-                        break;
-                    default:
-                        serviceAction = ACTION_STOP;
-                        break;
-                }
-            }
-            else {
-                // no network info available
-                serviceAction = ACTION_STOP;
+        if (serviceAction == NetworkStateTracker.ACTION_START ||
+                serviceAction == NetworkStateTracker.ACTION_TEST) {
+            if (sTracker.getCurrentState().type == ConnectivityManager.TYPE_MOBILE &&
+                    !shouldReconnect(context)) {
+                Log.w(TAG, "throttling on mobile network");
+                return;
             }
         }
 
         switch (serviceAction) {
-            case ACTION_START:
+            case NetworkStateTracker.ACTION_START:
                 // start message center
                 MessageCenterService.start(context);
                 break;
-            case ACTION_STOP:
+            case NetworkStateTracker.ACTION_STOP:
                 // stop message center
                 MessageCenterService.stop(context);
                 break;
-            case ACTION_TEST:
+            case NetworkStateTracker.ACTION_TEST:
                 // connection test
                 MessageCenterService.test(context);
                 break;
         }
     }
 
-    private boolean shouldReconnect(Context context) {
+    private static boolean shouldReconnect(Context context) {
         // check if some activity is holding to the message center
         // or there is a pending push notification
         if (((Kontalk) context.getApplicationContext()).hasReference() ||
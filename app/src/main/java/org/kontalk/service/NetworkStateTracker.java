@@ -0,0 +1,151 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+
+/**
+ * Turns a sequence of network state broadcasts into message center actions.
+ * Broadcasts are debounced: a new state is acted upon only after no other
+ * broadcast has been received for a while, and only if it differs from the
+ * last state acted upon. Flapping handovers (which can produce several
+ * broadcasts in a few seconds) will cause at most one action.
+ * @author Daniele Ricci
+ */
+class NetworkStateTracker {
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_START = 1;
+    public static final int ACTION_STOP = 2;
+    public static final int ACTION_TEST = 3;
+
+    /** A never-ending flap will still be acted upon after this many windows. */
+    private static final int MAX_WINDOWS = 4;
+
+    /** A snapshot of the active network. */
+    static final class NetworkState {
+        public static final NetworkState DISCONNECTED = new NetworkState(false, -1, -1, null);
+
+        /** True if connected and background data is allowed. */
+        final boolean connected;
+        final int type;
+        final int subtype;
+        /** Network identity (type and hash of SSID or operator), null if not connected. */
+        final String networkId;
+
+        NetworkState(boolean connected, int type, int subtype, String networkId) {
+            this.connected = connected;
+            this.type = type;
+            this.subtype = subtype;
+            this.networkId = networkId;
+        }
+
+        boolean sameState(NetworkState other) {
+            return connected == other.connected && type == other.type &&
+                subtype == other.subtype && sameNetwork(other.networkId);
+        }
+
+        boolean sameNetwork(String id) {
+            return (networkId == null) ? id == null : networkId.equals(id);
+        }
+
+        @Override
+        public String toString() {
+            return connected ? networkId + "/" + subtype : "disconnected";
+        }
+    }
+
+    private final long mWindow;
+
+    /** Last state acted upon, null if unknown. */
+    private NetworkState mCurrent;
+    /** Identity of the last connected network. */
+    private String mLastNetworkId;
+    /** True if the last settled state is a different network. */
+    private boolean mNetworkChanged;
+
+    /** Last received state, waiting for the window to expire. */
+    private NetworkState mPending;
+    private long mPendingSince;
+    private long mDeadline;
+
+    /**
+     * @param window time a state must be stable before acting upon it
+     */
+    public NetworkStateTracker(long window) {
+        mWindow = window;
+    }
+
+    /**
+     * Records a network state broadcast.
+     * @return the time at which {@link #settle} should be called
+     */
+    public synchronized long update(NetworkState state, long now) {
+        if (mPending == null)
+            mPendingSince = now;
+        mPending = state;
+        mDeadline = Math.min(now + mWindow, mPendingSince + mWindow * MAX_WINDOWS);
+        return mDeadline;
+    }
+
+    public synchronized boolean isPending() {
+        return mPending != null;
+    }
+
+    /**
+     * Acts upon the last received state if the window has expired.
+     * @return one of the ACTION_* constants
+     */
+    public synchronized int settle(long now) {
+        mNetworkChanged = false;
+        if (mPending == null || now < mDeadline)
+            return ACTION_NONE;
+
+        NetworkState prev = mCurrent;
+        NetworkState state = mPending;
+        mPending = null;
+        mCurrent = state;
+
+        if (state.connected) {
+            mNetworkChanged = !state.sameNetwork(mLastNetworkId);
+            mLastNetworkId = state.networkId;
+
+            // unknown previous state: check the connection
+            if (prev == null)
+                return ACTION_TEST;
+            if (!prev.connected)
+                return ACTION_START;
+            // handover or subtype change: the connection might be dead
+            return state.sameState(prev) ? ACTION_NONE : ACTION_TEST;
+        }
+        else {
+            return (prev == null || prev.connected) ? ACTION_STOP : ACTION_NONE;
+        }
+    }
+
+    /** True if the last {@link #settle} moved to a different network. */
+    public synchronized boolean isNetworkChanged() {
+        return mNetworkChanged;
+    }
+
+    /** Returns the last state acted upon, null if unknown. */
+    public synchronized NetworkState getCurrentState() {
+        return mCurrent;
+    }
+
+}
@@ -32,6 +32,7 @@ import java.util.Map;
 
 import org.kontalk.Kontalk;
 import org.kontalk.R;
+import org.kontalk.client.TransferClient;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -103,6 +104,18 @@ public class UploadService extends IntentService implements ProgressListener {
         super(UploadService.class.getSimpleName());
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TransferClient.acquire();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        TransferClient.release();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (mNotificationManager == null)
@@ -95,6 +95,17 @@ public class XMPPConnectionHelper extends Thread {
     /** Connecting flag. */
     protected volatile boolean mConnecting;
 
+    /**
+     * Creates a new instance reusing a connection whose stream can be
+     * resumed. The connection will not be created again (so
+     * {@link ConnectionHelperListener#created} will not be called) unless
+     * resumption is not possible anymore.
+     */
+    public XMPPConnectionHelper(Context context, EndpointServer server, KontalkConnection connection) {
+        this(context, server, false);
+        mConn = connection;
+    }
+
     /**
      * Creates a new instance.
      * @param context
@@ -158,8 +169,11 @@ public class XMPPConnectionHelper extends Thread {
             }
         }
 
-        // recreate connection if closed
-        if (mConn == null || !mConn.isConnected()) {
+        // recreate connection if closed and not resumable
+        if (mConn != null && !mConn.isConnected() && mConn.isSmResumptionPossible()) {
+            Log.d(TAG, "reusing connection for stream resumption");
+        }
+        else if (mConn == null || !mConn.isConnected()) {
 
             KeyStore trustStore = null;
             boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
@@ -175,10 +189,7 @@ public class XMPPConnectionHelper extends Thread {
 
             else {
                 mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
+                    key, acceptAnyCertificate, trustStore, token);
             }
 
             // apply packet timeout based on retry count
@@ -264,8 +275,11 @@ public class XMPPConnectionHelper extends Thread {
                     if (mConn != null) {
                         // forcibly close connection, no matter what
                         mConn.instantShutdown();
-                        // EXTERMINATE!!
-                        mConn = null;
+                        // keep the stream management state if the stream can be resumed
+                        if (!mConn.isSmResumptionPossible()) {
+                            // EXTERMINATE!!
+                            mConn = null;
+                        }
                     }
 
                     // SASL: not authorized
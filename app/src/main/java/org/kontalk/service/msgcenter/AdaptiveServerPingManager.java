@@ -42,7 +42,9 @@ import org.kontalk.util.SystemUtils;
 
 
 /**
- * An adaptive ping manager using {@link AlarmManager}.<br>
+ * An adaptive ping manager using {@link AlarmManager}. The ping interval
+ * follows the NAT timeout estimated for each network (see
+ * {@link NatTimeoutEstimator}).<br>
  * FIXME this class still uses the Manager approach, but doesn't seem to fit in
  * any more.
  * @author Daniele Ricci
@@ -107,8 +109,6 @@ public class AdaptiveServerPingManager extends Manager {
         }
     };
 
-    private static final int MIN_ALARM_INTERVAL = 90 * 1000;
-
     private static Context sContext;
     private static PendingIntent sPendingIntent;
     private static AlarmManager sAlarmManager;
@@ -120,17 +120,17 @@ public class AdaptiveServerPingManager extends Manager {
      */
     private static long sInterval;
     /**
-     * Timestamp of last ping success.
+     * Identity of the current network.
      */
-    private static long sLastSuccess;
+    private static String sNetworkId;
     /**
-     * Last successful ping interval.
+     * Network the current connection has been established on.
      */
-    private static long sLastSuccessInterval;
+    private static String sConnectionNetworkId;
     /**
-     * Interval for the next increase.
+     * NAT timeout estimate for the current network.
      */
-    private static long sNextIncrease;
+    private static NatTimeoutEstimator sEstimator;
 
     /**
      * Register a pending intent with the AlarmManager to be broadcasted every
@@ -145,6 +145,7 @@ public class AdaptiveServerPingManager extends Manager {
         context.registerReceiver(ALARM_BROADCAST_RECEIVER, new IntentFilter(PING_ALARM_ACTION));
         sAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         sPendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(PING_ALARM_ACTION), 0);
+        Preferences.deleteLegacyPingIntervals(context);
         onConnected();
     }
 
@@ -152,90 +153,69 @@ public class AdaptiveServerPingManager extends Manager {
         onConnected(null);
     }
 
-    public static void onConnected(XMPPConnection connection) {
+    public static synchronized void onConnected(XMPPConnection connection) {
         if (sContext != null) {
-            // setup first alarm using last value from preference
-            setupAlarmManager(connection, Preferences.getPingAlarmInterval(sContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            sNextIncrease = Preferences.getPingAlarmBackoff(sContext, sInterval);
-            // reset internal variables
-            sLastSuccess = 0;
-            sLastSuccessInterval = 0;
+            // load the estimate for this network
+            sNetworkId = SystemUtils.getCurrentNetworkId(sContext);
+            sEstimator = NatTimeoutEstimator.parse(sNetworkId != null ?
+                Preferences.getPingNatEstimate(sContext, sNetworkId) : null);
+            if (connection != null)
+                sConnectionNetworkId = sNetworkId;
+            setupAlarmManager(connection, sEstimator.getInterval());
         }
     }
 
     /**
-     * Called by the ping failed listener.
-     * It will half the interval for the next alarm.
+     * Called when a ping has failed. Only pings sent by the alarm must be
+     * reported: other connection tests (e.g. after a network change) are not
+     * evidence of the NAT timeout.
+     * @param idleTime time the connection was idle before the ping
      */
-    public static void pingFailed(XMPPConnection connection) {
-        long interval;
-
-        if (sLastSuccessInterval > 0) {
-            // we were trying an increase, go back to previous value
-            interval = sLastSuccessInterval;
-            // better use the previous value for a longer time :)
-            setNextIncreaseInterval((long) (sNextIncrease * 1.5));
-        }
-        else {
-            // half interval
-            interval = sInterval / 2;
+    public static synchronized void pingFailed(XMPPConnection connection, long idleTime) {
+        if (sEstimator != null) {
+            // a short idle time can't be a NAT timeout (e.g. network change)
+            if (isValidIdleTime(idleTime)) {
+                sEstimator.onFailure(idleTime);
+                saveEstimate();
+            }
+            setupAlarmManager(connection, sEstimator.getInterval());
         }
-        setupAlarmManager(connection, interval);
     }
 
     /**
      * Called when a ping has succeeded.
-     * In order to avoid a too much optimistic approach, we wait for at least
-     * the supposed ping interval to pass before incrementing back the interval
-     * for the next ping.
+     * @param idleTime time the connection was idle before the ping
      */
-    public static void pingSuccess(XMPPConnection connection) {
-        long nextAlarm = sInterval;
-        long now = SystemClock.elapsedRealtime();
-
-        if (sLastSuccessInterval > 0) {
-            // interval increase was successful, reset backoff
-            setNextIncreaseInterval(sInterval);
-
-            // interval increase was successful
-        }
-        // try an increase only if we previously had a successful ping
-        else if (sLastSuccess > 0) {
-            long diff = now - sLastSuccess;
-            if (diff >= sNextIncrease) {
-                // we are trying an increase, store the last successful interval
-                sLastSuccessInterval = sInterval;
-
-                nextAlarm = (long) (sInterval * 1.5);
+    public static synchronized void pingSuccess(XMPPConnection connection, long idleTime) {
+        if (sEstimator != null) {
+            if (isValidIdleTime(idleTime)) {
+                sEstimator.onSuccess(idleTime);
+                saveEstimate();
             }
-
-            // do not increase interval for now
+            setupAlarmManager(connection, sEstimator.getInterval());
         }
+    }
 
-        // remember last success
-        sLastSuccess = now;
+    private static boolean isValidIdleTime(long idleTime) {
+        // a connection established on another network says nothing about this one
+        if (sNetworkId == null || !sNetworkId.equals(sConnectionNetworkId))
+            return false;
+        // inexact alarms can be late up to a whole interval
+        return idleTime >= NatTimeoutEstimator.MIN_INTERVAL &&
+            idleTime <= NatTimeoutEstimator.MAX_INTERVAL * 2;
+    }
 
-        setupAlarmManager(connection, nextAlarm);
+    private static void saveEstimate() {
+        if (sNetworkId != null)
+            Preferences.setPingNatEstimate(sContext, sNetworkId, sEstimator.toString());
     }
 
     private static void setupAlarmManager(XMPPConnection connection, long intervalMillis) {
         if (sPendingIntent != null) {
             sAlarmManager.cancel(sPendingIntent);
+            // estimator keeps the interval between 90 seconds and 30 minutes
             sInterval = intervalMillis;
 
-            // do not go beyond 30 minutes...
-            if (sInterval > AlarmManager.INTERVAL_HALF_HOUR) {
-                sInterval = AlarmManager.INTERVAL_HALF_HOUR;
-            }
-            // ...or less than 90 seconds
-            else if (sInterval < MIN_ALARM_INTERVAL) {
-                sInterval = MIN_ALARM_INTERVAL;
-            }
-
-            // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(sContext, sInterval);
-
             // remove difference from last received stanza
             long interval = sInterval;
             if (connection != null) {
@@ -268,14 +248,6 @@ public class AdaptiveServerPingManager extends Manager {
         }
     }
 
-    private static void setNextIncreaseInterval(long interval) {
-        // reset last successful interval
-        sLastSuccessInterval = 0;
-        // set and save next increase
-        sNextIncrease = interval;
-        Preferences.setPingAlarmBackoff(sContext, sNextIncrease);
-    }
-
     /**
      * Unregister the alarm broadcast receiver and cancel the alarm.
      */
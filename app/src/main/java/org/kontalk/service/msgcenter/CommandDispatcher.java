@@ -0,0 +1,149 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import org.kontalk.util.StepTimer;
+
+
+/**
+ * Dispatches message center commands to their handlers with a single map
+ * lookup. Connection preconditions are checked before running a handler,
+ * and every handler keeps its own execution time statistics.
+ * @param <A> the command arguments type
+ * @author Daniele Ricci
+ */
+class CommandDispatcher<A> {
+
+    /** The handler can run anytime. */
+    public static final int REQUIRE_NONE = 0;
+    /** The handler runs only if connected. */
+    public static final int REQUIRE_CONNECTED = 1;
+    /** The handler runs only if the network is available. */
+    public static final int REQUIRE_CAN_CONNECT = 1 << 1;
+
+    /** Commands taking longer than this are logged (one frame). */
+    static final long SLOW_COMMAND = TimeUnit.MILLISECONDS.toNanos(16);
+    /** Minimum time between two slow command warnings from the same handler. */
+    static final long SLOW_COMMAND_LOG_INTERVAL = 60000;
+
+    /** Handles a single command. */
+    static abstract class CommandHandler<A> {
+        final int mRequirements;
+
+        private final StepTimer mSlowTimer = new StepTimer(SLOW_COMMAND_LOG_INTERVAL);
+        private int mCount;
+        private long mTotalTime;
+        private long mMaxTime;
+
+        CommandHandler(int requirements) {
+            mRequirements = requirements;
+        }
+
+        /**
+         * Executes the command.
+         * @return true if a connection should be created
+         */
+        protected abstract boolean handle(A args, boolean canConnect, boolean isConnected);
+
+        /** Timing hook, called after every execution. */
+        void executed(String action, long time) {
+            mCount++;
+            mTotalTime += time;
+            if (time > mMaxTime)
+                mMaxTime = time;
+
+            if (time >= SLOW_COMMAND && mSlowTimer.isStep()) {
+                Log.w(MessageCenterService.TAG, "slow command " + action + ": " +
+                    TimeUnit.NANOSECONDS.toMillis(time) + " ms (" + this + ")");
+                mSlowTimer.reset();
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Total execution time in nanoseconds. */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+
+        /** Maximum execution time in nanoseconds. */
+        public long getMaxTime() {
+            return mMaxTime;
+        }
+
+        @Override
+        public String toString() {
+            return "executed " + mCount + " times, average " +
+                ((mCount > 0) ? TimeUnit.NANOSECONDS.toMicros(mTotalTime / mCount) : 0) +
+                " us, max " + TimeUnit.NANOSECONDS.toMicros(mMaxTime) + " us";
+        }
+    }
+
+    private final Map<String, CommandHandler<A>> mHandlers =
+        new HashMap<String, CommandHandler<A>>();
+    /** Handler for unknown commands. */
+    private final CommandHandler<A> mDefaultHandler;
+
+    /**
+     * @param defaultHandler handler for null or unknown actions
+     */
+    public CommandDispatcher(CommandHandler<A> defaultHandler) {
+        mDefaultHandler = defaultHandler;
+    }
+
+    public void register(String action, CommandHandler<A> handler) {
+        mHandlers.put(action, handler);
+    }
+
+    /** Returns the handler for the given action, or the default handler. */
+    public CommandHandler<A> getHandler(String action) {
+        CommandHandler<A> handler = (action != null) ? mHandlers.get(action) : null;
+        return (handler != null) ? handler : mDefaultHandler;
+    }
+
+    /**
+     * Runs the handler for the given action if its preconditions are met.
+     * @return true if a connection should be created
+     */
+    public boolean dispatch(String action, A args, boolean canConnect, boolean isConnected) {
+        CommandHandler<A> handler = getHandler(action);
+
+        int req = handler.mRequirements;
+        if (((req & REQUIRE_CONNECTED) != 0 && !isConnected) ||
+                ((req & REQUIRE_CAN_CONNECT) != 0 && !canConnect))
+            return false;
+
+        long start = System.nanoTime();
+        try {
+            return handler.handle(args, canConnect, isConnected);
+        }
+        finally {
+            handler.executed(action, System.nanoTime() - start);
+        }
+    }
+
+}
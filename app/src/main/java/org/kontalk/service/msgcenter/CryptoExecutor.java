@@ -0,0 +1,186 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Runs encryption and decryption jobs on a bounded pool of threads. Jobs
+ * for different keys (e.g. conversation peers) and jobs for the same key
+ * are processed in parallel, but jobs for the same key are completed in
+ * the order they were submitted, so messages are sent and stored in order.
+ * @author Daniele Ricci
+ */
+class CryptoExecutor {
+
+    /** Maximum number of threads. */
+    static final int MAX_THREADS = 4;
+
+    /** A crypto job. */
+    static abstract class Job {
+        /** Set when {@link #process()} has returned. Guarded by the queues. */
+        boolean mProcessed;
+
+        /** Does the heavy work. Called from a pool thread. */
+        protected abstract void process();
+
+        /**
+         * Called from a pool thread after {@link #process()}, in submission
+         * order for the same key.
+         */
+        protected abstract void complete();
+    }
+
+    private static final class JobQueue {
+        final LinkedList<Job> jobs = new LinkedList<Job>();
+        /** True if a thread is completing jobs from this queue. */
+        boolean completing;
+    }
+
+    private final ExecutorService mExecutor;
+    /** Pending jobs by key. */
+    private final Map<String, JobQueue> mQueues = new HashMap<String, JobQueue>();
+
+    public CryptoExecutor() {
+        this(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+    }
+
+    CryptoExecutor(int threads) {
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Crypto-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /** Queues a job. */
+    public void execute(final String key, final Job job) {
+        final JobQueue queue;
+        synchronized (mQueues) {
+            JobQueue q = mQueues.get(key);
+            if (q == null) {
+                q = new JobQueue();
+                mQueues.put(key, q);
+            }
+            q.jobs.add(job);
+            queue = q;
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        job.process();
+                    }
+                    catch (RuntimeException e) {
+                        Log.w(MessageCenterService.TAG, "crypto job failed", e);
+                    }
+                    finally {
+                        synchronized (mQueues) {
+                            job.mProcessed = true;
+                        }
+                        completeJobs(key, queue);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(MessageCenterService.TAG, "crypto executor shut down, dropping job");
+            synchronized (mQueues) {
+                queue.jobs.remove(job);
+            }
+            completeJobs(key, queue);
+        }
+    }
+
+    /** Completes processed jobs from the head of the queue. */
+    private void completeJobs(String key, JobQueue queue) {
+        synchronized (mQueues) {
+            // another thread will complete our job too
+            if (queue.completing)
+                return;
+            queue.completing = true;
+        }
+
+        while (true) {
+            Job head;
+            synchronized (mQueues) {
+                head = queue.jobs.peek();
+                if (head == null || !head.mProcessed) {
+                    queue.completing = false;
+                    // a new queue might have been registered for the key in the meantime
+                    if (head == null && mQueues.get(key) == queue)
+                        mQueues.remove(key);
+                    return;
+                }
+                queue.jobs.poll();
+            }
+
+            try {
+                head.complete();
+            }
+            catch (RuntimeException e) {
+                Log.w(MessageCenterService.TAG, "crypto job completion failed", e);
+            }
+        }
+    }
+
+    /** Completes queued jobs and stops the threads. */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Completes queued jobs and stops the threads, waiting for the jobs to
+     * be completed.
+     * @param timeout maximum time to wait, in milliseconds
+     * @return true if all jobs were completed
+     */
+    public boolean shutdown(long timeout) {
+        mExecutor.shutdown();
+        try {
+            return mExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
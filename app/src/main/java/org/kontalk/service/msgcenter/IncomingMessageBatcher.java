@@ -0,0 +1,207 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MyMessages.Messages;
+
+
+/**
+ * Buffers incoming messages for a short time and stores them in the
+ * messages provider with a single batch. A batch is flushed when
+ * {@link #MAX_BATCH_SIZE} messages are waiting or {@link #FLUSH_DELAY}
+ * milliseconds after the first message was queued, whichever comes first.
+ * @author Daniele Ricci
+ */
+class IncomingMessageBatcher implements Runnable {
+    /** Maximum number of messages in a batch. */
+    static final int MAX_BATCH_SIZE = 100;
+    /** Maximum time a message will wait before being stored. */
+    static final long FLUSH_DELAY = 50;
+
+    /** An incoming message waiting to be stored. */
+    static final class IncomingMessage {
+        final ContentValues values;
+        final String msgId;
+        final String sender;
+        /** Where to send a delivery receipt to (null for no receipt). */
+        final String receiptTo;
+        /** The stored message uri, null if not stored (e.g. duplicate). */
+        Uri uri;
+
+        IncomingMessage(ContentValues values, String msgId, String sender, String receiptTo) {
+            this.values = values;
+            this.msgId = msgId;
+            this.sender = sender;
+            this.receiptTo = receiptTo;
+        }
+    }
+
+    interface OnMessagesStoredListener {
+        /** Called from the batcher thread after a batch has been stored. */
+        void onMessagesStored(List<IncomingMessage> messages);
+    }
+
+    /** Stores a batch of messages, setting the uri of the stored ones. */
+    interface MessageStore {
+        void store(List<IncomingMessage> messages);
+    }
+
+    private final MessageStore mStore;
+    private final OnMessagesStoredListener mListener;
+    private final ScheduledExecutorService mExecutor;
+
+    private List<IncomingMessage> mPending = new ArrayList<IncomingMessage>();
+    private ScheduledFuture<?> mScheduled;
+
+    IncomingMessageBatcher(ContentResolver resolver, OnMessagesStoredListener listener) {
+        this(new ProviderMessageStore(resolver), listener);
+    }
+
+    IncomingMessageBatcher(MessageStore store, OnMessagesStoredListener listener) {
+        mStore = store;
+        mListener = listener;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "IncomingMessages");
+            }
+        });
+    }
+
+    /** Queues a message for storing. */
+    public synchronized void add(IncomingMessage msg) {
+        mPending.add(msg);
+        int count = mPending.size();
+
+        try {
+            if (count >= MAX_BATCH_SIZE) {
+                if (mScheduled != null) {
+                    mScheduled.cancel(false);
+                    mScheduled = null;
+                }
+                mExecutor.execute(this);
+            }
+            else if (count == 1) {
+                mScheduled = mExecutor.schedule(this, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(MessageCenterService.TAG, "incoming message batcher stopped, dropping message " + msg.msgId);
+        }
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    /** Stores all pending messages. Must be called from the batcher thread. */
+    private void flush() {
+        List<IncomingMessage> batch;
+        synchronized (this) {
+            if (mPending.size() == 0)
+                return;
+
+            batch = mPending;
+            mPending = new ArrayList<IncomingMessage>();
+            mScheduled = null;
+        }
+
+        mStore.store(batch);
+        mListener.onMessagesStored(batch);
+    }
+
+    /** Stores any pending message and stops the batcher thread. */
+    public synchronized void quit() {
+        if (mExecutor.isShutdown())
+            return;
+
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+            mScheduled = null;
+        }
+        mExecutor.execute(this);
+        mExecutor.shutdown();
+    }
+
+    /** Stores messages in the messages provider. */
+    private static final class ProviderMessageStore implements MessageStore {
+        private final ContentResolver mResolver;
+        /** Insert uri skipping already stored messages. */
+        private final Uri mInsertUri;
+
+        ProviderMessageStore(ContentResolver resolver) {
+            mResolver = resolver;
+            mInsertUri = Messages.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Messages.IGNORE_DUPLICATES, "true")
+                .build();
+        }
+
+        @Override
+        public void store(List<IncomingMessage> batch) {
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(batch.size());
+            for (IncomingMessage msg : batch)
+                ops.add(ContentProviderOperation.newInsert(mInsertUri)
+                    .withValues(msg.values).build());
+
+            try {
+                ContentProviderResult[] results = mResolver
+                    .applyBatch(MessagesProvider.AUTHORITY, ops);
+                for (int i = 0; i < results.length; i++)
+                    batch.get(i).uri = results[i].uri;
+            }
+            catch (Exception e) {
+                Log.w(MessageCenterService.TAG, "batch insert failed, storing messages one by one", e);
+                for (IncomingMessage msg : batch) {
+                    try {
+                        msg.uri = mResolver.insert(Messages.CONTENT_URI, msg.values);
+                    }
+                    catch (SQLiteConstraintException econstr) {
+                        // duplicated message, skip it
+                    }
+                }
+            }
+        }
+    }
+
+}
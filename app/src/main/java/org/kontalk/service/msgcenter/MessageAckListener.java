@@ -18,19 +18,11 @@
 
 package org.kontalk.service.msgcenter;
 
-import java.util.Map;
 
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
-import android.net.Uri;
-
-import org.kontalk.provider.MyMessages.Messages;
-
 
 /**
  * Packet listener for message ack processing.
@@ -38,11 +30,6 @@ import org.kontalk.provider.MyMessages.Messages;
  */
 class MessageAckListener extends MessageCenterPacketListener {
 
-    // condition on delivered status in case we receive the receipt before the ack
-    private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT + " AND " +
-        Messages.STATUS + " NOT IN (" + Messages.STATUS_RECEIVED + "," + Messages.STATUS_NOTDELIVERED + ")";
-    private static final String selectionIncoming = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
-
     public MessageAckListener(MessageCenterService instance) {
         super(instance);
     }
@@ -53,54 +40,36 @@ class MessageAckListener extends MessageCenterPacketListener {
             return;
         }
 
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
-
-        synchronized (waitingReceipt) {
-            String id = packet.getStanzaId();
-            Long _msgId = waitingReceipt.remove(id);
-            long msgId = (_msgId != null) ? _msgId : 0;
-            ContentResolver cr = getContext().getContentResolver();
-
-            long now = System.currentTimeMillis();
-
-            DeliveryReceipt receipt = DeliveryReceipt.from((Message) packet);
-            if (receipt != null) {
-                // ack received for outgoing delivery receipt
-                // mark message as confirmed
-                ContentValues values = new ContentValues(1);
-                values.put(Messages.STATUS, Messages.STATUS_CONFIRMED);
-                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                    values, selectionIncoming, null);
-
-                waitingReceipt.remove(id);
-            }
-
-            if (msgId > 0) {
-                // we have a message awaiting ack from server
-                ContentValues values = new ContentValues(3);
-                values.put(Messages.STATUS, Messages.STATUS_SENT);
-                values.put(Messages.STATUS_CHANGED, now);
-                values.put(Messages.SERVER_TIMESTAMP, now);
-                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                    values, selectionOutgoing, null);
-
-                // we can now release the message center. Hopefully
-                // there will be one hold and one matching release.
-                getIdleHandler().release();
-            }
-            else if (id != null) {
-                // the user wasn't expecting ack for this message
-                // so we simply update it using the packet id as key
-                // FIXME this could lead to fake acks because message IDs are client-generated
-                Uri msg = Messages.getUri(id);
-                ContentValues values = new ContentValues(3);
-                values.put(Messages.STATUS, Messages.STATUS_SENT);
-                values.put(Messages.STATUS_CHANGED, now);
-                values.put(Messages.SERVER_TIMESTAMP, now);
-                cr.update(msg, values, selectionOutgoing, null);
-            }
+        ReceiptTracker waitingReceipt = getWaitingReceiptList();
+        MessageStatusBatcher statusBatcher = getStatusBatcher();
+
+        String id = packet.getStanzaId();
+        long msgId = waitingReceipt.remove(id);
 
+        long now = System.currentTimeMillis();
+
+        DeliveryReceipt receipt = DeliveryReceipt.from((Message) packet);
+        if (receipt != null) {
+            // ack received for outgoing delivery receipt
+            // mark message as confirmed
+            if (msgId > 0)
+                statusBatcher.confirmed(msgId);
         }
 
+        if (msgId > 0) {
+            // we have a message awaiting ack from server
+            if (receipt == null)
+                statusBatcher.sent(msgId, null, now);
+
+            // we can now release the message center. Hopefully
+            // there will be one hold and one matching release.
+            getIdleHandler().release();
+        }
+        else if (id != null) {
+            // the user wasn't expecting ack for this message
+            // so we simply update it using the packet id as key
+            // FIXME this could lead to fake acks because message IDs are client-generated
+            statusBatcher.sent(0, id, now);
+        }
     }
 }
@@ -20,7 +20,6 @@ package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.Map;
 
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Stanza;
@@ -168,17 +167,31 @@ abstract class MessageCenterPacketListener implements PacketListener {
             instance.pushRegister();
     }
 
-    protected Map<String, Long> getWaitingReceiptList() {
+    protected ReceiptTracker getWaitingReceiptList() {
         MessageCenterService instance = mInstance.get();
         return (instance != null) ? instance.mWaitingReceipt : null;
     }
 
-    protected Uri incoming(CompositeMessage msg) {
+    protected MessageStatusBatcher getStatusBatcher() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mStatusBatcher : null;
+    }
+
+    protected CryptoExecutor getCryptoExecutor() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mCryptoExecutor : null;
+    }
+
+    protected void incoming(CompositeMessage msg, String receiptTo) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            return instance.incoming(msg);
+            instance.incoming(msg, receiptTo);
+    }
 
-        return null;
+    protected void sendReceipt(Uri msgUri, String msgId, String from) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.sendReceipt(msgUri, msgId, from);
     }
 
     protected IdleConnectionHandler getIdleHandler() {
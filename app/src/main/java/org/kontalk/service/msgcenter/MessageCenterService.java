@@ -18,12 +18,17 @@
 
 package org.kontalk.service.msgcenter;
 
+import static org.kontalk.service.msgcenter.CommandDispatcher.REQUIRE_CAN_CONNECT;
+import static org.kontalk.service.msgcenter.CommandDispatcher.REQUIRE_CONNECTED;
+import static org.kontalk.service.msgcenter.CommandDispatcher.REQUIRE_NONE;
+
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -71,7 +76,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteConstraintException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -122,6 +126,7 @@ import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.KeyPairGeneratorService;
 import org.kontalk.service.UploadService;
 import org.kontalk.service.XMPPConnectionHelper;
+import org.kontalk.service.msgcenter.CommandDispatcher.CommandHandler;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.MediaStorage;
@@ -132,7 +137,7 @@ import org.kontalk.util.SystemUtils;
 
 /**
  * The Message Center Service.
- * Use {@link Intent}s to deliver commands (via {@link Context#startService}).
+ * Use {@link Intent}s to deliver commands (via {@link #startCommand}).
  * Service will broadcast intents when certain events occur.
  * @author Daniele Ricci
  * @version 4.0
@@ -306,6 +311,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private static final int SLOW_PING_TIMEOUT = 10000;
     /** Fast ping tester timeout. */
     private static final int FAST_PING_TIMEOUT = 3000;
+
+    /** Time after which a message waiting for server receipt is given up. */
+    private static final long RECEIPT_TIMEOUT = 300000;
+    /** Maximum time to wait for crypto jobs when destroying the service. */
+    private static final long CRYPTO_SHUTDOWN_TIMEOUT = 5000;
     /** Minimal interval between connection tests (5 mins). */
     private static final int MIN_TEST_INTERVAL = 5*60*1000;
 
@@ -345,9 +355,24 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
+    /** Incoming messages batcher. */
+    private IncomingMessageBatcher mIncomingBatcher;
+    /** Message status updates batcher. */
+    MessageStatusBatcher mStatusBatcher;
+    /** Encryption and decryption of messages. */
+    CryptoExecutor mCryptoExecutor;
+
     /** Service handler. */
     Handler mHandler;
 
+    /** Command handlers. */
+    private CommandDispatcher<Intent> mCommands;
+
+    /** The running service instance, for in-process commands. */
+    private static volatile MessageCenterService sInstance;
+    /** True if the service was asked to stop: commands must go through the system. */
+    volatile boolean mStopPending;
+
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
     /** Inactive state flag (for CSI). */
@@ -359,8 +384,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     private boolean mFirstStart = true;
 
+    /** Stream resumption state. */
+    private final StreamSession mSession = new StreamSession();
+
     /** Messages waiting for server receipt (packetId: internalStorageId). */
-    Map<String, Long> mWaitingReceipt = new HashMap<String, Long>();
+    final ReceiptTracker mWaitingReceipt = new ReceiptTracker(RECEIPT_TIMEOUT);
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -419,7 +447,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
 
                 Log.d(TAG, "shutting down message center due to inactivity");
-                service.stopSelf();
+                service.requestStop();
 
                 return true;
             }
@@ -432,14 +460,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             else if (msg.what == MSG_TEST) {
                 long now = System.currentTimeMillis();
                 if ((now - service.getLastReceivedStanza()) >= FAST_PING_TIMEOUT) {
+                    // not reported to the ping manager: a connection test
+                    // (e.g. after a network change) says nothing about the NAT timeout
                     if (!service.fastReply()) {
                         Log.v(TAG, "test ping failed");
-                        AdaptiveServerPingManager.pingFailed(service.mConnection);
                         restart(service.getApplicationContext());
                     }
-                    else {
-                        AdaptiveServerPingManager.pingSuccess(service.mConnection);
-                    }
                 }
                 return true;
             }
@@ -559,7 +585,11 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
                 if (mHelper != null && mHelper.isStruggling()) {
                     Log.d(TAG, "connection is not going well, shutting down message center");
-                    stopSelf();
+                    requestStop();
+                }
+                // idle and charging: prepare a key pair for later
+                if (SystemUtils.isCharging(MessageCenterService.this)) {
+                    KeyPairGeneratorService.pregenerate(MessageCenterService.this);
                 }
             }
         }
@@ -575,6 +605,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create the roster store
         mRosterStore = new SQLiteRosterStore(this);
 
+        // create the incoming messages batcher
+        mIncomingBatcher = new IncomingMessageBatcher(getContentResolver(), mIncomingStoredListener);
+        // create the message status batcher
+        mStatusBatcher = new MessageStatusBatcher(getContentResolver());
+        // create the crypto executor
+        mCryptoExecutor = new CryptoExecutor();
+
         // create the global wake lock
         PowerManager pwr = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = pwr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Kontalk.TAG);
@@ -595,8 +632,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        // create command handlers
+        registerCommands();
+
         // register screen off listener for manual inactivation
         registerInactivity();
+
+        sInstance = this;
     }
 
     private void createIdleHandler() {
@@ -635,6 +677,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             catch (NotConnectedException e) {
                 // ignored
                 Log.v(TAG, "not connected. Dropping packet " + packet);
+                // not queued for resumption: it will be sent with the pending ones
+                if (mWaitingReceipt.remove(packet.getStanzaId()) > 0)
+                    mIdleHandler.release();
             }
         }
     }
@@ -647,6 +692,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Message Center starting - " + intent);
 
+        // a new start cancels any previous stop request
+        mStopPending = false;
         handleIntent(intent);
         return START_STICKY;
     }
@@ -659,6 +706,22 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
+        sInstance = null;
+        // finish queued encryption and decryption jobs before stopping the
+        // batchers, without blocking the main thread
+        final CryptoExecutor cryptoExecutor = mCryptoExecutor;
+        final IncomingMessageBatcher incomingBatcher = mIncomingBatcher;
+        final MessageStatusBatcher statusBatcher = mStatusBatcher;
+        new Thread(new Runnable() {
+            public void run() {
+                if (!cryptoExecutor.shutdown(CRYPTO_SHUTDOWN_TIMEOUT))
+                    Log.w(TAG, "crypto jobs still running, some messages might be lost");
+                // store any pending incoming message
+                incomingBatcher.quit();
+                // write any pending status update
+                statusBatcher.quit();
+            }
+        }, "MessageCenterShutdown").start();
         quit(false);
         // deactivate ping manager
         AdaptiveServerPingManager.onDestroy();
@@ -765,61 +828,112 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    /**
+     * Stops the service. Commands delivered until the service is destroyed
+     * will go through the system, so they will start it again.
+     */
+    void requestStop() {
+        mStopPending = true;
+        stopSelf();
+    }
+
     private void handleIntent(Intent intent) {
         // stop immediately
         if (isOfflineMode(this))
-            stopSelf();
+            requestStop();
 
         if (intent != null) {
-            String action = intent.getAction();
-
             // proceed to start only if network is available
             boolean canConnect = canConnect();
             boolean isConnected = isConnected();
-            boolean doConnect = false;
 
-            // TODO convert actions to classes
+            boolean doConnect = mCommands.dispatch(intent.getAction(),
+                intent, canConnect, isConnected);
 
-            if (ACTION_PACKET.equals(action)) {
-                Object data;
-                String[] group = intent.getStringArrayExtra(EXTRA_PACKET_GROUP);
-                if (group != null)
-                    data = group;
-                else
-                    data = intent.getStringExtra(EXTRA_PACKET);
+            if (canConnect && doConnect)
+                createConnection();
 
-                try {
+            // no reason to exist
+            if (!canConnect && !doConnect && !isConnected && !isConnecting())
+                requestStop();
+
+            mFirstStart = false;
+        }
+        else {
+            Log.v(TAG, "restarting after service crash");
+            start(getApplicationContext());
+        }
+    }
+
+    /** Registers a handler for every command. */
+    private void registerCommands() {
+        // no command means normal service start, connect if not connected
+        mCommands = new CommandDispatcher<Intent>(new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                return true;
+            }
+        });
+
+        mCommands.register(ACTION_PACKET, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                String[] group = intent.getStringArrayExtra(EXTRA_PACKET_GROUP);
+                if (group != null) {
                     for (String pack : group)
                         sendPacket(new RawPacket(pack));
                 }
-                catch (NullPointerException e) {
-                    sendPacket(new RawPacket((String) data));
+                else {
+                    sendPacket(new RawPacket(intent.getStringExtra(EXTRA_PACKET)));
                 }
+                return false;
             }
+        });
 
-            else if (ACTION_HOLD.equals(action)) {
+        mCommands.register(ACTION_HOLD, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 if (!mFirstStart)
                     mIdleHandler.hold();
-                doConnect = true;
+                return true;
             }
+        });
 
-            else if (ACTION_RELEASE.equals(action)) {
+        mCommands.register(ACTION_RELEASE, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 mIdleHandler.release();
+                return false;
             }
+        });
 
-            else if (ACTION_IDLE.equals(action)) {
+        mCommands.register(ACTION_IDLE, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 mIdleHandler.idle();
+                return false;
             }
+        });
 
-            else if (ACTION_PUSH_START.equals(action)) {
+        mCommands.register(ACTION_PUSH_START, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 setPushNotifications(true);
+                return false;
             }
+        });
 
-            else if (ACTION_PUSH_STOP.equals(action)) {
+        mCommands.register(ACTION_PUSH_STOP, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 setPushNotifications(false);
+                return false;
             }
+        });
 
-            else if (ACTION_PUSH_REGISTERED.equals(action)) {
+        mCommands.register(ACTION_PUSH_REGISTERED, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 String regId = intent.getStringExtra(PUSH_REGISTRATION_ID);
                 // registration cycle under way
                 if (regId == null && mPushRegistrationCycle) {
@@ -828,250 +942,291 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
                 else
                     setPushRegistrationId(regId);
+                return false;
             }
+        });
 
-            else if (ACTION_REGENERATE_KEYPAIR.equals(action)) {
-                doConnect = true;
+        mCommands.register(ACTION_REGENERATE_KEYPAIR, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 beginKeyPairRegeneration();
+                return true;
             }
+        });
 
-            else if (ACTION_IMPORT_KEYPAIR.equals(action)) {
+        mCommands.register(ACTION_IMPORT_KEYPAIR, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 // zip file with keys
                 Uri file = intent.getParcelableExtra(EXTRA_KEYPACK);
                 // passphrase to decrypt files
                 String passphrase = intent.getStringExtra(EXTRA_PASSPHRASE);
                 beginKeyPairImport(file, passphrase);
+                return false;
             }
+        });
 
-            else if (ACTION_CONNECTED.equals(action)) {
-                if (isConnected)
-                    broadcast(ACTION_CONNECTED);
+        mCommands.register(ACTION_CONNECTED, new CommandHandler<Intent>(REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                broadcast(ACTION_CONNECTED);
+                return false;
             }
+        });
 
-            // restart
-            else if (ACTION_RESTART.equals(action)) {
+        mCommands.register(ACTION_RESTART, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 quit(true);
-                doConnect = true;
+                return true;
             }
+        });
 
-            else if (ACTION_TEST.equals(action)) {
-                if (isConnected()) {
+        mCommands.register(ACTION_TEST, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                if (isConnected) {
                     if (canTest()) {
                         mLastTest = SystemClock.elapsedRealtime();
                         mIdleHandler.test();
                     }
+                    return false;
                 }
-                else {
-                    doConnect = canConnect;
-                }
+                return canConnect;
             }
+        });
 
-            else if (ACTION_PING.equals(action)) {
-                if (isConnected()) {
-                    // acquire a wake lock
-                    mPingLock.acquire();
-                    final XMPPConnection connection = mConnection;
-                    final PingManager pingManager = PingManager.getInstanceFor(connection);
-                    Async.go(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                if (pingManager.pingMyServer(true, SLOW_PING_TIMEOUT)) {
-                                    AdaptiveServerPingManager.pingSuccess(connection);
-                                }
-                                else {
-                                    AdaptiveServerPingManager.pingFailed(connection);
-                                }
-                            }
-                            catch (SmackException.NotConnectedException e) {
-                                // ignored
+        mCommands.register(ACTION_PING, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                if (!isConnected)
+                    return canConnect;
+
+                // acquire a wake lock
+                mPingLock.acquire();
+                final XMPPConnection connection = mConnection;
+                final PingManager pingManager = PingManager.getInstanceFor(connection);
+                Async.go(new Runnable() {
+                    @Override
+                    public void run() {
+                        // idle time before the ping, the reply will reset it
+                        long idleTime = System.currentTimeMillis() - connection.getLastStanzaReceived();
+                        try {
+                            if (pingManager.pingMyServer(true, SLOW_PING_TIMEOUT)) {
+                                AdaptiveServerPingManager.pingSuccess(connection, idleTime);
                             }
-                            finally {
-                                // release the wake lock
-                                if (mPingLock != null)
-                                    mPingLock.release();
+                            else {
+                                AdaptiveServerPingManager.pingFailed(connection, idleTime);
                             }
                         }
-                    }, "PingServerIfNecessary (" + mConnection.getConnectionCounter() + ')');
-                }
-                else {
-                    doConnect = canConnect;
-                }
+                        catch (SmackException.NotConnectedException e) {
+                            // ignored
+                        }
+                        finally {
+                            // release the wake lock
+                            if (mPingLock != null)
+                                mPingLock.release();
+                        }
+                    }
+                }, "PingServerIfNecessary (" + mConnection.getConnectionCounter() + ')');
+                return false;
             }
+        });
 
-            else if (ACTION_MESSAGE.equals(action)) {
-                if (canConnect && isConnected)
-                    sendMessage(intent.getExtras());
+        mCommands.register(ACTION_MESSAGE, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                sendMessage(intent.getExtras());
+                return false;
             }
+        });
 
-            else if (ACTION_ROSTER.equals(action) || ACTION_ROSTER_MATCH.equals(action)) {
-                if (canConnect && isConnected) {
-                    Stanza iq;
+        mCommands.register(ACTION_ROSTER, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                Stanza iq = new RosterPacket();
+                iq.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                // iq default type is get
 
-                    if (ACTION_ROSTER_MATCH.equals(action)) {
-                        iq = new RosterMatch();
-                        String[] list = intent.getStringArrayExtra(EXTRA_JIDLIST);
+                sendPacket(iq);
+                return false;
+            }
+        });
 
-                        for (String item : list) {
-                            ((RosterMatch) iq).addItem(item);
-                        }
+        mCommands.register(ACTION_ROSTER_MATCH, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                RosterMatch iq = new RosterMatch();
+                String[] list = intent.getStringArrayExtra(EXTRA_JIDLIST);
 
-                        // directed to the probe component
-                        iq.setTo(XmppStringUtils.completeJidFrom("probe", mServer.getNetwork()));
-                    }
-                    else {
-                        iq = new RosterPacket();
-                    }
+                for (String item : list) {
+                    iq.addItem(item);
+                }
 
-                    String id = intent.getStringExtra(EXTRA_PACKET_ID);
-                    iq.setStanzaId(id);
-                    // iq default type is get
+                // directed to the probe component
+                iq.setTo(XmppStringUtils.completeJidFrom("probe", mServer.getNetwork()));
+                iq.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                // iq default type is get
 
-                    sendPacket(iq);
-                }
+                sendPacket(iq);
+                return false;
             }
+        });
 
-            else if (ACTION_ROSTER_LOADED.equals(action)) {
-                if (isConnected) {
-                    if (isRosterLoaded()) {
-                        broadcast(ACTION_ROSTER_LOADED);
-                    }
+        mCommands.register(ACTION_ROSTER_LOADED, new CommandHandler<Intent>(REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                if (isRosterLoaded()) {
+                    broadcast(ACTION_ROSTER_LOADED);
                 }
+                return false;
             }
+        });
 
-            else if (ACTION_PRESENCE.equals(action)) {
-                if (canConnect && isConnected) {
-                    final String id = intent.getStringExtra(EXTRA_PACKET_ID);
-                    String type = intent.getStringExtra(EXTRA_TYPE);
-                    String to = intent.getStringExtra(EXTRA_TO);
-
-                    if ("probe".equals(type)) {
-                        // probing is actually looking into the roster
-                        Roster roster = getRoster();
-
-                        if (to == null) {
-                            for (RosterEntry entry : roster.getEntries()) {
-                                broadcastPresence(roster, entry, id);
-                            }
-
-                            // broadcast our own presence
-                            broadcastMyPresence(id);
-                        }
-                        else {
-                            broadcastPresence(roster, to, id);
+        mCommands.register(ACTION_PRESENCE, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                final String id = intent.getStringExtra(EXTRA_PACKET_ID);
+                String type = intent.getStringExtra(EXTRA_TYPE);
+                String to = intent.getStringExtra(EXTRA_TO);
+
+                if ("probe".equals(type)) {
+                    // probing is actually looking into the roster
+                    Roster roster = getRoster();
+
+                    if (to == null) {
+                        for (RosterEntry entry : roster.getEntries()) {
+                            broadcastPresence(roster, entry, id);
                         }
+
+                        // broadcast our own presence
+                        broadcastMyPresence(id);
                     }
                     else {
-                        String show = intent.getStringExtra(EXTRA_SHOW);
-                        Presence p = new Presence(type != null ? Presence.Type.valueOf(type) : Presence.Type.available);
-                        p.setStanzaId(id);
-                        p.setTo(to);
-                        if (intent.hasExtra(EXTRA_PRIORITY))
-                            p.setPriority(intent.getIntExtra(EXTRA_PRIORITY, 0));
-                        p.setStatus(intent.getStringExtra(EXTRA_STATUS));
-                        if (show != null)
-                            p.setMode(Presence.Mode.valueOf(show));
-
-                        sendPacket(p);
+                        broadcastPresence(roster, to, id);
                     }
+                }
+                else {
+                    String show = intent.getStringExtra(EXTRA_SHOW);
+                    Presence p = new Presence(type != null ? Presence.Type.valueOf(type) : Presence.Type.available);
+                    p.setStanzaId(id);
+                    p.setTo(to);
+                    if (intent.hasExtra(EXTRA_PRIORITY))
+                        p.setPriority(intent.getIntExtra(EXTRA_PRIORITY, 0));
+                    p.setStatus(intent.getStringExtra(EXTRA_STATUS));
+                    if (show != null)
+                        p.setMode(Presence.Mode.valueOf(show));
 
+                    sendPacket(p);
                 }
+                return false;
             }
+        });
 
-            else if (ACTION_LAST_ACTIVITY.equals(action)) {
-                if (canConnect && isConnected) {
-                    LastActivity p = new LastActivity();
+        mCommands.register(ACTION_LAST_ACTIVITY, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                LastActivity p = new LastActivity();
 
-                    p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                    p.setTo(intent.getStringExtra(EXTRA_TO));
+                p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                p.setTo(intent.getStringExtra(EXTRA_TO));
 
-                    sendPacket(p);
-                }
+                sendPacket(p);
+                return false;
             }
+        });
 
-            else if (ACTION_VCARD.equals(action)) {
-                if (canConnect && isConnected) {
-                    VCard4 p = new VCard4();
-                    p.setTo(intent.getStringExtra(EXTRA_TO));
+        mCommands.register(ACTION_VCARD, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                VCard4 p = new VCard4();
+                p.setTo(intent.getStringExtra(EXTRA_TO));
 
-                    sendPacket(p);
-                }
+                sendPacket(p);
+                return false;
             }
+        });
 
-            else if (ACTION_PUBLICKEY.equals(action)) {
-                if (canConnect && isConnected) {
-                    String to = intent.getStringExtra(EXTRA_TO);
-                    if (to != null) {
-                        // request public key for a specific user
-                        PublicKeyPublish p = new PublicKeyPublish();
-                        p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                        p.setTo(to);
-
-                        sendPacket(p);
-                    }
-                    else {
-                        // request public keys for the whole roster
-                        Collection<RosterEntry> buddies = getRoster().getEntries();
-                        for (RosterEntry buddy : buddies) {
-                            if (isRosterEntrySubscribed(buddy)) {
-                                PublicKeyPublish p = new PublicKeyPublish();
-                                p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                                p.setTo(buddy.getUser());
-
-                                sendPacket(p);
-                            }
-                        }
+        mCommands.register(ACTION_PUBLICKEY, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                String to = intent.getStringExtra(EXTRA_TO);
+                if (to != null) {
+                    // request public key for a specific user
+                    PublicKeyPublish p = new PublicKeyPublish();
+                    p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                    p.setTo(to);
 
-                        // request our own public key (odd eh?)
-                        PublicKeyPublish p = new PublicKeyPublish();
-                        p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                        p.setTo(XmppStringUtils.parseBareJid(mConnection.getUser()));
-                        sendPacket(p);
-                    }
+                    sendPacket(p);
                 }
-            }
-
-            else if (ACTION_SERVERLIST.equals(action)) {
-                if (canConnect && isConnected) {
-                    ServerlistCommand p = new ServerlistCommand();
-                    p.setTo(XmppStringUtils.completeJidFrom("network", mServer.getNetwork()));
-
-                    StanzaFilter filter = new StanzaIdFilter(p.getStanzaId());
-                    // TODO cache the listener (it shouldn't change)
-                    mConnection.addAsyncStanzaListener(new StanzaListener() {
-                        public void processPacket(Stanza packet) throws NotConnectedException {
-                            Intent i = new Intent(ACTION_SERVERLIST);
-                            List<String> _items = ((ServerlistCommand.ServerlistCommandData) packet)
-                                .getItems();
-                            if (_items != null && _items.size() != 0 && packet.getError() == null) {
-                                String[] items = new String[_items.size()];
-                                _items.toArray(items);
-
-                                i.putExtra(EXTRA_FROM, packet.getFrom());
-                                i.putExtra(EXTRA_JIDLIST, items);
-                            }
-                            mLocalBroadcastManager.sendBroadcast(i);
+                else {
+                    // request public keys for the whole roster
+                    Collection<RosterEntry> buddies = getRoster().getEntries();
+                    for (RosterEntry buddy : buddies) {
+                        if (isRosterEntrySubscribed(buddy)) {
+                            PublicKeyPublish p = new PublicKeyPublish();
+                            p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                            p.setTo(buddy.getUser());
+
+                            sendPacket(p);
                         }
-                    }, filter);
+                    }
 
+                    // request our own public key (odd eh?)
+                    PublicKeyPublish p = new PublicKeyPublish();
+                    p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
+                    p.setTo(XmppStringUtils.parseBareJid(mConnection.getUser()));
                     sendPacket(p);
                 }
+                return false;
             }
+        });
 
-            else if (ACTION_SUBSCRIBED.equals(action)) {
-                if (canConnect && isConnected) {
+        mCommands.register(ACTION_SERVERLIST, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                ServerlistCommand p = new ServerlistCommand();
+                p.setTo(XmppStringUtils.completeJidFrom("network", mServer.getNetwork()));
+
+                StanzaFilter filter = new StanzaIdFilter(p.getStanzaId());
+                // TODO cache the listener (it shouldn't change)
+                mConnection.addAsyncStanzaListener(new StanzaListener() {
+                    public void processPacket(Stanza packet) throws NotConnectedException {
+                        Intent i = new Intent(ACTION_SERVERLIST);
+                        List<String> _items = ((ServerlistCommand.ServerlistCommandData) packet)
+                            .getItems();
+                        if (_items != null && _items.size() != 0 && packet.getError() == null) {
+                            String[] items = new String[_items.size()];
+                            _items.toArray(items);
+
+                            i.putExtra(EXTRA_FROM, packet.getFrom());
+                            i.putExtra(EXTRA_JIDLIST, items);
+                        }
+                        mLocalBroadcastManager.sendBroadcast(i);
+                    }
+                }, filter);
 
-                    sendSubscriptionReply(intent.getStringExtra(EXTRA_TO),
-                        intent.getStringExtra(EXTRA_PACKET_ID),
-                        intent.getIntExtra(EXTRA_PRIVACY, PRIVACY_ACCEPT));
-                }
+                sendPacket(p);
+                return false;
             }
+        });
 
-            else if (ACTION_RETRY.equals(action)) {
+        mCommands.register(ACTION_SUBSCRIBED, new CommandHandler<Intent>(REQUIRE_CAN_CONNECT | REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                sendSubscriptionReply(intent.getStringExtra(EXTRA_TO),
+                    intent.getStringExtra(EXTRA_PACKET_ID),
+                    intent.getIntExtra(EXTRA_PRIVACY, PRIVACY_ACCEPT));
+                return false;
+            }
+        });
 
+        mCommands.register(ACTION_RETRY, new CommandHandler<Intent>(REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
                 Uri msgUri = intent.getParcelableExtra(EXTRA_MESSAGE);
 
-                boolean encrypted = Preferences.getEncryptionEnabled(this);
+                boolean encrypted = Preferences.getEncryptionEnabled(MessageCenterService.this);
 
                 ContentValues values = new ContentValues(2);
                 values.put(Messages.STATUS, Messages.STATUS_SENDING);
@@ -1083,31 +1238,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 // already connected: resend pending messages
                 if (isConnected)
                     resendPendingMessages(false);
+                return false;
             }
+        });
 
-            else if (ACTION_BLOCKLIST.equals(action)) {
-                if (isConnected)
-                    requestBlocklist();
-            }
-
-            else {
-                // no command means normal service start, connect if not connected
-                doConnect = true;
+        mCommands.register(ACTION_BLOCKLIST, new CommandHandler<Intent>(REQUIRE_CONNECTED) {
+            @Override
+            protected boolean handle(Intent intent, boolean canConnect, boolean isConnected) {
+                requestBlocklist();
+                return false;
             }
-
-            if (canConnect && doConnect)
-                createConnection();
-
-            // no reason to exist
-            if (!canConnect && !doConnect && !isConnected && !isConnecting())
-                stopSelf();
-
-            mFirstStart = false;
-        }
-        else {
-            Log.v(TAG, "restarting after service crash");
-            start(getApplicationContext());
-        }
+        });
     }
 
     /** Creates a connection to server if needed. */
@@ -1147,8 +1288,33 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void connectionClosedOnError(Exception error) {
         Log.w(TAG, "connection closed with error", error);
-        quit(true);
-        createConnection();
+        if (!resumeConnection()) {
+            quit(true);
+            createConnection();
+        }
+    }
+
+    /**
+     * Reconnects using the current connection if its stream can be resumed.
+     * Stream management state (and so unacknowledged stanzas) is kept in the
+     * connection object.
+     * @return true if a resumption attempt has been started
+     */
+    private synchronized boolean resumeConnection() {
+        KontalkConnection conn = mConnection;
+        if (conn == null || mHelper != null || !conn.isSmResumptionPossible())
+            return false;
+
+        Log.d(TAG, "trying to resume stream");
+
+        // acquire the wakelock
+        mWakeLock.acquire();
+        mSession.resuming();
+
+        mHelper = new XMPPConnectionHelper(this, mServer, conn);
+        mHelper.setListener(this);
+        mHelper.start();
+        return true;
     }
 
     @Override
@@ -1175,12 +1341,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void aborted(Exception e) {
         // unrecoverable error - exit
-        stopSelf();
+        requestStop();
     }
 
     @Override
     public synchronized void created(final XMPPConnection connection) {
         Log.v(TAG, "connection created.");
+        if (mSession.connectionCreated()) {
+            // stream could not be resumed: start over with a new connection
+            if (mConnection != null)
+                mConnection.removeConnectionListener(this);
+            resetSessionState();
+        }
         mConnection = (KontalkConnection) connection;
 
         // setup version manager
@@ -1243,23 +1415,42 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
-        Log.v(TAG, "authenticated!");
+        Log.v(TAG, "authenticated! (resumed=" + resumed + ")");
+
+        int session = mSession.authenticated(resumed);
 
-        // add message ack listener
-        if (mConnection.isSmEnabled()) {
-            mConnection.addStanzaAcknowledgedListener(new MessageAckListener(this));
+        if (session == StreamSession.RESUMED) {
+            // stream resumed: session state is still valid on the server
+            // and unacknowledged stanzas have been sent again by Smack
+            Log.d(TAG, "stream resumed");
+            // send messages queued while disconnected (messages waiting for receipt will be skipped)
+            resendPendingMessages(false);
+            resendPendingReceipts();
         }
         else {
-            Log.w(TAG, "stream management not available - disabling delivery receipts");
-        }
+            if (session == StreamSession.RESUME_FAILED) {
+                // Smack sent the unacknowledged stanzas again: they are still
+                // waiting for receipt, so the pending messages resend will skip them
+                Log.d(TAG, "stream resumption failed");
+            }
+            else {
+                // add message ack listener (once per connection)
+                if (mConnection.isSmEnabled()) {
+                    mConnection.addStanzaAcknowledgedListener(new MessageAckListener(this));
+                }
+                else {
+                    Log.w(TAG, "stream management not available - disabling delivery receipts");
+                }
+            }
 
-        // send presence
-        sendPresence();
-        // discovery
-        discovery();
-        // pending messages and receipts will be sent when roster will be loaded
-        // send pending subscription replies
-        sendPendingSubscriptionReplies();
+            // send presence
+            sendPresence();
+            // discovery
+            discovery();
+            // pending messages and receipts will be sent when roster will be loaded
+            // send pending subscription replies
+            sendPendingSubscriptionReplies();
+        }
 
         // helper is not needed any more
         mHelper = null;
@@ -1279,6 +1470,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         mWakeLock.release();
     }
 
+    /** Forgets about stanzas sent in a session that could not be resumed. */
+    private void resetSessionState() {
+        mWaitingReceipt.clear();
+        mIdleHandler.reset(((Kontalk) getApplicationContext()).getReferenceCounter());
+    }
+
     private void broadcast(String action) {
         broadcast(action, null, null);
     }
@@ -1770,7 +1967,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         // check if message is already pending
         long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
+        if (mWaitingReceipt.containsDatabaseId(msgId)) {
             Log.v(TAG, "message already queued and waiting - dropping");
             return;
         }
@@ -1815,6 +2012,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         else {
             // hold on to message center while we send the message
             mIdleHandler.hold();
+            expireWaitingReceipts();
 
             // message stanza
             org.jivesoftware.smack.packet.Message m = new org.jivesoftware.smack.packet.Message();
@@ -1830,6 +2028,57 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             if (body != null)
                 m.setBody(body);
 
+            ChatState chatState;
+            try {
+                chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
+            }
+            catch (Exception e) {
+                chatState = null;
+            }
+
+            // preview generation and encryption will be done off-thread
+            mCryptoExecutor.execute(to, new OutgoingMessageJob(m, data,
+                msgId, encrypt, mime, chatState, key, mServer));
+        }
+    }
+
+    /**
+     * Generates the preview and encrypts an outgoing message, then sends it.
+     * Messages to the same peer are sent in the same order they were queued.
+     */
+    private final class OutgoingMessageJob extends CryptoExecutor.Job {
+        private org.jivesoftware.smack.packet.Message mMessage;
+        private final Bundle mData;
+        private final long mMsgId;
+        private final boolean mEncrypt;
+        private final String mMime;
+        private final ChatState mChatState;
+        private final PersonalKey mKey;
+        private final EndpointServer mEndpoint;
+
+        /** True if the message can be sent. */
+        private boolean mReady;
+
+        OutgoingMessageJob(org.jivesoftware.smack.packet.Message m, Bundle data,
+                long msgId, boolean encrypt, String mime, ChatState chatState,
+                PersonalKey key, EndpointServer endpoint) {
+            mMessage = m;
+            mData = data;
+            mMsgId = msgId;
+            mEncrypt = encrypt;
+            mMime = mime;
+            mChatState = chatState;
+            mKey = key;
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        protected void process() {
+            org.jivesoftware.smack.packet.Message m = mMessage;
+            Bundle data = mData;
+            String to = m.getTo();
+            String body = m.getBody();
+
             String fetchUrl = data.getString("org.kontalk.message.fetch.url");
 
             // generate preview if needed
@@ -1840,7 +2089,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 if (!previewPath.isFile()) {
                     Uri previewUri = Uri.parse(_previewUri);
                     try {
-                        MediaStorage.cacheThumbnail(this, previewUri, previewPath, true);
+                        MediaStorage.cacheThumbnail(MessageCenterService.this, previewUri, previewPath, true);
                     }
                     catch (IOException e) {
                         Log.w(TAG, "unable to generate preview for media", e);
@@ -1850,25 +2099,18 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 m.addExtension(new BitsOfBinary(MediaStorage.THUMBNAIL_MIME_NETWORK, previewPath));
             }
 
-            ChatState chatState;
-            try {
-                chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
-            }
-            catch (Exception e) {
-                chatState = null;
-            }
-
             // add download url if present
             if (fetchUrl != null) {
                 // in this case we will need the length too
                 long length = data.getLong("org.kontalk.message.length");
-                m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
+                m.addExtension(new OutOfBandData(fetchUrl, mMime, length, mEncrypt));
             }
 
-            if (encrypt) {
+            if (mEncrypt) {
                 byte[] toMessage = null;
                 try {
-                    Coder coder = UsersProvider.getEncryptCoder(this, mServer, key, new String[] { to });
+                    Coder coder = UsersProvider.getEncryptCoder(MessageCenterService.this,
+                        mEndpoint, mKey, new String[] { to });
                     if (coder != null) {
 
                         // no extensions, create a simple text version to save space
@@ -1889,7 +2131,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         encMsg.setStanzaId(m.getStanzaId());
                         encMsg.addExtension(new E2EEncryption(toMessage));
 
-                        m = encMsg;
+                        mMessage = encMsg;
                     }
                 }
 
@@ -1898,18 +2140,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
                 catch (IllegalArgumentException noPublicKey) {
                     // warn user: message will be not sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_no_public_key,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnPaused(to, R.string.warn_no_public_key);
                 }
 
                 catch (GeneralSecurityException e) {
                     // warn user: message will not be sent
-                    if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
-                        Toast.makeText(this, R.string.warn_encryption_failed,
-                            Toast.LENGTH_LONG).show();
-                    }
+                    warnPaused(to, R.string.warn_encryption_failed);
                 }
 
                 if (toMessage == null) {
@@ -1917,19 +2153,46 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     ContentValues values = new ContentValues(1);
                     values.put(Messages.STATUS, Messages.STATUS_PENDING);
                     getContentResolver().update(ContentUris.withAppendedId
-                            (Messages.CONTENT_URI, msgId), values, null, null);
-
-                    // do not send the message
-                    if (msgId > 0)
-                        mWaitingReceipt.remove(id);
-                    mIdleHandler.release();
+                            (Messages.CONTENT_URI, mMsgId), values, null, null);
                     return;
                 }
             }
 
+            mReady = true;
+        }
+
+        @Override
+        protected void complete() {
+            // idle handler and connection are used by the main thread
+            mHandler.post(new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+        }
+
+        private void send() {
+            // service destroyed: the message is still waiting in the database
+            // (outgoing messages as sending, receipts as incoming), so it will
+            // be sent again by resendPendingMessages/resendPendingReceipts
+            if (mIdleHandler == null) {
+                Log.v(TAG, "message center destroyed, message " + mMsgId + " left pending");
+                return;
+            }
+
+            org.jivesoftware.smack.packet.Message m = mMessage;
+
+            if (!mReady) {
+                // do not send the message
+                if (mMsgId > 0)
+                    mWaitingReceipt.remove(m.getStanzaId());
+                mIdleHandler.release();
+                return;
+            }
+
             // message server id
-            String serverId = data.getString("org.kontalk.message.ack");
-            boolean ackRequest = !data.getBoolean("org.kontalk.message.standalone", false);
+            String serverId = mData.getString("org.kontalk.message.ack");
+            boolean ackRequest = !mData.getBoolean("org.kontalk.message.standalone", false);
 
             // received receipt
             if (serverId != null) {
@@ -1937,8 +2200,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
             else {
                 // add chat state if message is not a received receipt
-                if (chatState != null)
-                    m.addExtension(new ChatStateExtension(chatState));
+                if (mChatState != null)
+                    m.addExtension(new ChatStateExtension(mChatState));
 
                 // standalone message: no receipt
                 if (ackRequest)
@@ -1953,8 +2216,25 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
-    /** Process an incoming message. */
-    Uri incoming(CompositeMessage msg) {
+    /** Shows a warning if the user is looking at the conversation with a peer. */
+    private void warnPaused(final String to, final int textId) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (to.equalsIgnoreCase(MessagingNotification.getPaused())) {
+                    Toast.makeText(MessageCenterService.this, textId,
+                        Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * Process an incoming message. The message will be stored with the next
+     * batch of incoming messages.
+     * @param receiptTo send a delivery receipt to this address after the
+     *                  message has been stored (null for no receipt)
+     */
+    void incoming(CompositeMessage msg, String receiptTo) {
         final String sender = msg.getSender(true);
 
         // save to local storage
@@ -1970,29 +2250,89 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
         values.put(Messages.TIMESTAMP, System.currentTimeMillis());
 
-        Uri msgUri = null;
-        try {
-            msgUri = getContentResolver().insert(Messages.CONTENT_URI, values);
-        }
-        catch (SQLiteConstraintException econstr) {
-            // duplicated message, skip it
-        }
+        mIncomingBatcher.add(new IncomingMessageBatcher
+            .IncomingMessage(values, msg.getId(), sender, receiptTo));
+    }
 
-        // mark sender as registered in the users database
-        final Context context = getApplicationContext();
-        new Thread(new Runnable() {
-            public void run() {
-            UsersProvider.markRegistered(context, sender);
+    /** Called by the batcher after a batch of incoming messages has been stored. */
+    private final IncomingMessageBatcher.OnMessagesStoredListener mIncomingStoredListener =
+            new IncomingMessageBatcher.OnMessagesStoredListener() {
+        public void onMessagesStored(List<IncomingMessageBatcher.IncomingMessage> messages) {
+            final Set<String> senders = new HashSet<String>();
+            List<ContentValues> stored = new ArrayList<ContentValues>(messages.size());
+            boolean notify = false;
+            String paused = MessagingNotification.getPaused();
+
+            for (IncomingMessageBatcher.IncomingMessage msg : messages) {
+                if (msg.receiptTo != null)
+                    sendReceipt(msg.uri, msg.msgId, msg.receiptTo);
+
+                senders.add(msg.sender);
+
+                // fire notification only if message was actually inserted to database
+                if (msg.uri != null) {
+                    stored.add(msg.values);
+                    if (!msg.sender.equalsIgnoreCase(paused))
+                        notify = true;
+                }
             }
-        }).start();
 
-        // fire notification only if message was actually inserted to database
-        if (msgUri != null && !sender.equalsIgnoreCase(MessagingNotification.getPaused())) {
-            // update notifications (delayed)
-            MessagingNotification.delayedUpdateMessagesNotification(getApplicationContext(), true);
+            // mark senders as registered in the users database
+            final Context context = getApplicationContext();
+            new Thread(new Runnable() {
+                public void run() {
+                    for (String sender : senders)
+                        UsersProvider.markRegistered(context, sender);
+                }
+            }).start();
+
+            if (stored.size() > 0) {
+                // update notifications (delayed)
+                MessagingNotification.messagesReceived(context, stored, notify);
+            }
+        }
+    };
+
+    /**
+     * Sends a delivery receipt for a message.
+     * @param msgUri the stored message, if the receipt must be confirmed by the server
+     */
+    void sendReceipt(Uri msgUri, String msgId, String from) {
+        IdleConnectionHandler idleHandler = mIdleHandler;
+        // message center is shutting down, the message will be delivered again
+        if (idleHandler == null)
+            return;
+
+        DeliveryReceipt receipt = new DeliveryReceipt(msgId);
+        org.jivesoftware.smack.packet.Message ack =
+            new org.jivesoftware.smack.packet.Message(from,
+                org.jivesoftware.smack.packet.Message.Type.chat);
+        ack.addExtension(receipt);
+
+        if (msgUri != null) {
+            // hold on to message center
+            idleHandler.hold();
+            expireWaitingReceipts();
+            // will mark this message as confirmed
+            long storageId = ContentUris.parseId(msgUri);
+            mWaitingReceipt.put(ack.getStanzaId(), storageId);
         }
+        sendPacket(ack);
+    }
 
-        return msgUri;
+    /**
+     * Stops waiting for stale server receipts, so they don't hold the message
+     * center forever. Messages are still tracked until the session is reset,
+     * so they won't be sent again while the server might still ack them.
+     */
+    private void expireWaitingReceipts() {
+        int expired = mWaitingReceipt.expire();
+        if (expired > 0) {
+            Log.w(TAG, "no server receipt for " + expired + " messages");
+            // release the holds of the discarded messages
+            for (int i = 0; i < expired; i++)
+                mIdleHandler.release();
+        }
     }
 
     /** Returns the first available upload service post URL. */
@@ -2103,6 +2443,30 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return new Intent(context, MessageCenterService.class);
     }
 
+    /**
+     * Delivers a command to the message center. If the service is already
+     * running in this process, the intent is handed to it directly instead
+     * of going through the system (and the intent marshaling that implies).
+     * All commands should be delivered through here to keep them in order.
+     */
+    public static void startCommand(final Context context, final Intent intent) {
+        final MessageCenterService service = sInstance;
+        if (service != null && !service.mStopPending) {
+            service.mHandler.post(new Runnable() {
+                public void run() {
+                    // service might have been destroyed or stopped in the meantime
+                    if (sInstance == service && !service.mStopPending)
+                        service.handleIntent(intent);
+                    else
+                        context.startService(intent);
+                }
+            });
+        }
+        else {
+            context.startService(intent);
+        }
+    }
+
     public static void start(Context context) {
         // check for offline mode
         if (isOfflineMode(context)) {
@@ -2115,7 +2479,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.d(TAG, "starting message center");
             final Intent intent = getStartIntent(context);
 
-            context.startService(intent);
+            startCommand(context, intent);
         }
         else
             Log.d(TAG, "network not available or background data disabled - abort service start");
@@ -2123,6 +2487,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     public static void stop(Context context) {
         Log.d(TAG, "shutting down message center");
+        MessageCenterService service = sInstance;
+        if (service != null)
+            service.mStopPending = true;
         context.stopService(new Intent(context, MessageCenterService.class));
     }
 
@@ -2130,21 +2497,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Log.d(TAG, "restarting message center");
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_RESTART);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void test(Context context) {
         Log.d(TAG, "testing message center connection");
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_TEST);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void ping(Context context) {
         Log.d(TAG, "ping message center connection");
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_PING);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /**
@@ -2157,7 +2524,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_HOLD);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /**
@@ -2170,7 +2537,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_RELEASE);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Broadcasts our presence to the server. */
@@ -2179,7 +2546,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_PRESENCE);
         i.putExtra(EXTRA_STATUS, Preferences.getStatusMessage(context));
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Sends a chat state message. */
@@ -2189,7 +2556,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.putExtra("org.kontalk.message.to", to);
         i.putExtra("org.kontalk.message.chatState", state.name());
         i.putExtra("org.kontalk.message.standalone", true);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Sends a text message. */
@@ -2203,7 +2570,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.putExtra("org.kontalk.message.body", text);
         i.putExtra("org.kontalk.message.encrypt", encrypt);
         i.putExtra("org.kontalk.message.chatState", ChatState.active.name());
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Sends a binary message. */
@@ -2224,7 +2591,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.putExtra("org.kontalk.message.compress", compress);
         i.putExtra("org.kontalk.message.encrypt", encrypt);
         i.putExtra("org.kontalk.message.chatState", ChatState.active.name());
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void sendUploadedMedia(final Context context, String to,
@@ -2242,7 +2609,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.putExtra("org.kontalk.message.fetch.url", fetchUrl);
         i.putExtra("org.kontalk.message.encrypt", encrypt);
         i.putExtra("org.kontalk.message.chatState", ChatState.active.name());
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static String messageId() {
@@ -2255,13 +2622,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.setAction(MessageCenterService.ACTION_SUBSCRIBED);
         i.putExtra(EXTRA_TO, to);
         i.putExtra(EXTRA_PRIVACY, action);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void regenerateKeyPair(final Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_REGENERATE_KEYPAIR);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void importKeyPair(final Context context, Uri keypack, String passphrase) {
@@ -2269,53 +2636,53 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         i.setAction(MessageCenterService.ACTION_IMPORT_KEYPAIR);
         i.putExtra(EXTRA_KEYPACK, keypack);
         i.putExtra(EXTRA_PASSPHRASE, passphrase);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void requestConnectionStatus(final Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_CONNECTED);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void requestRosterStatus(final Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_ROSTER_LOADED);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void requestVCard(final Context context, String to) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_VCARD);
         i.putExtra(EXTRA_TO, to);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void requestPublicKey(final Context context, String to) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PUBLICKEY);
         i.putExtra(EXTRA_TO, to);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public static void requestServerList(final Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_SERVERLIST);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Starts the push notifications registration process. */
     public static void enablePushNotifications(Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_PUSH_START);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Starts the push notifications unregistration process. */
     public static void disablePushNotifications(Context context) {
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_PUSH_STOP);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     /** Caches the given registration Id for use with push notifications. */
@@ -2323,7 +2690,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         Intent i = new Intent(context, MessageCenterService.class);
         i.setAction(ACTION_PUSH_REGISTERED);
         i.putExtra(PUSH_REGISTRATION_ID, registrationId);
-        context.startService(i);
+        startCommand(context, i);
     }
 
     public void setPushNotifications(boolean enabled) {
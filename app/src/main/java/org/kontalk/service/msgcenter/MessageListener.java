@@ -25,7 +25,6 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TO;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.Map;
 
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Stanza;
@@ -34,6 +33,7 @@ import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
 import org.jivesoftware.smackx.delay.packet.DelayInformation;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
+import org.jxmpp.util.XmppStringUtils;
 
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.E2EEncryption;
@@ -73,7 +73,7 @@ class MessageListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) {
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
+        ReceiptTracker waitingReceipt = getWaitingReceiptList();
 
         org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
 
@@ -120,173 +120,21 @@ class MessageListener extends MessageCenterPacketListener {
 
             // delivery receipt
             if (deliveryReceipt != null) {
-                synchronized (waitingReceipt) {
-                    String id = m.getStanzaId();
-                    Long _msgId = waitingReceipt.get(id);
-                    long msgId = (_msgId != null) ? _msgId : 0;
-                    ContentResolver cr = getContext().getContentResolver();
-
-                    // message has been delivered: check if we have previously stored the server id
-                    if (msgId > 0) {
-                        ContentValues values = new ContentValues(3);
-                        values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                            values, selectionOutgoing, null);
-
-                        waitingReceipt.remove(id);
-                    }
-                    else {
-                        // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                        Uri msg = Messages.getUri(deliveryReceipt.getId());
-                        ContentValues values = new ContentValues(2);
-                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                        cr.update(msg, values, selectionOutgoing, null);
-                    }
-                }
+                String id = m.getStanzaId();
+                long msgId = waitingReceipt.remove(id);
+
+                // message has been delivered: use the database id if we know it
+                // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                getStatusBatcher().received(msgId, deliveryReceipt.getId(), serverTimestamp);
             }
 
             // incoming message
             else {
-                String msgId = m.getStanzaId();
-                if (msgId == null)
-                    msgId = MessageUtils.messageId();
-
-                String body = m.getBody();
-
-                // create message
-                CompositeMessage msg = new CompositeMessage(
-                        getContext(),
-                        msgId,
-                        serverTimestamp,
-                        from,
-                        false,
-                        Coder.SECURITY_CLEARTEXT
-                    );
-
-                ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
-
-                if (_encrypted != null && _encrypted instanceof E2EEncryption) {
-                    E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                    byte[] encryptedData = mEnc.getData();
-
-                    // encrypted message
-                    msg.setEncrypted(true);
-                    msg.setSecurityFlags(Coder.SECURITY_BASIC);
-
-                    if (encryptedData != null) {
-
-                        // decrypt message
-                        try {
-                            MessageUtils.decryptMessage(getContext(),
-                                    getServer(), msg, encryptedData);
-                        }
-
-                        catch (Exception exc) {
-                            Log.e(MessageCenterService.TAG, "decryption failed", exc);
-
-                            // raw component for encrypted data
-                            // reuse security flags
-                            msg.clearComponents();
-                            msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
-                        }
-
-                    }
-                }
-
-                else {
-
-                    // use message body
-                    if (body != null)
-                        msg.addComponent(new TextComponent(body));
-
-                }
-
-                // TODO duplicated code (MessageUtils#decryptMessage)
-
-                // out of band data
-                ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-                if (_media != null && _media instanceof OutOfBandData) {
-                    File previewFile = null;
-
-                    OutOfBandData media = (OutOfBandData) _media;
-                    String mime = media.getMime();
-                    String fetchUrl = media.getUrl();
-                    long length = media.getLength();
-                    boolean encrypted = media.isEncrypted();
-
-                    // bits-of-binary for preview
-                    ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                    if (_preview != null && _preview instanceof BitsOfBinary) {
-                        BitsOfBinary preview = (BitsOfBinary) _preview;
-                        String previewMime = preview.getType();
-                        if (previewMime == null)
-                            previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                        String filename = null;
-
-                        if (ImageComponent.supportsMimeType(mime)) {
-                            filename = ImageComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        else if (VCardComponent.supportsMimeType(mime)) {
-                            filename = VCardComponent.buildMediaFilename(msgId, previewMime);
-                        }
-
-                        try {
-                            if (filename != null) previewFile =
-                                MediaStorage.writeInternalMedia(getContext(),
-                                    filename, preview.getContents());
-                        }
-                        catch (IOException e) {
-                            Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                        }
-                    }
-
-                    MessageComponent<?> attachment = null;
-
-                    if (ImageComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (VCardComponent.supportsMimeType(mime)) {
-                        // cleartext only for now
-                        attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    else if (AudioComponent.supportsMimeType(mime)) {
-                        attachment = new AudioComponent(mime, null, fetchUrl, length,
-                            encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                    }
-
-                    // TODO other types
-
-                    if (attachment != null)
-                        msg.addComponent(attachment);
-
-                    // add a dummy body if none was found
-                    /*
-                    if (body == null) {
-                        msg.addComponent(new TextComponent(CompositeMessage
-                            .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                                attachment.getClass(), mime)));
-                    }
-                    */
-
-                }
-
-                Uri msgUri = incoming(msg);
-
-                if (m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE)) {
-                    // send ack :)
-                    sendReceipt(msgUri, msgId, from, waitingReceipt);
-                }
-
+                // decryption will be done off-thread
+                CryptoExecutor executor = getCryptoExecutor();
+                if (executor != null)
+                    executor.execute(XmppStringUtils.parseBareJid(from),
+                        new IncomingMessageJob(m, serverTimestamp));
             }
         }
 
@@ -305,55 +153,199 @@ class MessageListener extends MessageCenterPacketListener {
                     .update(msg, values, selectionIngoing, null);
 
                 // send receipt again
-                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
+                sendReceipt(null, deliveryReceipt.getId(), m.getFrom());
             }
 
-            synchronized (waitingReceipt) {
-                String id = m.getStanzaId();
-                Long _msgId = waitingReceipt.get(id);
-                long msgId = (_msgId != null) ? _msgId : 0;
-                ContentResolver cr = getContext().getContentResolver();
-
-                // message has been rejected: mark as error
-                if (msgId > 0) {
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                        values, selectionOutgoing, null);
-
-                    waitingReceipt.remove(id);
-
-                    // we can now release the message center. Hopefully
-                    // there will be one hold and one matching release.
-                    getIdleHandler().release();
+            String id = m.getStanzaId();
+            long msgId = waitingReceipt.remove(id);
+            ContentResolver cr = getContext().getContentResolver();
+
+            // message has been rejected: mark as error
+            if (msgId > 0) {
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                    values, selectionOutgoing, null);
+
+                // we can now release the message center. Hopefully
+                // there will be one hold and one matching release.
+                getIdleHandler().release();
+            }
+            else if (id != null) {
+                // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                Uri msg = Messages.getUri(id);
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(msg, values, selectionOutgoing, null);
+            }
+        }
+    }
+
+    /** Builds the message to be stored from a stanza, decrypting it if needed. */
+    private CompositeMessage parseMessage(org.jivesoftware.smack.packet.Message m, long serverTimestamp) {
+        String from = m.getFrom();
+        String msgId = m.getStanzaId();
+        if (msgId == null)
+            msgId = MessageUtils.messageId();
+
+        String body = m.getBody();
+
+        // create message
+        CompositeMessage msg = new CompositeMessage(
+                getContext(),
+                msgId,
+                serverTimestamp,
+                from,
+                false,
+                Coder.SECURITY_CLEARTEXT
+            );
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+        if (_encrypted != null && _encrypted instanceof E2EEncryption) {
+            E2EEncryption mEnc = (E2EEncryption) _encrypted;
+            byte[] encryptedData = mEnc.getData();
+
+            // encrypted message
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+            if (encryptedData != null) {
+
+                // decrypt message
+                try {
+                    MessageUtils.decryptMessage(getContext(),
+                            getServer(), msg, encryptedData);
                 }
-                else if (id != null) {
-                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                    Uri msg = Messages.getUri(id);
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(msg, values, selectionOutgoing, null);
+
+                catch (Exception exc) {
+                    Log.e(MessageCenterService.TAG, "decryption failed", exc);
+
+                    // raw component for encrypted data
+                    // reuse security flags
+                    msg.clearComponents();
+                    msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
                 }
+
             }
         }
+
+        else {
+
+            // use message body
+            if (body != null)
+                msg.addComponent(new TextComponent(body));
+
+        }
+
+        // TODO duplicated code (MessageUtils#decryptMessage)
+
+        // out of band data
+        ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        if (_media != null && _media instanceof OutOfBandData) {
+            File previewFile = null;
+
+            OutOfBandData media = (OutOfBandData) _media;
+            String mime = media.getMime();
+            String fetchUrl = media.getUrl();
+            long length = media.getLength();
+            boolean encrypted = media.isEncrypted();
+
+            // bits-of-binary for preview
+            ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+            if (_preview != null && _preview instanceof BitsOfBinary) {
+                BitsOfBinary preview = (BitsOfBinary) _preview;
+                String previewMime = preview.getType();
+                if (previewMime == null)
+                    previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                String filename = null;
+
+                if (ImageComponent.supportsMimeType(mime)) {
+                    filename = ImageComponent.buildMediaFilename(msgId, previewMime);
+                }
+
+                else if (VCardComponent.supportsMimeType(mime)) {
+                    filename = VCardComponent.buildMediaFilename(msgId, previewMime);
+                }
+
+                try {
+                    if (filename != null) previewFile =
+                        MediaStorage.writeInternalMedia(getContext(),
+                            filename, preview.getContents());
+                }
+                catch (IOException e) {
+                    Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
+                }
+            }
+
+            MessageComponent<?> attachment = null;
+
+            if (ImageComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (VCardComponent.supportsMimeType(mime)) {
+                // cleartext only for now
+                attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            else if (AudioComponent.supportsMimeType(mime)) {
+                attachment = new AudioComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
+
+            // TODO other types
+
+            if (attachment != null)
+                msg.addComponent(attachment);
+
+            // add a dummy body if none was found
+            /*
+            if (body == null) {
+                msg.addComponent(new TextComponent(CompositeMessage
+                    .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                        attachment.getClass(), mime)));
+            }
+            */
+
+        }
+
+        return msg;
     }
 
-    private void sendReceipt(Uri msgUri, String msgId, String from, Map<String, Long> waitingReceipt) {
-        DeliveryReceipt receipt = new DeliveryReceipt(msgId);
-        org.jivesoftware.smack.packet.Message ack =
-            new org.jivesoftware.smack.packet.Message(from,
-                org.jivesoftware.smack.packet.Message.Type.chat);
-        ack.addExtension(receipt);
-
-        if (msgUri != null) {
-            // hold on to message center
-            getIdleHandler().hold();
-            // will mark this message as confirmed
-            long storageId = ContentUris.parseId(msgUri);
-            waitingReceipt.put(ack.getStanzaId(), storageId);
+    /**
+     * Decrypts an incoming message and queues it for storing. Messages from
+     * the same peer are stored in the same order they were received.
+     */
+    private final class IncomingMessageJob extends CryptoExecutor.Job {
+        private final org.jivesoftware.smack.packet.Message mStanza;
+        private final long mServerTimestamp;
+        private CompositeMessage mMessage;
+
+        IncomingMessageJob(org.jivesoftware.smack.packet.Message stanza, long serverTimestamp) {
+            mStanza = stanza;
+            mServerTimestamp = serverTimestamp;
+        }
+
+        @Override
+        protected void process() {
+            mMessage = parseMessage(mStanza, mServerTimestamp);
+        }
+
+        @Override
+        protected void complete() {
+            if (mMessage != null) {
+                // ack will be sent after the message has been stored
+                boolean receipt = mStanza.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+                incoming(mMessage, receipt ? mStanza.getFrom() : null);
+            }
         }
-        sendPacket(ack);
     }
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import org.kontalk.provider.MessagesProvider;
+import org.kontalk.provider.MyMessages.Messages;
+
+
+/**
+ * Writes message status changes from server acks and delivery receipts with
+ * a single batch. A batch is flushed when {@link #MAX_BATCH_SIZE} updates
+ * are waiting or {@link #FLUSH_DELAY} milliseconds after the first update
+ * was queued, whichever comes first.
+ * @author Daniele Ricci
+ */
+class MessageStatusBatcher implements Runnable {
+    /** Maximum number of updates in a batch. */
+    static final int MAX_BATCH_SIZE = 200;
+    /** Maximum time an update will wait before being written. */
+    static final long FLUSH_DELAY = 50;
+
+    // condition on delivered status in case we receive the receipt before the ack
+    private static final String selectionSent = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT + " AND " +
+        Messages.STATUS + " NOT IN (" + Messages.STATUS_RECEIVED + "," + Messages.STATUS_NOTDELIVERED + ")";
+    private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
+    private static final String selectionIncoming = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final StatusUpdateQueue mQueue = new StatusUpdateQueue();
+
+    MessageStatusBatcher(ContentResolver resolver) {
+        mResolver = resolver;
+
+        HandlerThread thread = new HandlerThread("MessageStatus", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** Server ack for an outgoing message. */
+    public void sent(long databaseId, String messageId, long timestamp) {
+        queued(mQueue.sent(databaseId, messageId, timestamp));
+    }
+
+    /** Server ack for an outgoing delivery receipt. */
+    public void confirmed(long databaseId) {
+        queued(mQueue.confirmed(databaseId));
+    }
+
+    /** Delivery receipt for an outgoing message. */
+    public void received(long databaseId, String receiptId, long timestamp) {
+        queued(mQueue.received(databaseId, receiptId, timestamp));
+    }
+
+    private void queued(int count) {
+        if (count >= MAX_BATCH_SIZE) {
+            mHandler.removeCallbacks(this);
+            mHandler.post(this);
+        }
+        else if (count == 1) {
+            mHandler.postDelayed(this, FLUSH_DELAY);
+        }
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    /** Writes all pending updates. Must be called from the batcher thread. */
+    private void flush() {
+        List<StatusUpdateQueue.StatusUpdate> batch = mQueue.drain();
+        if (batch.size() == 0)
+            return;
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(batch.size());
+        for (StatusUpdateQueue.StatusUpdate update : batch)
+            ops.add(buildOperation(update));
+
+        try {
+            mResolver.applyBatch(MessagesProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            Log.w(MessageCenterService.TAG, "batch update failed, updating messages one by one", e);
+            for (ContentProviderOperation op : ops) {
+                ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+                single.add(op);
+                try {
+                    mResolver.applyBatch(MessagesProvider.AUTHORITY, single);
+                }
+                catch (Exception eop) {
+                    Log.w(MessageCenterService.TAG, "unable to update message status", eop);
+                }
+            }
+        }
+    }
+
+    private static ContentProviderOperation buildOperation(StatusUpdateQueue.StatusUpdate update) {
+        Uri uri = (update.databaseId > 0) ?
+            ContentUris.withAppendedId(Messages.CONTENT_URI, update.databaseId) :
+            Messages.getUri(update.messageId);
+
+        ContentValues values = new ContentValues(3);
+        String selection;
+        switch (update.kind) {
+            case StatusUpdateQueue.KIND_SENT:
+                values.put(Messages.STATUS, Messages.STATUS_SENT);
+                values.put(Messages.STATUS_CHANGED, update.timestamp);
+                values.put(Messages.SERVER_TIMESTAMP, update.timestamp);
+                selection = selectionSent;
+                break;
+
+            case StatusUpdateQueue.KIND_CONFIRMED:
+                values.put(Messages.STATUS, Messages.STATUS_CONFIRMED);
+                selection = selectionIncoming;
+                break;
+
+            case StatusUpdateQueue.KIND_RECEIVED:
+                // store the server id if we didn't know it
+                if (update.databaseId > 0)
+                    values.put(Messages.MESSAGE_ID, update.receiptId);
+                values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                values.put(Messages.STATUS_CHANGED, update.timestamp);
+                selection = selectionOutgoing;
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown update kind " + update.kind);
+        }
+
+        return ContentProviderOperation.newUpdate(uri)
+            .withValues(values)
+            .withSelection(selection, null)
+            .build();
+    }
+
+    /** Writes any pending update and stops the batcher thread. */
+    public void quit() {
+        mHandler.removeCallbacks(this);
+        mHandler.post(new Runnable() {
+            public void run() {
+                flush();
+                mHandler.getLooper().quit();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Estimates the NAT timeout of a network, i.e. how long a connection can
+ * stay idle before it is silently dropped, from the outcome of pings.
+ * The estimate is a range between the longest interval known to keep the
+ * connection alive and the shortest interval known to break it. Pings are
+ * normally sent at the safe interval; after a few successful pings, a
+ * longer interval is probed halfway through the range (binary search).
+ * Once the range is small enough, the failure bound is relaxed after some
+ * time, so a longer NAT timeout can be discovered again; the time between
+ * two relaxations doubles every time the longer timeout is not found.
+ * All values are in milliseconds.
+ * @author Daniele Ricci
+ */
+class NatTimeoutEstimator {
+
+    /** Minimum ping interval. */
+    static final long MIN_INTERVAL = 90 * 1000;
+    /** Maximum ping interval. */
+    static final long MAX_INTERVAL = 30 * 60 * 1000;
+    /** The search stops when the NAT timeout is known within this range. */
+    static final long RESOLUTION = 60 * 1000;
+    /** Successful pings at the safe interval before probing a longer one. */
+    static final int PROBE_AFTER = 3;
+    /** Successful pings after convergence before relaxing the failure bound. */
+    static final int DECAY_AFTER = 50;
+    /** Maximum successful pings before relaxing the failure bound. */
+    static final int MAX_DECAY_AFTER = DECAY_AFTER * 32;
+
+    /** Longest interval known to keep the connection alive. */
+    private long mLower;
+    /** Shortest interval known to break the connection, 0 if unknown. */
+    private long mUpper;
+    /** Successful pings since the last failure or decay. */
+    private int mSuccesses;
+    /** Successful pings needed to relax the failure bound. */
+    private int mDecayAfter;
+    /** Interval for the next ping. */
+    private long mNext;
+
+    public NatTimeoutEstimator() {
+        this(MIN_INTERVAL, 0, DECAY_AFTER);
+    }
+
+    NatTimeoutEstimator(long lower, long upper, int decayAfter) {
+        mLower = Math.max(MIN_INTERVAL, Math.min(lower, MAX_INTERVAL));
+        mUpper = (upper > mLower) ? upper : 0;
+        mDecayAfter = Math.max(DECAY_AFTER, Math.min(decayAfter, MAX_DECAY_AFTER));
+        mNext = mLower;
+    }
+
+    /** Returns the interval to wait for the next ping. */
+    public long getInterval() {
+        return mNext;
+    }
+
+    long getLowerBound() {
+        return mLower;
+    }
+
+    long getUpperBound() {
+        return mUpper;
+    }
+
+    /**
+     * Called after a successful ping.
+     * @param interval time the connection was idle before the ping
+     */
+    public void onSuccess(long interval) {
+        if (interval > mLower) {
+            mLower = Math.min(interval, MAX_INTERVAL);
+            // failure bound is outdated
+            if (mUpper > 0 && mUpper <= mLower)
+                mUpper = 0;
+            mDecayAfter = DECAY_AFTER;
+        }
+
+        mSuccesses++;
+
+        if (isConverged() && mSuccesses >= mDecayAfter) {
+            // NAT timeout might have changed, search again
+            mUpper += 2 * RESOLUTION;
+            if (mUpper > MAX_INTERVAL)
+                mUpper = 0;
+            mSuccesses = 0;
+            // wait longer next time (reset if the search succeeds)
+            mDecayAfter = Math.min(mDecayAfter * 2, MAX_DECAY_AFTER);
+        }
+
+        mNext = nextInterval();
+    }
+
+    /**
+     * Called after a failed ping.
+     * @param interval time the connection was idle before the ping
+     */
+    public void onFailure(long interval) {
+        if (mUpper == 0 || interval < mUpper)
+            mUpper = interval;
+
+        // even the safe interval is too long now
+        if (interval <= mLower) {
+            mLower = Math.max(MIN_INTERVAL, interval / 2);
+            if (mUpper <= mLower)
+                mUpper = 0;
+            mDecayAfter = DECAY_AFTER;
+        }
+
+        mSuccesses = 0;
+        mNext = mLower;
+    }
+
+    private boolean isConverged() {
+        return mUpper > 0 && mUpper - mLower <= RESOLUTION;
+    }
+
+    private long nextInterval() {
+        if (mSuccesses < PROBE_AFTER || isConverged() || mLower >= MAX_INTERVAL)
+            return mLower;
+
+        long probe = (mUpper > 0) ? (mLower + mUpper) / 2 : mLower * 2;
+        return Math.min(probe, MAX_INTERVAL);
+    }
+
+    /** Returns the estimate in a format suitable for {@link #parse}. */
+    @Override
+    public String toString() {
+        return mLower + "," + mUpper + "," + mDecayAfter;
+    }
+
+    /** Parses an estimate from {@link #toString()}, or returns a new one. */
+    public static NatTimeoutEstimator parse(String data) {
+        if (data != null) {
+            String[] parts = data.split(",");
+            if (parts.length == 3) {
+                try {
+                    return new NatTimeoutEstimator(
+                        Long.parseLong(parts[0]),
+                        Long.parseLong(parts[1]),
+                        Integer.parseInt(parts[2]));
+                }
+                catch (NumberFormatException e) {
+                    // invalid data, start over
+                }
+            }
+        }
+        return new NatTimeoutEstimator();
+    }
+
+}
@@ -30,6 +30,7 @@ import org.kontalk.client.PublicKeyPublish;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
 import org.kontalk.data.Contact;
+import org.kontalk.provider.PublicKeyCache;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.sync.SyncAdapter;
 import org.kontalk.util.MessageUtils;
@@ -126,6 +127,7 @@ class PublicKeyListener extends MessageCenterPacketListener {
 
                             // invalidate cache for this user
                             Contact.invalidate(from);
+                            PublicKeyCache.getInstance().invalidate(from);
                         }
                     }
                     catch (Exception e) {
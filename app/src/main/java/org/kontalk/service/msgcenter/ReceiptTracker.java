@@ -0,0 +1,164 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Keeps track of messages waiting for a server receipt. Messages are
+ * indexed both by stanza id and by database id, so every lookup takes
+ * constant time. Reads are lock-free, writes are serialized to keep the
+ * indexes consistent.
+ * Expired entries are not waited for any more, but they are still tracked
+ * until {@link #clear()} (i.e. for the whole connection), so a late server
+ * receipt doesn't cause the message to be sent twice.
+ * @author Daniele Ricci
+ */
+class ReceiptTracker {
+
+    /** Minimum time between two expiration sweeps. */
+    private static final long EXPIRE_INTERVAL = 60000;
+
+    private static final class Entry {
+        final long databaseId;
+        final long timestamp;
+
+        Entry(long databaseId, long timestamp) {
+            this.databaseId = databaseId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Stanza id: entry. */
+    private final ConcurrentHashMap<String, Entry> mByStanzaId =
+        new ConcurrentHashMap<String, Entry>();
+    /** Database id: stanza id (including expired entries). */
+    private final ConcurrentHashMap<Long, String> mByDatabaseId =
+        new ConcurrentHashMap<Long, String>();
+    /** Expired entries: stanza id: database id. */
+    private final ConcurrentHashMap<String, Long> mExpired =
+        new ConcurrentHashMap<String, Long>();
+
+    /** Entries older than this will be discarded. */
+    private final long mTimeout;
+    /** Timestamp of the last expiration sweep. */
+    private long mLastExpire;
+
+    /**
+     * @param timeout time after which an entry can be discarded by {@link #expire()}
+     */
+    public ReceiptTracker(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /** Starts tracking a message. */
+    public void put(String stanzaId, long databaseId) {
+        put(stanzaId, databaseId, System.currentTimeMillis());
+    }
+
+    synchronized void put(String stanzaId, long databaseId, long timestamp) {
+        Entry old = mByStanzaId.put(stanzaId, new Entry(databaseId, timestamp));
+        if (old != null && old.databaseId != databaseId)
+            mByDatabaseId.remove(old.databaseId, stanzaId);
+        Long expired = mExpired.remove(stanzaId);
+        if (expired != null && expired != databaseId)
+            mByDatabaseId.remove(expired, stanzaId);
+        mByDatabaseId.put(databaseId, stanzaId);
+    }
+
+    /** Returns the database id of the given stanza, or 0 if not tracked or expired. */
+    public long get(String stanzaId) {
+        Entry e = (stanzaId != null) ? mByStanzaId.get(stanzaId) : null;
+        return (e != null) ? e.databaseId : 0;
+    }
+
+    /** Returns the stanza id of the given message, or null if not tracked. */
+    public String getStanzaId(long databaseId) {
+        return mByDatabaseId.get(databaseId);
+    }
+
+    /** Returns true if the message is tracked, even if expired. */
+    public boolean containsDatabaseId(long databaseId) {
+        return mByDatabaseId.containsKey(databaseId);
+    }
+
+    /**
+     * Stops tracking a stanza.
+     * @return the database id of the stanza, or 0 if it was not tracked or expired
+     */
+    public synchronized long remove(String stanzaId) {
+        if (stanzaId == null)
+            return 0;
+
+        Entry e = mByStanzaId.remove(stanzaId);
+        if (e != null) {
+            mByDatabaseId.remove(e.databaseId, stanzaId);
+            return e.databaseId;
+        }
+
+        Long expired = mExpired.remove(stanzaId);
+        if (expired != null)
+            mByDatabaseId.remove(expired, stanzaId);
+        return 0;
+    }
+
+    /** Returns the number of entries still waited for. */
+    public int size() {
+        return mByStanzaId.size();
+    }
+
+    public synchronized void clear() {
+        mByStanzaId.clear();
+        mByDatabaseId.clear();
+        mExpired.clear();
+    }
+
+    /**
+     * Stops waiting for entries older than the timeout. They are still
+     * tracked by database id until cleared. The actual sweep is done at
+     * most once every {@link #EXPIRE_INTERVAL} milliseconds.
+     * @return the number of expired entries
+     */
+    public int expire() {
+        return expire(System.currentTimeMillis());
+    }
+
+    synchronized int expire(long now) {
+        if (now - mLastExpire < EXPIRE_INTERVAL)
+            return 0;
+        mLastExpire = now;
+
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iter = mByStanzaId.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> e = iter.next();
+            Entry entry = e.getValue();
+            if (now - entry.timestamp >= mTimeout) {
+                iter.remove();
+                mExpired.put(e.getKey(), entry.databaseId);
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
@@ -20,9 +20,10 @@ package org.kontalk.service.msgcenter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
 
 import org.jivesoftware.smack.roster.packet.RosterPacket;
 import org.jivesoftware.smack.roster.rosterstore.RosterStore;
@@ -34,18 +35,18 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.text.TextUtils;
 
 import org.kontalk.util.Preferences;
 
 
 /**
  * A roster store backed by a SQLite database.
+ * Full roster pushes are applied as a diff: only changed entries are written.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "roster.db";
 
     private static final String TABLE_ROSTER = "roster";
@@ -53,16 +54,32 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         "jid TEXT NOT NULL PRIMARY KEY," +
         "name TEXT NOT NULL," +
         "type TEXT NOT NULL," +
-        "status TEXT,"+
-        "groups TEXT"+
+        "status TEXT"+
         ")";
 
     private static final String SCHEMA_ROSTER =
         "CREATE TABLE " + TABLE_ROSTER + " " + CREATE_TABLE_ROSTER;
 
+    private static final String TABLE_GROUPS = "roster_groups";
+    private static final String CREATE_TABLE_GROUPS = "(" +
+        "jid TEXT NOT NULL," +
+        "name TEXT NOT NULL," +
+        "PRIMARY KEY (jid, name)" +
+        ")";
+
+    private static final String SCHEMA_GROUPS =
+        "CREATE TABLE " + TABLE_GROUPS + " " + CREATE_TABLE_GROUPS;
+
+    private static final String[] SCHEMA_UPGRADE_V1 = {
+        "DROP TABLE IF EXISTS " + TABLE_ROSTER,
+        SCHEMA_ROSTER,
+        SCHEMA_GROUPS,
+    };
+
     private final Context mContext;
 
     private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mInsertGroupStatement;
     private final Object mInsertLock = new Object();
 
     public SQLiteRosterStore(Context context) {
@@ -73,11 +90,17 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SCHEMA_ROSTER);
+        db.execSQL(SCHEMA_GROUPS);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // this is the first version
+        if (oldVersion < 2) {
+            // the roster is just a cache: start over and request it again
+            for (String sql : SCHEMA_UPGRADE_V1)
+                db.execSQL(sql);
+            setRosterVersion("");
+        }
     }
 
     public void onDestroy() {
@@ -86,8 +109,8 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
     private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
         if (mInsertStatement == null) {
-            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE_ROSTER +
-                " VALUES(?, ?, ?, ?, ?)");
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ROSTER +
+                " VALUES(?, ?, ?, ?)");
         }
         else {
             mInsertStatement.clearBindings();
@@ -95,9 +118,8 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
         int i = 0;
         mInsertStatement.bindString(++i, item.getUser());
-        mInsertStatement.bindString(++i, item.getName());
-        mInsertStatement.bindString(++i, item.getItemType() != null ?
-            item.getItemType().toString() : RosterPacket.ItemType.none.toString());
+        mInsertStatement.bindString(++i, item.getName() != null ? item.getName() : "");
+        mInsertStatement.bindString(++i, getItemType(item).toString());
 
         RosterPacket.ItemStatus status = item.getItemStatus();
         if (status != null) {
@@ -107,42 +129,61 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
             mInsertStatement.bindNull(++i);
         }
 
-        Set<String> groups = item.getGroupNames();
-        if (groups != null) {
-            mInsertStatement.bindString(++i, TextUtils.join(",", groups));
+        return mInsertStatement;
+    }
+
+    private SQLiteStatement prepareInsertGroup(SQLiteDatabase db, String jid, String group) {
+        if (mInsertGroupStatement == null) {
+            mInsertGroupStatement = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_GROUPS +
+                " VALUES(?, ?)");
         }
         else {
-            mInsertStatement.bindNull(++i);
+            mInsertGroupStatement.clearBindings();
         }
 
-        return mInsertStatement;
+        mInsertGroupStatement.bindString(1, jid);
+        mInsertGroupStatement.bindString(2, group);
+        return mInsertGroupStatement;
     }
 
     @Override
     public Collection<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
         try {
-            c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
-                while (c.moveToNext()) {
-                    items.add(fromCursor(c));
-                }
-
-                return items;
-            }
-
-            return null;
+            return readEntries(getReadableDatabase()).values();
         }
         catch (SQLiteException e) {
             return null;
         }
+    }
+
+    /** Reads all entries, indexed by JID. */
+    private Map<String, RosterPacket.Item> readEntries(SQLiteDatabase db) {
+        Map<String, RosterPacket.Item> items = new HashMap<>();
+
+        Cursor c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                RosterPacket.Item item = fromCursor(c);
+                items.put(item.getUser(), item);
+            }
+        }
         finally {
-            if (c != null) {
-                c.close();
+            c.close();
+        }
+
+        c = db.query(TABLE_GROUPS, null, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                RosterPacket.Item item = items.get(c.getString(0));
+                if (item != null)
+                    item.addGroupName(c.getString(1));
             }
         }
+        finally {
+            c.close();
+        }
+
+        return items;
     }
 
     private RosterPacket.Item fromCursor(Cursor c) {
@@ -158,14 +199,6 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         if (status != null)
             item.setItemStatus(RosterPacket.ItemStatus.fromString(status));
 
-        String groups = c.getString(4);
-        if (groups != null) {
-            StringTokenizer tokenizer = new StringTokenizer(groups, ",");
-            while (tokenizer.hasMoreTokens()) {
-                item.addGroupName(tokenizer.nextToken());
-            }
-        }
-
         return item;
     }
 
@@ -174,11 +207,21 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         SQLiteDatabase db = getReadableDatabase();
         Cursor c = null;
         try {
+            String[] args = { bareJid };
             c = db.query(TABLE_ROSTER, null,
-                "user = ?", new String[] { bareJid },
+                "jid = ?", args,
                 null, null, null);
             if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
+                RosterPacket.Item item = fromCursor(c);
+                c.close();
+
+                c = db.query(TABLE_GROUPS, new String[] { "name" },
+                    "jid = ?", args,
+                    null, null, null);
+                while (c.moveToNext())
+                    item.addGroupName(c.getString(0));
+
+                return item;
             }
         }
         catch (SQLiteException e) {
@@ -197,25 +240,46 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return Preferences.getRosterVersion(mContext);
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
+    /** Inserts or replaces an entry and its groups. */
+    private void writeEntry(SQLiteDatabase db, RosterPacket.Item item) {
         synchronized (mInsertLock) {
-            try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
-            }
-            catch (SQLiteException e) {
-                return false;
+            prepareInsert(db, item).executeInsert();
+
+            String jid = item.getUser();
+            db.delete(TABLE_GROUPS, "jid = ?", new String[] { jid });
+            Set<String> groups = item.getGroupNames();
+            if (groups != null) {
+                for (String group : groups)
+                    prepareInsertGroup(db, jid, group).executeInsert();
             }
-
-            // insert was successful
-            return true;
         }
     }
 
+    private void deleteEntry(SQLiteDatabase db, String bareJid) {
+        String[] args = { bareJid };
+        db.delete(TABLE_ROSTER, "jid = ?", args);
+        db.delete(TABLE_GROUPS, "jid = ?", args);
+    }
+
     @Override
     public boolean addEntry(RosterPacket.Item item, String version) {
         SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
+
+        beginTransaction(db);
+        boolean success = false;
+
+        try {
+            writeEntry(db, item);
+            success = setTransactionSuccessful(db);
+        }
+        catch (SQLiteException e) {
+            return false;
+        }
+        finally {
+            endTransaction(db, success);
+        }
+
+        return setRosterVersion(version);
     }
 
     @Override
@@ -226,15 +290,15 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         boolean success = false;
 
         try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
-            for (RosterPacket.Item item : items) {
-                addEntry(db, item);
-            }
+            List<RosterPacket.Item> changed = new ArrayList<>();
+            Collection<String> removed = diffEntries(readEntries(db), items, changed);
+
+            for (RosterPacket.Item item : changed)
+                writeEntry(db, item);
+            for (String jid : removed)
+                deleteEntry(db, jid);
 
             success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
-            }
         }
         catch (SQLiteException e) {
             return false;
@@ -243,25 +307,69 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
             endTransaction(db, success);
         }
 
-        return false;
+        return setRosterVersion(version);
     }
 
     @Override
     public boolean removeEntry(String bareJid, String version) {
         SQLiteDatabase db = getWritableDatabase();
+
+        beginTransaction(db);
+        boolean success = false;
+
         try {
-            db.delete(TABLE_ROSTER, "user = ?", new String[]{bareJid});
-            return setRosterVersion(version);
+            deleteEntry(db, bareJid);
+            success = setTransactionSuccessful(db);
         }
         catch (SQLiteException e) {
             return false;
         }
+        finally {
+            endTransaction(db, success);
+        }
+
+        return setRosterVersion(version);
     }
 
     private boolean setRosterVersion(String version) {
         return Preferences.setRosterVersion(version);
     }
 
+    /**
+     * Compares the stored entries with a full roster.
+     * @param stored stored entries by JID; matched entries will be removed
+     * @param items the new roster
+     * @param changed will be filled with new or modified entries
+     * @return the JIDs of entries no longer in the roster
+     */
+    static Collection<String> diffEntries(Map<String, RosterPacket.Item> stored,
+            Collection<RosterPacket.Item> items, List<RosterPacket.Item> changed) {
+        for (RosterPacket.Item item : items) {
+            RosterPacket.Item old = stored.remove(item.getUser());
+            if (old == null || !sameEntry(old, item))
+                changed.add(item);
+        }
+        return stored.keySet();
+    }
+
+    /** Compares two entries the same way they are stored. */
+    static boolean sameEntry(RosterPacket.Item a, RosterPacket.Item b) {
+        return equals(a.getUser(), b.getUser()) &&
+            equals(a.getName() != null ? a.getName() : "", b.getName() != null ? b.getName() : "") &&
+            getItemType(a) == getItemType(b) &&
+            a.getItemStatus() == b.getItemStatus() &&
+            a.getGroupNames().equals(b.getGroupNames());
+    }
+
+    private static RosterPacket.ItemType getItemType(RosterPacket.Item item) {
+        RosterPacket.ItemType type = item.getItemType();
+        return (type != null) ? type : RosterPacket.ItemType.none;
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
     /* Transactions compatibility layer */
 
     @TargetApi(android.os.Build.VERSION_CODES.HONEYCOMB)
@@ -0,0 +1,116 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Collects message status changes (server acks and delivery receipts) to be
+ * written to the database in a single batch. Updates are kept in the order
+ * they were received, so the batch has the same outcome as applying them
+ * one by one; an update is merged with the previous one only if it has the
+ * same kind and the same target, since applying the second one would just
+ * overwrite the first.
+ * @author Daniele Ricci
+ */
+class StatusUpdateQueue {
+
+    /** Server ack for an outgoing message: status sent. */
+    static final int KIND_SENT = 1;
+    /** Server ack for an outgoing delivery receipt: status confirmed. */
+    static final int KIND_CONFIRMED = 2;
+    /** Delivery receipt for an outgoing message: status received. */
+    static final int KIND_RECEIVED = 3;
+
+    static final class StatusUpdate {
+        final int kind;
+        /** Database id of the message, 0 if not known. */
+        final long databaseId;
+        /** Message id, used if the database id is not known. */
+        final String messageId;
+        /** Time of the status change. */
+        long timestamp;
+        /** Server message id from the delivery receipt. */
+        String receiptId;
+
+        StatusUpdate(int kind, long databaseId, String messageId, long timestamp, String receiptId) {
+            this.kind = kind;
+            this.databaseId = databaseId;
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+            this.receiptId = receiptId;
+        }
+
+        boolean canMerge(StatusUpdate other) {
+            return kind == other.kind && databaseId == other.databaseId &&
+                (messageId == null ? other.messageId == null : messageId.equals(other.messageId));
+        }
+    }
+
+    private List<StatusUpdate> mPending = new ArrayList<StatusUpdate>();
+
+    /** Server ack for an outgoing message. */
+    public int sent(long databaseId, String messageId, long timestamp) {
+        return add(new StatusUpdate(KIND_SENT, databaseId,
+            databaseId > 0 ? null : messageId, timestamp, null));
+    }
+
+    /** Server ack for an outgoing delivery receipt. */
+    public int confirmed(long databaseId) {
+        return add(new StatusUpdate(KIND_CONFIRMED, databaseId, null, 0, null));
+    }
+
+    /** Delivery receipt for an outgoing message. */
+    public int received(long databaseId, String receiptId, long timestamp) {
+        return add(new StatusUpdate(KIND_RECEIVED, databaseId,
+            databaseId > 0 ? null : receiptId, timestamp, receiptId));
+    }
+
+    /**
+     * Queues an update.
+     * @return the number of pending updates, or 0 if the update was merged
+     */
+    synchronized int add(StatusUpdate update) {
+        int size = mPending.size();
+        StatusUpdate last = (size > 0) ? mPending.get(size - 1) : null;
+        if (last != null && last.canMerge(update)) {
+            last.timestamp = update.timestamp;
+            last.receiptId = update.receiptId;
+            return 0;
+        }
+
+        mPending.add(update);
+        return mPending.size();
+    }
+
+    /** Removes and returns all pending updates, in order. */
+    public synchronized List<StatusUpdate> drain() {
+        List<StatusUpdate> pending = mPending;
+        mPending = new ArrayList<StatusUpdate>();
+        return pending;
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+
+/**
+ * Keeps track of stream resumption attempts and tells what is left of the
+ * previous session after authentication.
+ * @author Daniele Ricci
+ */
+class StreamSession {
+
+    /** The stream has been resumed: the server still has our session. */
+    public static final int RESUMED = 1;
+    /**
+     * Resumption failed on the same connection. A new session has been
+     * started and Smack sent again the stanzas left unacknowledged by the
+     * previous one.
+     */
+    public static final int RESUME_FAILED = 2;
+    /** A new session on a new connection. */
+    public static final int NEW = 3;
+
+    /** True while reconnecting with a connection whose stream can be resumed. */
+    private boolean mResuming;
+
+    /** A resumption attempt is starting. */
+    public synchronized void resuming() {
+        mResuming = true;
+    }
+
+    /**
+     * A new connection has been created.
+     * @return true if a resumption attempt was given up, so the state of the
+     * previous session must be discarded
+     */
+    public synchronized boolean connectionCreated() {
+        boolean abandoned = mResuming;
+        mResuming = false;
+        return abandoned;
+    }
+
+    /**
+     * The connection has been authenticated.
+     * @param resumed true if the stream was resumed
+     * @return one of {@link #RESUMED}, {@link #RESUME_FAILED} or {@link #NEW}
+     */
+    public synchronized int authenticated(boolean resumed) {
+        boolean reused = mResuming;
+        mResuming = false;
+
+        if (resumed)
+            return RESUMED;
+        return reused ? RESUME_FAILED : NEW;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Computes the changes needed to bring our raw contacts in line with the
+ * users matched by the server.
+ * @author Daniele Ricci
+ */
+class RawContactsDiff {
+
+    static final class Entry {
+        /** Raw contact id, 0 for new contacts. */
+        final long rawContactId;
+        final String jid;
+        final String displayName;
+        final String phone;
+
+        Entry(long rawContactId, String jid, String displayName, String phone) {
+            this.rawContactId = rawContactId;
+            this.jid = jid;
+            this.displayName = displayName;
+            this.phone = phone;
+        }
+
+        boolean sameData(Entry other) {
+            return equals(displayName, other.displayName) &&
+                equals(phone, other.phone);
+        }
+
+        private static boolean equals(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    /** Existing raw contacts by JID. */
+    private final Map<String, Entry> mExisting = new HashMap<String, Entry>();
+    /** Wanted raw contacts by JID. */
+    private final Map<String, Entry> mWanted = new LinkedHashMap<String, Entry>();
+
+    private final List<Entry> mInserts = new ArrayList<Entry>();
+    private final List<Entry> mUpdates = new ArrayList<Entry>();
+    private final List<Long> mDeletes = new ArrayList<Long>();
+
+    /** Adds an existing raw contact. */
+    public void addExisting(long rawContactId, String jid, String displayName, String phone) {
+        Entry old = mExisting.put(jid, new Entry(rawContactId, jid, displayName, phone));
+        // duplicated raw contact (or no JID), delete it
+        if (old != null)
+            mDeletes.add(old.rawContactId);
+    }
+
+    /**
+     * Adds a raw contact deleted by the user. The contacts provider keeps it
+     * until the sync adapter purges it.
+     */
+    public void addDeleted(long rawContactId) {
+        mDeletes.add(rawContactId);
+    }
+
+    /** Adds a raw contact that should exist after the sync. */
+    public void addWanted(String jid, String displayName, String phone) {
+        mWanted.put(jid, new Entry(0, jid, displayName, phone));
+    }
+
+    /** Calculates insert, update and delete sets. */
+    public void diff() {
+        for (Entry wanted : mWanted.values()) {
+            Entry existing = mExisting.remove(wanted.jid);
+            if (existing == null) {
+                mInserts.add(wanted);
+            }
+            else if (!existing.sameData(wanted)) {
+                mUpdates.add(new Entry(existing.rawContactId,
+                    wanted.jid, wanted.displayName, wanted.phone));
+            }
+        }
+
+        // remaining raw contacts were not matched
+        for (Entry existing : mExisting.values())
+            mDeletes.add(existing.rawContactId);
+        mExisting.clear();
+    }
+
+    public List<Entry> getInserts() {
+        return mInserts;
+    }
+
+    /** Updates, with the raw contact id of the existing contact. */
+    public List<Entry> getUpdates() {
+        return mUpdates;
+    }
+
+    /** Raw contact ids to delete. */
+    public List<Long> getDeletes() {
+        return mDeletes;
+    }
+
+    public boolean isEmpty() {
+        return mInserts.isEmpty() && mUpdates.isEmpty() && mDeletes.isEmpty();
+    }
+
+}
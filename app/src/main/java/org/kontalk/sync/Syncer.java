@@ -20,9 +20,14 @@ package org.kontalk.sync;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
@@ -34,15 +39,18 @@ import android.accounts.OperationCanceledException;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
@@ -71,9 +79,12 @@ public class Syncer {
     // using SyncAdapter tag
     private static final String TAG = SyncAdapter.TAG;
 
-    // max time to wait for network response
+    // max time to wait for a network response
     private static final int MAX_WAIT_TIME = 60000;
 
+    /** Max number of contacts provider operations applied in one batch. */
+    private static final int MAX_BATCH_OPERATIONS = 300;
+
     /** {@link Data} column for the display name. */
     public static final String DATA_COLUMN_DISPLAY_NAME = Data.DATA1;
     /** {@link Data} column for the account name. */
@@ -94,7 +105,7 @@ public class Syncer {
     private volatile boolean mCanceled;
     private final Context mContext;
 
-    private final static class PresenceItem {
+    final static class PresenceItem {
         public String from;
         public String status;
         public long timestamp;
@@ -103,23 +114,115 @@ public class Syncer {
         public boolean presence;
     }
 
+    /**
+     * Collects roster match, presence, public key and block list responses,
+     * indexing them by bare JID. Responses are added from the main thread
+     * while the sync thread waits for them, so all methods are synchronized.
+     */
+    static final class PresenceCollector {
+        /** Items by lower case bare JID, in roster match order. */
+        private final Map<String, PresenceItem> mItems = new LinkedHashMap<String, PresenceItem>();
+
+        private int mPubkeyCount;
+        private int mRosterCount;
+        private boolean mRosterReceived;
+        private boolean mBlocklistReceived;
+
+        private static String key(String jid) {
+            return XmppStringUtils.parseBareJid(jid).toLowerCase(Locale.US);
+        }
+
+        /** Adds the JIDs from a roster match response. */
+        public synchronized void addRosterMatch(String[] list) {
+            mRosterReceived = true;
+            if (list != null) {
+                for (String jid : list) {
+                    PresenceItem p = new PresenceItem();
+                    p.from = jid;
+                    if (mItems.put(key(jid), p) == null)
+                        mRosterCount++;
+                }
+            }
+        }
+
+        public synchronized void addPresence(String jid, String status, long timestamp) {
+            String bareJid = XmppStringUtils.parseBareJid(jid);
+            String key = bareJid.toLowerCase(Locale.US);
+            PresenceItem item = mItems.get(key);
+            if (item == null) {
+                // add item if not found
+                item = new PresenceItem();
+                item.from = bareJid;
+                mItems.put(key, item);
+            }
+
+            item.status = status;
+            item.timestamp = timestamp;
+            item.presence = true;
+        }
+
+        public synchronized void addPublicKey(String jid, byte[] publicKey) {
+            // see if bare JID is present in roster response
+            PresenceItem item = mItems.get(key(jid));
+            if (item != null) {
+                if (item.publicKey == null)
+                    mPubkeyCount++;
+                item.publicKey = publicKey;
+            }
+        }
+
+        public synchronized void setBlocklist(String[] list) {
+            mBlocklistReceived = true;
+            if (list != null) {
+                for (String jid : list) {
+                    // see if bare JID is present in roster response
+                    PresenceItem item = mItems.get(key(jid));
+                    if (item != null)
+                        item.blocked = true;
+                }
+            }
+        }
+
+        public synchronized boolean isRosterReceived() {
+            return mRosterReceived;
+        }
+
+        /** Number of users in the roster match responses. */
+        public synchronized int getRosterCount() {
+            return mRosterCount;
+        }
+
+        public synchronized boolean isBlocklistReceived() {
+            return mBlocklistReceived;
+        }
+
+        /** True when a public key was received for every user in the roster match. */
+        public synchronized boolean isPublicKeysComplete() {
+            return mRosterReceived && mPubkeyCount >= mRosterCount;
+        }
+
+        /** Returns a copy of the items collected so far. */
+        public synchronized List<PresenceItem> getItems() {
+            return new ArrayList<PresenceItem>(mItems.values());
+        }
+    }
+
     // FIXME this class should handle most recent/available presence stanzas
     private static final class PresenceBroadcastReceiver extends BroadcastReceiver {
         /** Max number of items in a roster match request. */
         private static final int MAX_ROSTER_MATCH_SIZE = 500;
 
-        private List<PresenceItem> response;
+        private final PresenceCollector response = new PresenceCollector();
         private final WeakReference<Syncer> notifyTo;
 
         private final List<String> jidList;
         private int rosterParts = -1;
-        private String[] iq;
+        private Set<String> iq;
         private String presenceId;
 
-        private int presenceCount;
-        private int pubkeyCount;
-        private int rosterCount;
-        private boolean blocklistReceived;
+        private boolean finished;
+        /** Time of the last response received. */
+        private volatile long lastActivity = SystemClock.elapsedRealtime();
 
         public PresenceBroadcastReceiver(List<String> jidList, Syncer notifyTo) {
             this.notifyTo = new WeakReference<Syncer>(notifyTo);
@@ -129,26 +232,21 @@ public class Syncer {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
+            lastActivity = SystemClock.elapsedRealtime();
 
             if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
 
                 // consider only presences received *after* roster response
-                if (response != null && presenceId != null) {
+                if (response.isRosterReceived() && presenceId != null) {
 
                     String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
                     String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
                     String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
                     if (type != null && presenceId.equals(id)) {
                         // update presence item data
-                        String bareJid = XmppStringUtils.parseBareJid(jid);
-                        PresenceItem item = getPresenceItem(bareJid);
-                        item.status = intent.getStringExtra(MessageCenterService.EXTRA_STATUS);
-                        item.timestamp = intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1);
-                        if (!item.presence) {
-                            item.presence = true;
-                            // increment presence count
-                            presenceCount++;
-                        }
+                        response.addPresence(jid,
+                            intent.getStringExtra(MessageCenterService.EXTRA_STATUS),
+                            intent.getLongExtra(MessageCenterService.EXTRA_STAMP, -1));
                     }
                 }
             }
@@ -156,97 +254,54 @@ public class Syncer {
             // roster match result received
             else if (MessageCenterService.ACTION_ROSTER_MATCH.equals(action)) {
                 String id = intent.getStringExtra(MessageCenterService.EXTRA_PACKET_ID);
-                for (String iqId : iq) {
-                    if (iqId.equals(id)) {
-                        // decrease roster parts counter
-                        rosterParts--;
-
-                        String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST);
-                        if (list != null) {
-                            rosterCount += list.length;
-                            if (response == null) {
-                                // prepare list to be filled in with presence data
-                                response = new ArrayList<PresenceItem>(rosterCount);
-                            }
-                            for (String jid : list) {
-                                PresenceItem p = new PresenceItem();
-                                p.from = jid;
-                                response.add(p);
-                            }
-                        }
+                if (iq != null && iq.remove(id)) {
+                    // decrease roster parts counter
+                    rosterParts--;
 
-                        if (rosterParts <= 0) {
-                            // all roster parts received
+                    response.addRosterMatch(intent
+                        .getStringArrayExtra(MessageCenterService.EXTRA_JIDLIST));
 
-                            if (rosterCount == 0 && blocklistReceived) {
-                                // no roster elements
-                                finish();
-                            }
-                            else {
-                                Syncer w = notifyTo.get();
-                                if (w != null) {
-                                    // request presence data for the whole roster
-                                    presenceId = StringUtils.randomString(6);
-                                    w.requestPresenceData(presenceId);
-                                    // request public keys for the whole roster
-                                    w.requestPublicKeys();
-                                    // request block list
-                                    w.requestBlocklist();
-                                }
+                    if (rosterParts <= 0) {
+                        // all roster parts received
+
+                        if (response.getRosterCount() == 0 && response.isBlocklistReceived()) {
+                            // no roster elements
+                            finish();
+                        }
+                        else {
+                            Syncer w = notifyTo.get();
+                            if (w != null) {
+                                // request presence data for the whole roster
+                                presenceId = StringUtils.randomString(6);
+                                w.requestPresenceData(presenceId);
+                                // request public keys for the whole roster
+                                w.requestPublicKeys();
+                                // request block list
+                                w.requestBlocklist();
                             }
                         }
-
-                        // no need to continue
-                        break;
                     }
                 }
             }
 
             else if (MessageCenterService.ACTION_PUBLICKEY.equals(action)) {
-                if (response != null) {
+                if (response.isRosterReceived()) {
                     String jid = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                    // see if bare JID is present in roster response
-                    String compare = XmppStringUtils.parseBareJid(jid);
-                    for (PresenceItem item : response) {
-                        if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                            item.publicKey = intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY);
-
-                            // increment vcard count
-                            pubkeyCount++;
-                            break;
-                        }
-                    }
+                    response.addPublicKey(jid,
+                        intent.getByteArrayExtra(MessageCenterService.EXTRA_PUBLIC_KEY));
 
                     // done with presence data and blocklist
-                    if (pubkeyCount == presenceCount && blocklistReceived)
+                    if (response.isPublicKeysComplete() && response.isBlocklistReceived())
                         finish();
-
                 }
-
             }
 
             else if (MessageCenterService.ACTION_BLOCKLIST.equals(action)) {
-                blocklistReceived = true;
-
-                String[] list = intent.getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST);
-                if (list != null) {
-
-                    for (String jid : list) {
-                        // see if bare JID is present in roster response
-                        String compare = XmppStringUtils.parseBareJid(jid);
-                        for (PresenceItem item : response) {
-                            if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(compare)) {
-                                item.blocked = true;
-
-                                break;
-                            }
-                        }
-                    }
-
-                }
+                response.setBlocklist(intent
+                    .getStringArrayExtra(MessageCenterService.EXTRA_BLOCKLIST));
 
                 // done with presence data and blocklist
-                if (pubkeyCount >= presenceCount)
+                if (response.isPublicKeysComplete())
                     finish();
             }
 
@@ -256,45 +311,42 @@ public class Syncer {
                 if (w != null) {
                     // request a roster match
                     rosterParts = getRosterParts(jidList);
-                    iq = new String[rosterParts];
+                    iq = new HashSet<String>(rosterParts);
                     for (int i = 0; i < rosterParts; i++) {
                         int end = (i+1)*MAX_ROSTER_MATCH_SIZE;
                         if (end >= jidList.size())
                             end = jidList.size();
                         List<String> slice = jidList.subList(i*MAX_ROSTER_MATCH_SIZE, end);
 
-                        iq[i] = StringUtils.randomString(6);
-                        w.requestRosterMatch(iq[i], slice);
+                        String id = StringUtils.randomString(6);
+                        iq.add(id);
+                        w.requestRosterMatch(id, slice);
                     }
                 }
             }
         }
 
-        private PresenceItem getPresenceItem(String jid) {
-            for (PresenceItem item : response) {
-                if (XmppStringUtils.parseBareJid(item.from).equalsIgnoreCase(jid))
-                    return item;
-            }
+        private int getRosterParts(List<String> jidList) {
+            return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
+        }
 
-            // add item if not found
-            PresenceItem item = new PresenceItem();
-            item.from = jid;
-            response.add(item);
-            return item;
+        public Collection<PresenceItem> getResponse() {
+            return response.isRosterReceived() ? response.getItems() : null;
         }
 
-        private int getRosterParts(List<String> jidList) {
-            return (int) Math.ceil((double) jidList.size() / MAX_ROSTER_MATCH_SIZE);
+        public boolean isFinished() {
+            return finished;
         }
 
-        public List<PresenceItem> getResponse() {
-            return (rosterCount >= 0) ? response : null;
+        public long getLastActivity() {
+            return lastActivity;
         }
 
         private void finish() {
             Syncer w = notifyTo.get();
             if (w != null) {
                 synchronized (w) {
+                    finished = true;
                     w.notifyAll();
                 }
             }
@@ -327,10 +379,10 @@ public class Syncer {
 
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * It first checks for every phone number in all contacts and it sends them
+     * to the server. Once a response is received, the raw contacts created by
+     * us are compared with the ones the server has found a match for: only the
+     * differences are applied (see {@link RawContactsDiff}).
      */
     public void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
@@ -437,9 +489,16 @@ public class Syncer {
 
             // wait for the service to complete its job
             synchronized (this) {
-                // wait for connection
+                // wait until all responses are received or the server stops responding
                 try {
-                    wait(MAX_WAIT_TIME);
+                    while (!receiver.isFinished() && !mCanceled) {
+                        long idle = SystemClock.elapsedRealtime() - receiver.getLastActivity();
+                        if (idle >= MAX_WAIT_TIME) {
+                            Log.w(TAG, "no response from server - giving up waiting");
+                            break;
+                        }
+                        wait(MAX_WAIT_TIME - idle);
+                    }
                 }
                 catch (InterruptedException e) {
                     // simulate canceled operation
@@ -452,37 +511,33 @@ public class Syncer {
             // last chance to quit
             if (mCanceled) throw new OperationCanceledException();
 
-            List<PresenceItem> res = receiver.getResponse();
+            Collection<PresenceItem> res = receiver.getResponse();
             if (res != null) {
-                ArrayList<ContentProviderOperation> operations =
-                    new ArrayList<ContentProviderOperation>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
                 String ownContactJid = null;
 
-                // this is the time - delete all Kontalk raw contacts
+                // compare with our current raw contacts
+                RawContactsDiff diff = new RawContactsDiff();
+                Map<String, String> displayNames;
                 try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
+                    loadRawContacts(account, provider, diff);
+                    displayNames = loadDisplayNames(provider);
                 }
                 catch (Exception e) {
-                    Log.e(TAG, "contact delete error", e);
+                    Log.e(TAG, "contact read error", e);
                     syncResult.databaseError = true;
                     return;
                 }
 
                 ContentValues registeredValues = new ContentValues();
                 registeredValues.put(Users.REGISTERED, 1);
-                for (int i = 0; i < res.size(); i++) {
-                    PresenceItem entry = res.get(i);
-
+                for (PresenceItem entry : res) {
                     final RawPhoneNumberEntry data = lookupNumbers
                         .get(XmppStringUtils.parseLocalpart(entry.from));
                     if (data != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.jid, operations, op);
-                        op++;
+                        // contact should be there
+                        String displayName = displayNames.get(data.lookupKey);
+                        diff.addWanted(data.jid,
+                            (displayName != null) ? displayName : data.number, data.number);
                     }
                     else {
                         syncResult.stats.numSkippedEntries++;
@@ -562,15 +617,13 @@ public class Syncer {
                     }
                 }
 
+                // write only what changed
+                diff.diff();
                 try {
-                    if (operations.size() > 0)
-                        provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
+                    applyChanges(account, provider, diff, syncResult);
                 }
                 catch (Exception e) {
                     Log.e(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries = op;
                     syncResult.databaseError = true;
                     return;
                 }
@@ -613,7 +666,7 @@ public class Syncer {
         i.setAction(MessageCenterService.ACTION_ROSTER_MATCH);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, id);
         i.putExtra(MessageCenterService.EXTRA_JIDLIST, list.toArray(new String[list.size()]));
-        mContext.startService(i);
+        MessageCenterService.startCommand(mContext, i);
     }
 
     private void requestPresenceData(String id) {
@@ -621,46 +674,128 @@ public class Syncer {
         i.setAction(MessageCenterService.ACTION_PRESENCE);
         i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.probe.toString());
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, id);
-        mContext.startService(i);
+        MessageCenterService.startCommand(mContext, i);
     }
 
     private void requestPublicKeys() {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_PUBLICKEY);
         i.putExtra(MessageCenterService.EXTRA_PACKET_ID, IQ_PACKET_ID);
-        mContext.startService(i);
+        MessageCenterService.startCommand(mContext, i);
     }
 
     private void requestBlocklist() {
         Intent i = new Intent(mContext, MessageCenterService.class);
         i.setAction(MessageCenterService.ACTION_BLOCKLIST);
-        mContext.startService(i);
+        MessageCenterService.startCommand(mContext, i);
     }
 
-    private String getDisplayName(ContentProviderClient client, String lookupKey, String defaultValue) {
-        String displayName = null;
-        Cursor nameQuery = null;
-        try {
-            nameQuery = client.query(
-                    Uri.withAppendedPath(ContactsContract.Contacts
-                            .CONTENT_LOOKUP_URI, lookupKey),
-                            new String[] { ContactsContract.Contacts.DISPLAY_NAME },
-                            null, null, null);
-            if (nameQuery.moveToFirst())
-                displayName = nameQuery.getString(0);
-        }
-        catch (Exception e) {
-            // ignored
+    /** Loads the display names of all system contacts (lookup key: display name). */
+    private Map<String, String> loadDisplayNames(ContentProviderClient client) throws RemoteException {
+        Map<String, String> names = new HashMap<String, String>();
+        Cursor c = client.query(ContactsContract.Contacts.CONTENT_URI,
+            new String[] {
+                ContactsContract.Contacts.LOOKUP_KEY,
+                ContactsContract.Contacts.DISPLAY_NAME
+            }, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String displayName = c.getString(1);
+                    if (displayName != null)
+                        names.put(c.getString(0), displayName);
+                }
+            }
+            finally {
+                c.close();
+            }
         }
-        finally {
-            // close cursor
+        return names;
+    }
+
+    /**
+     * Loads our current raw contacts into the diff. Raw contacts deleted by
+     * the user are loaded too, so they can be purged.
+     */
+    private void loadRawContacts(Account account, ContentProviderClient client, RawContactsDiff diff)
+            throws RemoteException {
+        Cursor c = client.query(syncAdapterUri(RawContacts.CONTENT_URI, account),
+            new String[] {
+                RawContacts._ID,
+                RAW_COLUMN_USERID,
+                RAW_COLUMN_DISPLAY_NAME,
+                RAW_COLUMN_PHONE,
+                RawContacts.DELETED
+            }, RawContacts.ACCOUNT_NAME + " = ? AND " + RawContacts.ACCOUNT_TYPE + " = ?",
+            new String[] { account.name, account.type }, null);
+        if (c != null) {
             try {
-                nameQuery.close();
+                while (c.moveToNext()) {
+                    if (c.getInt(4) != 0)
+                        diff.addDeleted(c.getLong(0));
+                    else
+                        diff.addExisting(c.getLong(0), c.getString(1), c.getString(2), c.getString(3));
+                }
             }
-            catch (Exception e) {}
+            finally {
+                c.close();
+            }
+        }
+    }
+
+    /** Applies the raw contacts changes in batches. */
+    private void applyChanges(Account account, ContentProviderClient provider,
+            RawContactsDiff diff, SyncResult syncResult)
+            throws RemoteException, OperationApplicationException {
+
+        ArrayList<ContentProviderOperation> operations =
+            new ArrayList<ContentProviderOperation>();
+
+        for (Long rawContactId : diff.getDeletes()) {
+            operations.add(ContentProviderOperation.newDelete(syncAdapterUri(ContentUris
+                    .withAppendedId(RawContacts.CONTENT_URI, rawContactId), account))
+                .withYieldAllowed(true)
+                .build());
+            applyBatch(provider, operations, false);
+        }
+
+        for (RawContactsDiff.Entry entry : diff.getUpdates()) {
+            updateContact(account, entry, operations);
+            applyBatch(provider, operations, false);
+        }
+
+        for (RawContactsDiff.Entry entry : diff.getInserts()) {
+            addContact(account, entry.displayName, entry.phone, entry.jid, operations);
+            applyBatch(provider, operations, false);
         }
 
-        return (displayName != null) ? displayName : defaultValue;
+        applyBatch(provider, operations, true);
+
+        syncResult.stats.numDeletes += diff.getDeletes().size();
+        syncResult.stats.numUpdates += diff.getUpdates().size();
+        syncResult.stats.numInserts += diff.getInserts().size();
+        syncResult.stats.numEntries += diff.getUpdates().size() + diff.getInserts().size();
+    }
+
+    /**
+     * Applies the given operations if there are enough of them or if forced.
+     * Must be called only between complete contacts because of back references.
+     */
+    private void applyBatch(ContentProviderClient provider,
+            ArrayList<ContentProviderOperation> operations, boolean force)
+            throws RemoteException, OperationApplicationException {
+        if (operations.size() >= MAX_BATCH_OPERATIONS || (force && operations.size() > 0)) {
+            provider.applyBatch(operations);
+            operations.clear();
+        }
+    }
+
+    private static Uri syncAdapterUri(Uri uri, Account account) {
+        return uri.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+            .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
+            .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
+            .build();
     }
 
     private int deleteAll(Account account, ContentProviderClient provider)
@@ -695,14 +830,47 @@ public class Syncer {
     }
     */
 
+    private void updateContact(Account account, RawContactsDiff.Entry entry,
+            List<ContentProviderOperation> operations) {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "updating contact \"" + entry.displayName + "\" <" + entry.phone + ">");
+        }
+
+        String[] args = { String.valueOf(entry.rawContactId) };
+
+        // update our RawContact
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(ContentUris
+                .withAppendedId(RawContacts.CONTENT_URI, entry.rawContactId), account))
+            .withValue(RAW_COLUMN_DISPLAY_NAME, entry.displayName)
+            .withValue(RAW_COLUMN_PHONE, entry.phone)
+            .withYieldAllowed(true)
+            .build());
+
+        // update the 'StructuredName' Data record
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI, account))
+            .withSelection(Data.RAW_CONTACT_ID + " = ? AND " +
+                Data.MIMETYPE + " = '" +
+                ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE + "'", args)
+            .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, entry.displayName)
+            .build());
+
+        // update the 'org.kontalk.user' Data record
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(Data.CONTENT_URI, account))
+            .withSelection(Data.RAW_CONTACT_ID + " = ? AND " +
+                Data.MIMETYPE + " = '" + Users.CONTENT_ITEM_TYPE + "'", args)
+            .withValue(DATA_COLUMN_DISPLAY_NAME, entry.displayName)
+            .withValue(DATA_COLUMN_PHONE, entry.phone)
+            .build());
+    }
+
     private void addContact(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "adding contact \"" + username + "\" <" + phone + ">");
         }
 
         ContentProviderOperation.Builder builder;
-        final int opIndex = index * 3;
+        final int opIndex = operations.size();
 
         // create our RawContact
         builder = ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
@@ -715,16 +883,16 @@ public class Syncer {
         operations.add(builder.build());
 
         // create a Data record of common type 'StructuredName' for our RawContact
-        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI)
             .withValueBackReference(ContactsContract.CommonDataKinds.StructuredName.RAW_CONTACT_ID, opIndex)
-            .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+            .withValue(Data.MIMETYPE, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
             .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username);
         operations.add(builder.build());
 
         // create a Data record of custom type 'org.kontalk.user' to display a link to the conversation
-        builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, opIndex)
-            .withValue(ContactsContract.Data.MIMETYPE, Users.CONTENT_ITEM_TYPE)
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI)
+            .withValueBackReference(Data.RAW_CONTACT_ID, opIndex)
+            .withValue(Data.MIMETYPE, Users.CONTENT_ITEM_TYPE)
             .withValue(DATA_COLUMN_DISPLAY_NAME, username)
             .withValue(DATA_COLUMN_ACCOUNT_NAME, mContext.getString(R.string.app_name))
             .withValue(DATA_COLUMN_PHONE, phone)
@@ -76,6 +76,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
@@ -140,6 +141,12 @@ public class ComposeMessageFragment extends ListFragment implements
 
     private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
+    private static final int MESSAGE_PAGE_QUERY_TOKEN = 8722;
+
+    /** Number of messages loaded at a time. */
+    private static final int PAGE_SIZE = MessageWindow.PAGE_SIZE;
+    /** Pages will be loaded when scrolling this close to the edges of the list. */
+    private static final int PAGE_PRELOAD_DISTANCE = 10;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = Activity.RESULT_FIRST_USER + 1;
     private static final int SELECT_ATTACHMENT_CONTACT = Activity.RESULT_FIRST_USER + 2;
@@ -170,6 +177,15 @@ public class ComposeMessageFragment extends ListFragment implements
 
     /** The thread id. */
     private long threadId = -1;
+
+    /** The thread the message window refers to. */
+    private long mWindowThreadId = -1;
+    /** The range of loaded messages. */
+    private final MessageWindow mWindow = new MessageWindow();
+    /** True while a page is being loaded. */
+    private boolean mLoadingPage;
+    /** True until the initial window has been displayed. */
+    private boolean mFirstWindow;
     private Conversation mConversation;
     private Bundle mArguments;
 
@@ -404,6 +420,7 @@ public class ComposeMessageFragment extends ListFragment implements
             MessageCenterService.sendBinaryMessage(getActivity(),
                 mUserJID, mime, uri, length, previewPath, encrypted, compress,
                 ContentUris.parseId(newMsg), msgId);
+            showLatestMessages();
         }
         else {
             getActivity().runOnUiThread(new Runnable() {
@@ -477,6 +494,7 @@ public class ComposeMessageFragment extends ListFragment implements
                     MessageCenterService.sendTextMessage(getActivity(),
                         mUserJID, mText, encrypted,
                         ContentUris.parseId(newMsg), msgId);
+                    showLatestMessages();
                 }
                 else {
                     getActivity().runOnUiThread(new Runnable() {
@@ -872,7 +890,7 @@ public class ComposeMessageFragment extends ListFragment implements
         i.setAction(MessageCenterService.ACTION_RETRY);
         i.putExtra(MessageCenterService.EXTRA_MESSAGE, ContentUris.withAppendedId
                 (Messages.CONTENT_URI, msg.getDatabaseId()));
-        getActivity().startService(i);
+        MessageCenterService.startCommand(getActivity(), i);
     }
 
     private static final int MENU_RETRY = 1;
@@ -1072,8 +1090,32 @@ public class ComposeMessageFragment extends ListFragment implements
             if (progress)
                 getActivity().setProgressBarIndeterminateVisibility(true);
 
-            CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-                    threadId);
+            if (mWindowThreadId != threadId) {
+                // new conversation: start from the latest messages
+                mWindowThreadId = threadId;
+                mWindow.reset();
+                mLoadingPage = false;
+                mFirstWindow = true;
+            }
+
+            if (mWindow.isLoaded()) {
+                // reload the current window
+                CompositeMessage.startQueryRange(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, mWindow.getStart(), mWindow.getEnd());
+            }
+            else {
+                long targetId = mFirstWindow ? getTargetMessage() : 0;
+                if (targetId > 0) {
+                    // load the page right before the target message first
+                    CompositeMessage.startQueryBefore(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+                        new PageRequest(PageRequest.TARGET_BEFORE, targetId),
+                        threadId, targetId, PAGE_SIZE / 2);
+                }
+                else {
+                    CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, PAGE_SIZE);
+                }
+            }
 
             if (reloadConversation)
                 Conversation.startQuery(mQueryHandler,
@@ -1085,6 +1127,95 @@ public class ComposeMessageFragment extends ListFragment implements
         }
     }
 
+    /** Returns the id of the message to scroll to, if any. */
+    private long getTargetMessage() {
+        Bundle args = myArguments();
+        return (args != null) ? args.getLong(ComposeMessage.EXTRA_MESSAGE, -1) : -1;
+    }
+
+    /** Loads a page of messages older than the current window. */
+    private void loadOlderMessages() {
+        mLoadingPage = true;
+        CompositeMessage.startQueryBefore(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+            new PageRequest(PageRequest.OLDER, mWindow.getStart()),
+            threadId, mWindow.getStart(), PAGE_SIZE);
+    }
+
+    /** Loads a page of messages newer than the current window. */
+    private void loadNewerMessages() {
+        mLoadingPage = true;
+        CompositeMessage.startQueryAfter(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+            new PageRequest(PageRequest.NEWER, mWindow.getEnd()),
+            threadId, mWindow.getEnd() - 1, PAGE_SIZE);
+    }
+
+    /** Moves the window back to the latest messages (e.g. after sending one). */
+    private void showLatestMessages() {
+        Activity activity = getActivity();
+        if (activity == null)
+            return;
+
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                if (mWindow.canLoadNewer() && mQueryHandler != null) {
+                    mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
+                    mWindow.reset();
+                    mLoadingPage = false;
+                    startQuery(false, false);
+                }
+            }
+        });
+    }
+
+    /** Ids of the messages in the current list cursor. */
+    private final MessageWindow.MessageIds mListMessageIds = new MessageWindow.MessageIds() {
+        public long getMessageId(int position) {
+            Cursor c = mListAdapter.getCursor();
+            return (c != null && c.moveToPosition(position)) ?
+                c.getLong(CompositeMessage.COLUMN_ID) : 0;
+        }
+    };
+
+    /** Cookie for page queries. */
+    private static final class PageRequest {
+        /** Page right before the target message. */
+        static final int TARGET_BEFORE = 1;
+        /** Page following the target message. */
+        static final int TARGET_AFTER = 2;
+        /** Page before the window. */
+        static final int OLDER = 3;
+        /** Page after the window. */
+        static final int NEWER = 4;
+
+        final int type;
+        final long id;
+
+        PageRequest(int type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private final AbsListView.OnScrollListener mListScrollListener = new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            if (totalItemCount <= 0 || mLoadingPage)
+                return;
+
+            if (firstVisibleItem <= PAGE_PRELOAD_DISTANCE && mWindow.canLoadOlder()) {
+                loadOlderMessages();
+            }
+            else if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PRELOAD_DISTANCE &&
+                    mWindow.canLoadNewer()) {
+                loadNewerMessages();
+            }
+        }
+    };
+
     private void loadConversationMetadata(Uri uri) {
         threadId = ContentUris.parseId(uri);
         mConversation = Conversation.loadFromId(getActivity(), threadId);
@@ -1407,6 +1538,7 @@ public class ComposeMessageFragment extends ListFragment implements
                     highlight, getListView(), this);
             mListAdapter.setOnContentChangedListener(mContentChangedListener);
             setListAdapter(mListAdapter);
+            getListView().setOnScrollListener(mListScrollListener);
         }
 
         if (threadId > 0) {
@@ -1748,14 +1880,14 @@ public class ComposeMessageFragment extends ListFragment implements
                                 i.setAction(MessageCenterService.ACTION_PRESENCE);
                                 i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
                                 i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribed.name());
-                                context.startService(i);
+                                MessageCenterService.startCommand(context, i);
 
                                 // request subscription
                                 i = new Intent(context, MessageCenterService.class);
                                 i.setAction(MessageCenterService.ACTION_PRESENCE);
                                 i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
                                 i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.subscribe.name());
-                                context.startService(i);
+                                MessageCenterService.startCommand(context, i);
 
                                 setStatusText(context.getString(R.string.invitation_sent_label));
                             }
@@ -1895,7 +2027,7 @@ public class ComposeMessageFragment extends ListFragment implements
                 i.setAction(MessageCenterService.ACTION_PRESENCE);
                 i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
                 i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.probe.name());
-                context.startService(i);
+                MessageCenterService.startCommand(context, i);
             }
         }
     }
@@ -2105,7 +2237,9 @@ public class ComposeMessageFragment extends ListFragment implements
 
         // be sure to cancel all queries
         mQueryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
         mQueryHandler.cancelOperation(CONVERSATION_QUERY_TOKEN);
+        mLoadingPage = false;
     }
 
     @Override
@@ -2229,12 +2363,18 @@ public class ComposeMessageFragment extends ListFragment implements
                         // see if we have to scroll to a specific message
                         int newSelectionPos = -1;
 
-                        Bundle args = myArguments();
-                        if (args != null) {
-                            long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE,
-                                    -1);
-                            if (msgId > 0) {
+                        if (!mWindow.isLoaded()) {
+                            // latest messages: older ones are available if the page is full
+                            mWindow.latestLoaded(cursor.getCount(), cursor.moveToFirst() ?
+                                cursor.getLong(CompositeMessage.COLUMN_ID) : 0);
+                        }
+
+                        if (mFirstWindow) {
+                            mFirstWindow = false;
 
+                            // the window starts close to the target message
+                            long msgId = getTargetMessage();
+                            if (msgId > 0) {
                                 cursor.moveToPosition(-1);
                                 while (cursor.moveToNext()) {
                                     long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
@@ -2246,9 +2386,25 @@ public class ComposeMessageFragment extends ListFragment implements
                             }
                         }
 
+                        ListView list = getListView();
+                        int shift = mWindow.takeRowShift();
+                        int firstVisible = list.getFirstVisiblePosition();
+                        View firstView = list.getChildAt(0);
+                        int top = (firstView != null) ? firstView.getTop() : 0;
+
+                        // don't follow new rows if the window doesn't reach the latest message
+                        list.setTranscriptMode(mWindow.canLoadNewer() ?
+                            ListView.TRANSCRIPT_MODE_DISABLED : ListView.TRANSCRIPT_MODE_NORMAL);
+
                         mListAdapter.changeCursor(cursor);
-                        if (newSelectionPos > 0)
-                            getListView().setSelection(newSelectionPos);
+                        if (newSelectionPos > 0) {
+                            list.setSelection(newSelectionPos);
+                        }
+                        else if (shift != 0) {
+                            // rows were added or removed on top: keep position
+                            list.setSelectionFromTop(Math.max(0, firstVisible + shift), top);
+                        }
+                        mLoadingPage = false;
 
                         getActivity().setProgressBarIndeterminateVisibility(false);
                         updateUI();
@@ -2256,6 +2412,52 @@ public class ComposeMessageFragment extends ListFragment implements
 
                     break;
 
+                case MESSAGE_PAGE_QUERY_TOKEN: {
+                    PageRequest page = (PageRequest) cookie;
+                    int count = cursor.getCount();
+                    long start = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+                    long end = cursor.moveToLast() ? cursor.getLong(0) : 0;
+                    cursor.close();
+
+                    int listCount = mListAdapter.getCount();
+
+                    switch (page.type) {
+                        case PageRequest.TARGET_BEFORE:
+                            // page before target message: window starts here
+                            mWindow.targetBeforeLoaded(page.id, count, start);
+                            // now find where the window ends
+                            CompositeMessage.startQueryAfter(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
+                                new PageRequest(PageRequest.TARGET_AFTER, page.id),
+                                threadId, page.id, PAGE_SIZE / 2);
+                            return;
+
+                        case PageRequest.TARGET_AFTER:
+                            mWindow.targetAfterLoaded(count, end);
+                            break;
+
+                        case PageRequest.OLDER:
+                            if (!mWindow.olderLoaded(count, start, listCount, mListMessageIds)) {
+                                // no older messages
+                                mLoadingPage = false;
+                                return;
+                            }
+                            break;
+
+                        case PageRequest.NEWER:
+                            if (!mWindow.newerLoaded(page.id, count, end, listCount, mListMessageIds)) {
+                                // window changed in the meantime
+                                mLoadingPage = false;
+                                return;
+                            }
+                            break;
+                    }
+
+                    // reload the window including the new page
+                    CompositeMessage.startQueryRange(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
+                        threadId, mWindow.getStart(), mWindow.getEnd());
+                    break;
+                }
+
                 case CONVERSATION_QUERY_TOKEN:
                     if (cursor.moveToFirst()) {
                         mConversation = Conversation.createFromCursor(
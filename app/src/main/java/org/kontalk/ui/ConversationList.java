@@ -279,7 +279,7 @@ public class ConversationList extends ActionBarActivity
                 // mark all messages as old
                 MessagesProvider.markAllThreadsAsOld(context);
                 // update notification
-                MessagingNotification.updateMessagesNotification(context, false);
+                MessagingNotification.allThreadsOld(context);
             }
         }).start();
 
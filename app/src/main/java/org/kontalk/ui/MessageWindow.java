@@ -0,0 +1,167 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+
+/**
+ * The range of messages shown by a conversation. Messages are identified by
+ * id: the window goes from {@link #getStart()} (inclusive) up to
+ * {@link #getEnd()} (exclusive, 0 if it reaches the latest message). Pages
+ * are added on either side and the window is trimmed on the opposite side
+ * to keep at most {@link #MAX_SIZE} messages.
+ * @author Daniele Ricci
+ */
+class MessageWindow {
+    /** Number of messages loaded at a time. */
+    static final int PAGE_SIZE = 100;
+    /** Maximum number of messages kept in the window. */
+    static final int MAX_SIZE = PAGE_SIZE * 3;
+
+    /** The messages currently in the window, sorted by id. */
+    interface MessageIds {
+        /** Returns the id of the message at the given position, 0 if not available. */
+        long getMessageId(int position);
+    }
+
+    /** Id of the oldest loaded message (0 if nothing was loaded yet). */
+    private long mStart;
+    /** Id the window ends before (0 if the window reaches the latest message). */
+    private long mEnd;
+    /** True if the conversation might have messages older than the window. */
+    private boolean mHasOlder;
+    /** Number of rows added (or removed, if negative) on top of the list by the last page load. */
+    private int mRowShift;
+
+    /** Goes back to an empty window. */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+        mHasOlder = false;
+        mRowShift = 0;
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    /** True if the window has been positioned. */
+    public boolean isLoaded() {
+        return mStart > 0;
+    }
+
+    /** True if a page of older messages might be loaded. */
+    public boolean canLoadOlder() {
+        return mHasOlder && mStart > 0;
+    }
+
+    /** True if a page of newer messages might be loaded. */
+    public boolean canLoadNewer() {
+        return mEnd > 0;
+    }
+
+    /** Returns the rows added (or removed) on top by the last page, then forgets them. */
+    public int takeRowShift() {
+        int shift = mRowShift;
+        mRowShift = 0;
+        return shift;
+    }
+
+    /**
+     * The latest messages have been loaded.
+     * @param count number of messages loaded
+     * @param firstId id of the oldest message loaded, 0 if none
+     */
+    public void latestLoaded(int count, long firstId) {
+        mHasOlder = count >= PAGE_SIZE;
+        if (firstId > 0)
+            mStart = firstId;
+    }
+
+    /**
+     * The page right before a target message has been loaded (half a page):
+     * the window starts there.
+     */
+    public void targetBeforeLoaded(long targetId, int count, long firstId) {
+        mStart = (firstId > 0) ? firstId : targetId;
+        mHasOlder = count >= PAGE_SIZE / 2;
+    }
+
+    /**
+     * The page right after a target message has been loaded (half a page):
+     * the window ends there, unless it reaches the latest message.
+     */
+    public void targetAfterLoaded(int count, long lastId) {
+        mEnd = (count >= PAGE_SIZE / 2) ? lastId + 1 : 0;
+    }
+
+    /**
+     * A page of messages older than the window has been loaded. The newest
+     * messages are dropped if the window grows too big.
+     * @param count number of messages loaded
+     * @param firstId id of the oldest message loaded, 0 if none
+     * @param listCount number of messages in the window before this page
+     * @return false if there are no older messages
+     */
+    public boolean olderLoaded(int count, long firstId, int listCount, MessageIds ids) {
+        mHasOlder = count >= PAGE_SIZE;
+        if (firstId <= 0)
+            return false;
+
+        mStart = firstId;
+        mRowShift = count;
+        if (listCount + count > MAX_SIZE) {
+            // the first message left out is the new (exclusive) end
+            long end = ids.getMessageId(MAX_SIZE - count);
+            if (end > 0)
+                mEnd = end;
+        }
+        return true;
+    }
+
+    /**
+     * A page of messages newer than the window has been loaded. The oldest
+     * messages are dropped if the window grows too big.
+     * @param requestedEnd the window end when the page was requested
+     * @param count number of messages loaded
+     * @param lastId id of the newest message loaded, 0 if none
+     * @param listCount number of messages in the window before this page
+     * @return false if the window changed in the meantime
+     */
+    public boolean newerLoaded(long requestedEnd, int count, long lastId, int listCount, MessageIds ids) {
+        if (requestedEnd != mEnd)
+            return false;
+
+        mEnd = (count >= PAGE_SIZE) ? lastId + 1 : 0;
+        if (listCount + count > MAX_SIZE) {
+            int drop = listCount + count - MAX_SIZE;
+            long start = ids.getMessageId(drop);
+            if (start > 0) {
+                mStart = start;
+                mHasOlder = true;
+                mRowShift = -drop;
+            }
+        }
+        return true;
+    }
+
+}
@@ -18,8 +18,9 @@
 
 package org.kontalk.ui;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
@@ -29,6 +30,7 @@ import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MyMessages.CommonColumns;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
+import org.kontalk.provider.MyMessages.Threads.Conversations;
 import org.kontalk.util.Preferences;
 
 import android.accounts.Account;
@@ -37,6 +39,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -45,6 +48,9 @@ import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.BigTextStyle;
 import android.support.v4.app.NotificationCompat.InboxStyle;
@@ -74,31 +80,49 @@ public class MessagingNotification {
     /** Minimum delay for progress notification updates. */
     public static final int NOTIFICATION_UPDATE_DELAY = 500;
 
-    private static final String[] MESSAGES_UNREAD_PROJECTION =
-    {
-        Messages.THREAD_ID,
-        CommonColumns.PEER,
-        Messages.BODY_CONTENT,
-        Messages.ATTACHMENT_MIME,
-        CommonColumns.ENCRYPTED,
-    };
+    /** Delay for coalescing messages notification updates. */
+    private static final int MESSAGES_UPDATE_DELAY = 250;
+    /** Maximum number of conversations listed in the inbox style notification. */
+    private static final int MAX_INBOX_LINES = 5;
 
-    private static final String[] THREADS_UNREAD_PROJECTION =
+    private static final String[] THREADS_NEW_PROJECTION =
     {
         CommonColumns._ID,
         CommonColumns.PEER,
+        CommonColumns.NEW,
         Threads.MIME,
         Threads.CONTENT,
         CommonColumns.ENCRYPTED,
-        CommonColumns.UNREAD,
     };
 
-    private static final String MESSAGES_UNREAD_SELECTION =
+    private static final String THREADS_NEW_SELECTION =
+        CommonColumns.NEW + " > 0";
+
+    private static final String[] MESSAGES_NEW_PROJECTION =
+    {
+        Messages.BODY_CONTENT,
+        Messages.ATTACHMENT_MIME,
+        CommonColumns.ENCRYPTED,
+    };
+
+    private static final String MESSAGES_NEW_SELECTION =
         CommonColumns.NEW + " <> 0 AND " +
         CommonColumns.DIRECTION + " = " + Messages.DIRECTION_IN;
 
-    /** Pending delayed notification update flag. */
-    private static volatile boolean sPending;
+    /** Notification updates thread. */
+    private static Handler sHandler;
+
+    /**
+     * New messages summary. This and the following fields are accessed
+     * only from the notification thread.
+     */
+    private static final NotificationSummary sSummary = new NotificationSummary();
+    /** True if the summary has been loaded from the database. */
+    private static boolean sLoaded;
+    /** Pending notification update flag. */
+    private static boolean sUpdatePending;
+    /** The pending notification update will start alerts. */
+    private static boolean sAlert;
 
     /** Peer to NOT be notified for new messages. */
     private static volatile String sPaused;
@@ -115,6 +139,7 @@ public class MessagingNotification {
         public void onReceive(Context context, Intent intent) {
             // mark all messages as old
             MessagesProvider.markAllThreadsAsOld(context);
+            allThreadsOld(context);
         }
     }
 
@@ -143,142 +168,198 @@ public class MessagingNotification {
         return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
     }
 
-    /** Starts messages notification updates in another thread. */
-    public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context))
-            return;
+    /** Returns the handler of the notification thread. */
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("MessagingNotification", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
 
-        if (!sPending) {
-            sPending = true;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    updateMessagesNotification(context, isNew);
-                    sPending = false;
+    /**
+     * Adds a batch of stored incoming messages to the messages notification.
+     * @param messages values of the stored messages
+     * @param isNew if true starts notification alerts
+     */
+    public static void messagesReceived(Context context, final List<ContentValues> messages, final boolean isNew) {
+        final Context appContext = context.getApplicationContext();
+        getHandler().post(new Runnable() {
+            public void run() {
+                if (sLoaded) {
+                    for (ContentValues values : messages) {
+                        sSummary.add(values.getAsString(Messages.PEER),
+                            getSnippet(appContext,
+                                values.getAsByteArray(Messages.BODY_CONTENT),
+                                values.getAsString(Messages.ATTACHMENT_MIME),
+                                Boolean.TRUE.equals(values.getAsBoolean(Messages.ENCRYPTED))));
+                    }
                 }
-            }).start();
-        }
+                else {
+                    loadSummary(appContext);
+                }
+                scheduleUpdate(appContext, isNew);
+            }
+        });
+    }
+
+    /** Removes a conversation whose messages have been read from the messages notification. */
+    public static void threadRead(Context context, final String peer) {
+        final Context appContext = context.getApplicationContext();
+        getHandler().post(new Runnable() {
+            public void run() {
+                if (sLoaded) {
+                    if (sSummary.remove(peer))
+                        scheduleUpdate(appContext, false);
+                }
+                else {
+                    loadSummary(appContext);
+                    scheduleUpdate(appContext, false);
+                }
+            }
+        });
+    }
+
+    /** Clears the messages notification after all messages have been marked as old. */
+    public static void allThreadsOld(Context context) {
+        final Context appContext = context.getApplicationContext();
+        getHandler().post(new Runnable() {
+            public void run() {
+                sSummary.clear();
+                sLoaded = true;
+                scheduleUpdate(appContext, false);
+            }
+        });
     }
 
     /**
-     * Updates system notification for unread messages.
+     * Reloads new messages from the database and updates the messages
+     * notification. Use this when messages were changed outside of the
+     * received/read events, e.g. when a thread is deleted.
      * @param context
      * @param isNew if true a new message has come (starts notification alerts)
      */
-    public static void updateMessagesNotification(Context context, boolean isNew) {
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context))
-            return;
-        // no default account. WTF?!?
-        Account account = Authenticator.getDefaultAccount(context);
-        if (account == null)
-            return;
-
-        // if notifying new messages, wait a little bit
-        // to let all incoming messages come through
-        /*
-        FIXME this is useless because message are slow to arrive anyway
-        (time to receive packs, store messages in db, etc. wastes too much time
-        if (isNew) {
-            try {
-                Thread.sleep(500);
-            }
-            catch (InterruptedException e) {
-                // ignored
+    public static void updateMessagesNotification(Context context, final boolean isNew) {
+        final Context appContext = context.getApplicationContext();
+        getHandler().post(new Runnable() {
+            public void run() {
+                loadSummary(appContext);
+                scheduleUpdate(appContext, isNew);
             }
+        });
+    }
+
+    /** Schedules a notification update, coalescing events in the meantime. */
+    private static void scheduleUpdate(final Context context, boolean isNew) {
+        sAlert |= isNew;
+        if (!sUpdatePending) {
+            sUpdatePending = true;
+            getHandler().postDelayed(new Runnable() {
+                public void run() {
+                    boolean alert = sAlert;
+                    sUpdatePending = false;
+                    sAlert = false;
+                    showMessagesNotification(context, alert);
+                }
+            }, MESSAGES_UPDATE_DELAY);
         }
-        */
+    }
+
+    /**
+     * Loads the summary from the database: one row for each conversation
+     * with new messages, plus the latest snippets of the most recent one.
+     */
+    private static void loadSummary(Context context) {
+        sSummary.clear();
+        sLoaded = true;
 
         ContentResolver res = context.getContentResolver();
-        NotificationManager nm = (NotificationManager) context
-            .getSystemService(Context.NOTIFICATION_SERVICE);
+        Cursor c = res.query(Threads.CONTENT_URI, THREADS_NEW_PROJECTION,
+            THREADS_NEW_SELECTION, null, Threads.INVERTED_SORT_ORDER);
+        if (c == null)
+            return;
 
-        String query = MESSAGES_UNREAD_SELECTION;
-        String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
+        long lastThreadId = 0;
+        String lastPeer = null;
+        int lastCount = 0;
+        try {
+            while (c.moveToNext()) {
+                lastThreadId = c.getLong(0);
+                lastPeer = c.getString(1);
+                lastCount = c.getInt(2);
+                String content = c.getString(4);
+                String snippet = getSnippet(context,
+                    content != null ? content.getBytes() : null,
+                    c.getString(3), c.getInt(5) != 0);
+
+                sSummary.set(lastPeer, lastCount, Collections.singletonList(snippet));
+            }
         }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
+        finally {
+            c.close();
         }
 
-        // is there a peer to not notify for?
-        if (sPaused != null) {
-            query += " AND " + CommonColumns.PEER + " <> ?";
-            args = new String[] { sPaused };
+        // latest snippets of the most recent conversation
+        if (lastCount > 1) {
+            c = res.query(Conversations.getPageUri(lastThreadId, 0, 0, 0,
+                    NotificationSummary.MAX_SNIPPETS),
+                MESSAGES_NEW_PROJECTION, MESSAGES_NEW_SELECTION, null,
+                Messages.DEFAULT_SORT_ORDER);
+            if (c != null) {
+                List<String> snippets = new ArrayList<String>(c.getCount());
+                try {
+                    while (c.moveToNext())
+                        snippets.add(getSnippet(context, c.getBlob(0),
+                            c.getString(1), c.getInt(2) != 0));
+                }
+                finally {
+                    c.close();
+                }
+
+                if (snippets.size() > 0)
+                    sSummary.set(lastPeer, lastCount, snippets);
+            }
         }
+    }
 
-        Cursor c = res.query(uri, proj, query, args, order);
+    private static String getSnippet(Context context, byte[] content, String attMime, boolean encrypted) {
+        if (encrypted)
+            return context.getString(R.string.text_encrypted);
+        else if (content == null && attMime != null)
+            return CompositeMessage.getSampleTextContent(attMime);
+        else
+            return content != null ? new String(content) : "";
+    }
 
-        // this shouldn't happen, but who knows...
-        if (c == null) {
-            nm.cancel(NOTIFICATION_ID_MESSAGES);
+    /** Updates the system notification for new messages from the summary. */
+    private static void showMessagesNotification(Context context, boolean isNew) {
+        NotificationManager nm = (NotificationManager) context
+            .getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // notifications are disabled
+        if (!Preferences.getNotificationsEnabled(context))
+            return;
+        // no default account. WTF?!?
+        Account account = Authenticator.getDefaultAccount(context);
+        if (account == null)
             return;
-        }
 
-        // no unread messages - delete notification
-        int unread = c.getCount();
-        if (unread == 0) {
-            c.close();
+        // skip the peer we are not notifying for
+        List<NotificationSummary.Conversation> convs = sSummary.getConversations(sPaused);
+
+        // no new messages - delete notification
+        int unread = sSummary.getCount(sPaused);
+        if (convs.size() == 0 || unread == 0) {
             nm.cancel(NOTIFICATION_ID_MESSAGES);
             return;
         }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context.getApplicationContext());
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
 
         if (supportsBigNotifications()) {
-            Map<String, CharSequence[]> convs = new HashMap<String, CharSequence[]>();
-
-            String peer = null;
-            long id = 0;
-            while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(0);
-                peer = c.getString(1);
-                byte[] content = c.getBlob(2);
-                String attMime = c.getString(3);
-
-                CharSequence[] b = convs.get(peer);
-                if (b == null) {
-                    b = new CharSequence[2];
-                    b[0] = new StringBuilder();
-                    b[1] = null;
-                    convs.put(peer, b);
-                }
-                else {
-                    ((StringBuilder) b[0]).append('\n');
-                }
-
-                String textContent;
-
-                boolean encrypted = c.getInt(4) != 0;
-                if (encrypted) {
-                    textContent = context.getString(R.string.text_encrypted);
-                }
-                else if (content == null && attMime != null) {
-                    textContent = CompositeMessage.getSampleTextContent(attMime);
-                }
-                else {
-                    textContent = content != null ? new String(content) : "";
-                }
-
-                ((StringBuilder) b[0]).append(textContent);
-                b[1] = textContent;
-            }
-            c.close();
-
             // TODO we are not ready for this -- builder.addAction(android.R.drawable.ic_menu_revert, "Reply", accumulator.getPendingIntent());
 
-            /* -- FIXME FIXME VERY UGLY CODE FIXME FIXME -- */
-
             Style style;
             CharSequence title, text, ticker;
 
@@ -295,10 +376,10 @@ public class MessagingNotification {
                 // text: comma separated names (TODO RTL?)
                 StringBuilder btext = new StringBuilder();
                 int count = 0;
-                for (String user : convs.keySet()) {
+                for (NotificationSummary.Conversation conv : convs) {
                     count++;
 
-                    Contact contact = Contact.findByUserId(context, user);
+                    Contact contact = Contact.findByUserId(context, conv.peer);
                     String name = (contact != null) ? contact.getName() :
                         context.getString(R.string.peer_unknown);
 
@@ -309,14 +390,14 @@ public class MessagingNotification {
                     }
 
                     // inbox line
-                    if (count < 5) {
+                    if (count <= MAX_INBOX_LINES) {
                         SpannableStringBuilder buf = new SpannableStringBuilder();
                         buf.append(name).append(' ');
                         buf.setSpan(new ForegroundColorSpan(context.getResources()
                                 .getColor(R.color.notification_name_color)),
                             0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                         // take just the last message
-                        buf.append(convs.get(user)[1]);
+                        buf.append(conv.getLastSnippet());
 
                         ((InboxStyle) style).addLine(buf);
                     }
@@ -329,9 +410,9 @@ public class MessagingNotification {
                     text = "(unknown users)";
 
                 String summary;
-                if (count > 5)
+                if (count > MAX_INBOX_LINES)
                     // TODO i18n
-                    summary = "+" + (convs.size() - count) + " more";
+                    summary = "+" + (count - MAX_INBOX_LINES) + " more";
                 else
                     summary = account.name;
 
@@ -339,8 +420,15 @@ public class MessagingNotification {
             }
             // one conversation, use BigTextStyle
             else {
-                String content = convs.get(peer)[0].toString();
-                CharSequence last = convs.get(peer)[1];
+                NotificationSummary.Conversation conv = convs.get(0);
+                StringBuilder buffer = new StringBuilder();
+                for (String snippet : conv.snippets) {
+                    if (buffer.length() > 0)
+                        buffer.append('\n');
+                    buffer.append(snippet);
+                }
+                String content = buffer.toString();
+                CharSequence last = conv.getLastSnippet();
 
                 // big text content
                 style = new BigTextStyle();
@@ -348,7 +436,7 @@ public class MessagingNotification {
                 ((BigTextStyle) style).setSummaryText(account.name);
 
                 // ticker
-                Contact contact = Contact.findByUserId(context, peer);
+                Contact contact = Contact.findByUserId(context, conv.peer);
                 String name = (contact != null) ? contact.getName() :
                     context.getString(R.string.peer_unknown);
                     // debug mode -- conversation.peer;
@@ -396,7 +484,7 @@ public class MessagingNotification {
             }
             // one unread conversation - open ComposeMessage on that peer
             else {
-                ni = ComposeMessage.fromConversation(context, id);
+                ni = ComposeMessage.fromUserId(context, convs.get(0).peer);
             }
             PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID_MESSAGES,
                     ni, 0);
@@ -406,25 +494,12 @@ public class MessagingNotification {
 
         else {
 
-            // loop all threads and accumulate them
+            // accumulate all conversations, least recent first
             MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                String content = c.getString(3);
-                boolean encrypted = c.getInt(4) != 0;
-
-                if (encrypted)
-                    content = context.getString(R.string.text_encrypted);
-                else if (content == null)
-                    content = CompositeMessage.getSampleTextContent(c.getString(2));
-
-                accumulator.accumulate(
-                    c.getLong(0),
-                    c.getString(1),
-                    content,
-                    c.getInt(5)
-                );
+            for (int i = convs.size() - 1; i >= 0; i--) {
+                NotificationSummary.Conversation conv = convs.get(i);
+                accumulator.accumulate(conv.peer, conv.getLastSnippet(), conv.count);
             }
-            c.close();
 
             builder.setTicker(accumulator.getTicker());
             Contact contact = accumulator.getContact();
@@ -590,7 +665,6 @@ public class MessagingNotification {
      */
     private static final class MessageAccumulator {
         private final class ConversationStub {
-            public long id;
             public String peer;
             public String content;
         }
@@ -606,7 +680,7 @@ public class MessagingNotification {
         }
 
         /** Adds a conversation thread to the accumulator. */
-        public void accumulate(long id, String peer, String content, int unread) {
+        public void accumulate(String peer, String content, int unread) {
             // check old accumulated conversation
             if (conversation != null) {
                 if (!conversation.peer.equalsIgnoreCase(peer))
@@ -618,7 +692,6 @@ public class MessagingNotification {
                 conversation = new ConversationStub();
             }
 
-            conversation.id = id;
             conversation.peer = peer;
             conversation.content = content;
 
@@ -680,7 +753,7 @@ public class MessagingNotification {
             }
             // one unread conversation - open ComposeMessage on that peer
             else {
-                ni = ComposeMessage.fromConversation(mContext, conversation.id);
+                ni = ComposeMessage.fromUserId(mContext, conversation.peer);
             }
             return PendingIntent.getActivity(mContext, NOTIFICATION_ID_MESSAGES,
                     ni, 0);
@@ -696,7 +769,7 @@ public class MessagingNotification {
 
         public PendingIntent getLastMessagePendingIntent() {
             // one unread conversation - open ComposeMessage on that peer
-            Intent ni = ComposeMessage.fromConversation(mContext, conversation.id);
+            Intent ni = ComposeMessage.fromUserId(mContext, conversation.peer);
             return PendingIntent.getActivity(mContext, NOTIFICATION_ID_QUICK_REPLY,
                     ni, 0);
         }
@@ -0,0 +1,146 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Locale;
+
+
+/**
+ * In-memory summary of new incoming messages, grouped by conversation.
+ * It is kept up to date from message insert and read events, so the
+ * messages notification can be rebuilt without querying the database.
+ * This class is not thread-safe.
+ * @author Daniele Ricci
+ */
+class NotificationSummary {
+    /** Number of message snippets kept for each conversation. */
+    static final int MAX_SNIPPETS = 5;
+
+    static final class Conversation {
+        final String peer;
+        int count;
+        /** Latest message snippets, oldest first. */
+        final LinkedList<String> snippets = new LinkedList<String>();
+
+        Conversation(String peer) {
+            this.peer = peer;
+        }
+
+        void addSnippet(String snippet) {
+            snippets.add(snippet);
+            if (snippets.size() > MAX_SNIPPETS)
+                snippets.removeFirst();
+        }
+
+        String getLastSnippet() {
+            return snippets.isEmpty() ? null : snippets.getLast();
+        }
+    }
+
+    /** Conversations by lower case peer, least recently updated first. */
+    private final LinkedHashMap<String, Conversation> mConversations =
+        new LinkedHashMap<String, Conversation>();
+
+    private int mCount;
+
+    /** Adds a new incoming message. */
+    public void add(String peer, String snippet) {
+        // move the conversation to the end
+        String key = key(peer);
+        Conversation conv = mConversations.remove(key);
+        if (conv == null)
+            conv = new Conversation(peer);
+        mConversations.put(key, conv);
+
+        conv.count++;
+        conv.addSnippet(snippet);
+        mCount++;
+    }
+
+    /**
+     * Sets a conversation loaded from the database. Conversations must be
+     * set from the least recent one.
+     * @param snippets latest snippets, oldest first
+     */
+    public void set(String peer, int count, List<String> snippets) {
+        remove(peer);
+
+        Conversation conv = new Conversation(peer);
+        conv.count = count;
+        for (String snippet : snippets)
+            conv.addSnippet(snippet);
+        mConversations.put(key(peer), conv);
+        mCount += count;
+    }
+
+    /**
+     * Removes a conversation whose messages have been read.
+     * @return true if the conversation was in the summary
+     */
+    public boolean remove(String peer) {
+        Conversation conv = mConversations.remove(key(peer));
+        if (conv != null) {
+            mCount -= conv.count;
+            return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        mConversations.clear();
+        mCount = 0;
+    }
+
+    /** Returns the number of new messages, not counting the given peer. */
+    public int getCount(String excludePeer) {
+        Conversation conv = (excludePeer != null) ?
+            mConversations.get(key(excludePeer)) : null;
+        return (conv != null) ? mCount - conv.count : mCount;
+    }
+
+    /** Returns the conversations, most recent first, without the given peer. */
+    public List<Conversation> getConversations(String excludePeer) {
+        Conversation exclude = (excludePeer != null) ?
+            mConversations.get(key(excludePeer)) : null;
+        List<Conversation> list = new ArrayList<Conversation>(mConversations.size());
+        for (Conversation conv : mConversations.values()) {
+            if (conv != exclude)
+                list.add(conv);
+        }
+        Collections.reverse(list);
+        return list;
+    }
+
+    public boolean isEmpty() {
+        return mConversations.isEmpty();
+    }
+
+    /** JIDs are case insensitive. */
+    private static String key(String peer) {
+        return peer.toLowerCase(Locale.US);
+    }
+
+}
@@ -258,6 +258,10 @@ public class NumberValidation extends AccountAuthenticatorActionBarActivity
             }
         });
 
+        // start generating the key pair while the user fills in the form
+        if (savedInstanceState == null)
+            KeyPairGeneratorService.pregenerate(this);
+
         // configuration change??
         RetainData data = (RetainData) getLastCustomNonConfigurationInstance();
         if (data != null) {
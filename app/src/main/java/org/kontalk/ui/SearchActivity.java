@@ -23,7 +23,10 @@ import org.kontalk.R;
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
+import android.support.v7.widget.SearchView;
+import android.view.Menu;
 import android.view.MenuItem;
 
 
@@ -35,6 +38,7 @@ public class SearchActivity extends ActionBarActivity {
     public static final String TAG = SearchActivity.class.getSimpleName();
 
     private SearchFragment mFragment;
+    private String mQuery;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,15 +50,55 @@ public class SearchActivity extends ActionBarActivity {
         mFragment = (SearchFragment) getSupportFragmentManager()
                 .findFragmentById(R.id.fragment_search_list);
 
-        Intent intent = getIntent();
-        if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
-            String query = intent.getStringExtra(SearchManager.QUERY);
-            setTitle(getResources().getString(R.string.title_search, query));
+        handleIntent(getIntent());
+    }
 
-            mFragment.setQuery(query);
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        handleIntent(intent);
+    }
+
+    private void handleIntent(Intent intent) {
+        if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
+            setQuery(intent.getStringExtra(SearchManager.QUERY), false);
         }
     }
 
+    private void setQuery(String query, boolean delayed) {
+        mQuery = query;
+        setTitle(getResources().getString(R.string.title_search, query));
+        mFragment.setQuery(query, delayed);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.search_menu, menu);
+
+        // search as the query is typed
+        MenuItem item = menu.findItem(R.id.menu_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(item);
+        searchView.setQueryHint(getString(R.string.hint_search_full));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                setQuery(query, false);
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                // keep the last results when the text is cleared
+                if (newText.length() > 0 && !newText.equals(mQuery))
+                    setQuery(newText, true);
+                return true;
+            }
+        });
+
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -20,14 +20,19 @@ package org.kontalk.ui;
 
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.ui.adapter.SearchListAdapter;
 import org.kontalk.ui.view.SearchListItem;
 
-import android.app.Activity;
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.ListFragment;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,10 +44,25 @@ import android.widget.ListView;
  * @author Daniele Ricci
  */
 public class SearchFragment extends ListFragment {
+    private static final String TAG = SearchActivity.TAG;
+
+    private static final int SEARCH_QUERY_TOKEN = 8721;
+
+    /** Delay before searching, while the query is being typed. */
+    private static final int SEARCH_DELAY = 300;
+    /** Maximum number of results loaded. */
+    private static final int SEARCH_LIMIT = 100;
 
-    private Cursor mCursor;
     private String mQuery;
     private SearchListAdapter mListAdapter;
+    private SearchQueryHandler mQueryHandler;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
+        public void run() {
+            startQuery();
+        }
+    };
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -54,6 +74,30 @@ public class SearchFragment extends ListFragment {
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        mQueryHandler = new SearchQueryHandler(getActivity().getContentResolver());
+        mListAdapter = new SearchListAdapter(getActivity(), null);
+        // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
+        setListAdapter(mListAdapter);
+
+        // query was set before the activity was created
+        if (mQuery != null)
+            startQuery();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mSearchRunnable);
+        if (mQueryHandler != null)
+            mQueryHandler.cancelOperation(SEARCH_QUERY_TOKEN);
+        if (mListAdapter != null)
+            mListAdapter.changeCursor(null);
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         SearchListItem item = (SearchListItem) v;
@@ -65,17 +109,65 @@ public class SearchFragment extends ListFragment {
         startActivity(i);
     }
 
+    /** Searches for the given query immediately. */
     public void setQuery(String query) {
+        setQuery(query, false);
+    }
+
+    /**
+     * Searches for the given query.
+     * @param delayed true to wait a little for the query to change again,
+     *                e.g. while it is being typed
+     */
+    public void setQuery(String query, boolean delayed) {
         mQuery = query;
 
-        Activity parent = getActivity();
-        if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            getActivity().startManagingCursor(mCursor);
+        mHandler.removeCallbacks(mSearchRunnable);
+        // not created yet, query will be started later
+        if (mQueryHandler == null)
+            return;
+
+        if (delayed)
+            mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+        else
+            startQuery();
+    }
+
+    private void startQuery() {
+        // drop any search not started yet
+        mQueryHandler.cancelOperation(SEARCH_QUERY_TOKEN);
+
+        String pattern = SearchItem.buildPattern(mQuery);
+        if (pattern == null) {
+            mListAdapter.changeCursor(null);
+            return;
+        }
+
+        Uri uri = Fulltext.getSearchUri(pattern, 0, SEARCH_LIMIT);
+        mQueryHandler.startQuery(SEARCH_QUERY_TOKEN, mQuery, uri,
+            SearchItem.SEARCH_PROJECTION, null, null, null);
+    }
+
+    /**
+     * The search query handler.
+     */
+    private final class SearchQueryHandler extends AsyncQueryHandler {
+        public SearchQueryHandler(ContentResolver contentResolver) {
+            super(contentResolver);
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            // query changed while searching or fragment is gone
+            if (!cookie.equals(mQuery) || !isAdded()) {
+                if (cursor != null) cursor.close();
+                return;
+            }
+
+            if (cursor == null)
+                Log.w(TAG, "search query error!");
 
-            mListAdapter = new SearchListAdapter(parent, mCursor);
-            // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
-            setListAdapter(mListAdapter);
+            mListAdapter.changeCursor(cursor);
         }
     }
 
@@ -18,6 +18,8 @@
 
 package org.kontalk.ui.view;
 
+import java.io.File;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.AttributeSet;
@@ -28,6 +30,7 @@ import android.widget.ImageView;
 import org.kontalk.R;
 import org.kontalk.data.Contact;
 import org.kontalk.message.ImageComponent;
+import org.kontalk.util.ImageLoader;
 
 import java.util.regex.Pattern;
 
@@ -37,9 +40,11 @@ import java.util.regex.Pattern;
  * @author Daniele Ricci
  */
 public class ImageContentView extends ImageView
-        implements MessageContentView<ImageComponent> {
+        implements MessageContentView<ImageComponent>, ImageLoader.ImageLoaderCallback {
 
     private ImageComponent mComponent;
+    /** Key of the image we are waiting for. */
+    private String mImageKey;
 
     public ImageContentView(Context context) {
         super(context);
@@ -59,18 +64,33 @@ public class ImageContentView extends ImageView
         // prepend some text for the ImageSpan
         //String placeholder = CompositeMessage.getSampleTextContent(component.getContent().getMime());
 
-        Bitmap bitmap = mComponent.getBitmap();
+        Bitmap bitmap = null;
+        File previewFile = component.getPreviewFile();
+        if (previewFile != null) {
+            mImageKey = ImageLoader.getKey(previewFile);
+            bitmap = ImageLoader.getInstance(getContext())
+                .load(previewFile, component.getLocalUri(), this);
+        }
+
         if (bitmap != null)
             setImageBitmap(bitmap);
-
-        // TODO else: maybe some placeholder like Image: image/jpeg
-
+        else
+            // placeholder until the image is loaded
+            setImageResource(android.R.drawable.ic_menu_gallery);
     }
 
     public void unbind() {
+        ImageLoader.getInstance(getContext()).cancel(this);
         clear();
     }
 
+    @Override
+    public void imageLoaded(String key, Bitmap bitmap) {
+        // be sure we are still showing the same image
+        if (bitmap != null && key.equals(mImageKey))
+            setImageBitmap(bitmap);
+    }
+
     public ImageComponent getComponent() {
         return mComponent;
     }
@@ -83,6 +103,7 @@ public class ImageContentView extends ImageView
 
     private void clear() {
         mComponent = null;
+        mImageKey = null;
         setImageBitmap(null);
     }
 
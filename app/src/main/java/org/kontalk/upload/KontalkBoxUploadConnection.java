@@ -18,35 +18,23 @@
 
 package org.kontalk.upload;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.List;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
@@ -54,12 +42,13 @@ import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 
 import org.kontalk.Kontalk;
-import org.kontalk.client.ClientHTTPConnection;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.TransferClient;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.ProgressListener;
+import org.kontalk.util.EncryptingInputStreamEntity;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressInputStreamEntity;
 
@@ -81,7 +70,6 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     protected final Context mContext;
 
     protected HttpRequestBase currentRequest;
-    protected HttpClient mConnection;
 
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
@@ -98,8 +86,16 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     @Override
     public void abort() {
-        if (currentRequest != null)
-            currentRequest.abort();
+        HttpRequestBase req = currentRequest;
+        if (req != null) {
+            // stop encrypting as soon as possible
+            if (req instanceof HttpPost) {
+                HttpEntity entity = ((HttpPost) req).getEntity();
+                if (entity instanceof EncryptingInputStreamEntity)
+                    ((EncryptingInputStreamEntity) entity).abort();
+            }
+            req.abort();
+        }
     }
 
     @Override
@@ -116,36 +112,18 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
             inMessage = mContext.getContentResolver().openInputStream(uri);
 
-            boolean encrypted = false;
+            Coder coder = null;
             // check if we have to encrypt the message
             if (encrypt) {
                 PersonalKey key = Kontalk.get(mContext).getPersonalKey();
                 EndpointServer server = Preferences.getEndpointServer(mContext);
-                Coder coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
-                if (coder != null) {
-                    // create a temporary file to store encrypted data
-                    File temp = File.createTempFile("media", null, mContext.getCacheDir());
-                    FileOutputStream out = new FileOutputStream(temp);
-
-                    coder.encryptFile(inMessage, out);
-                    // close original file and encrypted file
-                    inMessage.close();
-                    out.close();
-
-                    // open the encrypted file
-                    inMessage = new FileInputStream(temp);
-                    inLength = temp.length();
-                    encrypted = true;
-
-                    // delete the encrypted file
-                    // it will stay until all streams are closed
-                    temp.delete();
-                }
+                coder = UsersProvider.getEncryptCoder(mContext, server, key, new String[] { to });
             }
 
             // http request!
+            // data will be encrypted while it's being sent
             currentRequest = prepareMessage(listener,
-                mime, inMessage, inLength, encrypted);
+                mime, inMessage, inLength, coder);
             response = execute(currentRequest);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
                 throw new HttpException(response.getStatusLine().getReasonPhrase());
@@ -206,14 +184,18 @@ public class KontalkBoxUploadConnection implements UploadConnection {
 
     /** A message posting method. */
     private HttpRequestBase prepareMessage(ProgressListener listener,
-        String mime, InputStream data, long length, boolean encrypted)
+        String mime, InputStream data, long length, Coder coder)
             throws IOException {
 
         HttpPost req = (HttpPost) prepare(null, mime, null, true);
-        req.setEntity(new ProgressInputStreamEntity(data, length, this, listener));
 
-        if (encrypted)
+        if (coder != null) {
+            req.setEntity(new EncryptingInputStreamEntity(data, coder, this, listener));
             req.addHeader(HEADER_MESSAGE_FLAGS, "encrypted");
+        }
+        else {
+            req.setEntity(new ProgressInputStreamEntity(data, length, this, listener));
+        }
 
         return req;
     }
@@ -229,40 +211,14 @@ public class KontalkBoxUploadConnection implements UploadConnection {
     private HttpResponse execute(HttpRequestBase request) throws IOException {
         // execute!
         try {
-            if (mConnection == null) {
-                SchemeRegistry registry = new SchemeRegistry();
-                try {
-                    registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
-
-                    boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
-                    registry.register(new Scheme("https", ClientHTTPConnection
-                        .setupSSLSocketFactory(mContext, mPrivateKey, mCertificate, acceptAnyCertificate), 443));
-                }
-                catch (Exception e) {
-                    IOException ie = new IOException("unable to create keystore");
-                    ie.initCause(e);
-                    throw ie;
-                }
-
-                HttpParams params = new BasicHttpParams();
-                // handle redirects :)
-                params.setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-                // HttpClient bug caused by Lighttpd
-                params.setBooleanParameter("http.protocol.expect-continue", false);
-
-                // create connection manager
-                ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-                mConnection = new DefaultHttpClient(connMgr, params);
-            }
-            return mConnection.execute(request);
+            return TransferClient.getClient(mContext, mPrivateKey, mCertificate)
+                .execute(request);
         }
         catch (ClientProtocolException e) {
             IOException ie = new IOException("client protocol error");
             ie.initCause(e);
             throw ie;
         }
-
     }
 
 }
@@ -0,0 +1,221 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.GeneralSecurityException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import org.kontalk.crypto.Coder;
+import org.kontalk.service.ProgressListener;
+import org.kontalk.upload.UploadConnection;
+
+
+/**
+ * An HTTP entity encrypting its content while it's being sent.
+ * Encrypted data is written straight to the connection output stream using
+ * chunked transfer encoding, so no temporary copy is needed. Progress is
+ * reported on the plain data read so far.
+ * @author Daniele Ricci
+ */
+public class EncryptingInputStreamEntity extends AbstractHttpEntity {
+    protected final InputStream mContent;
+    protected final Coder mCoder;
+    protected final UploadConnection mConn;
+    protected final ProgressListener mListener;
+
+    private volatile boolean mAborted;
+
+    public EncryptingInputStreamEntity(InputStream instream, Coder coder,
+            final UploadConnection conn, final ProgressListener listener) {
+        if (instream == null)
+            throw new IllegalArgumentException("source input stream may not be null");
+        mContent = instream;
+        mCoder = coder;
+        mConn = conn;
+        mListener = listener;
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        // encrypted length is not known in advance
+        return -1;
+    }
+
+    /**
+     * Returns the encrypted content. HttpClient uses {@link #writeTo} to
+     * send the entity; this is for callers wanting to read the encrypted
+     * data instead: encryption runs in a separate thread feeding a pipe, so
+     * no copy of the content is made here either.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final PipedOutputStream out = new PipedOutputStream();
+        final EncryptedContentStream in = new EncryptedContentStream(out);
+
+        new Thread("EncryptingEntity") {
+            @Override
+            public void run() {
+                try {
+                    writeTo(out);
+                }
+                catch (IOException e) {
+                    in.mError = e;
+                }
+                finally {
+                    try {
+                        out.close();
+                    }
+                    catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+        }.start();
+
+        return in;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return !mAborted;
+    }
+
+    /** Stops encryption at the next read from the source stream. */
+    public void abort() {
+        mAborted = true;
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null)
+            throw new IllegalArgumentException("output stream may not be null");
+
+        if (mListener != null)
+            mListener.start(mConn);
+
+        try {
+            // the coder will block on the connection when the network is slower
+            mCoder.encryptFile(new CountingInputStream(mContent), outstream);
+        }
+        catch (GeneralSecurityException e) {
+            IOException ie = new IOException("encryption error");
+            ie.initCause(e);
+            throw ie;
+        }
+        finally {
+            mContent.close();
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void consumeContent() throws IOException {
+        mAborted = true;
+        mContent.close();
+    }
+
+    /** Reading end of the encryption pipe. Reports encryption errors at end of stream. */
+    private final class EncryptedContentStream extends PipedInputStream {
+        volatile IOException mError;
+
+        public EncryptedContentStream(PipedOutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b < 0)
+                checkError();
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0)
+                checkError();
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // stop the encrypting thread
+            abort();
+            super.close();
+        }
+
+        private void checkError() throws IOException {
+            IOException e = mError;
+            if (e != null)
+                throw e;
+        }
+    }
+
+    private final class CountingInputStream extends FilterInputStream {
+        private long transferred;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkAborted();
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkAborted();
+            int read = in.read(b, off, len);
+            if (read > 0)
+                publishProgress(read);
+            return read;
+        }
+
+        private void checkAborted() throws IOException {
+            if (mAborted)
+                throw new IOException("upload aborted");
+        }
+
+        private void publishProgress(long add) {
+            transferred += add;
+            if (mListener != null)
+                mListener.progress(mConn, transferred);
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.Kontalk;
+
+
+/**
+ * Asynchronous loader for message preview images.
+ * Bitmaps are decoded by a small pool of background threads and kept in a
+ * memory cache bounded by their size in bytes. Concurrent requests for the
+ * same image share the same decode. All public methods must be called from
+ * the main thread; callbacks are called on the main thread too.
+ * @author Daniele Ricci
+ */
+public class ImageLoader {
+    private static final String TAG = Kontalk.TAG;
+
+    /** Number of decoding threads. */
+    private static final int DECODE_THREADS = 2;
+    /** Fraction of the application memory class used by the cache. */
+    private static final int CACHE_MEMORY_FRACTION = 8;
+
+    public interface ImageLoaderCallback {
+        /**
+         * Called when an image has been loaded.
+         * @param key the image key, as returned by {@link #getKey(File)}
+         * @param bitmap the image, or null if it could not be loaded
+         */
+        public void imageLoaded(String key, Bitmap bitmap);
+    }
+
+    /** A cache bounded by the total byte size of its values. */
+    static abstract class MemoryCache<V> extends LruCache<String, V> {
+        public MemoryCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        /** Returns the memory used by the given value, in bytes. */
+        protected abstract int getByteSize(V value);
+
+        @Override
+        protected int sizeOf(String key, V value) {
+            return getByteSize(value);
+        }
+    }
+
+    /**
+     * The bitmap cache. Evicted bitmaps are left to the garbage collector:
+     * they might still be displayed by some view, so they can't be reused
+     * for decoding.
+     */
+    private static final class BitmapCache extends MemoryCache<Bitmap> {
+        public BitmapCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int getByteSize(Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    }
+
+    /** A pending decode, shared by all callbacks waiting for the same image. */
+    private final class Request implements Runnable {
+        final String key;
+        final File previewFile;
+        final Uri localUri;
+        final List<ImageLoaderCallback> callbacks = new ArrayList<ImageLoaderCallback>(1);
+        Future<?> future;
+
+        Request(String key, File previewFile, Uri localUri) {
+            this.key = key;
+            this.previewFile = previewFile;
+            this.localUri = localUri;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap = decode(previewFile, localUri);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    deliver(Request.this, bitmap);
+                }
+            });
+        }
+    }
+
+    private static ImageLoader sInstance;
+
+    private final Context mContext;
+    private final BitmapCache mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    /** Pending requests by image key. */
+    private final Map<String, Request> mRequests = new HashMap<String, Request>();
+    /** Request each callback is waiting for. */
+    private final Map<ImageLoaderCallback, Request> mCallbacks =
+        new HashMap<ImageLoaderCallback, Request>();
+
+    private ImageLoader(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+
+        ActivityManager am = (ActivityManager) context
+            .getSystemService(Context.ACTIVITY_SERVICE);
+        mCache = new BitmapCache(am.getMemoryClass() * 1024 * 1024 / CACHE_MEMORY_FRACTION);
+
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ImageLoader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static ImageLoader getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ImageLoader(context.getApplicationContext());
+        return sInstance;
+    }
+
+    public static String getKey(File previewFile) {
+        return previewFile.getAbsolutePath();
+    }
+
+    /**
+     * Loads a preview image. Any previous request made with the same callback
+     * will be cancelled.
+     * @param previewFile the preview file
+     * @param localUri the original media, used to generate a missing preview (may be null)
+     * @param callback will be called when the image is ready, if not already cached
+     * @return the cached image, or null if the image is being loaded
+     */
+    public Bitmap load(File previewFile, Uri localUri, ImageLoaderCallback callback) {
+        cancel(callback);
+
+        String key = getKey(previewFile);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null)
+            return bitmap;
+
+        Request request = mRequests.get(key);
+        if (request == null) {
+            request = new Request(key, previewFile, localUri);
+            mRequests.put(key, request);
+            request.future = mExecutor.submit(request);
+        }
+
+        request.callbacks.add(callback);
+        mCallbacks.put(callback, request);
+        return null;
+    }
+
+    /** Cancels the pending request of a callback, e.g. when a view is recycled. */
+    public void cancel(ImageLoaderCallback callback) {
+        Request request = mCallbacks.remove(callback);
+        if (request != null) {
+            request.callbacks.remove(callback);
+            // nobody else is waiting for this image
+            if (request.callbacks.size() == 0) {
+                request.future.cancel(false);
+                mRequests.remove(request.key);
+            }
+        }
+    }
+
+    private void deliver(Request request, Bitmap bitmap) {
+        if (mRequests.get(request.key) == request)
+            mRequests.remove(request.key);
+
+        // cache it even if the request was cancelled in the meantime
+        if (bitmap != null)
+            mCache.put(request.key, bitmap);
+
+        for (ImageLoaderCallback callback : request.callbacks) {
+            mCallbacks.remove(callback);
+            callback.imageLoaded(request.key, bitmap);
+        }
+        request.callbacks.clear();
+    }
+
+    /** Called from the decoding threads. */
+    private Bitmap decode(File previewFile, Uri localUri) {
+        try {
+            return decodePreview(previewFile);
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to load thumbnail, generating one");
+        }
+
+        /*
+         * unable to load preview - generate thumbnail
+         * Of course a thumbnail can be generated only if the image has
+         * already been downloaded.
+         */
+        if (localUri != null) {
+            try {
+                // FIXME using a false file extension
+                MediaStorage.cacheThumbnail(mContext, localUri, previewFile, false);
+                return decodePreview(previewFile);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "unable to generate thumbnail", e);
+            }
+        }
+
+        return null;
+    }
+
+    private Bitmap decodePreview(File previewFile) throws IOException {
+        String path = previewFile.getPath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null)
+            throw new IOException("unable to decode " + path);
+        return bitmap;
+    }
+
+}
@@ -18,6 +18,7 @@
 
 package org.kontalk.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -38,6 +39,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
@@ -83,6 +85,11 @@ public abstract class MediaStorage {
     private static final String COMPRESS_FILENAME_FORMAT = "compress_%d.jpg";
     private static final int COMPRESSION_QUALITY = 85;
 
+    /** Stream buffer used while decoding images. */
+    private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+    /** How much data we can read for the image bounds without opening the stream again. */
+    private static final int BOUNDS_MARK_LIMIT = 128 * 1024;
+
     public static boolean isExternalStorageAvailable() {
         return Environment.getExternalStorageState()
             .equals(Environment.MEDIA_MOUNTED);
@@ -104,16 +111,102 @@ public abstract class MediaStorage {
         // error :(
         if (w < 0 || h < 0) return null;
 
-        if (w > scaleWidth)
-            options.inSampleSize = (w / scaleWidth);
-        else if (h > scaleHeight)
-            options.inSampleSize = (h / scaleHeight);
-
+        options.inSampleSize = computeSampleSize(w, h, scaleWidth, scaleHeight);
         options.inJustDecodeBounds = false;
         options.inPreferredConfig = Bitmap.Config.RGB_565;
         return options;
     }
 
+    /**
+     * Returns the largest power of two sample size that will decode an image
+     * at least as big as the requested size.
+     */
+    static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2)) >= reqWidth && (height / (sampleSize * 2)) >= reqHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Returns the size of an image scaled down to fit into the given
+     * bounds, keeping the aspect ratio. Images are never scaled up.
+     */
+    static int[] computeFitSize(int width, int height, int maxWidth, int maxHeight) {
+        float scaleFactor = Math.max((float) width / maxWidth, (float) height / maxHeight);
+        if (scaleFactor <= 1)
+            return new int[] { width, height };
+
+        return new int[] {
+            Math.max(1, (int) (width / scaleFactor)),
+            Math.max(1, (int) (height / scaleFactor))
+        };
+    }
+
+    /**
+     * Returns the sample size for decoding an image that will be scaled
+     * down to fit into the given bounds. The sample size is computed on the
+     * aspect-fitted size, not on the bounds themselves.
+     */
+    static int computeFitSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int[] target = computeFitSize(width, height, maxWidth, maxHeight);
+        return computeSampleSize(width, height, target[0], target[1]);
+    }
+
+    /**
+     * Decodes an image subsampled to be at least as big as the requested
+     * size. Image bounds and data are read from the same stream when
+     * possible.
+     * @param fit true if the image will be scaled to fit into the requested
+     *            size, false if it will be cropped to it
+     */
+    private static Bitmap decodeSampled(Context context, Uri media,
+            int reqWidth, int reqHeight, boolean fit, Bitmap.Config config) throws IOException {
+        ContentResolver cr = context.getContentResolver();
+        InputStream in = cr.openInputStream(media);
+        if (in == null)
+            throw new FileNotFoundException("unable to open " + media);
+
+        try {
+            in = new BufferedInputStream(in, DECODE_BUFFER_SIZE);
+            in.mark(BOUNDS_MARK_LIMIT);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0)
+                throw new IOException("unable to decode image bounds");
+
+            try {
+                in.reset();
+            }
+            catch (IOException e) {
+                // image header was too big, open again
+                in.close();
+                in = cr.openInputStream(media);
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = fit ?
+                computeFitSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight) :
+                computeSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+            options.inPreferredConfig = config;
+
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap == null)
+                throw new IOException("unable to decode image");
+            return bitmap;
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (Exception e) {
+                // ignored
+            }
+        }
+    }
+
     /** Generates {@link BitmapFactory.Options} for the given {@link InputStream}. */
     public static BitmapFactory.Options preloadBitmap(InputStream in, int scaleWidth, int scaleHeight) {
         BitmapFactory.Options options = new BitmapFactory.Options();
@@ -138,19 +231,13 @@ public abstract class MediaStorage {
     }
 
     private static void cacheThumbnail(Context context, Uri media, FileOutputStream fout, boolean forNetwork) throws IOException {
-        ContentResolver cr = context.getContentResolver();
-        InputStream in = cr.openInputStream(media);
-        BitmapFactory.Options options = preloadBitmap(in, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
-        in.close();
-
-        // open again
-        in = cr.openInputStream(media);
-        Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
-        in.close();
+        Bitmap bitmap = decodeSampled(context, media, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+            false, Bitmap.Config.RGB_565);
 
         Bitmap thumbnail = ThumbnailUtils
             .extractThumbnail(bitmap, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
-        bitmap.recycle();
+        if (thumbnail != bitmap)
+            bitmap.recycle();
 
         thumbnail = bitmapOrientation(context, media, thumbnail);
 
@@ -163,31 +250,64 @@ public abstract class MediaStorage {
 
     public static Bitmap bitmapOrientation(Context context, Uri media, Bitmap bitmap) {
         // check if we have to (and can) rotate the thumbnail
+        int orientation = getOrientation(context, media);
+        if (orientation != 0) {
+            Matrix m = new Matrix();
+            m.postRotate(orientation);
+
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+            bitmap.recycle();
+            bitmap = rotated;
+        }
+
+        return bitmap;
+    }
+
+    /** Returns the rotation of a media in degrees, from the media store or EXIF data. */
+    private static int getOrientation(Context context, Uri media) {
         try {
             Cursor cursor = context.getContentResolver().query(media,
                 new String[] { MediaStore.Images.ImageColumns.ORIENTATION }, null, null, null);
 
             if (cursor != null) {
-                cursor.moveToFirst();
-                int orientation = cursor.getInt(0);
-                cursor.close();
-
-                if (orientation != 0) {
-                    Matrix m = new Matrix();
-                    m.postRotate(orientation);
-
-                    Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
-                    bitmap.recycle();
-                    bitmap = rotated;
-
+                try {
+                    if (cursor.moveToFirst())
+                        return cursor.getInt(0);
+                }
+                finally {
+                    cursor.close();
                 }
             }
         }
         catch (Exception e) {
-            Log.w(TAG, "unable to check for rotation data", e);
+            // not a media store uri
         }
 
-        return bitmap;
+        if (ContentResolver.SCHEME_FILE.equals(media.getScheme())) {
+            try {
+                ExifInterface exif = new ExifInterface(media.getPath());
+                return exifOrientationToDegrees(exif
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+            }
+            catch (Exception e) {
+                Log.w(TAG, "unable to check for rotation data", e);
+            }
+        }
+
+        return 0;
+    }
+
+    static int exifOrientationToDegrees(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
     }
 
     public static File writeMedia(String filename, InputStream source) throws IOException {
@@ -308,84 +428,23 @@ public abstract class MediaStorage {
     }
 
     public static File resizeImage(Context context, Uri uri, long msgId, int maxSize)
-        throws FileNotFoundException {
+        throws IOException {
         return resizeImage(context, uri, msgId, maxSize, maxSize, COMPRESSION_QUALITY);
     }
 
     public static File resizeImage(Context context, Uri uri, long msgId, int maxWidth, int maxHeight, int quality)
-        throws FileNotFoundException {
-
-        final int MAX_IMAGE_SIZE = 1200000; // 1.2MP
-
-        ContentResolver cr = context.getContentResolver();
-
-        // compute optimal image scale size
-        int scale = 1;
-        InputStream in = cr.openInputStream(uri);
-
-        try {
-            // decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(in, null, o);
-            in.close();
-
-            // calculate optimal image scale size
-            while ((o.outWidth * o.outHeight) * (1 / Math.pow(scale, 2)) > MAX_IMAGE_SIZE)
-                scale++;
-
-            Log.d(TAG, "scale = " + scale + ", orig-width: " + o.outWidth + ", orig-height: " + o.outHeight);
-        }
-        catch (IOException e) {
-            Log.d(TAG, "unable to calculate optimal scale size, using original image");
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
-
-        // open image again for the actual scaling
-        Bitmap bitmap = null;
-
-        try {
-            in = cr.openInputStream(uri);
-            BitmapFactory.Options o = new BitmapFactory.Options();
-
-            if (scale > 1) {
-                o.inSampleSize = scale - 1;
-            }
+        throws IOException {
 
-            bitmap = BitmapFactory.decodeStream(in, null, o);
-        }
-        finally {
-            try {
-                in.close();
-            }
-            catch (Exception e) {
-                // ignored
-            }
-        }
+        // decode subsampled to about the final size
+        Bitmap bitmap = decodeSampled(context, uri, maxWidth, maxHeight, true, Bitmap.Config.ARGB_8888);
 
-        if (bitmap == null) {
-            return null;
-        }
-        float photoW = bitmap.getWidth();
-        float photoH = bitmap.getHeight();
-        if (photoW == 0 || photoH == 0) {
-            return null;
-        }
-        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
-        int w = (int) (photoW / scaleFactor);
-        int h = (int) (photoH / scaleFactor);
-        if (h == 0 || w == 0) {
-            return null;
-        }
+        int[] size = computeFitSize(bitmap.getWidth(), bitmap.getHeight(), maxWidth, maxHeight);
+        Log.d(TAG, "decoded " + bitmap.getWidth() + "x" + bitmap.getHeight() +
+            ", resizing to " + size[0] + "x" + size[1]);
 
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+        if (scaledBitmap != bitmap)
+            bitmap.recycle();
 
         // check for rotation data
         scaledBitmap = bitmapOrientation(context, uri, scaledBitmap);
@@ -402,6 +461,7 @@ public abstract class MediaStorage {
             return compressedFile;
         }
         finally {
+            scaledBitmap.recycle();
             try {
                 stream.close();
             }
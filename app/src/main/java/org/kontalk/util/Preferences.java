@@ -472,32 +472,28 @@ public final class Preferences {
             .commit();
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+    /** Returns the NAT timeout estimate of the given network, or null. */
+    public static String getPingNatEstimate(Context context, String networkId) {
+        return getString(context, "ping_nat_" + networkId, null);
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
+    public static boolean setPingNatEstimate(Context context, String networkId, String estimate) {
+        return sPreferences.edit()
+            .putString("ping_nat_" + networkId, estimate)
             .commit();
     }
 
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
-    }
+    /** Deletes the ping intervals used before NAT timeout estimates. */
+    public static void deleteLegacyPingIntervals(Context context) {
+        if (getBooleanOnce(context, "ping_legacy_deleted"))
+            return;
 
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
-            .commit();
+        SharedPreferences.Editor editor = sPreferences.edit();
+        for (String key : sPreferences.getAll().keySet()) {
+            if (key.startsWith("ping_alarm_interval_") || key.startsWith("ping_alarm_backoff_"))
+                editor.remove(key);
+        }
+        editor.commit();
     }
 
     /**
@@ -35,13 +35,16 @@ public class ProgressOutputStreamEntity implements HttpEntity {
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
+    /** Bytes already downloaded by a previous request. */
+    private final long mOffset;
 
     public ProgressOutputStreamEntity(HttpEntity parent,
-            String url, File file, final DownloadListener listener) {
+            String url, File file, final DownloadListener listener, long offset) {
         mParent = parent;
         mUrl = url;
         mFile = file;
         mListener = listener;
+        mOffset = offset;
     }
 
     @Override
@@ -86,10 +89,9 @@ public class ProgressOutputStreamEntity implements HttpEntity {
 
     @Override
     public void writeTo(OutputStream outstream) throws IOException {
-        mListener.start(mUrl, mFile, mParent.getContentLength());
-        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener));
-        Header mime = mParent.getContentType();
-        mListener.completed(mUrl, mime != null ? mime.getValue() : null, mFile);
+        long length = mParent.getContentLength();
+        mListener.start(mUrl, mFile, length >= 0 ? mOffset + length : length);
+        mParent.writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mOffset));
     }
 
     private static final class CountingOutputStream extends FilterOutputStream {
@@ -99,12 +101,13 @@ public class ProgressOutputStreamEntity implements HttpEntity {
         private long transferred;
 
         public CountingOutputStream(final OutputStream out,
-                final String url, final File file, final DownloadListener listener) {
+                final String url, final File file, final DownloadListener listener,
+                long offset) {
             super(out);
             this.url = url;
             this.file = file;
             this.listener = listener;
-            this.transferred = 0;
+            this.transferred = offset;
         }
 
         @Override
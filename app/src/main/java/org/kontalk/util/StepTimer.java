@@ -39,8 +39,10 @@ public class StepTimer {
         mMinDelay = delay;
     }
 
+    /** Starts a new step. */
     public void reset() {
         mTimestamp = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        mDelay = 0;
     }
 
     /** Returns true if the defined step delay has passed. */
@@ -21,6 +21,8 @@ package org.kontalk.util;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -28,6 +30,8 @@ import android.content.res.Configuration;
 import android.graphics.Point;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.telephony.TelephonyManager;
 import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
@@ -146,6 +150,36 @@ public final class SystemUtils {
         return info != null ? info.getTypeName() : null;
     }
 
+    /**
+     * Returns an identifier of the current network, or null. The identifier
+     * includes the network type and the SSID or mobile operator, hashed so
+     * that it can be used as a preference key.
+     */
+    public static String getCurrentNetworkId(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager) context
+            .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        if (info == null)
+            return null;
+
+        String name;
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            // operator code (MCC+MNC) does not need any permission
+            TelephonyManager tm = (TelephonyManager) context
+                .getSystemService(Context.TELEPHONY_SERVICE);
+            name = tm.getNetworkOperator();
+        }
+        else {
+            // SSID for Wi-Fi networks
+            name = info.getExtraInfo();
+        }
+
+        String type = info.getTypeName();
+        return (name != null && name.length() > 0) ?
+            type + "_" + Integer.toHexString(name.hashCode()) : type;
+    }
+
     public static int getCurrentNetworkType(Context context) {
         ConnectivityManager connMgr = (ConnectivityManager) context
             .getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -158,4 +192,13 @@ public final class SystemUtils {
         return getCurrentNetworkType(context) == ConnectivityManager.TYPE_WIFI;
     }
 
+    /** Returns true if the device is plugged into a power source. */
+    public static boolean isCharging(Context context) {
+        // battery status is a sticky broadcast, no receiver needed
+        Intent battery = context.registerReceiver(null,
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null &&
+            battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
 }
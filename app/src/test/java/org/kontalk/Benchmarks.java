@@ -0,0 +1,54 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk;
+
+import org.junit.Assume;
+
+
+/**
+ * Benchmarks are not part of the default test run: they run only if the
+ * <code>kontalk.benchmark</code> system property is set. Runs taking a long
+ * time also need the <code>kontalk.benchmark.large</code> property.
+ * @author Daniele Ricci
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static boolean isEnabled() {
+        return System.getProperty("kontalk.benchmark") != null;
+    }
+
+    public static boolean isLargeEnabled() {
+        return isEnabled() && System.getProperty("kontalk.benchmark.large") != null;
+    }
+
+    /** Skips the calling test (or test class) if benchmarks are disabled. */
+    public static void assumeEnabled() {
+        Assume.assumeTrue(isEnabled());
+    }
+
+    /** Prints benchmark results, only if benchmarks are enabled. */
+    public static void report(String format, Object... args) {
+        if (isEnabled())
+            System.out.println(String.format(format, args));
+    }
+
+}
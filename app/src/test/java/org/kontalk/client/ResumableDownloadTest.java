@@ -0,0 +1,304 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ResumableDownloadTest {
+
+    private static final int CONTENT_LENGTH = 256 * 1024;
+
+    /**
+     * A minimal HTTP server serving a single resource. It supports
+     * <code>Range</code> and <code>If-Range</code> and can drop the
+     * connection after a given number of bytes.
+     */
+    private static final class LoopbackServer extends Thread {
+        final ServerSocket socket;
+        final byte[] content;
+        volatile String etag = "\"v1\"";
+        /** Drop the connection after these many bytes, one value per request (-1 for no drop). */
+        final List<Integer> drops = new ArrayList<Integer>();
+        final List<String> ranges = new ArrayList<String>();
+
+        LoopbackServer(byte[] content) throws IOException {
+            this.socket = new ServerSocket(0);
+            this.content = content;
+            setDaemon(true);
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/file";
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket s = socket.accept();
+                    try {
+                        serve(s);
+                    }
+                    finally {
+                        s.close();
+                    }
+                }
+                catch (IOException e) {
+                    // closed or client gone
+                }
+            }
+        }
+
+        private void serve(Socket s) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+            String range = null;
+            String ifRange = null;
+            String line = in.readLine();
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                int sep = line.indexOf(':');
+                String name = line.substring(0, sep).trim();
+                String value = line.substring(sep + 1).trim();
+                if (name.equalsIgnoreCase("Range"))
+                    range = value;
+                else if (name.equalsIgnoreCase("If-Range"))
+                    ifRange = value;
+            }
+
+            int drop;
+            synchronized (this) {
+                ranges.add(range);
+                drop = drops.isEmpty() ? -1 : drops.remove(0);
+            }
+
+            int start = 0;
+            if (range != null && (ifRange == null || ifRange.equals(etag)))
+                start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+
+            StringBuilder headers = new StringBuilder();
+            if (start > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-')
+                    .append(content.length - 1).append('/').append(content.length).append("\r\n");
+            }
+            else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("Content-Type: image/png\r\n")
+                .append("ETag: ").append(etag).append("\r\n")
+                .append("Content-Length: ").append(content.length - start).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+
+            OutputStream out = s.getOutputStream();
+            out.write(headers.toString().getBytes("US-ASCII"));
+            int end = (drop >= 0) ? Math.min(content.length, start + drop) : content.length;
+            out.write(content, start, end - start);
+            out.flush();
+        }
+    }
+
+    private File mDir;
+    private LoopbackServer mServer;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("download", "");
+        mDir.delete();
+        mDir.mkdirs();
+
+        mContent = new byte[CONTENT_LENGTH];
+        new Random(42).nextBytes(mContent);
+        mServer = new LoopbackServer(mContent);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.socket.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDir.delete();
+    }
+
+    /** One download attempt, like ClientHTTPConnection does with HttpClient. */
+    private void attempt(String url, File destination) throws IOException {
+        ResumableDownload part = new ResumableDownload(ResumableDownload.getPartFile(mDir, url));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            String range = part.getRange();
+            if (range != null) {
+                conn.setRequestProperty("Range", range);
+                String validator = part.getValidator();
+                if (validator != null)
+                    conn.setRequestProperty("If-Range", validator);
+            }
+
+            int code = conn.getResponseCode();
+            OutputStream out = part.begin(code,
+                conn.getHeaderField("Content-Range"),
+                conn.getContentLength(),
+                conn.getHeaderField("ETag"),
+                conn.getHeaderField("Last-Modified"),
+                conn.getContentType());
+
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buf = new byte[4096];
+                int c;
+                while ((c = in.read(buf)) > 0)
+                    out.write(buf, 0, c);
+            }
+            finally {
+                out.close();
+                in.close();
+            }
+
+            part.commit(destination);
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    /** Downloads with retries, returns the number of attempts. */
+    private int download(String url, File destination, int maxAttempts) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                attempt(url, destination);
+                return attempt;
+            }
+            catch (IOException e) {
+                if (attempt >= maxAttempts)
+                    throw e;
+            }
+        }
+    }
+
+    private byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < data.length)
+                off += in.read(data, off, data.length - off);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        // drop twice in the middle of the transfer
+        mServer.drops.add(100000);
+        mServer.drops.add(50000);
+
+        File destination = new File(mDir, "image.png");
+        assertEquals(3, download(mServer.getUrl(), destination, 5));
+
+        assertTrue(Arrays.equals(mContent, read(destination)));
+        assertEquals(Arrays.asList(null, "bytes=100000-", "bytes=150000-"), mServer.ranges);
+
+        // partial data has been cleaned up
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    @Test
+    public void testChangedResource() throws Exception {
+        mServer.drops.add(100000);
+
+        File destination = new File(mDir, "image.png");
+        try {
+            attempt(mServer.getUrl(), destination);
+            fail("download should have been interrupted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        // resource changed: If-Range won't match and full content is sent
+        mServer.etag = "\"v2\"";
+        new Random(7).nextBytes(mContent);
+        attempt(mServer.getUrl(), destination);
+
+        assertTrue(Arrays.equals(mContent, read(destination)));
+        assertEquals("bytes=100000-", mServer.ranges.get(1));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        final int count = 4;
+        final File[] destinations = new File[count];
+        final Throwable[] errors = new Throwable[count];
+        Thread[] threads = new Thread[count];
+
+        // every download is interrupted once
+        for (int i = 0; i < count; i++)
+            mServer.drops.add(30000 * (i + 1));
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            destinations[i] = new File(mDir, "image" + i + ".png");
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        download(mServer.getUrl() + "?" + index, destinations[index], 5);
+                    }
+                    catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < count; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+            assertTrue(Arrays.equals(mContent, read(destinations[i])));
+        }
+    }
+
+}
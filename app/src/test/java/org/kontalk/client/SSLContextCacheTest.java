@@ -0,0 +1,188 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class SSLContextCacheTest {
+
+    private static final int RECONNECTS = 100;
+
+    // two self-signed EC certificates and the private key of the first one
+    private static final String CERT1 =
+        "-----BEGIN CERTIFICATE-----\n" +
+        "MIIBdzCCAR2gAwIBAgIUStZ0jobKf8zQwsTAF92RwXaVBMcwCgYIKoZIzj0EAwIw\n" +
+        "EDEOMAwGA1UEAwwFdGVzdDEwIBcNMjYxMDE4MTYxNzU5WhgPMjEyNjA5MjQxNjE3\n" +
+        "NTlaMBAxDjAMBgNVBAMMBXRlc3QxMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE\n" +
+        "kdvvicSOPJEBPDVBxbcw2bJlFUdkIWIjzbkhvq2aDrCDp6gvq5jl98QEr6k7OHS0\n" +
+        "FYqauW2SHNctvNzt/ABLSKNTMFEwHQYDVR0OBBYEFLDw6WFBYBlM62ep1PjwRYfF\n" +
+        "AZ5mMB8GA1UdIwQYMBaAFLDw6WFBYBlM62ep1PjwRYfFAZ5mMA8GA1UdEwEB/wQF\n" +
+        "MAMBAf8wCgYIKoZIzj0EAwIDSAAwRQIgcQIhHMqxmIHstrNMYI2xYTG2dke6fwZc\n" +
+        "fQR9FOiBhjwCIQD6MPRuJeEA5vY7YujLaoc5nkthVHDVMt8JuoQ4Y+J8iw==\n" +
+        "-----END CERTIFICATE-----\n";
+
+    private static final String CERT2 =
+        "-----BEGIN CERTIFICATE-----\n" +
+        "MIIBdjCCAR2gAwIBAgIUaTfptbew7svYIjTkeLtJNc+VE0wwCgYIKoZIzj0EAwIw\n" +
+        "EDEOMAwGA1UEAwwFdGVzdDIwIBcNMjYxMDE4MTYxNzU5WhgPMjEyNjA5MjQxNjE3\n" +
+        "NTlaMBAxDjAMBgNVBAMMBXRlc3QyMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE\n" +
+        "dGcJUpylR8sLrJY7+fAxHSqb65ExxgkGT4RwEHQezwWJ9OSwf7uDKzN8e//fJop+\n" +
+        "ADIrH1DI1GkeQKeJar4t1aNTMFEwHQYDVR0OBBYEFBg7jV01P+LYAg+2hFaMdh9N\n" +
+        "RHKrMB8GA1UdIwQYMBaAFBg7jV01P+LYAg+2hFaMdh9NRHKrMA8GA1UdEwEB/wQF\n" +
+        "MAMBAf8wCgYIKoZIzj0EAwIDRwAwRAIgbMooIQr1bnIcysQetTE6ct3eEipXPGjg\n" +
+        "4h+FaIyFxNkCIFBOu1PXAOvPO/ZBQ6gS67f5p5zBEBhoiSDVkybZY60I\n" +
+        "-----END CERTIFICATE-----\n";
+
+    private static final String KEY1 =
+        "308187020100301306072a8648ce3d020106082a8648ce3d030107046d306b02" +
+        "01010420c6277485ee2521b88dd887499add2baca0abfcb0605b40a8d84baeb9" +
+        "3c7ee840a1440342000491dbef89c48e3c91013c3541c5b730d9b265154764216" +
+        "223cdb921bead9a0eb083a7a82fab98e5f7c404afa93b3874b4158a9ab96d921c" +
+        "d72dbcdcedfc004b48";
+
+    private X509Certificate mCert1;
+    private X509Certificate mCert2;
+    private PrivateKey mKey1;
+    private KeyStore mTrustStore;
+
+    @Before
+    public void setUp() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        mCert1 = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(CERT1.getBytes()));
+        mCert2 = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(CERT2.getBytes()));
+        mKey1 = KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(hex(KEY1)));
+        mTrustStore = newTrustStore();
+    }
+
+    @After
+    public void tearDown() {
+        SSLContextCache.invalidate();
+    }
+
+    private KeyStore newTrustStore() throws Exception {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null, null);
+        ks.setCertificateEntry("ca", mCert2);
+        return ks;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        return b;
+    }
+
+    /** Same as {@link SSLContextCache#getContext} without a PersonalKey. */
+    private SSLContext getContext(X509Certificate cert, boolean acceptAny, KeyStore trustStore)
+            throws Exception {
+        SSLContext ctx = SSLContextCache.get(cert, acceptAny, trustStore);
+        if (ctx == null) {
+            ctx = SSLContextCache.createContext(cert != null ? mKey1 : null,
+                cert, acceptAny, trustStore);
+            SSLContextCache.put(ctx, cert, acceptAny, trustStore);
+        }
+        return ctx;
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        SSLContext ctx = getContext(mCert1, false, mTrustStore);
+        assertSame(ctx, getContext(mCert1, false, mTrustStore));
+        // an equal certificate loaded again
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate copy = (X509Certificate) cf.generateCertificate(
+            new ByteArrayInputStream(mCert1.getEncoded()));
+        assertSame(ctx, getContext(copy, false, mTrustStore));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        SSLContext ctx = getContext(mCert1, false, mTrustStore);
+
+        // key regenerated
+        SSLContext other = getContext(mCert2, false, mTrustStore);
+        assertNotSame(ctx, other);
+        assertNull(SSLContextCache.get(mCert1, false, mTrustStore));
+
+        // anonymous connection
+        ctx = getContext(null, false, mTrustStore);
+        assertNotSame(other, ctx);
+        assertNull(SSLContextCache.get(mCert2, false, mTrustStore));
+        assertSame(ctx, getContext(null, false, mTrustStore));
+
+        // trust store reloaded
+        ctx = getContext(mCert1, false, mTrustStore);
+        KeyStore reloaded = newTrustStore();
+        assertNull(SSLContextCache.get(mCert1, false, reloaded));
+
+        // certificate policy changed
+        assertNull(SSLContextCache.get(mCert1, true, mTrustStore));
+        ctx = getContext(mCert1, true, mTrustStore);
+        // trust store is not used when accepting any certificate
+        assertSame(ctx, getContext(mCert1, true, reloaded));
+
+        // explicit invalidation
+        SSLContextCache.invalidate();
+        assertNull(SSLContextCache.get(mCert1, true, mTrustStore));
+    }
+
+    @Test
+    public void testReconnects() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        // warm up
+        SSLContextCache.createContext(mKey1, mCert1, false, mTrustStore);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RECONNECTS; i++)
+            assertNotNull(SSLContextCache.createContext(mKey1, mCert1, false, mTrustStore));
+        long uncached = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        SSLContext ctx = getContext(mCert1, false, mTrustStore);
+        for (int i = 1; i < RECONNECTS; i++)
+            assertSame(ctx, getContext(mCert1, false, mTrustStore));
+        long cached = System.nanoTime() - start;
+
+        Benchmarks.report("SSLContextCache: %d reconnects, uncached %d us, cached %d us",
+            RECONNECTS, uncached / 1000, cached / 1000);
+
+        assertTrue("cached context is not faster", cached < uncached);
+    }
+
+}
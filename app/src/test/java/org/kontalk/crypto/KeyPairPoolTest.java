@@ -0,0 +1,208 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class KeyPairPoolTest {
+
+    private static PersonalKey sKey;
+    private static long sGenerationTime;
+
+    private File mDir;
+    private KeyPairPool mPool;
+
+    @BeforeClass
+    public static void setUpKey() throws Exception {
+        PGP.registerProvider();
+        long start = System.currentTimeMillis();
+        sKey = PersonalKey.create();
+        sGenerationTime = System.currentTimeMillis() - start;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("keypool", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mPool = new KeyPairPool(mDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        mDir.delete();
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static boolean contains(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern))
+                return true;
+        }
+        return false;
+    }
+
+    private static void assertSameKey(PersonalKey expected, PersonalKey actual) throws Exception {
+        assertEquals(expected.getFingerprint(), actual.getFingerprint());
+        assertArrayEquals(expected.getSignKeyPair().getPublicKey().getEncoded(),
+            actual.getSignKeyPair().getPublicKey().getEncoded());
+        assertArrayEquals(expected.getEncryptKeyPair().getPublicKey().getEncoded(),
+            actual.getEncryptKeyPair().getPublicKey().getEncoded());
+        assertArrayEquals(PGP.convertPrivateKey(expected.getAuthKeyPair().getPrivateKey()).getEncoded(),
+            PGP.convertPrivateKey(actual.getAuthKeyPair().getPrivateKey()).getEncoded());
+        assertArrayEquals(PGP.convertPrivateKey(expected.getSignKeyPair().getPrivateKey()).getEncoded(),
+            PGP.convertPrivateKey(actual.getSignKeyPair().getPrivateKey()).getEncoded());
+        assertArrayEquals(PGP.convertPrivateKey(expected.getEncryptKeyPair().getPrivateKey()).getEncoded(),
+            PGP.convertPrivateKey(actual.getEncryptKeyPair().getPrivateKey()).getEncoded());
+    }
+
+    @Test
+    public void testLifecycle() throws Exception {
+        assertFalse(mPool.isAvailable());
+        assertNull(mPool.take());
+
+        mPool.put(sKey, sGenerationTime);
+        assertTrue(mPool.isAvailable());
+
+        KeyPairPool.PooledKey pooled = mPool.take();
+
+        assertNotNull(pooled);
+        assertSameKey(sKey, pooled.key);
+        assertEquals(sGenerationTime, pooled.generationTime);
+
+        // a key pair can be taken only once
+        assertFalse(mPool.isAvailable());
+        assertNull(mPool.take());
+        assertEquals(0, mDir.listFiles().length);
+
+        // a pooled key pair can still be used for registration
+        PGP.PGPKeyPairRing ring = pooled.key.storeNetwork("alice", "beta.kontalk.net", "alice", "test");
+        PersonalKey loaded = PersonalKey.load(ring.secretKey, ring.publicKey, "test", null);
+        assertEquals(sKey.getFingerprint(), loaded.getFingerprint());
+    }
+
+    @Test
+    public void testEncryptedAtRest() throws Exception {
+        mPool.put(sKey, sGenerationTime);
+
+        File[] files = mDir.listFiles();
+        assertEquals(2, files.length);
+
+        byte[] exponent = ((RSAPrivateKey) PGP.convertPrivateKey(sKey
+            .getAuthKeyPair().getPrivateKey())).getPrivateExponent().toByteArray();
+        byte[] pattern = Arrays.copyOfRange(exponent, exponent.length - 16, exponent.length);
+        for (File f : files)
+            assertFalse("private key found in " + f.getName(), contains(readFile(f), pattern));
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        PersonalKey other = PersonalKey.create();
+        mPool.put(sKey, sGenerationTime);
+        mPool.put(other, 1);
+
+        assertEquals(2, mDir.listFiles().length);
+        KeyPairPool.PooledKey pooled = mPool.take();
+        assertSameKey(other, pooled.key);
+        assertEquals(1, pooled.generationTime);
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        mPool.put(sKey, sGenerationTime);
+
+        long now = System.currentTimeMillis();
+        assertTrue(mPool.isAvailable(now));
+        assertFalse(mPool.isAvailable(now + KeyPairPool.MAX_AGE));
+
+        // expired key pairs are destroyed, not handed out
+        assertNull(mPool.take(now + KeyPairPool.MAX_AGE));
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void testTampered() throws Exception {
+        mPool.put(sKey, sGenerationTime);
+
+        File keyFile = null;
+        for (File f : mDir.listFiles()) {
+            if (keyFile == null || f.length() > keyFile.length())
+                keyFile = f;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(keyFile, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        }
+        finally {
+            raf.close();
+        }
+
+        try {
+            mPool.take();
+            fail("tampered key pair was accepted");
+        }
+        catch (Exception expected) {
+        }
+        // pool files are destroyed anyway
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        mPool.put(sKey, sGenerationTime);
+        mPool.destroy();
+
+        assertFalse(mPool.isAvailable());
+        assertEquals(0, mDir.listFiles().length);
+        // nothing to destroy
+        mPool.destroy();
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.client.EndpointServer;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Throughput of {@link PGPCoder} file encryption and decryption with the
+ * smallest allowed buffer size (the old coder used 256 bytes, which is too
+ * small for RFC 4880 partial packets) and the new default one. The 50 MB
+ * payload is run only if the <code>kontalk.benchmark.large</code> system
+ * property is set.
+ */
+public class PGPCoderBenchmark {
+
+    private static final int OLD_BUFFER_SIZE = 1 << 9;
+
+    private static EndpointServer sServer;
+    private static PersonalKey sSender;
+    private static PersonalKey sRecipient;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        PGP.registerProvider();
+        sServer = new EndpointServer("kontalk.net|beta.kontalk.net");
+        sSender = createKey("alice");
+        sRecipient = createKey("bob");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        PGPCoder.setBufferSize(PGPCoder.DEFAULT_BUFFER_SIZE);
+    }
+
+    private static PersonalKey createKey(String name) throws Exception {
+        PGP.PGPKeyPairRing ring = PersonalKey.create()
+            .storeNetwork(name, sServer.getNetwork(), name, "test");
+        return PersonalKey.load(ring.secretKey, ring.publicKey, "test", null);
+    }
+
+    /** Discards everything, we just want to measure the coder. */
+    private static final class NullOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+
+    @Test
+    public void test1K() throws Exception {
+        benchmark(1024, 200);
+    }
+
+    @Test
+    public void test1M() throws Exception {
+        benchmark(1024 * 1024, 5);
+    }
+
+    @Test
+    public void test50M() throws Exception {
+        if (Benchmarks.isLargeEnabled())
+            benchmark(50 * 1024 * 1024, 1);
+    }
+
+    private void benchmark(int size, int rounds) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        for (int bufferSize : new int[] { OLD_BUFFER_SIZE, PGPCoder.DEFAULT_BUFFER_SIZE }) {
+            PGPCoder.setBufferSize(bufferSize);
+
+            PGPCoder encoder = new PGPCoder(sServer, sSender,
+                new PGPPublicKeyRing[] { sRecipient.getPublicKeyRing() });
+            PGPCoder decoder = new PGPCoder(sServer, sRecipient, sSender.getPublicKeyRing());
+
+            // warm up and prepare data for decryption
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream(size + 1024);
+            encoder.encryptFile(new ByteArrayInputStream(data), encrypted);
+            byte[] encryptedData = encrypted.toByteArray();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                encoder.encryptFile(new ByteArrayInputStream(data), new NullOutputStream());
+            long encryptTime = System.nanoTime() - start;
+
+            NullOutputStream decrypted = new NullOutputStream();
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                decoder.decryptFile(new ByteArrayInputStream(encryptedData), true, decrypted, null);
+            long decryptTime = System.nanoTime() - start;
+
+            assertEquals((long) size * rounds, decrypted.count);
+
+            Benchmarks.report("PGPCoder %d bytes, buffer %d: encrypt %.2f MB/s, decrypt %.2f MB/s",
+                size, bufferSize, throughput(size, rounds, encryptTime), throughput(size, rounds, decryptTime));
+        }
+    }
+
+    private static double throughput(long size, int rounds, long nanos) {
+        return (size * rounds / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SearchItemTest {
+
+    @Test
+    public void testBuildPattern() {
+        assertEquals("hello*", SearchItem.buildPattern("hello"));
+        assertEquals("hello* world*", SearchItem.buildPattern("  Hello,  world! "));
+        assertEquals("caffè*", SearchItem.buildPattern("Caffè"));
+    }
+
+    @Test
+    public void testBuildPatternSyntax() {
+        // query syntax is dropped
+        assertEquals("a* or* b*", SearchItem.buildPattern("a OR b"));
+        assertEquals("foo* bar*", SearchItem.buildPattern("\"foo\" -bar*"));
+        assertEquals("content* x*", SearchItem.buildPattern("content:x"));
+
+        assertNull(SearchItem.buildPattern(null));
+        assertNull(SearchItem.buildPattern(""));
+        assertNull(SearchItem.buildPattern(" \"*- "));
+    }
+
+}
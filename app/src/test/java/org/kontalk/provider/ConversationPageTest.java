@@ -0,0 +1,171 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kontalk.provider.MessagesProvider.DatabaseHelper;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Runs conversation page queries on a JDBC SQLite database. Thread 1 has
+ * messages with even ids from 2 to 20, thread 2 the odd ids in between,
+ * thread 3 is empty.
+ */
+public class ConversationPageTest {
+
+    private Connection mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+
+        Statement st = mDb.createStatement();
+        st.executeUpdate(DatabaseHelper.SCHEMA_MESSAGES);
+        for (int id = 1; id <= 20; id++) {
+            int threadId = (id % 2 == 0) ? 1 : 2;
+            st.executeUpdate("INSERT INTO messages (_id, thread_id, msg_id, peer, direction, timestamp) " +
+                "VALUES (" + id + ", " + threadId + ", 'message" + id + "', 'peer" + threadId + "', 0, " + id + ")");
+        }
+        st.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    /** Runs a page query like the provider does, returns the message ids. */
+    private List<Long> page(long threadId, Integer limit, Long before, Long after, Long since) throws SQLException {
+        String limitParam = (limit != null) ? limit.toString() : null;
+        String afterParam = (after != null) ? after.toString() : null;
+        String where = ConversationPage.buildWhere("messages", threadId, limitParam,
+            (before != null) ? before.toString() : null, afterParam,
+            (since != null) ? since.toString() : null);
+        String limitClause = ConversationPage.buildLimit(limitParam, afterParam);
+
+        String sql = "SELECT _id FROM messages WHERE " + where + " ORDER BY _id" +
+            ((limitClause != null) ? " LIMIT " + limitClause : "");
+
+        List<Long> ids = new ArrayList<Long>();
+        Statement st = mDb.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(sql);
+            while (rs.next())
+                ids.add(rs.getLong(1));
+        }
+        finally {
+            st.close();
+        }
+        return ids;
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> list = new ArrayList<Long>(ids.length);
+        for (long id : ids)
+            list.add(id);
+        return list;
+    }
+
+    @Test
+    public void testWholeConversation() throws Exception {
+        assertEquals(ids(2, 4, 6, 8, 10, 12, 14, 16, 18, 20), page(1, null, null, null, null));
+        assertEquals(ids(1, 3, 5, 7, 9, 11, 13, 15, 17, 19), page(2, null, null, null, null));
+    }
+
+    @Test
+    public void testLatest() throws Exception {
+        assertEquals(ids(16, 18, 20), page(1, 3, null, null, null));
+        // limit bigger than the conversation
+        assertEquals(10, page(1, 50, null, null, null).size());
+    }
+
+    @Test
+    public void testBefore() throws Exception {
+        // exclusive: the key message is not part of the page
+        assertEquals(ids(6, 8, 10), page(1, 3, 12L, null, null));
+        // key from another thread
+        assertEquals(ids(6, 8, 10), page(1, 3, 11L, null, null));
+        // partial page at the beginning of the conversation
+        assertEquals(ids(2, 4), page(1, 3, 6L, null, null));
+        // all messages before the key
+        assertEquals(ids(2, 4, 6), page(1, null, 7L, null, null));
+    }
+
+    @Test
+    public void testAfter() throws Exception {
+        // exclusive: the key message is not part of the page
+        assertEquals(ids(14, 16, 18), page(1, 3, null, 12L, null));
+        // key from another thread
+        assertEquals(ids(14, 16, 18), page(1, 3, null, 13L, null));
+        // partial page at the end of the conversation
+        assertEquals(ids(18, 20), page(1, 3, null, 16L, null));
+        // newer pages start from an exclusive window end (here 12)
+        assertEquals(ids(12, 14, 16), page(1, 3, null, 12L - 1, null));
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        // inclusive start, exclusive end
+        assertEquals(ids(6, 8, 10), page(1, null, 12L, null, 6L));
+        assertEquals(ids(6, 8, 10, 12), page(1, null, 13L, null, 5L));
+        // no end: up to the latest message
+        assertEquals(ids(16, 18, 20), page(1, null, null, null, 16L));
+        // single message
+        assertEquals(ids(8), page(1, null, 9L, null, 8L));
+    }
+
+    @Test
+    public void testEmptyPages() throws Exception {
+        // nothing before the first message
+        assertTrue(page(1, 3, 2L, null, null).isEmpty());
+        assertTrue(page(1, null, 2L, null, null).isEmpty());
+        // nothing after the latest message
+        assertTrue(page(1, 3, null, 20L, null).isEmpty());
+        // empty range
+        assertTrue(page(1, null, 8L, null, 8L).isEmpty());
+        assertTrue(page(1, null, null, null, 21L).isEmpty());
+        // empty conversation
+        assertTrue(page(3, 3, null, null, null).isEmpty());
+        assertTrue(page(3, null, null, null, null).isEmpty());
+    }
+
+    @Test
+    public void testLimit() {
+        assertNull(ConversationPage.buildLimit(null, null));
+        // backward pages are limited by the where clause
+        assertNull(ConversationPage.buildLimit("10", null));
+        assertEquals("10", ConversationPage.buildLimit("10", "5"));
+        assertNull(ConversationPage.buildLimit(null, "5"));
+    }
+
+}
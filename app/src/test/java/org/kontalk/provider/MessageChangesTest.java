@@ -0,0 +1,145 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.kontalk.provider.MyMessages.Messages;
+
+import static org.junit.Assert.*;
+
+
+public class MessageChangesTest {
+
+    /** Columns read by the thread summary update. */
+    private static final List<String> THREAD_COLUMNS = Arrays.asList(
+        Messages.MESSAGE_ID,
+        Messages.DIRECTION,
+        Messages.BODY_CONTENT,
+        Messages.BODY_MIME,
+        Messages.ATTACHMENT_MIME,
+        Messages.TIMESTAMP
+    );
+
+    /** Columns deciding thread membership and order, or fulltext content. */
+    private static final List<String> STRUCTURE_COLUMNS = Arrays.asList(
+        Messages._ID,
+        Messages.THREAD_ID,
+        Messages.PEER,
+        Messages.ENCRYPTED
+    );
+
+    /** Columns not used outside the message itself. */
+    private static final List<String> MESSAGE_COLUMNS = Arrays.asList(
+        Messages.STATUS_CHANGED,
+        Messages.SERVER_TIMESTAMP,
+        Messages.UNREAD,
+        Messages.NEW,
+        Messages.BODY_LENGTH,
+        Messages.ATTACHMENT_PREVIEW_PATH,
+        Messages.ATTACHMENT_FETCH_URL,
+        Messages.ATTACHMENT_LOCAL_URI,
+        Messages.ATTACHMENT_LENGTH,
+        Messages.ATTACHMENT_COMPRESS,
+        Messages.ATTACHMENT_ENCRYPTED,
+        Messages.ATTACHMENT_SECURITY_FLAGS,
+        Messages.SECURITY_FLAGS
+    );
+
+    @Test
+    public void testSingleColumns() {
+        for (String column : THREAD_COLUMNS)
+            assertEquals(column, MessageChanges.FULL, MessageChanges.of(Collections.singletonList(column)));
+        for (String column : STRUCTURE_COLUMNS)
+            assertEquals(column, MessageChanges.FULL, MessageChanges.of(Collections.singletonList(column)));
+        for (String column : MESSAGE_COLUMNS)
+            assertEquals(column, MessageChanges.MESSAGE_ONLY, MessageChanges.of(Collections.singletonList(column)));
+
+        assertEquals(MessageChanges.THREAD_STATUS,
+            MessageChanges.of(Collections.singletonList(Messages.STATUS)));
+        assertEquals(MessageChanges.MESSAGE_ONLY,
+            MessageChanges.of(Collections.<String>emptyList()));
+    }
+
+    /** Common updates from acks, receipts and uploads. */
+    @Test
+    public void testStatusUpdates() {
+        assertEquals(MessageChanges.THREAD_STATUS, MessageChanges.of(Arrays.asList(
+            Messages.STATUS, Messages.STATUS_CHANGED, Messages.SERVER_TIMESTAMP)));
+        assertEquals(MessageChanges.MESSAGE_ONLY, MessageChanges.of(Arrays.asList(
+            Messages.ATTACHMENT_FETCH_URL, Messages.ATTACHMENT_LENGTH)));
+        // receipt with the server id: the thread might show it
+        assertEquals(MessageChanges.FULL, MessageChanges.of(Arrays.asList(
+            Messages.MESSAGE_ID, Messages.STATUS, Messages.STATUS_CHANGED)));
+    }
+
+    /**
+     * Every combination of the columns affecting threads or fulltext, each
+     * with no message column, every single message column and all of them.
+     */
+    @Test
+    public void testAllCombinations() {
+        List<String> relevant = new ArrayList<String>(THREAD_COLUMNS);
+        relevant.addAll(STRUCTURE_COLUMNS);
+        relevant.add(Messages.STATUS);
+        int statusBit = 1 << (relevant.size() - 1);
+
+        List<List<String>> extras = new ArrayList<List<String>>();
+        extras.add(Collections.<String>emptyList());
+        for (String column : MESSAGE_COLUMNS)
+            extras.add(Collections.singletonList(column));
+        extras.add(MESSAGE_COLUMNS);
+
+        int checked = 0;
+        for (int mask = 0; mask < (1 << relevant.size()); mask++) {
+            List<String> columns = new ArrayList<String>();
+            for (int i = 0; i < relevant.size(); i++) {
+                if ((mask & (1 << i)) != 0)
+                    columns.add(relevant.get(i));
+            }
+
+            int expected;
+            if ((mask & ~statusBit) != 0)
+                expected = MessageChanges.FULL;
+            else if (mask != 0)
+                expected = MessageChanges.THREAD_STATUS;
+            else
+                expected = MessageChanges.MESSAGE_ONLY;
+
+            for (List<String> extra : extras) {
+                List<String> update = new ArrayList<String>(extra);
+                update.addAll(columns);
+                // order doesn't matter
+                assertEquals(update.toString(), expected, MessageChanges.of(update));
+                Collections.reverse(update);
+                assertEquals(update.toString(), expected, MessageChanges.of(update));
+                checked++;
+            }
+        }
+
+        assertEquals((1 << relevant.size()) * extras.size(), checked);
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.provider.MessagesProvider.DatabaseHelper;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks the thread counters kept by the messages table triggers against
+ * a full recount. Runs the schema statements on a JDBC SQLite database.
+ */
+public class MessagesTriggersTest {
+
+    private static final int THREADS = 10;
+
+    /** Triggers of database version 8, recounting everything. */
+    private static final String[] TRIGGERS_V8 = {
+        "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON messages BEGIN " +
+            "UPDATE threads SET count = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND unread <> 0) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET \"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND \"new\" <> 0) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET status = (SELECT status FROM messages WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1) WHERE _id = new.thread_id;" +
+            "END",
+        "CREATE TRIGGER update_thread_on_update AFTER UPDATE ON messages BEGIN " +
+            "UPDATE threads SET count = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND unread <> 0) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET \"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = new.thread_id AND \"new\" <> 0) WHERE _id = new.thread_id;" +
+            "UPDATE threads SET status = (SELECT status FROM messages WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1) WHERE _id = new.thread_id;" +
+            "END",
+        "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON messages BEGIN " +
+            "UPDATE threads SET count = (SELECT COUNT(_id) FROM messages WHERE thread_id = old.thread_id) WHERE _id = old.thread_id;" +
+            "UPDATE threads SET unread = (SELECT COUNT(_id) FROM messages WHERE thread_id = old.thread_id AND unread <> 0) WHERE _id = old.thread_id;" +
+            "UPDATE threads SET \"new\" = (SELECT COUNT(_id) FROM messages WHERE thread_id = old.thread_id AND \"new\" <> 0) WHERE _id = old.thread_id;" +
+            "END",
+    };
+
+    private Connection mDb;
+    private Random mRandom;
+    private final List<Long> mMessages = new ArrayList<Long>();
+    private int mNextMessage;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+        mRandom = new Random(42);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        execute(DatabaseHelper.SCHEMA_CREATE);
+        createThreads();
+
+        for (int i = 0; i < 50; i++) {
+            randomOperations(100);
+            assertCounters();
+        }
+    }
+
+    @Test
+    public void testUpgradeV9() throws Exception {
+        execute(DatabaseHelper.SCHEMA_MESSAGES, DatabaseHelper.SCHEMA_THREADS);
+        execute(TRIGGERS_V8);
+        createThreads();
+        randomOperations(500);
+        // counters might be wrong before the upgrade
+        execute("UPDATE threads SET count = count + 3, unread = 0, \"new\" = 100");
+
+        execute(DatabaseHelper.SCHEMA_UPGRADE_V8);
+        assertCounters();
+
+        Set<String> triggers = new HashSet<String>();
+        Statement st = mDb.createStatement();
+        ResultSet rs = st.executeQuery("SELECT name FROM sqlite_master WHERE type = 'trigger'");
+        while (rs.next())
+            triggers.add(rs.getString(1));
+        st.close();
+        assertEquals(4, triggers.size());
+        assertTrue(triggers.contains("update_thread_status_on_update"));
+
+        // new triggers are now in place
+        for (int i = 0; i < 10; i++) {
+            randomOperations(100);
+            assertCounters();
+        }
+    }
+
+    @Test
+    public void testBenchmark1k() throws Exception {
+        benchmark(1000);
+    }
+
+    @Test
+    public void testBenchmark10k() throws Exception {
+        benchmark(10000);
+    }
+
+    @Test
+    public void testBenchmark100k() throws Exception {
+        Benchmarks.assumeEnabled();
+        if (Benchmarks.isLargeEnabled())
+            benchmark(100000);
+    }
+
+    /**
+     * Compares the version 8 triggers with the current ones: a conversation
+     * of the given size is loaded, then new messages are inserted and
+     * marked as read one by one.
+     */
+    private void benchmark(int size) throws Exception {
+        Benchmarks.assumeEnabled();
+
+        for (boolean incremental : new boolean[] { false, true }) {
+            tearDown();
+            setUp();
+
+            execute(DatabaseHelper.SCHEMA_MESSAGES, DatabaseHelper.SCHEMA_THREADS);
+            createThreads();
+            mDb.setAutoCommit(false);
+            for (int i = 0; i < size; i++)
+                insert(1);
+            mDb.commit();
+            mDb.setAutoCommit(true);
+
+            if (incremental)
+                execute(DatabaseHelper.SCHEMA_UPGRADE_V8);
+            else
+                execute(TRIGGERS_V8);
+
+            int ops = 200;
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                long id = insert(1);
+                execute("UPDATE messages SET unread = 0, \"new\" = 0 WHERE _id = " + id);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            assertCounters();
+            Benchmarks.report("%s triggers, %d messages: %.3f ms per insert and update",
+                incremental ? "incremental" : "recount", size,
+                elapsed / 1e6 / ops);
+        }
+    }
+
+    private void createThreads() throws SQLException {
+        PreparedStatement st = mDb.prepareStatement("INSERT INTO threads " +
+            "(_id, msg_id, peer, direction, timestamp) VALUES (?, ?, ?, 0, 0)");
+        for (int i = 1; i <= THREADS; i++) {
+            st.setInt(1, i);
+            st.setString(2, "thread" + i);
+            st.setString(3, "peer" + i + "@kontalk.net");
+            st.executeUpdate();
+        }
+        st.close();
+    }
+
+    private void randomOperations(int count) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            int op = mRandom.nextInt(100);
+            if (op < 50 || mMessages.isEmpty()) {
+                insert(randomThread());
+            }
+            else if (op < 85) {
+                long id = mMessages.get(mRandom.nextInt(mMessages.size()));
+                String[] updates = {
+                    "unread = " + randomFlag(),
+                    "\"new\" = " + randomFlag(),
+                    "unread = " + randomFlag() + ", \"new\" = " + randomFlag(),
+                    "thread_id = " + randomThread(),
+                    "status = " + mRandom.nextInt(5),
+                    "body_length = " + mRandom.nextInt(1000),
+                };
+                execute("UPDATE messages SET " + updates[mRandom.nextInt(updates.length)] +
+                    " WHERE _id = " + id);
+            }
+            else if (op < 95) {
+                int index = mRandom.nextInt(mMessages.size());
+                execute("DELETE FROM messages WHERE _id = " + mMessages.remove(index));
+            }
+            else if (op < 98) {
+                // mark conversation as read
+                execute("UPDATE messages SET unread = 0, \"new\" = 0 WHERE thread_id = " + randomThread());
+            }
+            else {
+                // delete conversation
+                int threadId = randomThread();
+                for (long[] row : query("SELECT _id FROM messages WHERE thread_id = " + threadId))
+                    mMessages.remove(Long.valueOf(row[0]));
+                execute("DELETE FROM messages WHERE thread_id = " + threadId);
+            }
+        }
+    }
+
+    private long insert(int threadId) throws SQLException {
+        PreparedStatement st = mDb.prepareStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, unread, \"new\", timestamp, status) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        st.setInt(1, threadId);
+        st.setString(2, "message" + (mNextMessage++));
+        st.setString(3, "peer" + threadId + "@kontalk.net");
+        st.setInt(4, mRandom.nextInt(2));
+        st.setInt(5, randomFlag());
+        st.setInt(6, randomFlag());
+        st.setLong(7, mRandom.nextInt(1000000));
+        st.setInt(8, mRandom.nextInt(5));
+        st.executeUpdate();
+        st.close();
+
+        long id = query("SELECT last_insert_rowid()").get(0)[0];
+        mMessages.add(id);
+        return id;
+    }
+
+    private int randomThread() {
+        return mRandom.nextInt(THREADS) + 1;
+    }
+
+    /** Any value other than zero is a set flag. */
+    private int randomFlag() {
+        int value = mRandom.nextInt(4);
+        return value < 2 ? value : value * 5;
+    }
+
+    private void assertCounters() throws SQLException {
+        Map<Long, long[]> expected = new HashMap<Long, long[]>();
+        for (long[] row : query("SELECT thread_id, COUNT(*), " +
+                "SUM(unread <> 0), SUM(\"new\" <> 0) FROM messages GROUP BY thread_id"))
+            expected.put(row[0], row);
+
+        List<long[]> threads = query("SELECT _id, count, unread, \"new\" FROM threads");
+        assertEquals(THREADS, threads.size());
+        for (long[] row : threads) {
+            long[] counters = expected.get(row[0]);
+            if (counters == null)
+                counters = new long[4];
+            assertEquals("count of thread " + row[0], counters[1], row[1]);
+            assertEquals("unread of thread " + row[0], counters[2], row[2]);
+            assertEquals("new of thread " + row[0], counters[3], row[3]);
+        }
+    }
+
+    private void execute(String... sql) throws SQLException {
+        Statement st = mDb.createStatement();
+        try {
+            for (String s : sql)
+                st.executeUpdate(s);
+        }
+        finally {
+            st.close();
+        }
+    }
+
+    /** Runs a query returning integer columns only. */
+    private List<long[]> query(String sql) throws SQLException {
+        List<long[]> rows = new ArrayList<long[]>();
+        Statement st = mDb.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(sql);
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                long[] row = new long[columns];
+                for (int i = 0; i < columns; i++)
+                    row[i] = rs.getLong(i + 1);
+                rows.add(row);
+            }
+        }
+        finally {
+            st.close();
+        }
+        return rows;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PersonalKey;
+
+import static org.junit.Assert.*;
+
+
+public class PublicKeyCacheTest {
+
+    private static final String JID = "alice@beta.kontalk.net";
+
+    private static EndpointServer sServer;
+    private static PersonalKey sKey;
+    private static PGPPublicKeyRing sRing;
+    private static String sFingerprint;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PGP.registerProvider();
+        sServer = new EndpointServer("kontalk.net|beta.kontalk.net");
+        sKey = createKey("alice");
+        sRing = sKey.getPublicKeyRing();
+        sFingerprint = sKey.getFingerprint();
+    }
+
+    private static PersonalKey createKey(String name) throws Exception {
+        PGP.PGPKeyPairRing ring = PersonalKey.create()
+            .storeNetwork(name, sServer.getNetwork(), name, "test");
+        return PersonalKey.load(ring.secretKey, ring.publicKey, "test", null);
+    }
+
+    @Test
+    public void testHitMiss() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+
+        assertNull(cache.getPublicKey(JID, true));
+        cache.putPublicKey(JID, true, sFingerprint, sRing);
+        for (int i = 0; i < 99; i++)
+            assertSame(sRing, cache.getPublicKey(JID, true));
+
+        // untrusted keys are cached separately
+        assertNull(cache.getPublicKey(JID, false));
+
+        assertEquals(99, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        cache.putPublicKey(JID, true, sFingerprint, sRing);
+
+        // same key stored again: nothing to evict
+        cache.invalidate(JID, sFingerprint);
+        assertSame(sRing, cache.getPublicKey(JID, true));
+
+        // key changed
+        cache.invalidate(JID, "0000000000000000000000000000000000000000");
+        assertNull(cache.getPublicKey(JID, true));
+
+        cache.putPublicKey(JID, true, sFingerprint, sRing);
+        cache.invalidate(JID);
+        assertNull(cache.getPublicKey(JID, true));
+    }
+
+    @Test
+    public void testCoderReuse() throws Exception {
+        PublicKeyCache cache = new PublicKeyCache(10);
+        cache.putPublicKey(JID, true, sFingerprint, sRing);
+
+        assertNull(cache.getEncryptCoder(sServer, sKey, JID));
+        Coder coder = cache.putEncryptCoder(sServer, sKey, JID, sRing);
+        assertSame(coder, cache.getEncryptCoder(sServer, sKey, JID));
+
+        // a different personal key must not reuse the coder
+        PersonalKey other = createKey("bob");
+        assertNull(cache.getEncryptCoder(sServer, other, JID));
+
+        Coder decoder = cache.putDecryptCoder(sServer, sKey, JID, sRing);
+        assertSame(decoder, cache.getDecryptCoder(sServer, sKey, JID));
+
+        cache.invalidate(JID);
+        assertNull(cache.getEncryptCoder(sServer, sKey, JID));
+        assertNull(cache.getDecryptCoder(sServer, sKey, JID));
+    }
+
+    /**
+     * Repeated encryptions to the same user, looked up as UsersProvider does:
+     * the key ring (the expensive part) must be parsed only once.
+     */
+    @Test
+    public void testEncryptParsesKeyOnce() throws Exception {
+        final int count = 20;
+        byte[] keydata = sRing.getEncoded();
+        PublicKeyCache cache = new PublicKeyCache(10);
+
+        int parses = 0;
+        Coder first = null;
+        for (int i = 0; i < count; i++) {
+            Coder coder = cache.getEncryptCoder(sServer, sKey, JID);
+            if (coder == null) {
+                PGPPublicKeyRing ring = cache.getPublicKey(JID, true);
+                if (ring == null) {
+                    ring = PGP.readPublicKeyring(keydata);
+                    parses++;
+                    cache.putPublicKey(JID, true, sFingerprint, ring);
+                }
+                coder = cache.putEncryptCoder(sServer, sKey, JID, ring);
+            }
+            if (first == null)
+                first = coder;
+
+            assertSame(first, coder);
+            assertNotNull(coder.encryptText("test message " + i));
+        }
+
+        assertEquals(1, parses);
+    }
+
+    @Test
+    public void testEncryptBenchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        final int count = 20;
+        byte[] keydata = sRing.getEncoded();
+
+        // uncached path: parse the key and build a new coder every time
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            PGPPublicKeyRing ring = PGP.readPublicKeyring(keydata);
+            new PublicKeyCache(1).putEncryptCoder(sServer, sKey, JID, ring)
+                .encryptText("test message " + i);
+        }
+        long uncached = System.nanoTime() - start;
+
+        PublicKeyCache cache = new PublicKeyCache(10);
+        cache.putPublicKey(JID, true, sFingerprint, PGP.readPublicKeyring(keydata));
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Coder coder = cache.getEncryptCoder(sServer, sKey, JID);
+            if (coder == null)
+                coder = cache.putEncryptCoder(sServer, sKey, JID, cache.getPublicKey(JID, true));
+            coder.encryptText("test message " + i);
+        }
+        long cached = System.nanoTime() - start;
+
+        Benchmarks.report("encryptText x%d: uncached %d ms, cached %d ms, hits %d, misses %d",
+            count, uncached / 1000000, cached / 1000000, cache.getHitCount(), cache.getMissCount());
+        assertEquals(1, cache.getMissCount());
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.service.NetworkStateTracker.NetworkState;
+
+import static org.junit.Assert.*;
+
+
+public class NetworkStateTrackerTest {
+
+    private static final long WINDOW = 3000;
+
+    private static final int TYPE_MOBILE = 0;
+    private static final int TYPE_WIFI = 1;
+
+    /** Service actions and ping interval resets caused by a broadcast sequence. */
+    private static final class Result {
+        int start;
+        int stop;
+        int test;
+        int networkChanges;
+
+        int actions() {
+            return start + stop + test;
+        }
+
+        void count(int action) {
+            switch (action) {
+                case NetworkStateTracker.ACTION_START:
+                    start++;
+                    break;
+                case NetworkStateTracker.ACTION_STOP:
+                    stop++;
+                    break;
+                case NetworkStateTracker.ACTION_TEST:
+                    test++;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Parses a recorded broadcast: "time state", where state is
+     * <code>none</code>, <code>wifi:ssid</code> or <code>mobile:operator:subtype</code>.
+     */
+    private static NetworkState parseState(String state) {
+        String[] parts = state.split(":");
+        if (parts[0].equals("none"))
+            return NetworkState.DISCONNECTED;
+        else if (parts[0].equals("wifi"))
+            return new NetworkState(true, TYPE_WIFI, 0,
+                "WIFI_" + Integer.toHexString(parts[1].hashCode()));
+        else
+            return new NetworkState(true, TYPE_MOBILE, Integer.parseInt(parts[2]),
+                "mobile_" + Integer.toHexString(parts[1].hashCode()));
+    }
+
+    /** Replays broadcasts as the receiver does, firing the settle timer when due. */
+    private static Result replay(String... broadcasts) {
+        NetworkStateTracker tracker = new NetworkStateTracker(WINDOW);
+        Result result = new Result();
+        long deadline = -1;
+
+        for (String broadcast : broadcasts) {
+            int sep = broadcast.indexOf(' ');
+            long time = Long.parseLong(broadcast.substring(0, sep));
+
+            if (deadline >= 0 && deadline <= time) {
+                result.count(tracker.settle(deadline));
+                if (tracker.isNetworkChanged())
+                    result.networkChanges++;
+            }
+
+            deadline = tracker.update(parseState(broadcast.substring(sep + 1)), time);
+        }
+
+        if (deadline >= 0) {
+            result.count(tracker.settle(deadline));
+            if (tracker.isNetworkChanged())
+                result.networkChanges++;
+        }
+
+        assertFalse(tracker.isPending());
+        return result;
+    }
+
+    /** The old receiver: one action and a ping interval reset for every broadcast. */
+    private static Result replayLegacy(String... broadcasts) {
+        Result result = new Result();
+        for (String broadcast : broadcasts) {
+            NetworkState state = parseState(broadcast.substring(broadcast.indexOf(' ') + 1));
+            if (state.connected) {
+                result.test++;
+                result.networkChanges++;
+            }
+            else {
+                result.stop++;
+            }
+        }
+        return result;
+    }
+
+    private static void print(String name, Result legacy, Result debounced) {
+        Benchmarks.report("NetworkStateTracker %s: legacy %d actions/%d ping resets, " +
+            "debounced %d actions/%d ping resets", name, legacy.actions(), legacy.networkChanges,
+            debounced.actions(), debounced.networkChanges);
+    }
+
+    @Test
+    public void testFirstState() {
+        Result r = replay("0 wifi:home");
+        assertEquals(1, r.test);
+        assertEquals(1, r.networkChanges);
+
+        r = replay("0 none");
+        assertEquals(1, r.stop);
+        assertEquals(0, r.networkChanges);
+    }
+
+    @Test
+    public void testDuplicates() {
+        // the system often sends the same state more than once
+        String[] seq = { "0 wifi:home", "5000 wifi:home", "5100 wifi:home", "9000 wifi:home" };
+        Result r = replay(seq);
+        assertEquals(1, r.actions());
+        assertEquals(1, r.networkChanges);
+        print("duplicates", replayLegacy(seq), r);
+    }
+
+    @Test
+    public void testFlappingWifi() {
+        // weak Wi-Fi signal, falling back to mobile and back again
+        String[] seq = {
+            "0 wifi:office",
+            "10000 none",
+            "10300 mobile:22210:13",
+            "11200 wifi:office",
+            "11500 none",
+            "11700 mobile:22210:13",
+            "12900 wifi:office",
+            "13100 wifi:office",
+        };
+        Result r = replay(seq);
+        // back to where we started: only the initial test
+        assertEquals(1, r.actions());
+        assertEquals(1, r.test);
+        assertEquals(1, r.networkChanges);
+        print("flapping Wi-Fi", replayLegacy(seq), r);
+    }
+
+    @Test
+    public void testHandover() {
+        // leaving home: Wi-Fi drops, mobile data takes over
+        String[] seq = {
+            "0 wifi:home",
+            "60000 none",
+            "60400 mobile:22210:3",
+            "61000 mobile:22210:13",
+            "61500 mobile:22210:13",
+        };
+        Result r = replay(seq);
+        assertEquals(2, r.test);
+        assertEquals(0, r.stop);
+        assertEquals(2, r.networkChanges);
+        print("handover", replayLegacy(seq), r);
+    }
+
+    @Test
+    public void testSubtypeChange() {
+        // LTE to HSPA: same network, check the connection but keep the ping interval
+        Result r = replay("0 mobile:22210:13", "30000 mobile:22210:10");
+        assertEquals(2, r.test);
+        assertEquals(1, r.networkChanges);
+
+        // brief HSPA dip while on LTE
+        r = replay("0 mobile:22210:13", "30000 mobile:22210:10", "31000 mobile:22210:13");
+        assertEquals(1, r.test);
+        assertEquals(1, r.networkChanges);
+    }
+
+    @Test
+    public void testReconnect() {
+        // airplane mode on and off, back to the same network
+        String[] seq = { "0 wifi:home", "60000 none", "120000 wifi:home" };
+        Result r = replay(seq);
+        assertEquals(1, r.test);
+        assertEquals(1, r.stop);
+        assertEquals(1, r.start);
+        // same network: estimated ping interval is still valid
+        assertEquals(1, r.networkChanges);
+
+        // airplane mode toggled by mistake
+        r = replay("0 wifi:home", "60000 none", "61000 wifi:home");
+        assertEquals(1, r.actions());
+    }
+
+    @Test
+    public void testEndlessFlapping() {
+        // a broadcast every second: the state is still acted upon after a few windows
+        NetworkStateTracker tracker = new NetworkStateTracker(WINDOW);
+        long firstSettle = -1;
+        int settled = 0;
+        long deadline = -1;
+
+        for (long time = 0; time < 30000; time += 1000) {
+            if (deadline >= 0 && deadline <= time) {
+                tracker.settle(deadline);
+                if (firstSettle < 0)
+                    firstSettle = deadline;
+                settled++;
+            }
+            deadline = tracker.update(parseState((time % 2000 == 0) ? "wifi:home" : "none"), time);
+        }
+
+        assertTrue(firstSettle >= 0 && firstSettle <= WINDOW * 4);
+        assertEquals(30000 / (WINDOW * 4), settled);
+    }
+
+}
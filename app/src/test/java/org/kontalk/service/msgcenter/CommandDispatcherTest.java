@@ -0,0 +1,269 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.service.msgcenter.CommandDispatcher.CommandHandler;
+
+import static org.junit.Assert.*;
+
+
+public class CommandDispatcherTest {
+
+    /** Message center actions, in the order of the old if/else chain. */
+    private static final String[] ACTIONS = {
+        "org.kontalk.action.PACKET",
+        "org.kontalk.action.HOLD",
+        "org.kontalk.action.RELEASE",
+        "org.kontalk.action.IDLE",
+        "org.kontalk.push.START",
+        "org.kontalk.push.STOP",
+        "org.kontalk.push.REGISTERED",
+        "org.kontalk.action.REGEN_KEYPAIR",
+        "org.kontalk.action.IMPORT_KEYPAIR",
+        "org.kontalk.action.CONNECTED",
+        "org.kontalk.action.RESTART",
+        "org.kontalk.action.TEST",
+        "org.kontalk.action.PING",
+        "org.kontalk.action.MESSAGE",
+        "org.kontalk.action.ROSTER",
+        "org.kontalk.action.ROSTER_MATCH",
+        "org.kontalk.action.ROSTER_LOADED",
+        "org.kontalk.action.PRESENCE",
+        "org.kontalk.action.LAST_ACTIVITY",
+        "org.kontalk.action.VCARD",
+        "org.kontalk.action.PUBLICKEY",
+        "org.kontalk.action.SERVERLIST",
+        "org.kontalk.action.SUBSCRIBED",
+        "org.kontalk.action.RETRY",
+        "org.kontalk.action.BLOCKLIST",
+    };
+
+    /** Typical traffic: mostly messages, presence and idle/hold/release. */
+    private static final String[] TRAFFIC = {
+        "org.kontalk.action.MESSAGE",
+        "org.kontalk.action.MESSAGE",
+        "org.kontalk.action.MESSAGE",
+        "org.kontalk.action.PRESENCE",
+        "org.kontalk.action.PRESENCE",
+        "org.kontalk.action.IDLE",
+        "org.kontalk.action.HOLD",
+        "org.kontalk.action.RELEASE",
+        "org.kontalk.action.PING",
+        "org.kontalk.action.TEST",
+        "org.kontalk.action.BLOCKLIST",
+    };
+
+    /** Records its invocations. */
+    private static final class RecordingHandler extends CommandHandler<List<String>> {
+        private final String mName;
+        private final boolean mConnect;
+
+        RecordingHandler(String name, int requirements, boolean connect) {
+            super(requirements);
+            mName = name;
+            mConnect = connect;
+        }
+
+        @Override
+        protected boolean handle(List<String> log, boolean canConnect, boolean isConnected) {
+            log.add(mName);
+            return mConnect;
+        }
+    }
+
+    private static CommandDispatcher<List<String>> createDispatcher() {
+        CommandDispatcher<List<String>> d = new CommandDispatcher<List<String>>(
+            new RecordingHandler("default", CommandDispatcher.REQUIRE_NONE, true));
+        d.register("none", new RecordingHandler("none",
+            CommandDispatcher.REQUIRE_NONE, false));
+        d.register("connected", new RecordingHandler("connected",
+            CommandDispatcher.REQUIRE_CONNECTED, false));
+        d.register("both", new RecordingHandler("both",
+            CommandDispatcher.REQUIRE_CAN_CONNECT | CommandDispatcher.REQUIRE_CONNECTED, false));
+        return d;
+    }
+
+    @Test
+    public void testDefaultHandler() {
+        CommandDispatcher<List<String>> d = createDispatcher();
+        List<String> log = new ArrayList<String>();
+
+        // no command means normal service start: connect
+        assertTrue(d.dispatch(null, log, true, false));
+        assertTrue(d.dispatch("unknown", log, true, false));
+        assertFalse(d.dispatch("none", log, true, false));
+
+        assertEquals("[default, default, none]", log.toString());
+        assertSame(d.getHandler(null), d.getHandler("unknown"));
+    }
+
+    @Test
+    public void testPreconditions() {
+        CommandDispatcher<List<String>> d = createDispatcher();
+
+        boolean[] values = { false, true };
+        for (boolean canConnect : values) {
+            for (boolean isConnected : values) {
+                List<String> log = new ArrayList<String>();
+                d.dispatch("none", log, canConnect, isConnected);
+                d.dispatch("connected", log, canConnect, isConnected);
+                d.dispatch("both", log, canConnect, isConnected);
+
+                List<String> expected = new ArrayList<String>();
+                expected.add("none");
+                if (isConnected)
+                    expected.add("connected");
+                if (canConnect && isConnected)
+                    expected.add("both");
+
+                assertEquals(expected, log);
+            }
+        }
+
+        // skipped commands are not timed
+        assertEquals(4, d.getHandler("none").getCount());
+        assertEquals(2, d.getHandler("connected").getCount());
+        assertEquals(1, d.getHandler("both").getCount());
+    }
+
+    @Test
+    public void testTiming() {
+        CommandDispatcher<Object> d = new CommandDispatcher<Object>(null);
+        d.register("slow", new CommandHandler<Object>(CommandDispatcher.REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Object args, boolean canConnect, boolean isConnected) {
+                try {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return false;
+            }
+        });
+        d.register("failing", new CommandHandler<Object>(CommandDispatcher.REQUIRE_NONE) {
+            @Override
+            protected boolean handle(Object args, boolean canConnect, boolean isConnected) {
+                throw new IllegalStateException();
+            }
+        });
+
+        d.dispatch("slow", null, true, true);
+        d.dispatch("slow", null, true, true);
+
+        CommandHandler<Object> slow = d.getHandler("slow");
+        assertEquals(2, slow.getCount());
+        assertTrue(slow.getMaxTime() >= CommandDispatcher.SLOW_COMMAND);
+        assertTrue(slow.getTotalTime() >= slow.getMaxTime() * 2 - CommandDispatcher.SLOW_COMMAND);
+
+        try {
+            d.dispatch("failing", null, true, true);
+            fail("exception not propagated");
+        }
+        catch (IllegalStateException expected) {
+        }
+        // failed commands are timed too
+        assertEquals(1, d.getHandler("failing").getCount());
+    }
+
+    /** The old dispatch: a chain of equals() calls. */
+    private static int chain(String action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i].equals(action))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Action strings as they come out of an intent: new objects, no cached hash. */
+    private static String[] traffic(int count, long seed) {
+        Random rnd = new Random(seed);
+        String[] traffic = new String[count];
+        for (int i = 0; i < count; i++)
+            traffic[i] = new String(TRAFFIC[rnd.nextInt(TRAFFIC.length)].toCharArray());
+        return traffic;
+    }
+
+    @Test
+    public void testBenchmark() {
+        Benchmarks.assumeEnabled();
+
+        final int[] hits = new int[1];
+        CommandDispatcher<Object> d = new CommandDispatcher<Object>(null);
+        for (String action : ACTIONS) {
+            d.register(action, new CommandHandler<Object>(CommandDispatcher.REQUIRE_NONE) {
+                @Override
+                protected boolean handle(Object args, boolean canConnect, boolean isConnected) {
+                    hits[0]++;
+                    return false;
+                }
+            });
+        }
+
+        final int count = 200000;
+        long chainTime = 0, lookupTime = 0, mapTime = 0;
+        int found = 0, lookups = 0;
+        // first round is warm up
+        for (int round = 0; round < 3; round++) {
+            String[] traffic = traffic(count, round);
+            long start = System.nanoTime();
+            for (String action : traffic) {
+                if (chain(action) >= 0)
+                    found++;
+            }
+            long time = System.nanoTime() - start;
+            if (round > 0)
+                chainTime += time;
+
+            traffic = traffic(count, round);
+            start = System.nanoTime();
+            for (String action : traffic) {
+                if (d.getHandler(action) != null)
+                    lookups++;
+            }
+            time = System.nanoTime() - start;
+            if (round > 0)
+                lookupTime += time;
+
+            traffic = traffic(count, round);
+            start = System.nanoTime();
+            for (String action : traffic)
+                d.dispatch(action, null, true, true);
+            time = System.nanoTime() - start;
+            if (round > 0)
+                mapTime += time;
+        }
+
+        assertEquals(count * 3, found);
+        assertEquals(count * 3, lookups);
+        assertEquals(count * 3, hits[0]);
+
+        Benchmarks.report("CommandDispatcher: if/else chain %d ns, " +
+            "table lookup %d ns, dispatch with timing %d ns per command",
+            chainTime / (count * 2), lookupTime / (count * 2), mapTime / (count * 2));
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class CryptoExecutorTest {
+
+    private static final int PEERS = 20;
+
+    /** A job recording its completion order. */
+    private static final class OrderedJob extends CryptoExecutor.Job {
+        private final String mPeer;
+        private final int mIndex;
+        private final long mDelay;
+        private final Map<String, List<Integer>> mCompleted;
+        private final CountDownLatch mDone;
+
+        OrderedJob(String peer, int index, long delay,
+                Map<String, List<Integer>> completed, CountDownLatch done) {
+            mPeer = peer;
+            mIndex = index;
+            mDelay = delay;
+            mCompleted = completed;
+            mDone = done;
+        }
+
+        @Override
+        protected void process() {
+            try {
+                Thread.sleep(mDelay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mIndex % 17 == 0)
+                throw new RuntimeException("failing job");
+        }
+
+        @Override
+        protected void complete() {
+            synchronized (mCompleted) {
+                mCompleted.get(mPeer).add(mIndex);
+            }
+            mDone.countDown();
+        }
+    }
+
+    /** Encrypts a message body, standing in for PGP encryption. */
+    private static final class EncryptJob extends CryptoExecutor.Job {
+        private final byte[] mData;
+        private final List<byte[]> mSent;
+        private final CountDownLatch mDone;
+        private byte[] mEncrypted;
+
+        EncryptJob(byte[] data, List<byte[]> sent, CountDownLatch done) {
+            mData = data;
+            mSent = sent;
+            mDone = done;
+        }
+
+        @Override
+        protected void process() {
+            mEncrypted = encrypt(mData);
+        }
+
+        @Override
+        protected void complete() {
+            mSent.add(mEncrypted);
+            mDone.countDown();
+        }
+    }
+
+    private static byte[] encrypt(byte[] data) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"),
+                new IvParameterSpec(new byte[16]));
+            // a few rounds to simulate the cost of signing and compressing
+            byte[] out = data;
+            for (int i = 0; i < 4; i++)
+                out = cipher.doFinal(out);
+            return out;
+        }
+        catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testPeerOrdering() throws Exception {
+        CryptoExecutor executor = new CryptoExecutor(4);
+        Random rnd = new Random(42);
+        int count = 2000;
+        Map<String, List<Integer>> completed = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> submitted = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < PEERS; i++) {
+            completed.put("peer" + i, new ArrayList<Integer>());
+            submitted.put("peer" + i, new ArrayList<Integer>());
+        }
+
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            String peer = "peer" + rnd.nextInt(PEERS);
+            submitted.get(peer).add(i);
+            // random processing times to shuffle completion
+            executor.execute(peer, new OrderedJob(peer, i, rnd.nextInt(3), completed, done));
+        }
+
+        assertTrue("jobs not completed", done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        // failing jobs are completed too, in order
+        for (String peer : submitted.keySet())
+            assertEquals(submitted.get(peer), completed.get(peer));
+    }
+
+    @Test
+    public void testConcurrentSubmit() throws Exception {
+        final CryptoExecutor executor = new CryptoExecutor(4);
+        final int perThread = 500;
+        final Map<String, List<Integer>> completed = new HashMap<String, List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(PEERS * perThread);
+
+        // one submitting thread per peer, like many conversations at once
+        Thread[] threads = new Thread[PEERS];
+        for (int t = 0; t < PEERS; t++) {
+            final String peer = "peer" + t;
+            completed.put(peer, new ArrayList<Integer>());
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= perThread; i++)
+                        executor.execute(peer, new OrderedJob(peer, i, 0, completed, done));
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        assertTrue("jobs not completed", done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        for (List<Integer> list : completed.values()) {
+            assertEquals(perThread, list.size());
+            for (int i = 0; i < perThread; i++)
+                assertEquals(i + 1, (int) list.get(i));
+        }
+    }
+
+    @Test
+    public void testShutdownCompletesJobs() throws Exception {
+        CryptoExecutor executor = new CryptoExecutor(2);
+        Map<String, List<Integer>> completed = new HashMap<String, List<Integer>>();
+        completed.put("peer", new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 1; i <= 20; i++)
+            executor.execute("peer", new OrderedJob("peer", i, 5, completed, done));
+
+        // queued jobs are still completed
+        assertTrue("jobs not completed", executor.shutdown(10000));
+        assertEquals(20, completed.get("peer").size());
+
+        // jobs after shutdown are dropped
+        executor.execute("peer", new OrderedJob("peer", 21, 0, completed, done));
+        assertEquals(20, completed.get("peer").size());
+    }
+
+    /**
+     * Encrypts 1,000 messages between 100 bytes and 64 KB, inline and with
+     * the executor, and measures how long the submitting thread is busy.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        Random rnd = new Random(42);
+        List<byte[]> messages = new ArrayList<byte[]>(1000);
+        for (int i = 0; i < 1000; i++) {
+            // mostly short text, some large stanzas
+            int size = (i % 10 == 0) ? 16384 + rnd.nextInt(49152) : 100 + rnd.nextInt(900);
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            messages.add(data);
+        }
+
+        // warm up
+        for (int i = 0; i < 200; i++)
+            encrypt(messages.get(i));
+
+        // inline: the caller is blocked for the whole time
+        long start = System.nanoTime();
+        for (byte[] data : messages)
+            encrypt(data);
+        long inline = System.nanoTime() - start;
+
+        CryptoExecutor executor = new CryptoExecutor();
+        List<byte[]> sent = Collections.synchronizedList(new ArrayList<byte[]>());
+        CountDownLatch done = new CountDownLatch(messages.size());
+        start = System.nanoTime();
+        for (int i = 0; i < messages.size(); i++)
+            executor.execute("peer" + (i % PEERS), new EncryptJob(messages.get(i), sent, done));
+        long submit = System.nanoTime() - start;
+        assertTrue("jobs not completed", done.await(60, TimeUnit.SECONDS));
+        long total = System.nanoTime() - start;
+        executor.shutdown();
+
+        assertEquals(messages.size(), sent.size());
+
+        Benchmarks.report("CryptoExecutor 1000 messages (%d CPUs): " +
+                "inline %d ms, executor %d ms (caller busy %d ms)",
+            Runtime.getRuntime().availableProcessors(),
+            inline / 1000000, total / 1000000, submit / 1000000);
+
+        // the caller must not wait for encryption
+        assertTrue("submitting is blocking", submit < inline / 2);
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.kontalk.service.msgcenter.IncomingMessageBatcher.IncomingMessage;
+
+import static org.junit.Assert.*;
+
+
+public class IncomingMessageBatcherTest {
+
+    /** Records the stored batches and when they were stored. */
+    private static final class RecordingStore implements IncomingMessageBatcher.MessageStore,
+            IncomingMessageBatcher.OnMessagesStoredListener {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final List<Long> times = new ArrayList<Long>();
+        final CountDownLatch done;
+        int stored;
+
+        RecordingStore(int messages) {
+            done = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void store(List<IncomingMessage> messages) {
+            synchronized (this) {
+                sizes.add(messages.size());
+                times.add(System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onMessagesStored(List<IncomingMessage> messages) {
+            for (int i = 0; i < messages.size(); i++) {
+                stored++;
+                done.countDown();
+            }
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("messages not stored", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private RecordingStore mStore;
+    private IncomingMessageBatcher mBatcher;
+
+    private void create(int messages) {
+        mStore = new RecordingStore(messages);
+        mBatcher = new IncomingMessageBatcher(mStore, mStore);
+    }
+
+    private static IncomingMessage message(int i) {
+        return new IncomingMessage(null, "message" + i, "sender@kontalk.net", null);
+    }
+
+    @Before
+    public void setUp() {
+        mBatcher = null;
+    }
+
+    @After
+    public void tearDown() {
+        if (mBatcher != null)
+            mBatcher.quit();
+    }
+
+    @Test
+    public void testFlushDelay() throws Exception {
+        create(10);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            mBatcher.add(message(i));
+        mStore.await();
+
+        // a single batch, stored after the flush delay
+        assertEquals(1, mStore.sizes.size());
+        assertEquals(10, mStore.sizes.get(0).intValue());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(mStore.times.get(0) - start);
+        assertTrue("stored after " + elapsed + " ms", elapsed >= IncomingMessageBatcher.FLUSH_DELAY);
+        assertTrue("stored after " + elapsed + " ms", elapsed < 1000);
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        int max = IncomingMessageBatcher.MAX_BATCH_SIZE;
+        create(max);
+
+        for (int i = 0; i < max - 1; i++)
+            mBatcher.add(message(i));
+        // the last message fills the batch: no waiting for the flush delay
+        long start = System.nanoTime();
+        mBatcher.add(message(max - 1));
+        mStore.await();
+
+        assertEquals(1, mStore.sizes.size());
+        assertEquals(max, mStore.sizes.get(0).intValue());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(mStore.times.get(0) - start);
+        assertTrue("full batch stored after " + elapsed + " ms", elapsed < IncomingMessageBatcher.FLUSH_DELAY);
+    }
+
+    @Test
+    public void testQuit() throws Exception {
+        create(3);
+
+        for (int i = 0; i < 3; i++)
+            mBatcher.add(message(i));
+        mBatcher.quit();
+        mStore.await();
+        assertEquals(3, mStore.stored);
+
+        // messages arriving after quit are dropped
+        mBatcher.add(message(3));
+        mBatcher.quit();
+        Thread.sleep(IncomingMessageBatcher.FLUSH_DELAY * 2);
+        assertEquals(3, mStore.stored);
+        mBatcher = null;
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class NatTimeoutEstimatorTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    /** Runs pings on a network with the given NAT timeout. */
+    private static void run(NatTimeoutEstimator estimator, long natTimeout, int pings) {
+        for (int i = 0; i < pings; i++) {
+            long interval = estimator.getInterval();
+            if (interval < natTimeout)
+                estimator.onSuccess(interval);
+            else
+                estimator.onFailure(interval);
+        }
+    }
+
+    @Test
+    public void testConverge() {
+        NatTimeoutEstimator estimator = new NatTimeoutEstimator();
+        assertEquals(NatTimeoutEstimator.MIN_INTERVAL, estimator.getInterval());
+
+        run(estimator, 7 * MINUTE, 40);
+        long lower = estimator.getLowerBound();
+        assertTrue(lower < 7 * MINUTE);
+        assertTrue(lower >= 7 * MINUTE - NatTimeoutEstimator.RESOLUTION);
+        assertTrue(estimator.getUpperBound() >= 7 * MINUTE);
+        assertEquals(lower, estimator.getInterval());
+    }
+
+    @Test
+    public void testNoTimeout() {
+        NatTimeoutEstimator estimator = new NatTimeoutEstimator();
+        run(estimator, Long.MAX_VALUE, 40);
+        assertEquals(NatTimeoutEstimator.MAX_INTERVAL, estimator.getInterval());
+    }
+
+    @Test
+    public void testShorterTimeout() {
+        NatTimeoutEstimator estimator = new NatTimeoutEstimator(20 * MINUTE, 21 * MINUTE, NatTimeoutEstimator.DECAY_AFTER);
+        // the safe interval is not safe anymore
+        estimator.onFailure(20 * MINUTE);
+        assertEquals(10 * MINUTE, estimator.getInterval());
+
+        run(estimator, 3 * MINUTE, 40);
+        assertTrue(estimator.getInterval() < 3 * MINUTE);
+        assertTrue(estimator.getInterval() >= 3 * MINUTE - NatTimeoutEstimator.RESOLUTION);
+    }
+
+    @Test
+    public void testDecay() {
+        NatTimeoutEstimator estimator = new NatTimeoutEstimator();
+        run(estimator, 5 * MINUTE, 40);
+        assertTrue(estimator.getInterval() < 5 * MINUTE);
+
+        // NAT timeout got longer: eventually found out
+        run(estimator, 15 * MINUTE, 500);
+        assertTrue(estimator.getInterval() >= 15 * MINUTE - NatTimeoutEstimator.RESOLUTION);
+    }
+
+    @Test
+    public void testParse() {
+        NatTimeoutEstimator estimator = new NatTimeoutEstimator();
+        run(estimator, 7 * MINUTE, 40);
+
+        NatTimeoutEstimator parsed = NatTimeoutEstimator.parse(estimator.toString());
+        assertEquals(estimator.getLowerBound(), parsed.getLowerBound());
+        assertEquals(estimator.getUpperBound(), parsed.getUpperBound());
+        assertEquals(estimator.getLowerBound(), parsed.getInterval());
+
+        assertEquals(NatTimeoutEstimator.MIN_INTERVAL, NatTimeoutEstimator.parse(null).getInterval());
+        assertEquals(NatTimeoutEstimator.MIN_INTERVAL, NatTimeoutEstimator.parse("garbage").getInterval());
+        assertEquals(NatTimeoutEstimator.MIN_INTERVAL, NatTimeoutEstimator.parse("1,2,x").getInterval());
+    }
+
+    /**
+     * Replays a synthetic month of network changes and compares with the
+     * previous algorithm.
+     */
+    @Test
+    public void testSimulation() {
+        List<PingSimulator.Segment> trace = PingSimulator.dailyTrace(30, 42);
+
+        PingSimulator.Result legacy = PingSimulator.run(trace, new PingSimulator.LegacyPolicy());
+        PingSimulator.Result estimator = PingSimulator.run(trace, new PingSimulator.EstimatorPolicy());
+
+        Benchmarks.report("Ping simulation, legacy: %s", legacy);
+        Benchmarks.report("Ping simulation, estimator: %s", estimator);
+
+        assertTrue(estimator.getMissedMinutesPerDay() < legacy.getMissedMinutesPerDay());
+        assertTrue(estimator.getWakeupsPerHour() <= legacy.getWakeupsPerHour());
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Discrete-event simulator of ping scheduling on an idle connection.
+ * A trace is a list of network segments, each with its own NAT timeout;
+ * a ping sent after the connection was idle longer than the NAT timeout
+ * fails and the connection is considered lost from the moment the NAT
+ * mapping expired until the failed ping.
+ */
+class PingSimulator {
+
+    /** A period of time spent on a single network. */
+    static final class Segment {
+        /** Network identity (e.g. SSID or carrier). */
+        final String network;
+        /** Network type (e.g. WIFI or MOBILE). */
+        final String type;
+        final long duration;
+        final long natTimeout;
+
+        Segment(String network, String type, long duration, long natTimeout) {
+            this.network = network;
+            this.type = type;
+            this.duration = duration;
+            this.natTimeout = natTimeout;
+        }
+    }
+
+    /** A ping scheduling algorithm. */
+    interface Policy {
+        /** Connected to a network, returns the first interval. */
+        long onConnected(Segment segment, long now);
+        /** Ping succeeded, returns the next interval. */
+        long onSuccess(long interval, long now);
+        /** Ping failed, returns the next interval. */
+        long onFailure(long interval, long now);
+    }
+
+    static final class Result {
+        long duration;
+        int pings;
+        int failures;
+        long missed;
+
+        double getWakeupsPerHour() {
+            // every failure also needs a reconnection
+            return (pings + failures) * 3600000.0 / duration;
+        }
+
+        double getMissedMinutesPerDay() {
+            return missed / 60000.0 * 86400000.0 / duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f wakeups/h, %d failures, %.1f missed min/day",
+                getWakeupsPerHour(), failures, getMissedMinutesPerDay());
+        }
+    }
+
+    /** The new algorithm: a timeout estimate per network. */
+    static final class EstimatorPolicy implements Policy {
+        private final Map<String, String> mPreferences = new HashMap<String, String>();
+        private String mNetwork;
+        private NatTimeoutEstimator mEstimator;
+
+        public long onConnected(Segment segment, long now) {
+            mNetwork = segment.type + ":" + segment.network;
+            mEstimator = NatTimeoutEstimator.parse(mPreferences.get(mNetwork));
+            return mEstimator.getInterval();
+        }
+
+        public long onSuccess(long interval, long now) {
+            mEstimator.onSuccess(interval);
+            mPreferences.put(mNetwork, mEstimator.toString());
+            return mEstimator.getInterval();
+        }
+
+        public long onFailure(long interval, long now) {
+            mEstimator.onFailure(interval);
+            mPreferences.put(mNetwork, mEstimator.toString());
+            return mEstimator.getInterval();
+        }
+    }
+
+    /**
+     * The algorithm previously used by {@link AdaptiveServerPingManager}:
+     * increase by 1.5 after a success, halve on failure, one interval per
+     * network type.
+     */
+    static final class LegacyPolicy implements Policy {
+        private static final long MIN_INTERVAL = 90 * 1000;
+        private static final long MAX_INTERVAL = 30 * 60 * 1000;
+
+        private final Map<String, Long> mPreferences = new HashMap<String, Long>();
+        private final Map<String, Long> mBackoffPreferences = new HashMap<String, Long>();
+        private String mType;
+        private long mInterval;
+        private long mLastSuccess;
+        private long mLastSuccessInterval;
+        private long mNextIncrease;
+
+        public long onConnected(Segment segment, long now) {
+            mType = segment.type;
+            Long interval = mPreferences.get(mType);
+            mInterval = (interval != null) ? interval : MAX_INTERVAL;
+            Long backoff = mBackoffPreferences.get(mType);
+            mNextIncrease = (backoff != null) ? backoff : mInterval;
+            mLastSuccess = 0;
+            mLastSuccessInterval = 0;
+            return mInterval;
+        }
+
+        public long onSuccess(long interval, long now) {
+            long next = mInterval;
+            if (mLastSuccessInterval > 0) {
+                // interval was increased and it worked
+                setNextIncrease(mInterval);
+            }
+            else if (mLastSuccess > 0 && now - mLastSuccess >= mNextIncrease) {
+                mLastSuccessInterval = mInterval;
+                next = (long) (mInterval * 1.5);
+            }
+            mLastSuccess = now;
+            return set(next);
+        }
+
+        public long onFailure(long interval, long now) {
+            long next;
+            if (mLastSuccessInterval > 0) {
+                // go back to the last working interval
+                next = mLastSuccessInterval;
+                setNextIncrease((long) (mNextIncrease * 1.5));
+            }
+            else {
+                next = mInterval / 2;
+            }
+            return set(next);
+        }
+
+        private void setNextIncrease(long interval) {
+            mLastSuccessInterval = 0;
+            mNextIncrease = interval;
+            mBackoffPreferences.put(mType, mNextIncrease);
+        }
+
+        private long set(long interval) {
+            mInterval = Math.max(MIN_INTERVAL, Math.min(interval, MAX_INTERVAL));
+            mPreferences.put(mType, mInterval);
+            return mInterval;
+        }
+    }
+
+    /** Replays a trace against a policy. */
+    static Result run(List<Segment> trace, Policy policy) {
+        Result result = new Result();
+        long now = 0;
+
+        for (Segment segment : trace) {
+            long end = now + segment.duration;
+            long interval = policy.onConnected(segment, now);
+
+            while (now + interval <= end) {
+                now += interval;
+                result.pings++;
+                if (interval < segment.natTimeout) {
+                    interval = policy.onSuccess(interval, now);
+                }
+                else {
+                    result.failures++;
+                    result.missed += interval - segment.natTimeout;
+                    interval = policy.onFailure(interval, now);
+                }
+            }
+
+            now = end;
+        }
+
+        result.duration = now;
+        return result;
+    }
+
+    /**
+     * Generates a synthetic trace: a daily routine of home Wi-Fi, mobile
+     * network and office Wi-Fi, with some random visits to other networks.
+     * @param days number of days
+     * @param seed random seed
+     */
+    static List<Segment> dailyTrace(int days, long seed) {
+        final long minute = 60 * 1000;
+        final long hour = 60 * minute;
+        Random rnd = new Random(seed);
+        List<Segment> trace = new ArrayList<Segment>();
+
+        for (int i = 0; i < days; i++) {
+            trace.add(new Segment("home", "WIFI", 12 * hour + rnd.nextInt(60) * minute, 28 * minute));
+            trace.add(new Segment("carrier", "MOBILE", 30 * minute + rnd.nextInt(30) * minute, 5 * minute));
+            trace.add(new Segment("office", "WIFI", 8 * hour + rnd.nextInt(60) * minute, 4 * minute));
+            if (rnd.nextBoolean()) {
+                // a coffee shop with an aggressive NAT
+                trace.add(new Segment("cafe" + rnd.nextInt(5), "WIFI", hour, 2 * minute + rnd.nextInt(60) * 1000));
+            }
+            trace.add(new Segment("carrier", "MOBILE", 30 * minute + rnd.nextInt(30) * minute, 5 * minute));
+        }
+
+        return trace;
+    }
+
+}
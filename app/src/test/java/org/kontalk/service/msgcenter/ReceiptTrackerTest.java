@@ -0,0 +1,180 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class ReceiptTrackerTest {
+
+    @Test
+    public void testIndexes() {
+        ReceiptTracker tracker = new ReceiptTracker(1000);
+        tracker.put("a", 1);
+        tracker.put("b", 2);
+
+        assertEquals(1, tracker.get("a"));
+        assertEquals("b", tracker.getStanzaId(2));
+        assertTrue(tracker.containsDatabaseId(1));
+        assertEquals(0, tracker.get(null));
+
+        // same stanza id reused for another message
+        tracker.put("a", 3);
+        assertFalse(tracker.containsDatabaseId(1));
+        assertTrue(tracker.containsDatabaseId(3));
+
+        assertEquals(3, tracker.remove("a"));
+        assertEquals(0, tracker.remove("a"));
+        assertFalse(tracker.containsDatabaseId(3));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void testExpire() {
+        ReceiptTracker tracker = new ReceiptTracker(1000);
+        long now = System.currentTimeMillis();
+        tracker.put("old", 1, now - 2000);
+        tracker.put("new", 2, now);
+
+        assertEquals(1, tracker.expire(now));
+        assertEquals(0, tracker.get("old"));
+        assertEquals(2, tracker.get("new"));
+        assertEquals(1, tracker.size());
+        // still tracked: the message must not be sent again
+        assertTrue(tracker.containsDatabaseId(1));
+
+        // late receipt: nothing to release
+        assertEquals(0, tracker.remove("old"));
+        assertFalse(tracker.containsDatabaseId(1));
+
+        // sweeps are rate limited
+        tracker.put("old", 1, now - 2000);
+        assertEquals(0, tracker.expire(now + 1));
+    }
+
+    @Test
+    public void testExpiredUntilClear() {
+        ReceiptTracker tracker = new ReceiptTracker(1000);
+        long now = System.currentTimeMillis();
+        tracker.put("a", 1, now - 2000);
+        assertEquals(1, tracker.expire(now));
+        assertTrue(tracker.containsDatabaseId(1));
+
+        // message sent again with a new stanza id (e.g. after reconnection)
+        tracker.clear();
+        assertFalse(tracker.containsDatabaseId(1));
+        tracker.put("b", 1, now);
+        assertEquals(1, tracker.get("b"));
+        assertEquals(1, tracker.remove("b"));
+        assertFalse(tracker.containsDatabaseId(1));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ReceiptTracker tracker = new ReceiptTracker(Long.MAX_VALUE);
+        final int threads = 8;
+        final int perThread = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger removed = new AtomicInteger();
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= perThread; i++) {
+                        long id = base + i;
+                        tracker.put("s" + id, id);
+                        if (!tracker.containsDatabaseId(id))
+                            throw new AssertionError("entry " + id + " not found");
+                        // remove half of them
+                        if ((i & 1) == 0 && tracker.remove("s" + id) == id)
+                            removed.incrementAndGet();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        start.countDown();
+        for (Thread w : workers)
+            w.join();
+
+        assertEquals(threads * perThread / 2, removed.get());
+        assertEquals(threads * perThread / 2, tracker.size());
+        for (long id = 1; id <= threads * perThread; id++)
+            assertEquals((id & 1) != 0, tracker.containsDatabaseId(id));
+    }
+
+    /**
+     * Lookup cost with many outstanding entries. The 1M entries run is done
+     * only if large benchmarks are enabled (see {@link Benchmarks}).
+     */
+    @Test
+    public void testBenchmark() {
+        Benchmarks.assumeEnabled();
+
+        benchmark(10000);
+        benchmark(100000);
+        if (Benchmarks.isLargeEnabled())
+            benchmark(1000000);
+    }
+
+    private void benchmark(int size) {
+        ReceiptTracker tracker = new ReceiptTracker(Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= size; i++)
+            tracker.put("s" + i, i);
+        long putTime = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 1; i <= size; i++) {
+            if (tracker.containsDatabaseId(i))
+                found++;
+        }
+        long lookupTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 1; i <= size; i++)
+            tracker.remove("s" + i);
+        long removeTime = System.nanoTime() - start;
+
+        assertEquals(size, found);
+        assertEquals(0, tracker.size());
+
+        Benchmarks.report("ReceiptTracker %d entries: put %d ns, lookup %d ns, remove %d ns",
+            size, putTime / size, lookupTime / size, removeTime / size);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SQLiteRosterStoreTest {
+
+    private static final int ROSTER_SIZE = 10000;
+
+    private static RosterPacket.Item item(int i) {
+        RosterPacket.Item item = new RosterPacket.Item("user" + i + "@beta.kontalk.net", "User " + i);
+        item.setItemType(RosterPacket.ItemType.both);
+        item.addGroupName("Friends");
+        return item;
+    }
+
+    private static Map<String, RosterPacket.Item> stored(int count) {
+        Map<String, RosterPacket.Item> stored = new HashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            RosterPacket.Item item = item(i);
+            stored.put(item.getUser(), item);
+        }
+        return stored;
+    }
+
+    private static List<RosterPacket.Item> roster(int count) {
+        List<RosterPacket.Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            items.add(item(i));
+        return items;
+    }
+
+    @Test
+    public void testSameEntry() {
+        RosterPacket.Item a = new RosterPacket.Item("a@beta.kontalk.net", null);
+        RosterPacket.Item b = new RosterPacket.Item("a@beta.kontalk.net", "");
+        b.setItemType(RosterPacket.ItemType.none);
+        // null name and type are stored as empty name and none
+        assertTrue(SQLiteRosterStore.sameEntry(a, b));
+
+        b.addGroupName("Friends");
+        assertFalse(SQLiteRosterStore.sameEntry(a, b));
+        a.addGroupName("Friends");
+        assertTrue(SQLiteRosterStore.sameEntry(a, b));
+
+        b.setItemStatus(RosterPacket.ItemStatus.subscribe);
+        assertFalse(SQLiteRosterStore.sameEntry(a, b));
+    }
+
+    @Test
+    public void testDiff() {
+        List<RosterPacket.Item> roster = roster(10);
+        // changed subscription
+        roster.get(3).setItemType(RosterPacket.ItemType.from);
+        // removed entry
+        roster.remove(5);
+        // new entry
+        roster.add(item(100));
+
+        List<RosterPacket.Item> changed = new ArrayList<>();
+        Collection<String> removed = SQLiteRosterStore.diffEntries(stored(10), roster, changed);
+
+        assertEquals(2, changed.size());
+        assertEquals(item(3).getUser(), changed.get(0).getUser());
+        assertEquals(item(100).getUser(), changed.get(1).getUser());
+        assertEquals(1, removed.size());
+        assertTrue(removed.contains(item(5).getUser()));
+    }
+
+    @Test
+    public void testRepush() {
+        Map<String, RosterPacket.Item> stored = stored(ROSTER_SIZE);
+        List<RosterPacket.Item> roster = roster(ROSTER_SIZE);
+
+        List<RosterPacket.Item> changed = new ArrayList<>();
+        Collection<String> removed = SQLiteRosterStore.diffEntries(stored, roster, changed);
+
+        // nothing to write for an identical roster
+        assertTrue(changed.isEmpty());
+        assertTrue(removed.isEmpty());
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class StatusUpdateQueueTest {
+
+    private static final int PENDING = 1;
+    private static final int SENT = 4;
+    private static final int RECEIVED = 5;
+    private static final int CONFIRMED = 6;
+    private static final int INCOMING = 8;
+
+    /** A message row, with the columns touched by status updates. */
+    private static final class Row {
+        final long id;
+        String messageId;
+        final boolean outgoing;
+        int status;
+        long statusChanged;
+        long serverTimestamp;
+
+        Row(long id, String messageId, boolean outgoing) {
+            this.id = id;
+            this.messageId = messageId;
+            this.outgoing = outgoing;
+            this.status = outgoing ? PENDING : INCOMING;
+        }
+
+        Row copy() {
+            Row r = new Row(id, messageId, outgoing);
+            r.status = status;
+            r.statusChanged = statusChanged;
+            r.serverTimestamp = serverTimestamp;
+            return r;
+        }
+
+        @Override
+        public String toString() {
+            return id + "/" + messageId + ": " + status + " " + statusChanged + " " + serverTimestamp;
+        }
+    }
+
+    /**
+     * Applies an update like {@link MessageStatusBatcher} would through the
+     * messages provider, with the same selections.
+     */
+    private static void apply(List<Row> rows, StatusUpdateQueue.StatusUpdate u) {
+        for (Row r : rows) {
+            boolean target = (u.databaseId > 0) ? r.id == u.databaseId :
+                u.messageId.equals(r.messageId);
+            if (!target)
+                continue;
+
+            switch (u.kind) {
+                case StatusUpdateQueue.KIND_SENT:
+                    if (r.outgoing && r.status != RECEIVED) {
+                        r.status = SENT;
+                        r.statusChanged = u.timestamp;
+                        r.serverTimestamp = u.timestamp;
+                    }
+                    break;
+                case StatusUpdateQueue.KIND_CONFIRMED:
+                    if (!r.outgoing)
+                        r.status = CONFIRMED;
+                    break;
+                case StatusUpdateQueue.KIND_RECEIVED:
+                    if (r.outgoing) {
+                        if (u.databaseId > 0)
+                            r.messageId = u.receiptId;
+                        r.status = RECEIVED;
+                        r.statusChanged = u.timestamp;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static List<Row> messages(int count) {
+        List<Row> rows = new ArrayList<Row>(count);
+        for (int i = 1; i <= count; i++)
+            rows.add(new Row(i, "msg" + i, i % 3 != 0));
+        return rows;
+    }
+
+    /** Generates a random stream of acks and receipts, with duplicates. */
+    private static List<StatusUpdateQueue.StatusUpdate> events(int count, int messages, long seed) {
+        Random rnd = new Random(seed);
+        List<StatusUpdateQueue.StatusUpdate> events = new ArrayList<StatusUpdateQueue.StatusUpdate>(count);
+        for (int i = 0; i < count; i++) {
+            int msg = 1 + rnd.nextInt(messages);
+            // known database id or not
+            long databaseId = rnd.nextBoolean() ? msg : 0;
+            long timestamp = 1000 + i;
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    events.add(new StatusUpdateQueue.StatusUpdate(StatusUpdateQueue.KIND_SENT,
+                        databaseId, databaseId > 0 ? null : "msg" + msg, timestamp, null));
+                    break;
+                case 1:
+                    events.add(new StatusUpdateQueue.StatusUpdate(StatusUpdateQueue.KIND_CONFIRMED,
+                        msg, null, 0, null));
+                    break;
+                case 2:
+                    String receiptId = "msg" + msg;
+                    events.add(new StatusUpdateQueue.StatusUpdate(StatusUpdateQueue.KIND_RECEIVED,
+                        databaseId, databaseId > 0 ? null : receiptId, timestamp, receiptId));
+                    break;
+            }
+            // same update again right away (e.g. resent stanza)
+            if (rnd.nextInt(4) == 0) {
+                StatusUpdateQueue.StatusUpdate last = events.get(events.size() - 1);
+                events.add(new StatusUpdateQueue.StatusUpdate(last.kind, last.databaseId,
+                    last.messageId, last.timestamp + 1, last.receiptId));
+                i++;
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testMerge() {
+        StatusUpdateQueue queue = new StatusUpdateQueue();
+        assertEquals(1, queue.sent(1, null, 100));
+        // same message again: merged
+        assertEquals(0, queue.sent(1, null, 200));
+        assertEquals(2, queue.received(1, "server1", 300));
+        // not the last one anymore: not merged
+        assertEquals(3, queue.sent(1, null, 400));
+        assertEquals(4, queue.sent(0, "msg2", 500));
+        assertEquals(5, queue.confirmed(2));
+
+        List<StatusUpdateQueue.StatusUpdate> batch = queue.drain();
+        assertEquals(5, batch.size());
+        assertEquals(200, batch.get(0).timestamp);
+        assertEquals(StatusUpdateQueue.KIND_RECEIVED, batch.get(1).kind);
+        assertEquals("server1", batch.get(1).receiptId);
+        assertEquals("msg2", batch.get(3).messageId);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSameOutcome() {
+        for (long seed = 0; seed < 20; seed++) {
+            List<Row> unbatched = messages(50);
+            List<Row> batched = new ArrayList<Row>();
+            for (Row r : unbatched)
+                batched.add(r.copy());
+
+            Random rnd = new Random(seed);
+            StatusUpdateQueue queue = new StatusUpdateQueue();
+            for (StatusUpdateQueue.StatusUpdate u : events(2000, 50, seed)) {
+                // unbatched path: one update per stanza
+                apply(unbatched, u);
+
+                queue.add(new StatusUpdateQueue.StatusUpdate(u.kind, u.databaseId,
+                    u.messageId, u.timestamp, u.receiptId));
+                // flush at random points
+                if (rnd.nextInt(50) == 0) {
+                    for (StatusUpdateQueue.StatusUpdate b : queue.drain())
+                        apply(batched, b);
+                }
+            }
+            for (StatusUpdateQueue.StatusUpdate b : queue.drain())
+                apply(batched, b);
+
+            for (int i = 0; i < unbatched.size(); i++)
+                assertEquals(unbatched.get(i).toString(), batched.get(i).toString());
+        }
+    }
+
+    /** A burst of 5,000 server acks, like after a reconnection. */
+    @Test
+    public void testBenchmark() {
+        Benchmarks.assumeEnabled();
+
+        final int acks = 5000;
+        StatusUpdateQueue queue = new StatusUpdateQueue();
+        int transactions = 0;
+        int updates = 0;
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= acks; i++) {
+            if (queue.sent(i, null, i) >= MessageStatusBatcher.MAX_BATCH_SIZE) {
+                updates += queue.drain().size();
+                transactions++;
+            }
+        }
+        if (queue.size() > 0) {
+            updates += queue.drain().size();
+            transactions++;
+        }
+        long time = System.nanoTime() - start;
+
+        assertEquals(acks, updates);
+        assertEquals(acks / MessageStatusBatcher.MAX_BATCH_SIZE, transactions);
+
+        Benchmarks.report("StatusUpdateQueue: %d acks queued in %d us, " +
+                "%d transactions instead of %d",
+            acks, time / 1000, transactions, acks);
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class StreamSessionTest {
+
+    @Test
+    public void testNewSession() {
+        StreamSession session = new StreamSession();
+        assertFalse(session.connectionCreated());
+        assertEquals(StreamSession.NEW, session.authenticated(false));
+    }
+
+    @Test
+    public void testResumed() {
+        StreamSession session = new StreamSession();
+        session.resuming();
+        assertEquals(StreamSession.RESUMED, session.authenticated(true));
+
+        // the resumption attempt is over
+        assertFalse(session.connectionCreated());
+    }
+
+    @Test
+    public void testResumeFailed() {
+        StreamSession session = new StreamSession();
+        session.resuming();
+        assertEquals(StreamSession.RESUME_FAILED, session.authenticated(false));
+
+        // next login without a resumption attempt is a new session
+        assertEquals(StreamSession.NEW, session.authenticated(false));
+    }
+
+    @Test
+    public void testResumeAbandoned() {
+        StreamSession session = new StreamSession();
+        session.resuming();
+        // the helper had to create a new connection
+        assertTrue(session.connectionCreated());
+        assertEquals(StreamSession.NEW, session.authenticated(false));
+    }
+
+}
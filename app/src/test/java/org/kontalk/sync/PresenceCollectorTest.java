@@ -0,0 +1,144 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceCollectorTest {
+
+    private static final int CONTACTS = 10000;
+    private static final int ROSTER_MATCH_SIZE = 500;
+
+    private static String jid(int i) {
+        return "user" + i + "@beta.kontalk.net";
+    }
+
+    private static long collect(int count) {
+        long start = System.nanoTime();
+        Syncer.PresenceCollector collector = new Syncer.PresenceCollector();
+
+        // roster match responses
+        for (int i = 0; i < count; i += ROSTER_MATCH_SIZE) {
+            int end = Math.min(i + ROSTER_MATCH_SIZE, count);
+            String[] list = new String[end - i];
+            for (int j = i; j < end; j++)
+                list[j - i] = jid(j);
+            collector.addRosterMatch(list);
+        }
+
+        // presence and public keys from full JIDs, in reverse order
+        for (int i = count - 1; i >= 0; i--) {
+            collector.addPresence(jid(i).toUpperCase() + "/resource", "status " + i, i);
+            collector.addPublicKey(jid(i) + "/resource", new byte[] { (byte) i });
+        }
+
+        // block every 10th contact
+        String[] blocked = new String[count / 10];
+        for (int i = 0; i < blocked.length; i++)
+            blocked[i] = jid(i * 10);
+        collector.setBlocklist(blocked);
+
+        assertTrue(collector.isPublicKeysComplete());
+        assertTrue(collector.isBlocklistReceived());
+        assertEquals(count, collector.getRosterCount());
+        assertEquals(count, collector.getItems().size());
+
+        int i = 0;
+        for (Syncer.PresenceItem item : collector.getItems()) {
+            // roster order is kept
+            assertEquals(jid(i), item.from);
+            assertEquals("status " + i, item.status);
+            assertTrue(item.presence);
+            assertEquals((byte) i, item.publicKey[0]);
+            assertEquals(i % 10 == 0, item.blocked);
+            i++;
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testUnknownPresence() {
+        Syncer.PresenceCollector collector = new Syncer.PresenceCollector();
+        collector.addRosterMatch(new String[] { jid(1) });
+        collector.addPresence(jid(2) + "/resource", null, -1);
+        // public key of a non-roster user is ignored
+        collector.addPublicKey(jid(3), new byte[0]);
+
+        assertEquals(2, collector.getItems().size());
+        assertFalse(collector.isPublicKeysComplete());
+    }
+
+    @Test
+    public void testPublicKeysComplete() {
+        Syncer.PresenceCollector collector = new Syncer.PresenceCollector();
+        // nothing received yet
+        assertFalse(collector.isPublicKeysComplete());
+
+        collector.addRosterMatch(new String[] { jid(1), jid(2) });
+        // presence of just one user
+        collector.addPresence(jid(1) + "/resource", null, -1);
+        collector.addPublicKey(jid(1), new byte[0]);
+        assertFalse(collector.isPublicKeysComplete());
+
+        // the same key again
+        collector.addPublicKey(jid(1) + "/resource", new byte[0]);
+        assertFalse(collector.isPublicKeysComplete());
+
+        collector.addPublicKey(jid(2), new byte[0]);
+        assertTrue(collector.isPublicKeysComplete());
+    }
+
+    @Test
+    public void testItemsCopy() {
+        Syncer.PresenceCollector collector = new Syncer.PresenceCollector();
+        collector.addRosterMatch(new String[] { jid(1) });
+        List<Syncer.PresenceItem> items = collector.getItems();
+
+        // late responses don't change the returned items
+        collector.addPresence(jid(2) + "/resource", null, -1);
+        assertEquals(1, items.size());
+        assertEquals(2, collector.getItems().size());
+    }
+
+    @Test
+    public void testLinearTime() {
+        Benchmarks.assumeEnabled();
+
+        // warm up
+        collect(CONTACTS);
+
+        long small = collect(CONTACTS);
+        long large = collect(CONTACTS * 4);
+
+        Benchmarks.report("PresenceCollector: %d contacts %d ms, %d contacts %d ms",
+            CONTACTS, small / 1000000, CONTACTS * 4, large / 1000000);
+
+        // quadratic matching would take 16 times longer
+        assertTrue("matching is not linear", large < small * 10);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RawContactsDiffTest {
+
+    private static final int CONTACTS = 1000;
+
+    private static String jid(int i) {
+        return "user" + i + "@beta.kontalk.net";
+    }
+
+    private static RawContactsDiff unchanged() {
+        RawContactsDiff diff = new RawContactsDiff();
+        for (int i = 0; i < CONTACTS; i++)
+            diff.addExisting(i + 1, jid(i), "Name " + i, "+39" + i);
+        for (int i = CONTACTS - 1; i >= 0; i--)
+            diff.addWanted(jid(i), "Name " + i, "+39" + i);
+        return diff;
+    }
+
+    @Test
+    public void testUnchanged() {
+        RawContactsDiff diff = unchanged();
+        diff.diff();
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void testChanges() {
+        RawContactsDiff diff = unchanged();
+        // new contact
+        diff.addWanted(jid(CONTACTS), "New", "+1");
+        // renamed contact
+        diff.addWanted(jid(1), "Renamed", "+391");
+        // contact no longer registered
+        diff.addExisting(CONTACTS + 10, "gone@beta.kontalk.net", "Gone", "+2");
+        diff.diff();
+
+        assertEquals(1, diff.getInserts().size());
+        assertEquals(jid(CONTACTS), diff.getInserts().get(0).jid);
+
+        assertEquals(1, diff.getUpdates().size());
+        RawContactsDiff.Entry update = diff.getUpdates().get(0);
+        assertEquals(2, update.rawContactId);
+        assertEquals("Renamed", update.displayName);
+
+        assertEquals(1, diff.getDeletes().size());
+        assertEquals(CONTACTS + 10, (long) diff.getDeletes().get(0));
+    }
+
+    @Test
+    public void testDuplicates() {
+        RawContactsDiff diff = new RawContactsDiff();
+        diff.addExisting(1, jid(1), "Name", "+391");
+        diff.addExisting(2, jid(1), "Name", "+391");
+        diff.addExisting(3, null, null, null);
+        diff.addWanted(jid(1), "Name", "+391");
+        diff.diff();
+
+        assertTrue(diff.getInserts().isEmpty());
+        assertTrue(diff.getUpdates().isEmpty());
+        assertEquals(2, diff.getDeletes().size());
+        assertTrue(diff.getDeletes().contains(1L));
+        assertTrue(diff.getDeletes().contains(3L));
+    }
+
+    @Test
+    public void testDeletedByUser() {
+        RawContactsDiff diff = new RawContactsDiff();
+        diff.addExisting(1, jid(1), "Name", "+391");
+        // deleted raw contact of a user still registered
+        diff.addDeleted(2);
+        diff.addWanted(jid(1), "Name", "+391");
+        diff.addWanted(jid(2), "Other", "+392");
+        diff.diff();
+
+        // purged and created again
+        assertEquals(1, diff.getInserts().size());
+        assertEquals(jid(2), diff.getInserts().get(0).jid);
+        assertTrue(diff.getUpdates().isEmpty());
+        assertEquals(1, diff.getDeletes().size());
+        assertEquals(2, (long) diff.getDeletes().get(0));
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MessageWindowTest {
+
+    private static final int PAGE_SIZE = MessageWindow.PAGE_SIZE;
+    private static final int MAX_SIZE = MessageWindow.MAX_SIZE;
+
+    /** Message ids of the conversation: 1000 messages with odd ids. */
+    private List<Long> mConversation;
+    private MessageWindow mWindow;
+
+    @Before
+    public void setUp() {
+        mConversation = conversation(1000);
+        mWindow = new MessageWindow();
+    }
+
+    private static List<Long> conversation(int count) {
+        List<Long> ids = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++)
+            ids.add(i * 2L + 1);
+        return ids;
+    }
+
+    /** Messages in the window, as the list would show them. */
+    private List<Long> window() {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id : mConversation) {
+            if (id >= mWindow.getStart() && (mWindow.getEnd() <= 0 || id < mWindow.getEnd()))
+                ids.add(id);
+        }
+        return ids;
+    }
+
+    private static MessageWindow.MessageIds ids(final List<Long> list) {
+        return new MessageWindow.MessageIds() {
+            public long getMessageId(int position) {
+                return (position >= 0 && position < list.size()) ? list.get(position) : 0;
+            }
+        };
+    }
+
+    /** The latest messages before the given id (exclusive), at most limit. */
+    private List<Long> before(long id, int limit) {
+        List<Long> page = new ArrayList<Long>();
+        for (long msgId : mConversation) {
+            if (msgId < id)
+                page.add(msgId);
+        }
+        return page.subList(Math.max(0, page.size() - limit), page.size());
+    }
+
+    /** The first messages after the given id (exclusive), at most limit. */
+    private List<Long> after(long id, int limit) {
+        List<Long> page = new ArrayList<Long>();
+        for (long msgId : mConversation) {
+            if (msgId > id && page.size() < limit)
+                page.add(msgId);
+        }
+        return page;
+    }
+
+    private static long first(List<Long> page) {
+        return page.isEmpty() ? 0 : page.get(0);
+    }
+
+    private static long last(List<Long> page) {
+        return page.isEmpty() ? 0 : page.get(page.size() - 1);
+    }
+
+    private void loadLatest() {
+        List<Long> page = before(Long.MAX_VALUE, PAGE_SIZE);
+        mWindow.latestLoaded(page.size(), first(page));
+    }
+
+    private boolean loadOlder() {
+        List<Long> list = window();
+        List<Long> page = before(mWindow.getStart(), PAGE_SIZE);
+        return mWindow.olderLoaded(page.size(), first(page), list.size(), ids(list));
+    }
+
+    private boolean loadNewer() {
+        List<Long> list = window();
+        List<Long> page = after(mWindow.getEnd() - 1, PAGE_SIZE);
+        return mWindow.newerLoaded(mWindow.getEnd(), page.size(), last(page), list.size(), ids(list));
+    }
+
+    @Test
+    public void testLatest() {
+        loadLatest();
+        assertTrue(mWindow.isLoaded());
+        assertEquals(mConversation.subList(900, 1000), window());
+        assertTrue(mWindow.canLoadOlder());
+        assertFalse(mWindow.canLoadNewer());
+    }
+
+    @Test
+    public void testShortConversation() {
+        mConversation = conversation(40);
+        loadLatest();
+        assertEquals(mConversation, window());
+        assertFalse(mWindow.canLoadOlder());
+    }
+
+    @Test
+    public void testEmptyConversation() {
+        mConversation = conversation(0);
+        loadLatest();
+        assertFalse(mWindow.isLoaded());
+        assertFalse(mWindow.canLoadOlder());
+        assertFalse(mWindow.canLoadNewer());
+    }
+
+    @Test
+    public void testScrollUp() {
+        loadLatest();
+
+        // the window grows up to the maximum size
+        assertTrue(loadOlder());
+        assertEquals(PAGE_SIZE, mWindow.takeRowShift());
+        assertTrue(loadOlder());
+        assertEquals(mConversation.subList(700, 1000), window());
+        assertFalse(mWindow.canLoadNewer());
+
+        // then the newest messages are dropped
+        assertTrue(loadOlder());
+        assertEquals(PAGE_SIZE, mWindow.takeRowShift());
+        assertEquals(0, mWindow.takeRowShift());
+        assertEquals(mConversation.subList(600, 900), window());
+        assertEquals(MAX_SIZE, window().size());
+        // the end is the first message left out
+        assertEquals(mConversation.get(900).longValue(), mWindow.getEnd());
+        assertTrue(mWindow.canLoadNewer());
+
+        // up to the beginning of the conversation
+        for (int i = 0; i < 6; i++) {
+            assertTrue(loadOlder());
+            assertEquals(MAX_SIZE, window().size());
+        }
+        assertEquals(mConversation.subList(0, 300), window());
+        // the last page was full: another (empty) page is needed to know
+        assertTrue(mWindow.canLoadOlder());
+        assertFalse(loadOlder());
+        assertFalse(mWindow.canLoadOlder());
+        assertEquals(mConversation.subList(0, 300), window());
+    }
+
+    @Test
+    public void testScrollDown() {
+        loadLatest();
+        for (int i = 0; i < 9; i++)
+            loadOlder();
+        assertEquals(mConversation.subList(0, 300), window());
+        mWindow.takeRowShift();
+
+        // the oldest messages are dropped
+        assertTrue(loadNewer());
+        assertEquals(-PAGE_SIZE, mWindow.takeRowShift());
+        assertEquals(mConversation.subList(100, 400), window());
+        assertTrue(mWindow.canLoadOlder());
+
+        // up to the latest message
+        while (mWindow.canLoadNewer()) {
+            assertTrue(loadNewer());
+            assertEquals(MAX_SIZE, window().size());
+        }
+        assertEquals(mConversation.subList(700, 1000), window());
+        assertEquals(0, mWindow.getEnd());
+    }
+
+    @Test
+    public void testPartialPages() {
+        // 250 messages: the second older page is partial
+        mConversation = conversation(250);
+        loadLatest();
+        assertTrue(loadOlder());
+        assertTrue(loadOlder());
+        assertEquals(mConversation, window());
+        assertEquals(50, mWindow.takeRowShift());
+        assertFalse(mWindow.canLoadOlder());
+    }
+
+    @Test
+    public void testWindowChanged() {
+        loadLatest();
+        for (int i = 0; i < 3; i++)
+            loadOlder();
+        List<Long> list = window();
+        long requestedEnd = mWindow.getEnd();
+        List<Long> page = after(requestedEnd - 1, PAGE_SIZE);
+
+        // the user jumped back to the latest messages in the meantime
+        mWindow.reset();
+        loadLatest();
+        assertFalse(mWindow.newerLoaded(requestedEnd, page.size(), last(page), list.size(), ids(list)));
+        assertEquals(mConversation.subList(900, 1000), window());
+    }
+
+    @Test
+    public void testTarget() {
+        long target = mConversation.get(500);
+
+        List<Long> page = before(target, PAGE_SIZE / 2);
+        mWindow.targetBeforeLoaded(target, page.size(), first(page));
+        page = after(target, PAGE_SIZE / 2);
+        mWindow.targetAfterLoaded(page.size(), last(page));
+
+        // the target is inside the window, the end is exclusive
+        assertEquals(mConversation.subList(450, 551), window());
+        assertTrue(mWindow.canLoadOlder());
+        assertTrue(mWindow.canLoadNewer());
+    }
+
+    @Test
+    public void testTargetAtEdges() {
+        // first message: empty page before it
+        long target = mConversation.get(0);
+        List<Long> page = before(target, PAGE_SIZE / 2);
+        mWindow.targetBeforeLoaded(target, page.size(), first(page));
+        assertEquals(target, mWindow.getStart());
+        assertFalse(mWindow.canLoadOlder());
+
+        // latest message: empty page after it
+        target = mConversation.get(999);
+        page = before(target, PAGE_SIZE / 2);
+        mWindow.targetBeforeLoaded(target, page.size(), first(page));
+        page = after(target, PAGE_SIZE / 2);
+        mWindow.targetAfterLoaded(page.size(), last(page));
+        assertEquals(mConversation.subList(949, 1000), window());
+        assertFalse(mWindow.canLoadNewer());
+    }
+
+}
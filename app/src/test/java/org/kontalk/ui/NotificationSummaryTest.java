@@ -0,0 +1,216 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.kontalk.Benchmarks;
+
+import static org.junit.Assert.*;
+
+
+public class NotificationSummaryTest {
+
+    private static final int PEERS = 20;
+    private static final int MESSAGES = 5000;
+
+    private static String peer(int i) {
+        return "user" + i + "@beta.kontalk.net";
+    }
+
+    @Test
+    public void testAggregation() {
+        NotificationSummary summary = new NotificationSummary();
+        summary.add(peer(1), "a1");
+        summary.add(peer(2), "b1");
+        summary.add(peer(1), "a2");
+
+        assertEquals(3, summary.getCount(null));
+        List<NotificationSummary.Conversation> convs = summary.getConversations(null);
+        assertEquals(2, convs.size());
+        // most recent first
+        assertEquals(peer(1), convs.get(0).peer);
+        assertEquals(2, convs.get(0).count);
+        assertEquals(Arrays.asList("a1", "a2"), convs.get(0).snippets);
+        assertEquals("b1", convs.get(1).getLastSnippet());
+
+        // paused peer is excluded
+        assertEquals(1, summary.getCount(peer(1).toUpperCase()));
+        assertEquals(1, summary.getConversations(peer(1)).size());
+
+        assertTrue(summary.remove(peer(1)));
+        assertFalse(summary.remove(peer(1)));
+        assertEquals(1, summary.getCount(null));
+
+        summary.clear();
+        assertTrue(summary.isEmpty());
+        assertEquals(0, summary.getCount(null));
+    }
+
+    @Test
+    public void testPeerCase() {
+        NotificationSummary summary = new NotificationSummary();
+        summary.add(peer(1), "a1");
+        summary.add(peer(1).toUpperCase(), "a2");
+
+        List<NotificationSummary.Conversation> convs = summary.getConversations(null);
+        assertEquals(1, convs.size());
+        assertEquals(2, convs.get(0).count);
+        assertEquals(0, summary.getConversations(peer(1).toUpperCase()).size());
+
+        assertTrue(summary.remove(peer(1).toUpperCase()));
+        assertTrue(summary.isEmpty());
+        assertEquals(0, summary.getCount(null));
+    }
+
+    @Test
+    public void testSnippetsLimit() {
+        NotificationSummary summary = new NotificationSummary();
+        for (int i = 0; i < NotificationSummary.MAX_SNIPPETS * 2; i++)
+            summary.add(peer(1), "m" + i);
+
+        NotificationSummary.Conversation conv = summary.getConversations(null).get(0);
+        assertEquals(NotificationSummary.MAX_SNIPPETS * 2, conv.count);
+        assertEquals(NotificationSummary.MAX_SNIPPETS, conv.snippets.size());
+        assertEquals("m" + NotificationSummary.MAX_SNIPPETS, conv.snippets.getFirst());
+        assertEquals("m" + (NotificationSummary.MAX_SNIPPETS * 2 - 1), conv.getLastSnippet());
+    }
+
+    @Test
+    public void testLoaded() {
+        NotificationSummary summary = new NotificationSummary();
+        summary.set(peer(1), 10, Arrays.asList("a9"));
+        summary.set(peer(2), 3, Arrays.asList("b1", "b2"));
+        summary.add(peer(1), "a10");
+
+        assertEquals(14, summary.getCount(null));
+        List<NotificationSummary.Conversation> convs = summary.getConversations(null);
+        assertEquals(peer(1), convs.get(0).peer);
+        assertEquals(11, convs.get(0).count);
+
+        // reloading a conversation replaces it
+        summary.set(peer(2), 1, Arrays.asList("b3"));
+        assertEquals(12, summary.getCount(null));
+    }
+
+    /** Interleaved arrivals and read events against a full recount. */
+    @Test
+    public void testInterleaved() {
+        Random rnd = new Random(42);
+        NotificationSummary summary = new NotificationSummary();
+        Map<String, List<String>> expected = new HashMap<String, List<String>>();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            String peer = peer(rnd.nextInt(PEERS));
+            if (rnd.nextInt(10) == 0) {
+                assertEquals(expected.remove(peer) != null, summary.remove(peer));
+            }
+            else {
+                String text = "message " + i;
+                summary.add(peer, text);
+                List<String> list = expected.get(peer);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    expected.put(peer, list);
+                }
+                list.add(text);
+            }
+
+            int count = 0;
+            for (List<String> list : expected.values())
+                count += list.size();
+            assertEquals(count, summary.getCount(null));
+        }
+
+        List<NotificationSummary.Conversation> convs = summary.getConversations(null);
+        assertEquals(expected.size(), convs.size());
+        for (NotificationSummary.Conversation conv : convs) {
+            List<String> list = expected.get(conv.peer);
+            assertEquals(list.size(), conv.count);
+            assertEquals(list.get(list.size() - 1), conv.getLastSnippet());
+        }
+    }
+
+    /**
+     * Work done for each arriving message: incremental summary against
+     * aggregating all new messages again, as a full query would.
+     */
+    @Test
+    public void testBenchmark() {
+        Benchmarks.assumeEnabled();
+
+        // warm up
+        incremental(MESSAGES);
+        rescan(MESSAGES);
+
+        long incremental = incremental(MESSAGES);
+        long rescan = rescan(MESSAGES);
+
+        Benchmarks.report("NotificationSummary %d messages: incremental %d ns/message, rescan %d ns/message",
+            MESSAGES, incremental / MESSAGES, rescan / MESSAGES);
+
+        assertTrue("incremental update is slower than rescan", incremental < rescan);
+    }
+
+    private long incremental(int count) {
+        long start = System.nanoTime();
+        NotificationSummary summary = new NotificationSummary();
+        for (int i = 0; i < count; i++) {
+            summary.add(peer(i % PEERS), "message " + i);
+            summary.getConversations(null);
+        }
+        assertEquals(count, summary.getCount(null));
+        return System.nanoTime() - start;
+    }
+
+    private long rescan(int count) {
+        long start = System.nanoTime();
+        List<String[]> rows = new ArrayList<String[]>();
+        int unread = 0;
+        for (int i = 0; i < count; i++) {
+            rows.add(new String[] { peer(i % PEERS), "message " + i });
+
+            Map<String, StringBuilder> convs = new LinkedHashMap<String, StringBuilder>();
+            for (String[] row : rows) {
+                StringBuilder b = convs.get(row[0]);
+                if (b == null) {
+                    b = new StringBuilder();
+                    convs.put(row[0], b);
+                }
+                else {
+                    b.append('\n');
+                }
+                b.append(row[1]);
+            }
+            unread = rows.size();
+        }
+        assertEquals(count, unread);
+        return System.nanoTime() - start;
+    }
+
+}
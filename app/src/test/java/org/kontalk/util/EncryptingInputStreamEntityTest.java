@@ -0,0 +1,346 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import org.kontalk.Benchmarks;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.DecryptException;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.service.ProgressListener;
+import org.kontalk.upload.UploadConnection;
+
+import static org.junit.Assert.*;
+
+
+public class EncryptingInputStreamEntityTest {
+
+    private static EndpointServer sServer;
+    private static PersonalKey sSender;
+    private static PersonalKey sRecipient;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PGP.registerProvider();
+        sServer = new EndpointServer("kontalk.net|beta.kontalk.net");
+        sSender = createKey("alice");
+        sRecipient = createKey("bob");
+    }
+
+    private static PersonalKey createKey(String name) throws Exception {
+        PGP.PGPKeyPairRing ring = PersonalKey.create()
+            .storeNetwork(name, sServer.getNetwork(), name, "test");
+        return PersonalKey.load(ring.secretKey, ring.publicKey, "test", null);
+    }
+
+    private static final class CountingListener implements ProgressListener {
+        long bytes;
+        UploadConnection abort;
+
+        @Override
+        public void start(UploadConnection conn) {
+        }
+
+        @Override
+        public void progress(UploadConnection conn, long bytes) {
+            this.bytes = bytes;
+            if (abort != null)
+                abort.abort();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        PGPCoder encoder = new PGPCoder(sServer, sSender,
+            new PGPPublicKeyRing[] { sRecipient.getPublicKeyRing() });
+        CountingListener listener = new CountingListener();
+        EncryptingInputStreamEntity entity = new EncryptingInputStreamEntity
+            (new ByteArrayInputStream(data), encoder, null, listener);
+
+        assertEquals(-1, entity.getContentLength());
+        assertFalse(entity.isRepeatable());
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        entity.writeTo(encrypted);
+        assertEquals(data.length, listener.bytes);
+
+        PGPCoder decoder = new PGPCoder(sServer, sRecipient, sSender.getPublicKeyRing());
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<DecryptException>();
+        decoder.decryptFile(new ByteArrayInputStream(encrypted.toByteArray()),
+            true, decrypted, errors);
+
+        assertTrue(errors.isEmpty());
+        assertTrue(Arrays.equals(data, decrypted.toByteArray()));
+    }
+
+    @Test
+    public void testGetContent() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        PGPCoder encoder = new PGPCoder(sServer, sSender,
+            new PGPPublicKeyRing[] { sRecipient.getPublicKeyRing() });
+        EncryptingInputStreamEntity entity = new EncryptingInputStreamEntity
+            (new ByteArrayInputStream(data), encoder, null, null);
+
+        PGPCoder decoder = new PGPCoder(sServer, sRecipient, sSender.getPublicKeyRing());
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<DecryptException>();
+        InputStream in = entity.getContent();
+        try {
+            decoder.decryptFile(in, true, decrypted, errors);
+        }
+        finally {
+            in.close();
+        }
+
+        assertTrue(errors.isEmpty());
+        assertTrue(Arrays.equals(data, decrypted.toByteArray()));
+    }
+
+    /**
+     * Uploads a large file to a loopback HTTP server with chunked transfer
+     * encoding. The server decrypts the request body on the fly. Neither
+     * side should keep a copy of the content in memory or on disk.
+     */
+    @Test
+    public void testChunkedUpload() throws Exception {
+        final long length = 32 * 1024 * 1024;
+        final MessageDigest expected = MessageDigest.getInstance("SHA-1");
+        final MessageDigest received = MessageDigest.getInstance("SHA-1");
+        final String[] transferEncoding = new String[1];
+        final List<DecryptException> errors = new ArrayList<DecryptException>();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                transferEncoding[0] = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                PGPCoder decoder = new PGPCoder(sServer, sRecipient, sSender.getPublicKeyRing());
+                try {
+                    decoder.decryptFile(exchange.getRequestBody(), true,
+                        new DigestOutputStream(received), errors);
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                catch (Exception e) {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        Set<String> tmpFiles = listFiles(tmpDir);
+        HeapSampler sampler = new HeapSampler();
+
+        try {
+            PGPCoder encoder = new PGPCoder(sServer, sSender,
+                new PGPPublicKeyRing[] { sRecipient.getPublicKeyRing() });
+            EncryptingInputStreamEntity entity = new EncryptingInputStreamEntity
+                (new RandomInputStream(length, expected), encoder, null, null);
+
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setChunkedStreamingMode(8192);
+
+            sampler.start();
+            OutputStream out = conn.getOutputStream();
+            entity.writeTo(out);
+            out.close();
+            assertEquals(200, conn.getResponseCode());
+            conn.disconnect();
+        }
+        finally {
+            sampler.interrupt();
+            sampler.join();
+            server.stop(0);
+        }
+
+        assertEquals("chunked", transferEncoding[0]);
+        assertTrue(errors.isEmpty());
+        assertTrue(Arrays.equals(expected.digest(), received.digest()));
+
+        // no temporary copy of the encrypted content
+        assertEquals(tmpFiles, listFiles(tmpDir));
+        // heap used during the upload is a fraction of the content size
+        long peak = sampler.getPeak();
+        assertTrue("peak heap growth " + peak + " bytes", peak < length / 4);
+        Benchmarks.report("chunked upload of %d MB: peak heap growth %d KB",
+            length / (1024 * 1024), peak / 1024);
+    }
+
+    private static Set<String> listFiles(File dir) {
+        Set<String> names = new HashSet<String>();
+        String[] list = dir.list();
+        if (list != null)
+            names.addAll(Arrays.asList(list));
+        return names;
+    }
+
+    /** Pseudo-random content of the given length, digested while it's read. */
+    private static final class RandomInputStream extends InputStream {
+        private final Random mRandom = new Random(42);
+        private final MessageDigest mDigest;
+        private long mLeft;
+
+        RandomInputStream(long length, MessageDigest digest) {
+            mLeft = length;
+            mDigest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mLeft <= 0)
+                return -1;
+            int count = (int) Math.min(len, mLeft);
+            byte[] chunk = new byte[count];
+            mRandom.nextBytes(chunk);
+            System.arraycopy(chunk, 0, b, off, count);
+            mDigest.update(chunk);
+            mLeft -= count;
+            return count;
+        }
+    }
+
+    private static final class DigestOutputStream extends OutputStream {
+        private final MessageDigest mDigest;
+
+        DigestOutputStream(MessageDigest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mDigest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mDigest.update(b, off, len);
+        }
+    }
+
+    /** Samples live heap usage (after a collection) while running. */
+    private static final class HeapSampler extends Thread {
+        private final long mBaseline;
+        private volatile long mPeak;
+
+        HeapSampler() {
+            mBaseline = usedHeap();
+            setDaemon(true);
+        }
+
+        private static long usedHeap() {
+            Runtime rt = Runtime.getRuntime();
+            rt.gc();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                mPeak = Math.max(mPeak, usedHeap() - mBaseline);
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        public long getPeak() {
+            return mPeak;
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        byte[] data = new byte[1024 * 1024];
+
+        PGPCoder encoder = new PGPCoder(sServer, sSender,
+            new PGPPublicKeyRing[] { sRecipient.getPublicKeyRing() });
+        CountingListener listener = new CountingListener();
+        final EncryptingInputStreamEntity entity = new EncryptingInputStreamEntity
+            (new ByteArrayInputStream(data), encoder, null, listener);
+        listener.abort = new UploadConnection() {
+            @Override
+            public void abort() {
+                entity.abort();
+            }
+
+            @Override
+            public String upload(android.net.Uri uri, String mime, boolean encrypt,
+                    String to, ProgressListener listener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try {
+            entity.writeTo(new ByteArrayOutputStream());
+            fail("upload was not aborted");
+        }
+        catch (IOException e) {
+            // aborted after the first read
+            assertTrue(listener.bytes < data.length);
+        }
+    }
+
+}
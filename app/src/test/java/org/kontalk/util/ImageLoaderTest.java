@@ -0,0 +1,75 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ImageLoaderTest {
+
+    private static final class ByteArrayCache extends ImageLoader.MemoryCache<byte[]> {
+        public ByteArrayCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int getByteSize(byte[] value) {
+            return value.length;
+        }
+    }
+
+    @Test
+    public void testSizeAccounting() {
+        ByteArrayCache cache = new ByteArrayCache(1000);
+        cache.put("a", new byte[300]);
+        cache.put("b", new byte[200]);
+        assertEquals(500, cache.size());
+
+        // replacing an entry accounts for the new size only
+        cache.put("a", new byte[100]);
+        assertEquals(300, cache.size());
+
+        cache.remove("b");
+        assertEquals(100, cache.size());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testEviction() {
+        ByteArrayCache cache = new ByteArrayCache(1000);
+        cache.put("a", new byte[400]);
+        cache.put("b", new byte[400]);
+        // access "a" so "b" is the least recently used
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", new byte[400]);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(800, cache.size());
+        assertEquals(1, cache.evictionCount());
+
+        // a value bigger than the whole cache evicts everything
+        cache.put("d", new byte[1001]);
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2015 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import android.media.ExifInterface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MediaStorageTest {
+
+    @Test
+    public void testSampleSize() {
+        // 8MP camera photo to thumbnail
+        int sample = MediaStorage.computeSampleSize(3264, 2448, 256, 256);
+        assertEquals(8, sample);
+        assertTrue(2448 / sample >= 256);
+        // the next power of two would be too small
+        assertTrue(2448 / (sample * 2) < 256);
+
+        // already small enough
+        assertEquals(1, MediaStorage.computeSampleSize(300, 200, 256, 256));
+        assertEquals(1, MediaStorage.computeSampleSize(100, 100, 256, 256));
+    }
+
+    @Test
+    public void testPeakAllocation() {
+        // decoded bitmap is less than 4 times the target area (less than 2x per side)
+        int[][] sizes = { { 3264, 2448 }, { 4000, 3000 }, { 2448, 3264 }, { 1600, 1200 },
+            { 4000, 1000 }, { 1000, 4000 }, { 8000, 1500 } };
+        for (int[] size : sizes) {
+            int[] target = MediaStorage.computeFitSize(size[0], size[1], 1024, 1024);
+            // same sample size used by resizeImage
+            int sample = MediaStorage.computeFitSampleSize(size[0], size[1], 1024, 1024);
+            int w = size[0] / sample;
+            int h = size[1] / sample;
+            assertTrue(w >= target[0] && h >= target[1]);
+            assertTrue((long) w * h < 4L * target[0] * target[1]);
+        }
+    }
+
+    @Test
+    public void testFitSize() {
+        int[] size = MediaStorage.computeFitSize(3264, 2448, 1024, 1024);
+        assertEquals(1024, size[0]);
+        assertEquals(768, size[1]);
+
+        // portrait
+        size = MediaStorage.computeFitSize(2448, 3264, 1024, 1024);
+        assertEquals(768, size[0]);
+        assertEquals(1024, size[1]);
+
+        // never scale up
+        size = MediaStorage.computeFitSize(640, 480, 1024, 1024);
+        assertEquals(640, size[0]);
+        assertEquals(480, size[1]);
+    }
+
+    @Test
+    public void testExifOrientation() {
+        assertEquals(0, MediaStorage.exifOrientationToDegrees(ExifInterface.ORIENTATION_NORMAL));
+        assertEquals(90, MediaStorage.exifOrientationToDegrees(ExifInterface.ORIENTATION_ROTATE_90));
+        assertEquals(180, MediaStorage.exifOrientationToDegrees(ExifInterface.ORIENTATION_ROTATE_180));
+        assertEquals(270, MediaStorage.exifOrientationToDegrees(ExifInterface.ORIENTATION_ROTATE_270));
+        assertEquals(0, MediaStorage.exifOrientationToDegrees(ExifInterface.ORIENTATION_UNDEFINED));
+    }
+
+}